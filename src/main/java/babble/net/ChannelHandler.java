@@ -0,0 +1,63 @@
+package babble.net;
+
+import java.io.IOException;
+import java.nio.channels.ByteChannel;
+
+/**
+ * Handles a connection that has switched from the request-response protocol
+ * of a server to another protocol, e.g. WebSocket, or a connection whose
+ * protocol frames many requests on the same connection, e.g. HTTP/2.
+ * <br>
+ * A response {@link Response#setUpgrade(ChannelHandler) carries} the handler.
+ * After the response has been sent, the server no longer reads requests on
+ * the connection, but notifies the handler as data arrives. The handler
+ * writes to the {@link WriteQueue queue} of the connection.
+ * <br>
+ * A {@link Protocol#newChannelHandler(NioServer, java.nio.channels.SocketChannel)
+ * protocol} may also handle a connection from the moment it is accepted.
+ * <br>
+ * The handler is invoked on the i/o thread of the server. Hence it must
+ * not block.
+ *
+ * @author pinaki poddar
+ *
+ */
+public interface ChannelHandler {
+    /**
+     * Invoked once after the response that switched the protocol has been
+     * queued, before any data is read.
+     *
+     * @param queue the queue to write on the connection
+     */
+    void open(WriteQueue queue);
+
+    /**
+     * Reads the data available on the given channel without blocking.
+     *
+     * @param channel a non-blocking channel
+     * @return false if the connection is to be closed immediately
+     * @throws IOException if the data can not be read or does not conform
+     * to the protocol. The connection is closed.
+     */
+    boolean read(ByteChannel channel) throws IOException;
+
+    /**
+     * Invoked when the server closes the connection because the handler
+     * failed or {@link #read(ByteChannel) asked} to close.
+     */
+    void closed();
+
+    /**
+     * Sends a response to a request that this handler has
+     * {@link NioServer#dispatch(Request) dispatched} to the router.
+     * Invoked on the thread that completed the request.
+     * <br>
+     * By default, a handler does not dispatch requests.
+     *
+     * @param response a response to a request dispatched by this handler
+     * @throws IOException if the response can not be sent
+     */
+    default void send(Response response) throws IOException {
+        throw new UnsupportedOperationException(this + " does not send responses");
+    }
+}
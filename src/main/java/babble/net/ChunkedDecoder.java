@@ -0,0 +1,175 @@
+package babble.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import babble.net.exception.ProtocolException;
+
+/**
+ * Decodes a body sent in chunked transfer coding i.e. a sequence of
+ * chunks, each a size in hexadecimal followed by CRLF, data and CRLF,
+ * ended by a chunk of zero size and optional trailer lines.
+ * <br>
+ * The decoder is resumable. It consumes whatever bytes are available in a
+ * buffer, across any number of partial reads, and remembers where in the
+ * coding it has stopped. The data of a chunk is {@link #decode(ByteBuffer)
+ * handed out} as a slice of the input buffer, without copying, so the
+ * buffer may be a pooled buffer that is refilled once the slice has been
+ * consumed. Chunk extensions and trailers are skipped.
+ * <br>
+ * A decoder is not thread-safe.
+ *
+ * @author pinaki poddar
+ *
+ */
+public class ChunkedDecoder {
+    private static final int SIZE = 0, EXTENSION = 1, SIZE_LF = 2, DATA = 3,
+            DATA_CR = 4, DATA_LF = 5, TRAILER = 6, TRAILER_LINE = 7,
+            TRAILER_LF = 8, LAST_LF = 9, DONE = 10;
+    /** maximum number of hexadecimal digits in chunk size */
+    private static final int MAX_SIZE_DIGITS = 15;
+
+    private int _state = SIZE;
+    private long _remaining;
+    private int _digits;
+
+    /**
+     * Decodes the remaining bytes of the given buffer up to the data of
+     * a chunk.
+     *
+     * @param src a buffer of coded bytes. Its position is advanced past the
+     * bytes consumed.
+     * @return a slice of the given buffer with the data of a chunk, or
+     * part of it, if available. null if the buffer has no more data, or the
+     * body is {@link #isComplete() complete}. The slice shares content
+     * with the given buffer.
+     * @throws ProtocolException if the bytes violate chunked coding
+     */
+    public ByteBuffer decode(ByteBuffer src) throws ProtocolException {
+        skip(src);
+        if (_state != DATA || !src.hasRemaining()) return null;
+        int n = (int)Math.min(_remaining, src.remaining());
+        ByteBuffer data = src.slice();
+        data.limit(n);
+        src.position(src.position() + n);
+        _remaining -= n;
+        if (_remaining == 0) _state = DATA_CR;
+        return data;
+    }
+
+    /**
+     * Consumes the coding bytes of the given buffer up to the data of the
+     * next chunk, or the end of the body. A chunk that has been decoded is
+     * known to be the last one if the body is {@link #isComplete() complete}
+     * after the skip.
+     *
+     * @param src a buffer of coded bytes. Its position is advanced past the
+     * bytes consumed.
+     * @throws ProtocolException if the bytes violate chunked coding
+     */
+    public void skip(ByteBuffer src) throws ProtocolException {
+        while (src.hasRemaining() && _state != DATA && _state != DONE) {
+            byte b = src.get();
+            switch (_state) {
+            case SIZE:
+                int digit = Character.digit(b, 16);
+                if (digit >= 0) {
+                    if (++_digits > MAX_SIZE_DIGITS)
+                        throw new ProtocolException("chunk size is too large");
+                    _remaining = (_remaining << 4) | digit;
+                } else if (_digits == 0) {
+                    throw new ProtocolException("invalid chunk size character " + (char)b);
+                } else if (b == ';' || b == ' ' || b == '\t') {
+                    _state = EXTENSION;
+                } else if (b == '\r') {
+                    _state = SIZE_LF;
+                } else {
+                    throw new ProtocolException("invalid chunk size character " + (char)b);
+                }
+                break;
+            case EXTENSION:
+                if (b == '\r') _state = SIZE_LF;
+                break;
+            case SIZE_LF:
+                expect('\n', b);
+                _digits = 0;
+                _state = _remaining == 0 ? TRAILER : DATA;
+                break;
+            case DATA_CR:
+                expect('\r', b);
+                _state = DATA_LF;
+                break;
+            case DATA_LF:
+                expect('\n', b);
+                _state = SIZE;
+                break;
+            case TRAILER: // start of a trailer line. An empty line ends the body
+                _state = b == '\r' ? LAST_LF : TRAILER_LINE;
+                break;
+            case TRAILER_LINE:
+                if (b == '\r') _state = TRAILER_LF;
+                break;
+            case TRAILER_LF:
+                expect('\n', b);
+                _state = TRAILER;
+                break;
+            case LAST_LF:
+                expect('\n', b);
+                _state = DONE;
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    private static void expect(char expected, byte b) throws ProtocolException {
+        if (b != expected) throw new ProtocolException("expected "
+                + (int)expected + " in chunked coding but found " + b);
+    }
+
+    /**
+     * Affirms if the last chunk and the trailers have been decoded.
+     * The bytes after the body are left in the input buffer.
+     */
+    public boolean isComplete() {
+        return _state == DONE;
+    }
+
+    /**
+     * Resets this decoder to decode another body.
+     */
+    public void reset() {
+        _state = SIZE;
+        _remaining = 0;
+        _digits = 0;
+    }
+
+    /**
+     * Reads the data of the next chunk from the given blocking channel.
+     * The bytes are read into the given buffer, which holds the bytes read
+     * but not yet decoded between the calls.
+     *
+     * @param channel a readable channel
+     * @param buffer a buffer in read mode i.e. its remaining bytes are yet
+     * to be decoded. The buffer is compacted before more bytes are read.
+     * @return a slice of the buffer with the data of a chunk, or part of it.
+     * null if the body is complete. The slice is valid until the next call.
+     * @throws IOException if the channel ends before the body is complete
+     * @throws ProtocolException if the bytes violate chunked coding
+     */
+    public ByteBuffer read(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (!isComplete()) {
+            ByteBuffer data = decode(buffer);
+            if (data != null) return data;
+            if (isComplete()) break;
+            buffer.compact();
+            int n = channel.read(buffer);
+            buffer.flip();
+            if (n < 0) throw new IOException("channel has been closed by remote"
+                    + " before the last chunk");
+        }
+        return null;
+    }
+}
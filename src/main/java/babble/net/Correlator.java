@@ -0,0 +1,56 @@
+package babble.net;
+
+import java.nio.ByteBuffer;
+
+import babble.net.exception.ProtocolException;
+
+/**
+ * Correlates the responses received by a client with the requests sent,
+ * for a protocol whose response carries the identifier of its request,
+ * e.g. JSON-RPC.
+ * <br>
+ * A {@link NioClient client} of such a protocol sends any number of
+ * requests on a connection without waiting for a response, and the
+ * responses may arrive in any order. The correlator splits the bytes
+ * received on a connection into responses, and identifies the request
+ * each response answers.
+ * <br>
+ * A correlator is invoked on the i/o thread of a client. Hence it must not
+ * block.
+ *
+ * @author pinaki poddar
+ *
+ * @param <R> type of request
+ */
+public interface Correlator<R extends Request> {
+    /**
+     * Gets the identifier of the given request.
+     *
+     * @param request a request to be sent
+     * @return an identifier, or null if the request expects no response.
+     * The identifier is compared by equality.
+     */
+    Object getId(R request);
+
+    /**
+     * Splits the next whole response off the bytes received on a
+     * connection.
+     *
+     * @param buffer bytes received, in read mode. The position is advanced
+     * past the response, if a whole response is available.
+     * @return the bytes of the response, or null if the rest of a response
+     * is yet to be received. The bytes may share content with given buffer.
+     * @throws ProtocolException if the bytes are not valid
+     */
+    ByteBuffer nextResponse(ByteBuffer buffer) throws ProtocolException;
+
+    /**
+     * Gets the identifier of the request the given response answers.
+     *
+     * @param response bytes of a response as split by
+     * {@link #nextResponse(ByteBuffer)}
+     * @return identifier of a request, or null if not known
+     * @throws ProtocolException if the response is not valid
+     */
+    Object getRequestId(ByteBuffer response) throws ProtocolException;
+}
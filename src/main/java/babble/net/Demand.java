@@ -0,0 +1,67 @@
+package babble.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The demand of a {@link ResponseConsumer consumer} for the parts of a
+ * response.
+ * <br>
+ * A consumer {@link #request(long) requests} the number of parts it is
+ * ready to receive, and a client delivers no more than requested. While the
+ * demand is exhausted or {@link #pause() paused}, the client stops reading
+ * the connection, so the server is held back by the flow control of the
+ * network rather than the response being buffered by the client.
+ * <br>
+ * A demand can be requested or paused by any thread.
+ *
+ * @author pinaki poddar
+ *
+ */
+public final class Demand {
+    private final AtomicLong _requested = new AtomicLong();
+    private final Runnable _resume;
+
+    /**
+     * @param resume invoked as the demand is requested after it has been
+     * exhausted
+     */
+    Demand(Runnable resume) {
+        _resume = resume;
+    }
+
+    /**
+     * Requests the given number of parts more.
+     *
+     * @param n a positive number. {@link Long#MAX_VALUE} requests all the
+     * parts.
+     */
+    public void request(long n) {
+        if (n <= 0) throw new IllegalArgumentException("demand " + n
+                + " must be positive");
+        long previous = _requested.getAndAccumulate(n,
+                (requested, more) -> requested + more < 0 ? Long.MAX_VALUE : requested + more);
+        if (previous == 0) _resume.run();
+    }
+
+    /**
+     * Stops the delivery of the parts until more are requested.
+     */
+    public void pause() {
+        _requested.set(0);
+    }
+
+    /**
+     * Affirms if a part can be delivered.
+     */
+    boolean isReady() {
+        return _requested.get() > 0;
+    }
+
+    /**
+     * Counts a part delivered.
+     */
+    void consume() {
+        _requested.getAndUpdate(requested ->
+            requested == 0 || requested == Long.MAX_VALUE ? requested : requested - 1);
+    }
+}
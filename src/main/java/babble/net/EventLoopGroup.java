@@ -0,0 +1,271 @@
+package babble.net;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A fixed number of i/o threads shared by any number of
+ * {@link NioClient clients}.
+ * <br>
+ * Each thread runs an event loop on its own selector. A client is bound
+ * to one of the loops, in turn, when it is created, and all network i/o
+ * of the client happens on the thread of that loop. Hence the number of
+ * threads does not grow with the number of servers a program talks to,
+ * e.g. a gateway to many services needs only as many threads as there
+ * are processors to do the i/o.
+ * <br>
+ * A client that is not given a group runs on a group of its own with a
+ * single thread, which is closed with the client.
+ *
+ * @author pinaki poddar
+ *
+ */
+public class EventLoopGroup {
+    private final EventLoop[] _loops;
+    private final AtomicInteger _next = new AtomicInteger();
+
+    private static final Logger _logger = LoggerFactory.getLogger(EventLoopGroup.class);
+
+    /**
+     * Creates a group of daemon threads, one per available processor.
+     *
+     * @param name name of the group. The threads are named after it.
+     */
+    public EventLoopGroup(String name) throws IOException {
+        this(name, Runtime.getRuntime().availableProcessors(), true);
+    }
+
+    /**
+     * Creates a group of the given number of threads.
+     *
+     * @param name name of the group. The threads are named after it.
+     * @param size number of threads. Must be positive.
+     * @param daemon if true runs daemon threads.
+     * If the group runs the clients of a main program, then its threads
+     * should be non-daemon threads. Otherwise, the clients will not
+     * be alive to receive an asynchronous response after the main
+     * program has exited.
+     */
+    public EventLoopGroup(String name, int size, boolean daemon) throws IOException {
+        if (size <= 0) throw new IllegalArgumentException("number of threads "
+                + size + " must be positive");
+        _loops = new EventLoop[size];
+        for (int i = 0; i < size; i++) {
+            _loops[i] = new EventLoop(SelectorProvider.provider().openSelector());
+            Thread thread = new Thread(_loops[i], size == 1 ? name : name + '-' + i);
+            thread.setDaemon(daemon);
+            thread.start();
+        }
+    }
+
+    /**
+     * Gets the number of threads of this group.
+     */
+    public int size() {
+        return _loops.length;
+    }
+
+    /**
+     * Gets the loop to bind the next client to.
+     */
+    EventLoop next() {
+        if (isClosed()) throw new IllegalStateException(this + " has been closed");
+        return _loops[Math.floorMod(_next.getAndIncrement(), _loops.length)];
+    }
+
+    /**
+     * Stops the threads of this group. The clients still bound to the
+     * group are closed.
+     */
+    public void close() {
+        for (EventLoop loop : _loops) {
+            loop._closed = true;
+            loop._selector.wakeup();
+        }
+    }
+
+    public boolean isClosed() {
+        return _loops[0]._closed;
+    }
+
+    /**
+     * A thread that selects the channels of the clients bound to it, and
+     * runs the tasks the clients submit.
+     * <br>
+     * The key of a channel is attached with a {@link Handler handler}.
+     * The clients {@link NioClient#tick(long) tick} once every
+     * {@link #TICK_INTERVAL}.
+     * <br>
+     * A loop is also the timer of its clients. The tasks
+     * {@link #schedule(Runnable, long, TimeUnit) scheduled} are held in
+     * the order of their deadline, and the loop selects no longer than
+     * the nearest deadline. Hence any number of timeouts cost no thread.
+     */
+    static final class EventLoop implements Runnable {
+        /** interval in milliseconds between two ticks of the clients */
+        static final long TICK_INTERVAL = 1000;
+
+        private final Selector _selector;
+        private final Queue<Runnable> _tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final List<NioClient<?,?>> _clients = new CopyOnWriteArrayList<NioClient<?,?>>();
+        /** scheduled tasks by deadline. Accessed by the thread of this loop only */
+        private final Queue<Timeout> _timeouts = new PriorityQueue<Timeout>();
+        private volatile boolean _closed;
+        private long _lastTick;
+
+        EventLoop(Selector selector) {
+            _selector = selector;
+        }
+
+        Selector selector() {
+            return _selector;
+        }
+
+        /**
+         * Runs the given task on the thread of this loop.
+         * Can be called by any thread.
+         */
+        void execute(Runnable task) {
+            _tasks.add(task);
+            _selector.wakeup();
+        }
+
+        /**
+         * Runs the given task on the thread of this loop once the given
+         * delay has elapsed. Can be called by any thread.
+         *
+         * @return a timeout that cancels the task
+         */
+        Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+            Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+            execute(() -> _timeouts.add(timeout));
+            return timeout;
+        }
+
+        void bind(NioClient<?,?> client) {
+            _clients.add(client);
+        }
+
+        void unbind(NioClient<?,?> client) {
+            _clients.remove(client);
+        }
+
+        @Override
+        public void run() {
+            while (!_closed) {
+                try {
+                    step();
+                } catch (Exception ex) {
+                    _logger.warn("event loop error: " + ex, ex);
+                }
+            }
+            for (NioClient<?,?> client : _clients) {
+                client.shutdown();
+            }
+            try {
+                _selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void step() throws IOException {
+            long wait = TICK_INTERVAL;
+            Timeout next = nextTimeout();
+            if (next != null) {
+                wait = Math.min(wait, TimeUnit.NANOSECONDS.toMillis(
+                        next._deadline - System.nanoTime() + 999999));
+            }
+            if (wait > 0) {
+                _selector.select(wait);
+            } else {
+                _selector.selectNow();
+            }
+            Iterator<SelectionKey> selectedKeys = _selector.selectedKeys().iterator();
+            while (selectedKeys.hasNext()) {
+                SelectionKey key = selectedKeys.next();
+                selectedKeys.remove();
+                if (key.isValid()) {
+                    ((Handler)key.attachment()).handle(key);
+                }
+            }
+            Runnable task;
+            while ((task = _tasks.poll()) != null) {
+                task.run();
+            }
+            long nanos = System.nanoTime();
+            while ((next = nextTimeout()) != null && next._deadline - nanos <= 0) {
+                _timeouts.poll();
+                next._task.run();
+            }
+            long now = System.currentTimeMillis();
+            if (now - _lastTick >= TICK_INTERVAL) {
+                _lastTick = now;
+                for (NioClient<?,?> client : _clients) {
+                    client.tick(now);
+                }
+            }
+        }
+
+        /**
+         * Gets the timeout of the nearest deadline, discarding the
+         * timeouts that have been cancelled.
+         */
+        private Timeout nextTimeout() {
+            Timeout next;
+            while ((next = _timeouts.peek()) != null && next._cancelled) {
+                _timeouts.poll();
+            }
+            return next;
+        }
+    }
+
+    /**
+     * A task scheduled on a loop.
+     */
+    static final class Timeout implements Comparable<Timeout> {
+        private final Runnable _task;
+        private final long _deadline;
+        private volatile boolean _cancelled;
+
+        Timeout(Runnable task, long deadline) {
+            _task = task;
+            _deadline = deadline;
+        }
+
+        /**
+         * Cancels the task, if it has not run yet. Can be called by any
+         * thread.
+         */
+        void cancel() {
+            _cancelled = true;
+        }
+
+        @Override
+        public int compareTo(Timeout other) {
+            return Long.compare(_deadline - other._deadline, 0);
+        }
+    }
+
+    /**
+     * Handles the i/o events of a channel registered with a loop.
+     */
+    interface Handler {
+        /**
+         * Invoked on the thread of the loop when the given key is ready.
+         */
+        void handle(SelectionKey key);
+    }
+}
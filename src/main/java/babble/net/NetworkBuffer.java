@@ -4,15 +4,27 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import babble.util.BufferPool;
+import babble.util.DeflaterPool;
+
 /**
  * A buffer for data to be written on a  network  channel.
  * An user can write byte, byte array,  multi-byte data (e.g.  
@@ -44,6 +56,20 @@ public class NetworkBuffer {
     public static final int CHUNK_BUFFER_SIZE = 1024;
     public static final byte[] CRLF_BYTES = {(byte)'\r', (byte)'\n'};
     
+    /**
+     * Whether use of a {@link #release() released} buffer is detected.
+     * Set by system property <code>babble.debug.release</code>. 
+     * In debug mode, a released buffer is never reused, and any later use
+     * of the buffer raises {@link IllegalStateException}.
+     */
+    public static final boolean DEBUG_RELEASE = Boolean.getBoolean("babble.debug.release");
+    
+    private volatile boolean _released;
+    /** encoder of the last encoding used to write a string */
+    private CharsetEncoder _encoder;
+    /** bytes received after this message that begin the next message */
+    private ByteBuffer _pipelined;
+    
     
     private static Logger _logger = LoggerFactory.getLogger("channel");
     
@@ -76,6 +102,7 @@ public class NetworkBuffer {
      * @param channel a network channel
      */
     protected void setChannel(ByteChannel channel) {
+        assertLive();
         _channel = channel;
     }
     
@@ -84,9 +111,68 @@ public class NetworkBuffer {
      * Can be null. 
      */
     protected final ByteChannel getChannel() {
+        assertLive();
         return _channel;
     }
     
+    /**
+     * Sets the bytes that begin this message, if they have been received
+     * with the previous message on the same connection, or the bytes
+     * received after this message that begin the next message.
+     * A peer that pipelines messages sends the next message without
+     * waiting for the previous one to be answered, so they may arrive
+     * in the same read.
+     *
+     * @param bytes bytes in read mode, or null
+     */
+    protected void setPipelined(ByteBuffer bytes) {
+        _pipelined = bytes;
+    }
+
+    /**
+     * Takes the bytes {@link #setPipelined(ByteBuffer) pipelined} with 
+     * this message.
+     *
+     * @return null if there are no such bytes, or they have been taken
+     */
+    protected ByteBuffer takePipelined() {
+        ByteBuffer bytes = _pipelined;
+        _pipelined = null;
+        return bytes;
+    }
+
+    /**
+     * Marks that this buffer is no longer used by its owner. The owner
+     * may {@link #recycle() recycle} the buffer afterwards. 
+     */
+    void release() {
+        _released = true;
+    }
+    
+    /**
+     * Resets this buffer to the state of a new buffer without a channel 
+     * so that it can be reused. The internal buffer is kept.
+     * A subclass that holds more state must reset that state as well.
+     */
+    protected void recycle() {
+        _channel = null;
+        _writeBuffer.clear();
+        _released = false;
+    }
+    
+    /**
+     * Asserts, in {@link #DEBUG_RELEASE debug mode}, that this buffer has
+     * not been {@link #release() released}.
+     * 
+     * @throws IllegalStateException if this buffer is used after release
+     */
+    protected final void assertLive() {
+        if (DEBUG_RELEASE && _released) 
+            throw new IllegalStateException(getClass().getSimpleName() 
+                    + '@' + Integer.toHexString(System.identityHashCode(this))
+                    + " is used after it has been released");
+    }
+    
     /**
      * Writes the given array of bytes.
      * @param bytes array of bytes. If null, no action taken.
@@ -94,20 +180,135 @@ public class NetworkBuffer {
      * @throws IOException if given value can not be written
      */
     protected NetworkBuffer writeBytes(byte[] bytes) throws IOException {
+        assertLive();
         if (bytes == null ||  bytes.length == 0) return this;
         
-        int n = Math.min(_writeBuffer.remaining(), bytes.length);
-        _writeBuffer.put(bytes, 0, n);
-        
-        if (_writeBuffer.remaining() == 0) {
+        for (int i = 0; i < bytes.length; ) {
+            int n = Math.min(_writeBuffer.remaining(), bytes.length - i);
+            _writeBuffer.put(bytes, i, n);
+            i += n;
+            if (_writeBuffer.remaining() == 0) {
+                flush(_writeBuffer, _channel);
+            }
+        }
+        return this;
+    }
+    
+    /**
+     * Writes the remaining bytes of the given buffer.
+     * A small buffer, that fits the internal buffer, is copied to the 
+     * internal buffer, which is flushed first if need be. Hence a small
+     * buffer can be reused once this method returns. A larger buffer 
+     * is written directly to the channel after flushing the internal buffer
+     * and hence is not copied. If the channel is a {@link WriteQueue}, 
+     * the larger buffer is queued, so its content must not be modified
+     * afterwards.
+     * 
+     * @param bytes a buffer. Its position is advanced to its limit. 
+     * If null, no action taken.
+     * @return the same buffer 
+     * @throws IOException if given value can not be written
+     */
+    protected NetworkBuffer writeBytes(ByteBuffer bytes) throws IOException {
+        assertLive();
+        if (bytes == null || !bytes.hasRemaining()) return this;
+        if (bytes.remaining() > _writeBuffer.remaining()) {
             flush(_writeBuffer, _channel);
         }
-
-        if (bytes.length > n) {
-            byte[] remaining = new byte[bytes.length-n];
-            System.arraycopy(bytes, n, remaining, 0, remaining.length);
-            writeBytes(remaining);
-        };
+        if (bytes.remaining() <= _writeBuffer.remaining()) {
+            _writeBuffer.put(bytes);
+            return this;
+        }
+        if (_channel instanceof WriteQueue) {
+            ((WriteQueue)_channel).enqueue(bytes);
+            bytes.position(bytes.limit());
+            return this;
+        }
+        while (bytes.hasRemaining()) {
+            _channel.write(bytes);
+        }
+        return this;
+    }
+    
+    /**
+     * Writes a region of the given file. The bytes are transferred from the
+     * file to the channel by {@link FileChannel#transferTo(long, long, 
+     * java.nio.channels.WritableByteChannel) transferTo}, which may not copy
+     * them through user space at all. 
+     * If the channel is a {@link WriteQueue}, the region is queued to be 
+     * read asynchronously and this method does not block on disk.
+     * 
+     * @param path a file. Must not be null.
+     * @param position offset of the first byte of the region in the file
+     * @param count number of bytes in the region
+     * @return the same buffer
+     * @throws IOException if the region can not be written, or the file is
+     * shorter than the region
+     */
+    protected NetworkBuffer writeFile(Path path, long position, long count) throws IOException {
+        flush(_writeBuffer, _channel);
+        if (_channel instanceof WriteQueue) {
+            ((WriteQueue)_channel).enqueue(path, position, count);
+            return this;
+        }
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long end = position + count;
+            while (position < end) {
+                long n = file.transferTo(position, end - position, _channel);
+                if (n <= 0 && position >= file.size()) {
+                    throw new IOException(path + " is shorter than " + end + " bytes");
+                }
+                position += n;
+            }
+        }
+        return this;
+    }
+    
+    /**
+     * Writes a region of the given file compressed in chunks.
+     * If the channel is a {@link WriteQueue}, the region is queued to be
+     * read asynchronously and compressed as it is read, and this method 
+     * does not block on disk. Otherwise, the region is read as it is
+     * compressed.
+     * The last chunk, that ends the body, is not written.
+     * 
+     * @param path a file. Must not be null.
+     * @param position offset of the first byte of the region in the file
+     * @param count number of bytes in the region
+     * @param deflaters the pool of deflaters to compress with
+     * @param gzip if true, the compressed data is framed in gzip format. 
+     * @return the same buffer
+     * @throws IOException if the region can not be written
+     */
+    protected NetworkBuffer writeDeflatedFile(Path path, long position, long count,
+            DeflaterPool deflaters, boolean gzip) throws IOException {
+        flush(_writeBuffer, _channel);
+        if (_channel instanceof WriteQueue) {
+            ((WriteQueue)_channel).enqueue(path, position, count, deflaters, gzip);
+            return this;
+        }
+        Deflater deflater = deflaters.acquire();
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            file.position(position);
+            InputStream in = Channels.newInputStream(file);
+            long[] remaining = {count};
+            writeDeflatedChunks(new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+                }
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (remaining[0] <= 0) return -1;
+                    int n = in.read(b, off, (int)Math.min(len, remaining[0]));
+                    if (n > 0) remaining[0] -= n;
+                    return n;
+                }
+            }, deflater, gzip);
+        } finally {
+            deflaters.release(deflater);
+        }
         return this;
     }
     
@@ -152,77 +353,240 @@ public class NetworkBuffer {
         if (values == null) return this;
         for (int i = 0; i < values.length; i++) {
             if (values[i] != null) {
-                writeBytes(values[i].getBytes(encoding));
+                writeString(encoding, values[i]);
             }
         }
         return this;
     }
     
+    /**
+     * Encodes the given string straight into the internal buffer, and 
+     * flushes the buffer whenever it fills up. No intermediate array is 
+     * created. 
+     * The leading US-ASCII characters of a string are copied as single 
+     * bytes if the encoding is compatible with US-ASCII. The rest of the
+     * string, if any, is encoded by an encoder that is reused for the same
+     * encoding. As with {@link String#getBytes(Charset)}, a character that
+     * can not be encoded is replaced.
+     */
+    private void writeString(Charset encoding, String s) throws IOException {
+        assertLive();
+        int n = s.length();
+        int i = 0;
+        if (isAsciiCompatible(encoding)) {
+            while (i < n) {
+                if (_writeBuffer.remaining() == 0) {
+                    flush(_writeBuffer, _channel);
+                }
+                int end = i + Math.min(n - i, _writeBuffer.remaining());
+                char c = 0;
+                for (; i < end && (c = s.charAt(i)) < 0x80; i++) {
+                    _writeBuffer.put((byte)c);
+                }
+                if (c >= 0x80) break;
+            }
+            if (i == n) return;
+        }
+        CharsetEncoder encoder = encoder(encoding);
+        CharBuffer chars = CharBuffer.wrap(s, i, n);
+        while (true) {
+            CoderResult result = encoder.encode(chars, _writeBuffer, true);
+            if (result.isUnderflow()) result = encoder.flush(_writeBuffer);
+            if (result.isUnderflow()) break;
+            if (result.isOverflow()) {
+                flush(_writeBuffer, _channel);
+            } else {
+                result.throwException();
+            }
+        }
+    }
+    
+    private static boolean isAsciiCompatible(Charset encoding) {
+        return encoding == StandardCharsets.UTF_8 
+            || encoding == StandardCharsets.US_ASCII
+            || encoding == StandardCharsets.ISO_8859_1
+            || "UTF-8".equals(encoding.name());
+    }
+    
+    /**
+     * Gets a reset encoder of the given encoding. The last encoder is 
+     * reused, because a buffer is written by a single thread.
+     */
+    private CharsetEncoder encoder(Charset encoding) {
+        CharsetEncoder encoder = _encoder;
+        if (encoder == null || !encoder.charset().equals(encoding)) {
+            encoder = _encoder = encoding.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        return encoder.reset();
+    }
+    
     protected NetworkBuffer writeCRLF() throws IOException {
         return writeBytes(CRLF_BYTES);
     }
-    
+
+    /**
+     * Writes the given characters directly as single bytes.
+     * Suitable for protocol text such as header that is known to be in
+     * US-ASCII. No intermediate array is created.
+     * A character outside US-ASCII range is written as <code>?</code>.
+     *
+     * @param s a sequence of characters. If null, no action is taken.
+     * @return the same buffer
+     * @throws IOException if given value can not be written
+     */
+    protected NetworkBuffer writeAscii(CharSequence s) throws IOException {
+        if (s == null) return this;
+        int n = s.length();
+        int i = 0;
+        while (i < n) {
+            if (_writeBuffer.remaining() == 0) {
+                flush(_writeBuffer, _channel);
+            }
+            int end = i + Math.min(n - i, _writeBuffer.remaining());
+            for (; i < end; i++) {
+                char c = s.charAt(i);
+                _writeBuffer.put(c < 0x80 ? (byte)c : (byte)'?');
+            }
+        }
+        return this;
+    }
+
     protected NetworkBuffer writeString(String... values) throws IOException {
         return writeString(Charset.defaultCharset(), values);
     }
     
     protected NetworkBuffer writeStringInChunks(String s) throws IOException {
-        byte[] bytes = s.getBytes();
-        byte[] chunk = new byte[CHUNK_BUFFER_SIZE];
-        int N = bytes.length/CHUNK_BUFFER_SIZE;
-        for (int i = 0, i0 = 0; i < N; i++, i0 += CHUNK_BUFFER_SIZE) {
-            System.arraycopy(bytes, i0, chunk, 0, CHUNK_BUFFER_SIZE);
-            writeChunk(chunk);
-        }
-        byte[] reminder = new byte[bytes.length%CHUNK_BUFFER_SIZE];
-        if (reminder.length > 0) {
-            System.arraycopy(bytes, N*CHUNK_BUFFER_SIZE, 
-                    reminder, 0, reminder.length);
-            writeChunk(reminder);
-            
+        return writeStringInChunks(Charset.defaultCharset(), s);
+    }
+
+    /**
+     * Writes the given string in chunks of at most {@link #CHUNK_BUFFER_SIZE}
+     * bytes. The string is encoded straight into a pooled buffer, a chunk
+     * at a time, by the encoder that is reused for the same encoding. 
+     * Hence the string is never encoded to an array as a whole.
+     */
+    protected NetworkBuffer writeStringInChunks(Charset encoding, String s) 
+            throws IOException {
+        CharsetEncoder encoder = encoder(encoding);
+        CharBuffer chars = CharBuffer.wrap(s);
+        ByteBuffer chunk = BufferPool.SHARED.acquire();
+        try {
+            chunk.limit(Math.min(chunk.capacity(), CHUNK_BUFFER_SIZE));
+            boolean encoded = false;
+            while (true) {
+                CoderResult result = encoded ? encoder.flush(chunk) 
+                        : encoder.encode(chars, chunk, true);
+                if (!encoded && result.isUnderflow()) {
+                    encoded = true;
+                    result = encoder.flush(chunk);
+                }
+                if (result.isError()) result.throwException();
+                if (chunk.position() > 0) {
+                    chunk.flip();
+                    writeChunk(chunk);
+                    chunk.clear().limit(Math.min(chunk.capacity(), CHUNK_BUFFER_SIZE));
+                }
+                if (result.isUnderflow()) break;
+            }
+        } finally {
+            BufferPool.SHARED.release(chunk);
         }
-        
         return this;
     }
 
     
     /**
-     * Writes the content of given path in chunk encoding.
-     * @param path to an input stream. If null, no action is taken.
+     * Writes the content of given path as a single chunk. The content is
+     * {@link #writeFile(Path, long, long) transferred} from the file.
+     * @param path a file. If null, no action is taken.
      * @return the same response for chaining
      * @throws IOException if given value can not be written
      */
     protected NetworkBuffer writeStream(Path path) throws IOException {
         if (path == null) return this;
-        return writeStream(Files.newInputStream(path));
+        long size = Files.size(path);
+        if (size > 0) {
+            writeAscii(Long.toHexString(size));
+            writeCRLF();
+            writeFile(path, 0, size);
+            writeCRLF();
+        }
+        return this;
     }
 
     
     /**
      * Writes the content of given input stream in chunks.
-     * @param in an input stream. 
+     * The stream is read on the calling thread, and may block it. 
+     * Hence a file is better written by {@link #writeStream(Path)}, which 
+     * does not block on disk if the channel is a {@link WriteQueue}.
+     * 
+     * @param in an input stream. It is read till end and closed.
      * @return the same response for chaining
      * @throws IOException if given value can not be written
      */
     protected NetworkBuffer writeStream(InputStream in) throws IOException {
-         flush(_writeBuffer, _channel);
-         
-         byte[] buf = new byte[CHUNK_BUFFER_SIZE];
-         byte[] chunk = null;
-         int L = 0;
-         while ((L = in.read(buf, 0, buf.length)) > 0) {
-            if (L != CHUNK_BUFFER_SIZE) {
-                chunk = new byte[L];
-                System.arraycopy(buf, 0, chunk, 0, L);
-            } else {
-                chunk = buf;
+        byte[] buf = new byte[CHUNK_BUFFER_SIZE];
+        try {
+            int n;
+            while ((n = in.read(buf, 0, buf.length)) >= 0) {
+                if (n > 0) writeChunk(ByteBuffer.wrap(buf, 0, n));
             }
-            writeChunk(chunk);
+        } finally {
+            in.close();
         }
-         in.close();
-        
         return this;
-        
+    }
+     
+    /**
+     * Writes the content of given input stream compressed in chunks.
+     * The content is compressed as it is read, so it is never held in 
+     * memory as a whole. 
+     * 
+     * @param in an input stream. It is read till end but not closed.
+     * @param deflater a deflater. It is finished, but not reset, after
+     * the content is written.
+     * @param gzip if true, the compressed data is framed in gzip format. 
+     * The deflater must then produce raw deflate data.
+     * @return the same buffer
+     * @throws IOException if given value can not be written
+     */
+    protected NetworkBuffer writeDeflatedChunks(InputStream in, Deflater deflater, 
+            boolean gzip) throws IOException {
+        byte[] input  = new byte[MAX_BUFFER_SIZE];
+        byte[] output = new byte[MAX_BUFFER_SIZE];
+        CRC32 crc = gzip ? new CRC32() : null;
+        long length = 0;
+        if (gzip) {
+            writeChunk(DeflaterPool.GZIP_HEADER);
+        }
+        int n;
+        while ((n = in.read(input, 0, input.length)) >= 0) {
+            if (n == 0) continue;
+            if (crc != null) crc.update(input, 0, n);
+            length += n;
+            deflater.setInput(input, 0, n);
+            while (!deflater.needsInput()) {
+                writeDeflated(deflater, output);
+            }
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            writeDeflated(deflater, output);
+        }
+        if (gzip) {
+            writeChunk(DeflaterPool.gzipTrailer(crc, length));
+        }
+        return this;
+    }
+    
+    private void writeDeflated(Deflater deflater, byte[] output) throws IOException {
+        int n = deflater.deflate(output);
+        if (n > 0) {
+            writeChunk(ByteBuffer.wrap(output, 0, n));
+        }
     }
      
      /**
@@ -242,6 +606,17 @@ public class NetworkBuffer {
          .writeBytes(CRLF_BYTES);
      }
      
+     /**
+      * writes remaining bytes of given buffer as a chunk.
+      * @param chunk a buffer. Its position is advanced to its limit.
+      */
+     protected void writeChunk(ByteBuffer chunk) throws IOException {
+         writeAscii(Integer.toHexString(chunk.remaining()))
+         .writeBytes(CRLF_BYTES)
+         .writeBytes(chunk)
+         .writeBytes(CRLF_BYTES);
+     }
+     
      /**
       * Flush the content on to network channel
       * 
@@ -259,104 +634,17 @@ public class NetworkBuffer {
       * @throws IOException
       */
      private void flush(ByteBuffer buffer, ByteChannel channel) throws IOException {
+         assertLive();
          assertWritable();
          _logger.debug("flushing " + buffer.position() + " bytes");
          buffer.flip();
-         channel.write(buffer);
-         buffer.clear();
-     }
-     
-     
-     /**
-      * Read chunk from given network channel.
-      * A chunk follows a format:
-      * <pre>
-      * no. of bytes in chunk (as ASCII text for Hexadecimal) CRLF
-      * actual bytes
-      * CRLF
-      * <pre>
-      * @param channel readable channel of  byte data 
-      * @return
-      */
-     protected byte[] readChunk(ByteChannel channel) throws IOException {
-         int READ_BUFFER_SIZE = 32;
-         ByteBuffer firstBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
-         byte[] firstLine = readLine(channel, firstBuffer);
-         
-         String s = new String(firstLine, StandardCharsets.US_ASCII);
-         long L = Long.parseLong(s, 16);
-         _logger.debug("chunk length=" + L);
-         
-         ByteBuffer excess = firstBuffer.slice();
-         _logger.debug("excess from first line=" + excess.limit() + " bytes");
-
-         ByteBuffer content = ByteBuffer.allocate((int)L + 2);
-         content.put(excess);   
-         int c = channel.read(content);
-         _logger.debug("read " + c + " bytes of chunk content");
-         
-         if (content.remaining() != 0) {
-             throw new RuntimeException("did not read chunk content fully remaining " + 
-                     content.remaining() + " bytes");
-         }
-         
-         byte[] contentWithCRLF = content.array();
-         byte[] contentWithoutCRLF = new byte[contentWithCRLF.length-2];
-         System.arraycopy(contentWithCRLF, 0, contentWithoutCRLF, 0, 
-                 contentWithoutCRLF.length);
-         return contentWithoutCRLF; // chunk content
-     }
-     
-     /**
-      * Reads from given socket channel on to the given buffer.
-      * The data is 
-      * @param channel
-      * @param buf a buffer where bytes will be read.
-      * After the buffer is positioned at the beginning of excess data 
-      * and limit is end of all data read.
-      * byte[] bytes = new byte[buf.limit() - buf.position()];
-      * byte[] excessBytes = buf.get(bytes); 
-      * @return the bytes till the first occurrence of CRLF byte sequence
-      * (byte 10 followed by byte 13).
-      * 
-      */
-     protected byte[] readLine(ByteChannel channel, ByteBuffer buf) throws IOException {
-         _logger.debug("reading a line from channel onto " + buf);
-         int p0 = buf.position();
-         int n = channel.read(buf);
-         buf.limit(buf.position());
-         if (n < 0) throw new IOException("channel has been closed by remote");
-         if (n == 0) {
-             return new byte[0];
-         }
-         _logger.debug("read " + n + " bytes from channel " + channel);
-         buf.position(p0); // start reading from initial  buffer position
-         byte ch1 = buf.get();
-         byte ch2 = '\0';
-         while ((ch2 = buf.get()) != '\n' && ch1 != '\r') {
-             ch1 = ch2;
+         while (buffer.hasRemaining()) {
+             channel.write(buffer);
          }
-         _logger.debug("found CRLF at buffer position " + buf.position());
-         
-         int mark = buf.position();
-         
-         byte[] line = new byte[buf.position()-p0-2];
-
-         _logger.debug("line " + line.length + " bytes at buffer position [" + p0 + "," + buf.position() + ']');
-         buf.position(p0);
-         buf.get(line);
-         
-         buf.position(mark);
-         _logger.debug("slice buffer from position " + mark);
-         buf = buf.slice();
-         buf.limit(n-(line.length+2));
-         _logger.debug("extra data read=" + buf.limit() + " bytes");
-         
-         return line;
+         buffer.clear();
      }
      
      
-     
      /**
      * Asserts that a network channel is available and is writable.
      * @throws IOException
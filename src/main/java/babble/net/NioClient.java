@@ -1,78 +1,200 @@
 package babble.net;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
-import java.nio.channels.ByteChannel;
-import java.nio.channels.Channel;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-//import java.nio.channels.SocketChannel;
-import java.nio.channels.spi.SelectorProvider;
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import babble.net.EventLoopGroup.EventLoop;
+import babble.net.exception.ProtocolException;
+import babble.util.BufferPool;
 import babble.util.ChannelInfo;
 
 
 /**
- * A client to a server. The client receives server response asynchronously. 
+ * A client to a server. The client receives server response asynchronously.
  * <br>
- * The caller {@link #sendRequest(Request, ResponseCallback) 
- * sends} a request to server supplying a {@link ResponseCallback callback}. 
- * The callback is {@link ResponseCallback#onResponse(byte[]) invoked} 
+ * The caller {@link #sendRequest(Request, ResponseCallback)
+ * sends} a request to server supplying a {@link ResponseCallback callback}.
+ * The callback is {@link ResponseCallback#onResponse(byte[], boolean) invoked}
  * whenever server completes the request and sends a response.
  * <br>
- * A <em>synchronous</em> client waits on a network channel until server 
+ * A <em>synchronous</em> client waits on a network channel until server
  * responds. Hence, during that waiting period, the network channel is
- * <em>blocked>/em>, no other service can use it.
+ * <em>blocked</em>, no other service can use it.
  * <br>
  * An <em>asynchronous</em> client, such as this one, does not block the
  * network channel. Instead, the client immediately returns (with a void)
  * when user sends a {@link #sendRequest(Request, ResponseCallback) sends}
  * a request to server.
- * 
  * <br>
- * A client runs a <em>i/o thread</em>  that sends requests and receives 
+ * A request can also be {@link #call(Request, long, TimeUnit) called}
+ * for a {@link CompletableFuture future} of its response, which fails if
+ * the response is not received in time. The timeouts are kept by the
+ * i/o thread, so a caller composes any number of calls without a thread
+ * to wait for each.
+ * <br>
+ * A large response is {@link #stream(Request, ResponseConsumer) streamed}
+ * to a consumer in the buffer it is read into, as fast as the consumer
+ * {@link Demand asks} for it.
+ *
+ * <br>
+ * A client runs on a <em>i/o thread</em>  that sends requests and receives
  * response from server.
  * This 'main' thread is different than the thread on which user has called
- * this client. The <em>i/o thread</em> runs continually until it is
- * interrupted externally by a user.
- * 
+ * this client. The i/o thread belongs to an {@link EventLoopGroup event 
+ * loop group}, which may be shared by many clients. A client that is not
+ * given a group runs its own i/o thread until the client is 
+ * {@link #close() closed}.
+ *
+ * <br>
+ * <b>Connection pooling</b>:
+ * A client keeps a pool of connections to the server. A request is sent
+ * on an idle connection, or on a new connection if the pool has less
+ * than {@link #setMaxConnections(int) maximum} connections. Otherwise,
+ * the request waits, in the order it has been sent, until a connection
+ * becomes idle. A connection becomes idle once a response has been
+ * received on it, unless the response closes the connection.
+ * The most recently used idle connection is used first, and a connection
+ * that has been idle for {@link #setIdleTimeout(long, TimeUnit) too long}
+ * is closed. Hence concurrent requests to a server are sent on as many
+ * connections, while a steady stream of requests reuses few connections.
+ * <br>
+ * <b>Pipelining</b>:
+ * A client may {@link #setPipelineDepth(int) pipeline} requests, i.e. send
+ * a request on a busy connection without waiting for the responses to the
+ * requests sent before, once the pool has maximum connections. The
+ * responses are received in the order the requests have been sent, so a
+ * pipeline saves the round trip per request at the cost of a request
+ * waiting behind slower ones. Only {@link Request#isIdempotent() idempotent}
+ * requests are pipelined. If a connection is closed before all its
+ * requests are answered, the requests that have not been answered are sent
+ * again on another connection, as far as they are idempotent.
  * <br>
- * The ' 
- * 
+ * The connections are only accessed by the i/o thread. A request sent by
+ * a caller is handed over to the i/o thread through a queue.
+ * <br>
+ * <b>Correlation</b>:
+ * If the {@link Protocol#getCorrelator() protocol} correlates responses
+ * with requests by an identifier, e.g. JSON-RPC, then a connection need
+ * not wait for a response before it sends the next request. Once the pool
+ * has {@link #setMaxConnections(int) maximum} connections, a request is
+ * sent on the connection with fewest requests outstanding. The requests
+ * outstanding are held in a concurrent table by their identifier, and a
+ * response is matched to its request by the identifier it carries, in
+ * whatever order the responses arrive. A request that is not answered
+ * within {@link #setRequestTimeout(long, TimeUnit) request timeout} fails,
+ * and its response, if it arrives later, is discarded.
+ * <br>
+ * <b>Reconnection</b>:
+ * A connection that can not be opened, e.g. while the server restarts, is
+ * attempted again after a {@link #setReconnectBackoff(long, long, TimeUnit)
+ * backoff} that doubles with every failed attempt, and is jittered so that
+ * many clients of a server do not reconnect in step. Meanwhile, the
+ * requests wait for a connection as usual. If the server remains
+ * unreachable longer than the {@link #setReconnectWindow(long, TimeUnit)
+ * reconnect window}, the requests waiting for a connection fail at once,
+ * rather than pile up, until a connection succeeds again.
+ * Only one connection is attempted at a time while the server is
+ * unreachable. 
+ * <br>
+ * An idle connection is checked once a second, and before it is reused if
+ * it has been idle longer, to close a connection the server has closed
+ * without the client noticing. The connections also enable TCP keep-alive
+ * to detect a server that has gone away silently.
+ *
  * @author pinaki poddar
  *
  * @param <R>
  */
-public abstract class NioClient<R extends Request, P extends Response> implements Runnable {
+public abstract class NioClient<R extends Request, P extends Response> {
+    /** default maximum number of connections to the server */
+    public static final int  DEFAULT_MAX_CONNECTIONS = 8;
+    /** default time in milliseconds an idle connection is kept open */
+    public static final long DEFAULT_IDLE_TIMEOUT = 30*1000;
+    /** default time in milliseconds a correlated request waits for response */
+    public static final long DEFAULT_REQUEST_TIMEOUT = 30*1000;
+    /** default time in milliseconds before the first attempt to reconnect */
+    public static final long DEFAULT_INITIAL_BACKOFF = 100;
+    /** default maximum time in milliseconds between attempts to reconnect */
+    public static final long DEFAULT_MAX_BACKOFF = 10*1000;
+    /** default time in milliseconds a request waits for an unreachable server */
+    public static final long DEFAULT_RECONNECT_WINDOW = 5*1000;
+
     private InetAddress _hostAddress;
     private int _port;
 
-    private Selector _selector;
+    private final EventLoop _loop;
+    /** the group created for this client alone, if any */
+    private final EventLoopGroup _ownGroup;
     private Protocol<R,P> _protocol;
-    private final Object _selectorBug = new Object();
-    private Channel _channel;
+    private Correlator<R> _correlator;
+    private volatile boolean _closed;
 
-    private final BlockingDeque<Boolean> _connected = 
+    private volatile int _maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private volatile int _pipelineDepth = 1;
+    private volatile long _idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private volatile long _requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+    private volatile long _initialBackoff = DEFAULT_INITIAL_BACKOFF;
+    private volatile long _maxBackoff = DEFAULT_MAX_BACKOFF;
+    private volatile long _reconnectWindow = DEFAULT_RECONNECT_WINDOW;
+    /** number of attempts to connect that failed in a row */
+    private int _connectFailures;
+    /** time the first of the failed attempts to connect failed */
+    private long _unreachableSince;
+    /** time before which no connection is attempted */
+    private long _reconnectAt;
+    /** receives a byte, if any, read to check an idle connection */
+    private final ByteBuffer _probe = ByteBuffer.allocate(1);
+    /** correlated requests outstanding, by identifier */
+    private final Map<Object, Exchange> _outstanding = new ConcurrentHashMap<Object, Exchange>();
+    /** requests sent by callers, yet to be taken by the i/o thread */
+    private final Queue<Exchange> _sent = new ConcurrentLinkedQueue<Exchange>();
+    /** requests waiting for a connection. Accessed by the i/o thread only */
+    private final Deque<Exchange> _waiting = new ArrayDeque<Exchange>();
+    /** idle connections, most recently used first */
+    private final Deque<Connection> _idle = new ArrayDeque<Connection>();
+    private final Set<Connection> _connections = new HashSet<Connection>();
+    private volatile int _openConnections;
+    private final Runnable _dispatch = this::dispatch;
+
+    private final BlockingDeque<Boolean> _connected =
             new LinkedBlockingDeque<Boolean>();
+    /** whether the outcome of the first connection has been signalled */
+    private boolean _signalled;
 
     private Logger _logger;
-    
+
     /**
      * Create a client supplying the address and port of the server.
      * The client will wait for 1 second to connect to server before giving up.
-     * 
+     *
      * @param host remote host name to connect
      * @param port port where host listens for request
      * @param daemon if true runs the i/o thread as a daemon thread.
@@ -86,19 +208,14 @@ public abstract class NioClient<R extends Request, P extends Response> implement
         this(InetAddress.getByName(host), port, daemon, 1, TimeUnit.SECONDS);
     }
 
-    
+
     /**
      * Create a client supplying the address and port of the server.
      * The client will run a daemon thread for network i/o and will wait
      * for 1 second to connect to server before giving up.
-     * 
+     *
      * @param host remote host name to connect
      * @param port port where host listens for request
-     * @param daemon if true runs the i/o thread as a daemon thread.
-     * If the client runs as a main program, then the i/o thread
-     * should be a non-daemon thread. Otherwise, the client will not
-     * be alive to receive an asynchronous response after the main
-     * program has exited.
      * @throws IOException
      */
     public NioClient(String host, int port) throws IOException {
@@ -111,9 +228,9 @@ public abstract class NioClient<R extends Request, P extends Response> implement
      * <br>
      * <b>Note</b>: This client starts a thread on its own. The thread will
      * run until interrupted to listen for server response.
-     * The thread is interrupted if the server can not be connected in
-     * 2 seconds. 
-     * 
+     * The thread is interrupted if the server can not be connected within
+     * the given timeout. The first connection is kept in the pool.
+     *
      * @param host remote host address to connect
      * @param port port where host listens for request
      * @param daemon if true runs the i/o thread as a daemon thread.
@@ -124,275 +241,980 @@ public abstract class NioClient<R extends Request, P extends Response> implement
      * @param timeout time limit before client gives up attempt to connect
      * to server.
      * @param unit unit of time to express the timeout value.
-     * 
-     * @throws IOException if server can not be contacted within given 
+     *
+     * @throws IOException if server can not be contacted within given
      * timeout period.
      */
     public NioClient(InetAddress host, int port, boolean daemon,
             int timeout, TimeUnit unit) throws IOException {
+        this(host, port, new EventLoopGroup("client->" + host.getHostName() 
+                + ':' + port, 1, daemon), true, timeout, unit);
+        if (!daemon) _logger.info(this + " is running non-daemon i/o thread");
+    }
+
+    /**
+     * Create a client supplying the address and port of the server, that
+     * runs on a thread of the given group.
+     * 
+     * @param host remote host address to connect
+     * @param port port where host listens for request
+     * @param group the group that runs the i/o of this client. The group
+     * may be shared by other clients.
+     * @param timeout time limit before client gives up attempt to connect
+     * to server.
+     * @param unit unit of time to express the timeout value.
+     *
+     * @throws IOException if server can not be contacted within given
+     * timeout period.
+     */
+    public NioClient(InetAddress host, int port, EventLoopGroup group,
+            int timeout, TimeUnit unit) throws IOException {
+        this(host, port, group, false, timeout, unit);
+    }
+
+    private NioClient(InetAddress host, int port, EventLoopGroup group, 
+            boolean own, int timeout, TimeUnit unit) throws IOException {
         System.setProperty("java.net.preferIPv4Stack", ""+true);
         String target = host.getHostName() + ':' + port;
         String name = "client->" + target;
         _logger =  LoggerFactory.getLogger(name);
         _hostAddress = host;
         _port = port;
-
-        if (!daemon) _logger.info(name + " is running non-daemon i/o thread");
-        Thread ioThread = new Thread(this, name);
-        ioThread.setDaemon(daemon); // otherwise program will exit
-        ioThread.start();
+        _ownGroup = own ? group : null;
+        _loop = group.next();
+        _loop.bind(this);
+        _loop.execute(this::start);
 
         _logger.info("waiting to connect in " + timeout);
         try {
-            if (_connected.pollFirst(timeout, unit) == null) {
-                ioThread.interrupt();
-                throw new IOException("Can not connect to " + target 
+            if (!Boolean.TRUE.equals(_connected.pollFirst(timeout, unit))) {
+                close();
+                throw new IOException("Can not connect to " + target
                         + " in " + timeout + " " + unit);
             }
         } catch (InterruptedException ex) {
             ex.printStackTrace();
         }
     }
-    
+
     public Logger getLogger() {
         return _logger;
     }
 
+    /**
+     * Sets the maximum number of connections this client opens to the
+     * server. A request waits for a connection if as many connections are
+     * busy.
+     *
+     * @param max a positive number.
+     */
+    public void setMaxConnections(int max) {
+        if (max <= 0) throw new IllegalArgumentException("maximum connections "
+                + max + " must be positive");
+        _maxConnections = max;
+        _loop.execute(_dispatch);
+    }
 
+    public int getMaxConnections() {
+        return _maxConnections;
+    }
 
     /**
-     * Runs continually until interrupted.
+     * Sets the maximum number of requests sent on a connection before 
+     * their responses are received. The requests are pipelined on a busy
+     * connection only if the pool has maximum connections. The protocol
+     * must answer the requests on a connection in order, e.g. HTTP/1.1.
+     * A protocol that correlates responses by identifier does not limit
+     * the requests on a connection.
+     *
+     * @param depth a positive number. 1, the default, does not pipeline.
+     */
+    public void setPipelineDepth(int depth) {
+        if (depth <= 0) throw new IllegalArgumentException("pipeline depth "
+                + depth + " must be positive");
+        _pipelineDepth = depth;
+        _loop.execute(_dispatch);
+    }
+
+    public int getPipelineDepth() {
+        return _pipelineDepth;
+    }
+
+    /**
+     * Sets the time a connection may be idle before it is closed.
+     */
+    public void setIdleTimeout(long timeout, TimeUnit unit) {
+        _idleTimeout = unit.toMillis(timeout);
+    }
+
+    /**
+     * Sets the time a correlated request waits for its response before it
+     * fails with a {@link TimeoutException}. The requests are checked
+     * once a second, so a request may wait up to a second longer.
+     */
+    public void setRequestTimeout(long timeout, TimeUnit unit) {
+        _requestTimeout = unit.toMillis(timeout);
+    }
+
+    /**
+     * Sets the backoff between attempts to connect to a server that can not
+     * be connected. The backoff starts at the given initial time, and doubles
+     * with every attempt that fails, up to the given maximum time. Each
+     * backoff is jittered between half and the whole of its time.
+     *
+     * @param initial time before the first attempt to reconnect
+     * @param max maximum time between attempts to reconnect
+     * @param unit unit of time to express the values
+     */
+    public void setReconnectBackoff(long initial, long max, TimeUnit unit) {
+        if (initial <= 0 || max < initial) throw new IllegalArgumentException(
+                "backoff " + initial + " must be positive and not exceed " + max);
+        _initialBackoff = unit.toMillis(initial);
+        _maxBackoff = unit.toMillis(max);
+    }
+
+    /**
+     * Sets the time a request waits for a connection while the server can
+     * not be connected. Once the server has been unreachable for longer,
+     * the requests waiting for a connection fail, and a request sent
+     * fails as soon as the next attempt to connect fails.
      * 
-     * Sends request to server and listens for response from server.
-     * <br>
-     * Unlike synchronous client, this client has a lifetime that extends
-     * that of the request because it has to listen for response that 
-     * arrives asynchronous to the request.
+     * @param window time to wait for the server. 0 fails the requests as
+     * soon as an attempt to connect fails.
+     */
+    public void setReconnectWindow(long window, TimeUnit unit) {
+        _reconnectWindow = unit.toMillis(window);
+    }
+
+    /**
+     * Gets the number of connections open to the server, busy or idle.
+     */
+    public int getConnectionCount() {
+        return _openConnections;
+    }
+
+
+
+    /**
+     * Opens the first connection. Runs on the i/o thread.
      */
-    public void run() {
-        _logger.debug("starting network event loop...");
+    private void start() {
+        _logger.debug("starting on " + _loop);
         try {
-            _channel = initiateConnection();
+            openConnection();
         } catch (Exception ex) {
-            ex.printStackTrace();
+            _logger.warn("can not connect to " + _hostAddress + ':' + _port + ": " + ex);
+            signalConnected(false);
         }
-        while (!Thread.interrupted()) {
-            try {
-                step();
-                synchronized (_selectorBug) { /*do nothing*/ }
-            } catch (Exception ex) {
-                ex.printStackTrace();
+    }
+
+    /**
+     * Invoked on the i/o thread periodically. Closes connections that 
+     * have been idle for too long or are not healthy, fails the correlated
+     * requests that have waited too long for a response, and the requests
+     * that have waited too long for an unreachable server.
+     */
+    void tick(long now) {
+        closeIdleConnections(now);
+        if (!_waiting.isEmpty()) dispatch();
+        for (Exchange exchange : _outstanding.values()) {
+            if (now >= exchange.deadline) {
+                fail(exchange, new TimeoutException("no response to "
+                        + exchange.request + " in " + _requestTimeout + "ms"));
             }
         }
     }
 
     /**
-     * run once to check i/o status of the network channel.
-     * If any network key is ready for i/o, then {@link Request#send(SocketChannel) 
-     * sends request}, {@link #readResponseFromChannel(SelectionKey) reads}
-     * response or connects.
-     * 
-     * @throws IOExcepion for i/o errors
-     * 
+     * Assigns a connection to each request waiting for one, as long as
+     * a connection is idle, a new connection can be opened, or a busy
+     * connection can carry one more request.
+     * No connection is opened while the client backs off a server that
+     * can not be connected.
      */
-    private void step() throws IOException {
-        _selector.select();
-        Iterator<SelectionKey> selectedKeys = _selector.selectedKeys().iterator();
-        if (!selectedKeys.hasNext()) return;
-        // Iterate over the set of keys for which events are available
-        while (selectedKeys.hasNext()) {
-            SelectionKey key = selectedKeys.next();
-            selectedKeys.remove();
-
-            if (!key.isValid()) {
+    private void dispatch() {
+        if (_closed) return;
+        Exchange exchange;
+        while ((exchange = _sent.poll()) != null) {
+            _waiting.addLast(exchange);
+        }
+        while (!_waiting.isEmpty()) {
+            if (!isOutstanding(_waiting.peekFirst())) {
+                _waiting.pollFirst();
                 continue;
             }
+            Connection connection = idleConnection();
+            if (connection == null) {
+                if (_openConnections >= _maxConnections || isBackingOff()) {
+                    connection = _correlator != null ? leastBusyConnection()
+                            : pipelinedConnection(_waiting.peekFirst());
+                    if (connection == null) {
+                        failIfUnreachable();
+                        return;
+                    }
+                } else {
+                    try {
+                        connection = openConnection();
+                    } catch (IOException ex) {
+                        connectFailed(ex);
+                        continue;
+                    }
+                }
+            }
+            Exchange next = _waiting.pollFirst();
+            next.connection = connection;
+            connection.outgoing.addLast(next);
+            if (_correlator == null) {
+                connection.pipeline.addLast(next);
+            } else if (next.id != null) {
+                connection.outstanding++;
+            }
+            if (connection.channel.isConnected()) {
+                connection.key.interestOps(writeInterest());
+            }
+        }
+    }
 
-            if (key.isReadable()) {
-                readResponseFromChannel(key);
-            } else if (key.isWritable()) {
-                writeRequestToChannel(key);
-            } else if (key.isConnectable()) {
-                connect(key);
+    /**
+     * Gets the most recently used idle connection that is healthy. A 
+     * connection that has been idle for longer than a tick may not have 
+     * been checked, and is checked before it is used. 
+     */
+    private Connection idleConnection() {
+        long now = System.currentTimeMillis();
+        Connection connection;
+        while ((connection = _idle.pollFirst()) != null) {
+            if (now - connection.idleSince < EventLoop.TICK_INTERVAL 
+             || isHealthy(connection)) {
+                return connection;
             }
+            close(connection, "idle connection is not healthy");
         }
+        return null;
     }
 
-    private Channel initiateConnection() throws IOException {
-        _logger.info("Contacting " + _hostAddress.getHostName()+':'+_port);
-        
-        _selector = SelectorProvider.provider().openSelector();
-        SocketChannel socketChannel = SocketChannel.open();
-        socketChannel.configureBlocking(false);
-        InetSocketAddress addr = new InetSocketAddress(_hostAddress, _port);
-        
-        boolean sucess = socketChannel.connect(addr);
-        if (sucess) {
-            _logger.info("Connected to " + _hostAddress.getHostName()+':'+_port);
-            _connected.offerFirst(sucess);
+    /**
+     * Affirms if the given idle connection can carry a request. The server
+     * sends nothing on an idle connection, so the channel is healthy only 
+     * if it is open and has nothing to read. A read that finds the end of
+     * stream shows the server has closed the connection.
+     */
+    private boolean isHealthy(Connection connection) {
+        try {
+            _probe.clear();
+            return connection.channel.isOpen() && connection.channel.read(_probe) == 0;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Affirms if no connection is to be opened now, because the server
+     * could not be connected a moment ago, or is being connected.
+     */
+    private boolean isBackingOff() {
+        if (_connectFailures == 0) return false;
+        if (System.currentTimeMillis() < _reconnectAt) return true;
+        for (Connection connection : _connections) {
+            if (connection.channel.isConnectionPending()) return true;
         }
+        return false;
+    }
 
-        socketChannel.register(_selector, SelectionKey.OP_CONNECT);
+    /**
+     * Records an attempt to connect that has failed, and schedules the next
+     * attempt after a jittered exponential backoff.
+     */
+    private void connectFailed(Exception ex) {
+        long now = System.currentTimeMillis();
+        if (_connectFailures++ == 0) _unreachableSince = now;
+        long backoff = Math.min(_maxBackoff, 
+                _initialBackoff << Math.min(_connectFailures - 1, 30));
+        backoff = backoff/2 + ThreadLocalRandom.current().nextLong(backoff/2 + 1);
+        _reconnectAt = now + backoff;
+        _logger.warn("can not connect to " + _hostAddress + ':' + _port 
+                + " in " + _connectFailures + " attempt(s), will retry in " 
+                + backoff + "ms: " + ex);
+        _loop.schedule(_dispatch, backoff, TimeUnit.MILLISECONDS);
+    }
 
-        _selector.wakeup();
+    /**
+     * Fails the requests waiting for a connection, if the server has been 
+     * unreachable for longer than the reconnect window.
+     */
+    private void failIfUnreachable() {
+        if (_connectFailures == 0) return;
+        long unreachable = System.currentTimeMillis() - _unreachableSince;
+        if (unreachable < _reconnectWindow) return;
+        IOException ex = new IOException(_hostAddress.getHostName() + ':' 
+                + _port + " is unreachable for " + unreachable + "ms");
+        while (!_waiting.isEmpty()) fail(_waiting.pollFirst(), ex);
+    }
 
-        return socketChannel;
+    /**
+     * Gets the connection with fewest requests outstanding.
+     */
+    private Connection leastBusyConnection() {
+        Connection result = null;
+        for (Connection connection : _connections) {
+            if (result == null || connection.outstanding + connection.outgoing.size()
+                    < result.outstanding + result.outgoing.size()) {
+                result = connection;
+            }
+        }
+        return result;
+    }
 
+    /**
+     * Gets the connection with the shortest pipeline that can carry the
+     * given request, if it is idempotent. A connection carries requests
+     * up to the pipeline depth, as long as all of them are idempotent.
+     *
+     * @return null if no connection can carry the request
+     */
+    private Connection pipelinedConnection(Exchange exchange) {
+        if (_pipelineDepth <= 1 || !exchange.request.isIdempotent()) return null;
+        Connection result = null;
+        for (Connection connection : _connections) {
+            int depth = connection.pipeline.size();
+            if (depth == 0 || depth >= _pipelineDepth 
+             || (result != null && depth >= result.pipeline.size())) continue;
+            boolean idempotent = true;
+            for (Exchange pipelined : connection.pipeline) {
+                idempotent &= pipelined.request.isIdempotent();
+            }
+            if (idempotent) result = connection;
+        }
+        return result;
+    }
+
+    /**
+     * Gets the interest of a connection that has a request to write.
+     * A correlated connection reads responses while it writes requests.
+     */
+    private int writeInterest() {
+        return _correlator == null ? SelectionKey.OP_WRITE
+                : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+    }
+
+    /**
+     * Affirms if the given request is yet to be answered. A request that
+     * has been abandoned, or a correlated request that has timed out, is
+     * no longer outstanding.
+     */
+    private boolean isOutstanding(Exchange exchange) {
+        return !exchange.cancelled
+            && (exchange.id == null || _outstanding.get(exchange.id) == exchange);
+    }
+
+    /**
+     * Opens a new connection to the server. The connection is completed
+     * when the channel becomes connectable.
+     */
+    private Connection openConnection() throws IOException {
+        _logger.debug("Contacting " + _hostAddress.getHostName()+':'+_port);
+        SocketChannel socketChannel = SocketChannel.open();
+        try {
+            socketChannel.configureBlocking(false);
+            socketChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            InetSocketAddress addr = new InetSocketAddress(_hostAddress, _port);
+            boolean connected = socketChannel.connect(addr);
+            Connection connection = new Connection(socketChannel);
+            connection.key = socketChannel.register(_loop.selector(),
+                    connected ? 0 : SelectionKey.OP_CONNECT, connection);
+            _connections.add(connection);
+            _openConnections = _connections.size();
+            if (connected) connected(connection);
+            return connection;
+        } catch (IOException ex) {
+            socketChannel.close();
+            throw ex;
+        }
     }
 
     /**
      * Attempts to finish the connection if not already connected.
-     * Does not make repeated attempt (spinning on a non-blocking socket 
+     * Does not make repeated attempt (spinning on a non-blocking socket
      * is useless), or throws exception (it is invoked on an internal thread).
      * If a connection attempt succeeds, then marks a semaphor success,
      * otherwise a separate mechanics will time out on the same semaphor.
+     * The requests waiting for the connection wait for the next attempt
+     * if the connection fails.
      * @param key
-     * @throws IOException
      */
+    @SuppressWarnings("unchecked")
     private void connect(SelectionKey key) {
-        SocketChannel socket = (SocketChannel) key.channel();
-        if (!isConnected()) { 
-            try {
-                if (socket.finishConnect()) {
-                    _logger.info("connected to " + new ChannelInfo(key.channel()));
-                    _connected.offerFirst(true);
-                }
-            } catch (Exception ex) {
-            } finally {
-                _selector.wakeup();
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (connection.channel.finishConnect()) {
+                connected(connection);
             }
+        } catch (Exception ex) {
+            signalConnected(false);
+            requeue(connection);
+            close(connection, "can not connect: " + ex);
+            connectFailed(ex);
         }
     }
 
+    private void connected(Connection connection) {
+        _logger.info("connected to " + new ChannelInfo(connection.channel));
+        signalConnected(true);
+        _connectFailures = 0;
+        _reconnectAt = 0;
+        if (!connection.outgoing.isEmpty()) {
+            connection.key.interestOps(writeInterest());
+        } else {
+            release(connection);
+        }
+    }
+
+    /**
+     * Signals the constructor waiting for the first connection.
+     */
+    private void signalConnected(boolean success) {
+        if (_signalled) return;
+        _signalled = true;
+        _connected.offerFirst(success);
+    }
+
     /**
-     * Schedules given request to be sent to server. The given callback 
-     * will be {@link ResponseCallback#onResponse(byte[]) invoked} 
-     * whenever the response is received.
+     * Schedules given request to be sent to server. The given callback
+     * will be {@link ResponseCallback#onResponse(byte[], boolean) invoked}
+     * as the response is received.
      * <br>
      * This call does not block the network channel nor does it poll
-     * for a response.
-     * 
+     * for a response. It can be called by any thread.
+     *
      * @param request request to be processed.
-     * 
-     * @param cb callback to be invoked when response is completed. 
+     *
+     * @param cb callback to be invoked when response is completed.
      * If null, then no callback response would be invoked.
-     * 
-     *            
-     * @throws IOException i/o errors
+     *
+     *
+     * @throws IOException if this client has been closed
+     * @throws IllegalArgumentException if a correlated request of the same
+     * identifier is outstanding
      */
     public void sendRequest(Request request, ResponseCallback cb) throws IOException {
-        _waitingRequests.put(request, cb);
-        // http://bugs.java.com/bugdatabase/view_bug.do?bug_id=6446653
-        synchronized (_selectorBug) {
-                _selector.wakeup();
-                ((SocketChannel)_channel)
-                        .register(_selector, SelectionKey.OP_WRITE, request);
-                
-            
-        }
+        submit(new Exchange(request, cb));
     }
-    
+
     /**
-     * Request whose response is yet to arrive
+     * Sends the given request, and receives the whole response within
+     * the given time.
+     *
+     * @param request request to be processed.
+     * @param timeout time limit to receive the whole response
+     * @param unit unit of time to express the timeout value.
+     * @return a future of the bytes of the response. The future completes
+     * exceptionally with a {@link TimeoutException} if the response is not
+     * received in time, or with the error of the request. A request whose
+     * future is cancelled is abandoned.
      */
-    Map<Request, ResponseCallback> _waitingRequests = 
-            new HashMap<Request, ResponseCallback>();
-    
-    
+    public CompletableFuture<byte[]> call(Request request, long timeout, TimeUnit unit) {
+        CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        return call(request, new ResponseCallback() {
+            @Override
+            public void onResponse(byte[] bytes, boolean eos) {
+                response.write(bytes, 0, bytes.length);
+                if (eos) future.complete(response.toByteArray());
+            }
+
+            @Override
+            public void onError(Exception ex) {
+                future.completeExceptionally(ex);
+            }
+        }, future, timeout, unit);
+    }
+
     /**
-     * writes a request on the network channel corresponding to the given key. 
-     * The request to be written is attached to the given key. 
-     * 
-     * @param key a selection key for a network channel
+     * Sends the given request, and streams the response to the given
+     * callback as it is received, within the given time.
+     *
+     * @param request request to be processed.
+     * @param cb callback to receive the response in parts. It is also
+     * notified of the error, if the request fails or times out.
+     * @param timeout time limit to receive the whole response
+     * @param unit unit of time to express the timeout value.
+     * @return a future that completes after the last part of the response
+     * has been delivered, or exceptionally as the callback is notified of
+     * an error.
      */
-    void writeRequestToChannel(SelectionKey key) {
-        try {
-            Request request = (Request) key.attachment();
-            _logger.debug("send  request to server " + request);
-            request.send((SocketChannel)key.channel());
+    public CompletableFuture<Void> call(Request request, ResponseCallback cb,
+            long timeout, TimeUnit unit) {
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        return call(request, new ResponseCallback() {
+            @Override
+            public void onResponse(byte[] bytes, boolean eos) {
+                cb.onResponse(bytes, eos);
+                if (eos) future.complete(null);
+            }
+
+            @Override
+            public void onResponse(ByteBuffer data, boolean eos) {
+                cb.onResponse(data, eos);
+                if (eos) future.complete(null);
+            }
+
+            @Override
+            public void onError(Exception ex) {
+                cb.onError(ex);
+                future.completeExceptionally(ex);
+            }
+
+            @Override
+            public boolean isReady() {
+                return cb.isReady();
+            }
+        }, future, timeout, unit);
+    }
+
+    /**
+     * Sends the given request, and streams the response to the given
+     * consumer without copy. The response is read no faster than the
+     * consumer demands.
+     * <br>
+     * A correlated response shares its connection with other responses,
+     * hence it is delivered whole, as soon as it is received, irrespective
+     * of the demand.
+     *
+     * @param request request to be processed.
+     * @param consumer consumer of the response.
+     *
+     * @throws IOException if this client has been closed
+     */
+    public void stream(Request request, ResponseConsumer consumer) throws IOException {
+        ConsumerCallback cb = new ConsumerCallback(consumer);
+        consumer.onStart(cb.demand);
+        // linked before the i/o thread can see it, so that no demand is lost
+        cb.exchange = new Exchange(request, cb);
+        submit(cb.exchange);
+    }
+
+    /**
+     * Continues to receive the response of the given request, as its
+     * consumer demands more. Runs on the i/o thread.
+     */
+    private void resume(Exchange exchange) {
+        Connection connection = exchange.connection;
+        if (connection == null || connection.pipeline.peekFirst() != exchange
+         || connection.response == null || !connection.key.isValid()) {
+            return;
+        }
+        connection.key.interestOps(SelectionKey.OP_READ);
+        readResponseFromChannel(connection.key);
+        dispatch();
+    }
 
-            key.interestOps(SelectionKey.OP_READ);
+    /**
+     * Sends the given request with a timer that cancels the request
+     * unless the given future completes in time.
+     */
+    private <T> CompletableFuture<T> call(Request request, ResponseCallback cb,
+            CompletableFuture<T> future, long timeout, TimeUnit unit) {
+        Exchange exchange = new Exchange(request, cb);
+        try {
+            submit(exchange);
         } catch (Exception ex) {
-            closeChannel(key, true, ex.getMessage());
+            future.completeExceptionally(ex);
+            return future;
         }
+        EventLoopGroup.Timeout timer = _loop.schedule(() -> {
+            if (!future.isDone()) {
+                cancel(exchange, new TimeoutException("no response to "
+                        + request + " in " + unit.toMillis(timeout) + "ms"));
+            }
+        }, timeout, unit);
+        future.whenComplete((result, ex) -> {
+            timer.cancel();
+            if (future.isCancelled()) {
+                _loop.execute(() -> cancel(exchange, new CancellationException()));
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Schedules the request of given exchange to be sent by the i/o thread.
+     */
+    @SuppressWarnings("unchecked")
+    private void submit(Exchange exchange) throws IOException {
+        if (_closed) throw new IOException("client to " + _hostAddress
+                + ':' + _port + " has been closed");
+        if (_correlator != null) {
+            exchange.id = _correlator.getId((R) exchange.request);
+            if (exchange.id != null) {
+                exchange.deadline = System.currentTimeMillis() + _requestTimeout;
+                if (_outstanding.putIfAbsent(exchange.id, exchange) != null) {
+                    throw new IllegalArgumentException("a request of id " 
+                            + exchange.id + " is already outstanding");
+                }
+            }
+        }
+        _sent.add(exchange);
+        _loop.execute(_dispatch);
+    }
+
+    /**
+     * Abandons the given request, which has not been answered, and
+     * notifies its callback with the given error. A request that has been
+     * sent on a connection, whose responses are received in order, leaves
+     * the connection in an unknown state, hence the connection is closed.
+     * Runs on the i/o thread.
+     */
+    private void cancel(Exchange exchange, Exception ex) {
+        Connection connection = exchange.connection;
+        if (_correlator == null && connection != null) {
+            if (!connection.pipeline.remove(exchange)) return;
+            if (!connection.outgoing.remove(exchange)) {
+                requeue(connection);
+                close(connection, "request is abandoned: " + ex);
+            }
+        }
+        exchange.cancelled = true;
+        fail(exchange, ex);
+        dispatch();
+    }
+
+    /**
+     * Returns the requests of the given connection that have not been
+     * answered to the front of the requests waiting for a connection, as
+     * the connection is about to be closed. A request that has been written
+     * is sent again only if it is idempotent, and only once. Otherwise, it 
+     * fails. A correlated request that has been written is left to fail 
+     * with the connection.
+     */
+    private void requeue(Connection connection) {
+        Deque<Exchange> assigned = _correlator == null ? connection.pipeline 
+                : connection.outgoing;
+        Iterator<Exchange> exchanges = assigned.descendingIterator();
+        while (exchanges.hasNext()) {
+            Exchange exchange = exchanges.next();
+            boolean written = !connection.outgoing.contains(exchange);
+            if (written && (exchange.retried || !exchange.request.isIdempotent())) {
+                fail(exchange, new IOException("connection is closed before "
+                        + "response to " + exchange.request));
+            } else {
+                if (_correlator != null && exchange.id != null) connection.outstanding--;
+                exchange.retried |= written;
+                exchange.connection = null;
+                _waiting.addFirst(exchange);
+            }
+        }
+        connection.pipeline.clear();
+        connection.outgoing.clear();
+    }
+
+    /**
+     * Writes the requests queued on the given connection, without waiting
+     * for their responses. A request that the channel does not take whole
+     * is continued as the channel becomes writable again, before the
+     * requests queued behind it.
+     */
+    private void writeRequests(Connection connection) {
+        Exchange partial = connection.writing;
+        connection.writing = null;
+        Exchange exchange = partial != null ? partial : connection.outgoing.pollFirst();
+        for (; exchange != null; exchange = connection.outgoing.pollFirst()) {
+            if (!isOutstanding(exchange)) continue;
+            try {
+                if (exchange != partial) {
+                    _logger.debug("send  request to server " + exchange.request);
+                    exchange.request.send(connection.channel);
+                }
+                if (!exchange.request.sendRemaining(connection.channel)) {
+                    connection.writing = exchange;
+                    return;
+                }
+            } catch (Exception ex) {
+                connection.pipeline.remove(exchange);
+                fail(exchange, ex);
+                requeue(connection);
+                close(connection, "failed to send " + exchange.request + ": " + ex);
+                return;
+            }
+        }
+        connection.key.interestOps(SelectionKey.OP_READ);
+        if (_correlator != null && connection.outstanding == 0) release(connection);
     }
 
 
 
     /**
      * Reads raw bytes from the channel corresponding to given key.
-     * The request object is attached with the given key. 
-     * Uses the protocol to create an empty response.
-     * Then protocol-specific response reads from the channel.
+     * The request is attached with the connection of the given key.
+     * Uses the protocol to create an empty response, which is received
+     * as far as bytes are available, and is read again when more bytes
+     * arrive.
      * If the request were associated with a callback, then response
      * will invoke callback with the data it reads from network channel.
+     * <br>
+     * The channel is not read while the callback is not
+     * {@link ResponseCallback#isReady() ready}.
+     * <br>
+     * The responses to pipelined requests are received in turn, each
+     * beginning with the bytes read after the previous one.
+     * <br>
+     * Once the responses are complete, the connection returns to the pool
+     * if the last response {@link Response#isKeepAlive() keeps} it alive.
+     * A response that fails to be received leaves the channel in an
+     * unknown state, hence the channel is closed, and the requests 
+     * pipelined behind it are sent again. A response that ends with an
+     * {@link EOFException} before its first byte, e.g. a request sent on
+     * a connection the server is closing, is sent again as well, if it is 
+     * idempotent. An idle connection becomes 
+     * readable only if the server closes it, and is closed.
      */
+    @SuppressWarnings("unchecked")
     protected void readResponseFromChannel(SelectionKey key) {
-        @SuppressWarnings("unchecked")
-        R request = (R) key.attachment();
-        P response = getProtocol().newResponse(request);
-        ResponseCallback cb = getResponseCallback(request);
+        Connection connection = (Connection) key.attachment();
+        if (connection.pipeline.isEmpty()) {
+            close(connection, "idle connection is closed by server");
+            return;
+        }
+        Exchange exchange;
+        while ((exchange = connection.pipeline.peekFirst()) != null) {
+            try {
+                if (connection.response == null) {
+                    connection.response = getProtocol().newResponse((R) exchange.request);
+                    connection.response.setPipelined(connection.pipelined);
+                    connection.pipelined = null;
+                }
+                P response = connection.response;
+                if (!response.receive(connection.channel, exchange.callback)) {
+                    if (exchange.callback != null && !exchange.callback.isReady()) {
+                        key.interestOps(0);
+                    }
+                    return;
+                }
+                connection.pipeline.pollFirst();
+                connection.response = null;
+                connection.pipelined = response.takePipelined();
+                if (!response.isKeepAlive()) {
+                    requeue(connection);
+                    close(connection, "response closes connection");
+                    return;
+                }
+            } catch (Exception ex) {
+                if (!(ex instanceof EOFException)) {
+                    connection.pipeline.pollFirst();
+                    fail(exchange, ex);
+                }
+                requeue(connection);
+                close(connection, "failed to receive response to "
+                        + exchange.request + ": " + ex);
+                return;
+            }
+        }
+        release(connection);
+    }
+
+    /**
+     * Reads the responses available on the given correlated connection.
+     * Each response is matched to the request of the identifier it
+     * carries. A response that matches no outstanding request, e.g. one
+     * that arrives after its request has timed out, is discarded.
+     * The connection is closed if the server closes it or a response
+     * is not valid, and the requests outstanding on it fail.
+     */
+    private void readCorrelatedResponses(Connection connection) {
+        if (connection.buffer == null) {
+            connection.buffer = BufferPool.SHARED.acquire();
+            connection.buffer.flip();
+        }
+        ByteBuffer buffer = connection.buffer;
         try {
-            response.receive((ByteChannel)key.channel(), cb);
+            while (true) {
+                ByteBuffer bytes;
+                while ((bytes = _correlator.nextResponse(buffer)) != null) {
+                    Object id = _correlator.getRequestId(bytes);
+                    Exchange exchange = id == null ? null : _outstanding.get(id);
+                    if (exchange == null || !remove(exchange)) {
+                        _logger.warn("discarded response to unknown or expired request " + id);
+                        continue;
+                    }
+                    if (exchange.callback != null) {
+                        exchange.callback.onResponse(bytes, true);
+                    }
+                }
+                if (buffer.remaining() == buffer.capacity())
+                    throw new ProtocolException("response exceeds "
+                            + buffer.capacity() + " bytes");
+                buffer.compact();
+                int n = connection.channel.read(buffer);
+                buffer.flip();
+                if (n < 0) {
+                    close(connection, "connection is closed by server");
+                    return;
+                }
+                if (n == 0) return;
+            }
         } catch (Exception ex) {
-            if (cb != null) cb.onError(ex);
-        } finally {
-            key.interestOps(SelectionKey.OP_CONNECT);
-            _waitingRequests.remove(request);
+            close(connection, "failed to receive response: " + ex);
         }
     }
+
     /** Returns the protocol.
-     * 
+     *
      */
    public Protocol<R,P> getProtocol() {
        return _protocol;
    }
 
-    
-    private ResponseCallback getResponseCallback(Request request) {
-        return _waitingRequests.get(request);
-    }
-    
-    
+   /**
+    * Sets the protocol that creates a response to receive for each request.
+    * A client must set a protocol before it sends a request.
+    */
+   protected void setProtocol(Protocol<R,P> protocol) {
+       _protocol = protocol;
+       _correlator = protocol.getCorrelator();
+   }
+
+
     /**
-     * gets the channel that connects to the remote server.
-     * 
+     * affirms if connected to a remote server.
      */
-    protected final Channel getChannel() {
-        return _channel;
+    public boolean isConnected() {
+        return _openConnections > 0;
     }
 
+    /**
+     * Closes this client. The connections are closed, and the requests
+     * waiting for a response fail. The i/o thread stops, unless it is 
+     * shared with other clients.
+     */
+    public void close() {
+        _closed = true;
+        _loop.execute(() -> {
+            shutdown();
+            if (_ownGroup != null) _ownGroup.close();
+        });
+    }
 
     /**
-     * affirms if connected to a remote server.
+     * Closes every connection and fails the requests that are yet to be
+     * answered. Runs on the i/o thread as the client is closed or the 
+     * group stops.
      */
-    public boolean isConnected() {
-        return _channel.isOpen();
+    void shutdown() {
+        _closed = true;
+        _loop.unbind(this);
+        IOException closed = new IOException("client to " + _hostAddress
+                + ':' + _port + " has been closed");
+        for (Connection connection : new ArrayList<Connection>(_connections)) {
+            failAll(connection, closed);
+            close(connection, "client is closed");
+        }
+        _sent.forEach(_waiting::addLast);
+        _sent.clear();
+        while (!_waiting.isEmpty()) fail(_waiting.pollFirst(), closed);
     }
     
+    public String toString() {
+        return "client->" + _hostAddress.getHostName() + ':' + _port;
+    }
+
     /**
-     * cancel the key and optionally closes the network channel 
-     * corresponding to the given key.
-     * 
-     * @param key selection key for a network channel to cancel
-     * @param close if true the corresponding channel is closed
+     * Returns the given connection to the pool of idle connections.
+     */
+    private void release(Connection connection) {
+        connection.idleSince = System.currentTimeMillis();
+        connection.key.interestOps(SelectionKey.OP_READ);
+        _idle.addFirst(connection);
+    }
+
+    /**
+     * Closes the connections that have been idle for longer than idle
+     * timeout, or are not healthy. The least recently used connections are
+     * at the end of the idle connections.
+     */
+    private void closeIdleConnections(long now) {
+        Connection connection;
+        while ((connection = _idle.peekLast()) != null
+                && now - connection.idleSince >= _idleTimeout) {
+            close(connection, "connection is idle for "
+                    + (now - connection.idleSince) + "ms");
+        }
+        for (Connection idle : new ArrayList<Connection>(_idle)) {
+            if (!isHealthy(idle)) close(idle, "idle connection is not healthy");
+        }
+    }
+
+    /**
+     * cancel the key and closes the network channel of the given
+     * connection.
+     *
+     * @param connection a connection to close
      * @param reason an explanation of why the channel is closed
      */
-    private void closeChannel(SelectionKey key, boolean close, String reason) {
+    private void close(Connection connection, String reason) {
+        _idle.remove(connection);
+        if (!_connections.remove(connection)) return;
+        _openConnections = _connections.size();
         try {
-            _logger.warn("WARN: " + reason);
-            key.cancel();
-            if (close) {
-                key.channel().close();
-            }
+            _logger.debug("closing " + connection.channel + ": " + reason);
+            connection.key.cancel();
+            connection.channel.close();
         } catch (Exception ex) {
 
         }
+        if (connection.buffer != null) {
+            BufferPool.SHARED.release(connection.buffer);
+            connection.buffer = null;
+        }
+        failAll(connection, new IOException("connection closed: " + reason));
     }
-    
-    
-    
-    static InetAddress determineHostAddress(String host) 
+
+    /**
+     * Fails the requests assigned to the given connection that have not
+     * been answered.
+     */
+    private void failAll(Connection connection, Exception ex) {
+        Deque<Exchange> assigned = _correlator == null ? connection.pipeline 
+                : connection.outgoing;
+        for (Exchange exchange : assigned) fail(exchange, ex);
+        connection.pipeline.clear();
+        connection.outgoing.clear();
+        if (_correlator != null) {
+            for (Exchange exchange : _outstanding.values()) {
+                if (exchange.connection == connection) fail(exchange, ex);
+            }
+        }
+    }
+
+    /**
+     * Invokes the callback of the given request with the given error,
+     * unless the request has already been answered or has failed.
+     */
+    private void fail(Exchange exchange, Exception ex) {
+        if (exchange == null) return;
+        if (exchange.id != null && !remove(exchange)) return;
+        if (exchange.callback != null) {
+            exchange.callback.onError(ex);
+        }
+    }
+
+    /**
+     * Removes the given correlated request from the requests outstanding.
+     * The connection of the request becomes idle if it has no other
+     * request outstanding.
+     *
+     * @return false if the request is not outstanding
+     */
+    private boolean remove(Exchange exchange) {
+        if (!_outstanding.remove(exchange.id, exchange)) return false;
+        Connection connection = exchange.connection;
+        if (connection != null && --connection.outstanding == 0
+                && connection.outgoing.isEmpty() && _connections.contains(connection)) {
+            release(connection);
+        }
+        return true;
+    }
+
+
+    static InetAddress determineHostAddress(String host)
             throws UnknownHostException {
         String DEFAULT_ROUTE = "127.0.0.1";
         if ("localhost".equals(host) || DEFAULT_ROUTE.equals(host)) {
@@ -411,4 +1233,113 @@ public abstract class NioClient<R extends Request, P extends Response> implement
         return InetAddress.getByName(host);
     }
 
-}
\ No newline at end of file
+    /**
+     * A request to be sent with the callback to receive its response.
+     */
+    private final class Exchange {
+        final Request request;
+        final ResponseCallback callback;
+        /** identifier of a correlated request */
+        Object id;
+        /** time by which a correlated request must be answered */
+        long deadline;
+        /** connection the request is sent on */
+        Connection connection;
+        /** whether the request has been abandoned */
+        boolean cancelled;
+        /** whether the request has been sent again */
+        boolean retried;
+
+        Exchange(Request request, ResponseCallback callback) {
+            this.request = request;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * Delivers a response to a consumer as its demand permits.
+     */
+    private final class ConsumerCallback implements ResponseCallback {
+        final ResponseConsumer consumer;
+        final Demand demand;
+        volatile Exchange exchange;
+
+        ConsumerCallback(ResponseConsumer consumer) {
+            this.consumer = consumer;
+            this.demand = new Demand(() -> _loop.execute(() -> {
+                if (exchange != null) resume(exchange);
+            }));
+        }
+
+        @Override
+        public void onResponse(byte[] bytes, boolean eos) {
+            onResponse(ByteBuffer.wrap(bytes), eos);
+        }
+
+        @Override
+        public void onResponse(ByteBuffer data, boolean eos) {
+            demand.consume();
+            consumer.onData(data.asReadOnlyBuffer(), eos);
+        }
+
+        @Override
+        public void onError(Exception ex) {
+            consumer.onError(ex);
+        }
+
+        @Override
+        public boolean isReady() {
+            return demand.isReady();
+        }
+    }
+
+    /**
+     * A pooled connection to the server, with the requests it carries.
+     */
+    private final class Connection implements EventLoopGroup.Handler {
+        final SocketChannel channel;
+        SelectionKey key;
+        /** requests to be answered in order, the first one being received */
+        final Deque<Exchange> pipeline = new ArrayDeque<Exchange>();
+        /** response being received */
+        P response;
+        /** bytes read after the last response received */
+        ByteBuffer pipelined;
+        long idleSince;
+        /** requests to be written */
+        final Deque<Exchange> outgoing = new ArrayDeque<Exchange>();
+        /** request of which a part has been written */
+        Exchange writing;
+        /** number of correlated requests assigned but not answered */
+        int outstanding;
+        /** bytes of correlated responses received but not yet matched */
+        ByteBuffer buffer;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Connects, sends the request or reads the response as the
+         * channel is ready. Then assigns connections to the requests 
+         * waiting for one, as this connection may have become idle or
+         * been closed.
+         */
+        @Override
+        public void handle(SelectionKey key) {
+            if (key.isConnectable()) {
+                connect(key);
+            } else if (key.isReadable()) {
+                if (_correlator != null) {
+                    readCorrelatedResponses(this);
+                } else {
+                    readResponseFromChannel(key);
+                }
+            } else if (key.isWritable()) {
+                writeRequests(this);
+            }
+            dispatch();
+        }
+    }
+
+}
@@ -4,17 +4,26 @@ package babble.net;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.Channel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import babble.net.exception.ProtocolException;
+import babble.net.exception.StackTraces;
+import babble.util.BufferPool;
 import babble.util.ChannelInfo;
 
 /**
@@ -74,9 +83,32 @@ public abstract class NioServer<R extends Request,P extends Response>
     private final Router<R,P> _router;
     private ExecutionContext _ctx;
     private final Object _selectorBug = new Object();
+    private long _lastTick;
+    private final Map<SocketChannel, WriteQueue> _writeQueues = 
+            new ConcurrentHashMap<SocketChannel, WriteQueue>();
+    private final Queue<WriteQueue> _writable = 
+            new ConcurrentLinkedQueue<WriteQueue>();
+    /** responses to be attached to their channels by the i/o thread */
+    private final Queue<P> _responses = new ConcurrentLinkedQueue<P>();
+    private volatile boolean _recycling;
+    /** recycled request of each connection, with its response */
+    private final Map<SocketChannel, R> _recycled = 
+            new ConcurrentHashMap<SocketChannel, R>();
+    /** bytes received after a request that begin the next request */
+    private final Map<Channel, ByteBuffer> _pipelined = 
+            new ConcurrentHashMap<Channel, ByteBuffer>();
+    /** responses sent but still being written, e.g. streamed by a route */
+    private final Map<Channel, Response> _streaming = 
+            new ConcurrentHashMap<Channel, Response>();
     
     private Logger _logger;
 
+    /**
+     * Interval in milliseconds at which the i/o thread {@link #tick(long)
+     * ticks}, even when there is no network activity.
+     */
+    public static final long TICK_INTERVAL = 1000;
+
     /**
      * Creates a server to listen for incoming connection requests on 
      * the given port. The given protocol determines the type of request
@@ -167,6 +199,35 @@ public abstract class NioServer<R extends Request,P extends Response>
         _router.addRoute(route);
     }
 
+    /**
+     * Sets whether the request and response objects are reused for the 
+     * next request on the same connection. Off by default.
+     * <br>
+     * A request is owned by this server from the time it is received
+     * until its response has been sent, and the response is owned by this
+     * server once a route returns it. If the protocol affirms that both
+     * are {@link Protocol#isRecyclable(Request, Response) recyclable},
+     * they are {@link NetworkBuffer#release() released} after the response
+     * has been sent, and reset to receive the next request on the same 
+     * connection. Hence a route must not hold a request or a response 
+     * after the route returns. In {@link NetworkBuffer#DEBUG_RELEASE 
+     * debug mode}, released objects are never reused, so that a route that
+     * holds them fails instead of reading another request.
+     * 
+     * @param recycling true to reuse request and response objects
+     */
+    public void setRecycling(boolean recycling) {
+        _recycling = recycling;
+    }
+    
+    /**
+     * Affirms if request and response objects are 
+     * {@link #setRecycling(boolean) reused}.
+     */
+    public boolean isRecycling() {
+        return _recycling;
+    }
+    
     /**
      * Starts this server. Stars two threads: 'main' server thread runs
      * continuously for network i/o and a 'router' thread that processes
@@ -206,6 +267,9 @@ public abstract class NioServer<R extends Request,P extends Response>
      * The  selection key itself is attached
      * with the data to be operated, the operation i.e. read or write
      * and the socket to use to send or receive the data.
+     * <br>
+     * The selector waits at most for {@link #TICK_INTERVAL} and the 
+     * server {@link #tick(long) ticks} at that interval.
      *  
      */
     public void run() {
@@ -213,17 +277,36 @@ public abstract class NioServer<R extends Request,P extends Response>
             try {
                 step();
                 synchronized (_selectorBug) {}
+                long now = System.currentTimeMillis();
+                if (now - _lastTick >= TICK_INTERVAL) {
+                    _lastTick = now;
+                    purgeWriteQueues();
+                    tick(now);
+                }
             } catch (Exception ex) {
                 ex.printStackTrace();
             }
         }
     }        
+
+    /**
+     * Invoked on the i/o thread once every {@link #TICK_INTERVAL}.
+     * A protocol-specific server may perform periodic tasks such as 
+     * refreshing cached values. The task must be short and must not block 
+     * because network i/o is suspended while the task runs.
+     * <br>
+     * By default, does nothing.
+     * 
+     * @param now current time in milliseconds
+     */
+    protected void tick(long now) {
+    }
         
     private void step() throws Exception {    
         
         SelectionKey key = null;
         
-        _selector.select();
+        _selector.select(TICK_INTERVAL);
         Iterator<SelectionKey> selectedKeys = _selector.selectedKeys().iterator();
         while (selectedKeys.hasNext()) {
             key = selectedKeys.next();
@@ -240,7 +323,74 @@ public abstract class NioServer<R extends Request,P extends Response>
                writeResponseToChannel(key);
             }
          }
-        
+        registerResponses();
+        registerWritableQueues();
+    }
+
+    /**
+     * Gets the queue to write on the given channel. 
+     * A response is sent to the queue, and the queue is drained by the 
+     * i/o thread as the channel becomes writable.
+     * 
+     * @param channel a channel accepted by this server
+     */
+    public WriteQueue getWriteQueue(SocketChannel channel) {
+        return _writeQueues.computeIfAbsent(channel, 
+                c -> new WriteQueue(c, BufferPool.SHARED, this::requestWrite));
+    }
+    
+    /**
+     * Requests that the given queue be drained by the i/o thread.
+     * Can be called by any thread.
+     */
+    void requestWrite(WriteQueue queue) {
+        _writable.add(queue);
+        Selector selector = _selector;
+        if (selector != null) selector.wakeup();
+    }
+    
+    /**
+     * Registers interest to write on the channels whose queues have data
+     * to be written. 
+     */
+    private void registerWritableQueues() {
+        WriteQueue queue;
+        while ((queue = _writable.poll()) != null) {
+            SocketChannel channel = (SocketChannel)queue.getChannel();
+            SelectionKey key = channel.keyFor(_selector);
+            try {
+                if (key != null && key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                } else if (channel.isOpen()) {
+                    channel.register(_selector, SelectionKey.OP_WRITE);
+                } else {
+                    queue.discard();
+                    _writeQueues.remove(channel);
+                }
+            } catch (Exception ex) {
+                _logger.warn("can not write on " + channel + ": " + ex);
+                queue.discard();
+                _writeQueues.remove(channel);
+            }
+        }
+    }
+    
+    /**
+     * Removes the queues of channels that have been closed.
+     */
+    private void purgeWriteQueues() {
+        Iterator<Map.Entry<SocketChannel, WriteQueue>> entries = 
+                _writeQueues.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<SocketChannel, WriteQueue> entry = entries.next();
+            if (!entry.getKey().isOpen()) {
+                entry.getValue().discard();
+                entries.remove();
+            }
+        }
+        _recycled.keySet().removeIf(channel -> !channel.isOpen());
+        _pipelined.keySet().removeIf(channel -> !channel.isOpen());
+        _streaming.keySet().removeIf(channel -> !channel.isOpen());
     }
 
 
@@ -280,14 +430,22 @@ public abstract class NioServer<R extends Request,P extends Response>
      */
     void readRequestFromChannelAndProcess(SelectionKey key) throws Exception {
         Object attachement = key.attachment();
-        if (RequestReceiver.class.isInstance(attachement)) {
+        if (attachement instanceof ChannelHandler) {
+            readUpgradedChannel(key, (ChannelHandler)attachement);
+        } else if (RequestReceiver.class.isInstance(attachement)) {
             // someone is already handling request from this client
         } else { // new request
             _logger.debug("creating new request receiver for " + attachement);
             RequestReceiver receiver = new RequestReceiver();
             key.attach(receiver);
             receiver._channel = (ByteChannel)key.channel();
-            receiver._request = _protocol.newRequest();
+            receiver._request = _recycling ? _recycled.remove(key.channel()) : null;
+            if (receiver._request == null) {
+                receiver._request = _protocol.newRequest();
+            }
+            receiver._request.setPipelined(_pipelined.remove(key.channel()));
+            receiver._request.setWriteQueue(
+                    getWriteQueue((SocketChannel)key.channel()));
             
             Thread requestThread = new Thread(receiver);
             ChannelInfo info = new ChannelInfo(key.channel());
@@ -299,21 +457,88 @@ public abstract class NioServer<R extends Request,P extends Response>
     
     
     
+    /**
+     * Reads a connection that has switched protocol, or is handled by its
+     * protocol, on the i/o thread.
+     * The connection is closed if the handler fails or asks to close.
+     */
+    private void readUpgradedChannel(SelectionKey key, ChannelHandler handler) {
+        SocketChannel socket = (SocketChannel)key.channel();
+        String reason = null;
+        try {
+            if (!handler.read(socket)) reason = "closed by " + handler;
+        } catch (Exception ex) {
+            reason = handler + " failed: " + ex;
+        }
+        if (reason == null) return;
+        WriteQueue queue = _writeQueues.remove(socket);
+        if (queue != null) queue.discard();
+        closeChannel(key, true, reason);
+        handler.closed();
+    }
+    
+    /**
+     * Processes a request that a {@link ChannelHandler handler} has read 
+     * from its connection. The response is {@link ChannelHandler#send(Response)
+     * sent} by the handler.
+     * 
+     * @param request a request read by a handler of this server
+     */
+    public void dispatch(R request) {
+        _router.processRequest(request);
+    }
+    
     public void processResponse(P response) {
         SocketChannel channel = (SocketChannel)response
                 .getRequest().getChannel();
+        SelectionKey key = channel.keyFor(_selector);
+        Object attachment = key == null ? null : key.attachment();
+        if (attachment instanceof ChannelHandler) {
+            try {
+                ((ChannelHandler)attachment).send(response);
+            } catch (Exception ex) {
+                _logger.warn("can not send " + response + " by " + attachment 
+                        + ": " + ex);
+            }
+            return;
+        }
         
-        _logger.debug("registering key to process response...");
-        synchronized (_selectorBug) {
+        _logger.debug("queuing response to be registered...");
+        _responses.add(response);
+        _selector.wakeup();
+    }
+    
+    /**
+     * Attaches the responses that are ready to their channels to be 
+     * written. The interest of a channel is changed only by the i/o 
+     * thread, otherwise the i/o thread may reset the interest to read, 
+     * while the response is attached, and the response is never written.
+     */
+    private void registerResponses() {
+        P response;
+        while ((response = _responses.poll()) != null) {
+            SocketChannel channel = (SocketChannel)response
+                    .getRequest().getChannel();
             try {
-                _selector.wakeup();
                 channel.register(_selector, SelectionKey.OP_WRITE, response);
             } catch (Exception ex) {
-                ex.printStackTrace();
+                _logger.warn("can not send " + response + " on " + channel 
+                        + ": " + ex);
             }
         }
     }
 
+    /**
+     * Reads the next request on the channel of the given key, if it has 
+     * been received, at least in part, with the previous request. The
+     * channel may not become readable again for such a request.
+     */
+    private void readPipelinedRequest(SelectionKey key) throws Exception {
+        if (_pipelined.containsKey(key.channel())) {
+            readRequestFromChannelAndProcess(key);
+        }
+    }
+
     /** Returns the protocol.
      * 
      */
@@ -324,29 +549,87 @@ public abstract class NioServer<R extends Request,P extends Response>
     
     /**
      * Sends response to the channel represented by the given key.
-     * The response is attached to the key itself.
+     * The response, if any, is attached to the key itself. The response is
+     * sent to the {@link #getWriteQueue(SocketChannel) queue} of the 
+     * channel, and the queue is drained as long as the channel accepts data.
+     * <br>
+     * Once the queue is drained, the channel is ready to read next request. 
+     * A response that is still being written after it has been sent, e.g.
+     * one streamed by a route, holds the next request till it is 
+     * {@link Response#isComplete() complete}, so that the next response
+     * does not interleave with it.
      * 
-     * @param key
+     * @param key a writable key
      */
     void writeResponseToChannel(SelectionKey key) {
-        Response response = (Response) key.attachment();
-        if (response == null) {
-            _logger.warn("ignore sending null response");
-        }
         SocketChannel socket = (SocketChannel)key.channel();
-        _logger.debug("send response to " + new ChannelInfo(socket));
+        WriteQueue queue = getWriteQueue(socket);
         try {
-            response.send(socket);
-            if (key.isValid() && key.channel().isOpen()) {
-                key.channel().register(_selector, SelectionKey.OP_READ);
+            if (key.attachment() instanceof Response) {
+                Response response = (Response) key.attachment();
+                key.attach(null);
+                if (_logger.isDebugEnabled())
+                    _logger.debug("send response to " + new ChannelInfo(socket));
+                response.send(queue);
+                ChannelHandler handler = response.getUpgrade();
+                if (handler != null) {
+                    _logger.info("switching " + new ChannelInfo(socket) 
+                        + " to " + handler);
+                    key.attach(handler);
+                    handler.open(queue);
+                } else if (_recycling) {
+                    recycle(socket, response);
+                }
+                if (handler == null && !response.isComplete()) {
+                    _streaming.put(socket, response);
+                } else if (handler == null) {
+                    readPipelinedRequest(key);
+                }
+            } else {
+                Response streaming = _streaming.get(socket);
+                if (streaming != null && streaming.isComplete()) {
+                    _streaming.remove(socket);
+                    readPipelinedRequest(key);
+                }
+            }
+            if (queue.drain()) {
+                // channel is full, wait till it is writable again
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else if (_streaming.containsKey(socket) && socket.isOpen()) {
+                // the response is still being written, the next request
+                // is read once it ends
+                key.interestOps(0);
+            } else if (socket.isOpen()) {
+                key.interestOps(SelectionKey.OP_READ);
+            } else {
+                _writeQueues.remove(socket);
             }
         } catch (Exception ex) {
+            queue.discard();
+            _writeQueues.remove(socket);
             closeChannel(key, true, ex);
-        } finally {
-            key.cancel();
         }
     }
 
+    /**
+     * Releases the given response that has been sent and its request, and 
+     * keeps them to receive the next request on the given connection, if 
+     * the protocol affirms they are recyclable.
+     */
+    @SuppressWarnings("unchecked")
+    private void recycle(SocketChannel socket, Response response) {
+        R request = (R)response.getRequest();
+        if (request == null || !_protocol.isRecyclable(request, (P)response)) 
+            return;
+        request.release();
+        response.release();
+        if (NetworkBuffer.DEBUG_RELEASE || !socket.isOpen()) return;
+        response.recycle();
+        request.recycle();
+        request.setRecycledResponse(response);
+        _recycled.put(socket, request);
+    }
+    
     /**
      * closes the channel in case of error.
      * @param key the key on which an operation has failed
@@ -355,7 +638,7 @@ public abstract class NioServer<R extends Request,P extends Response>
      */
     void closeChannel(SelectionKey key, boolean discard, Exception ex) {
         closeChannel(key, discard, ex.getClass() + ":" + ex.getMessage());
-        ex.printStackTrace();
+        if (StackTraces.sample()) ex.printStackTrace();
     }
     
     void closeChannel(SelectionKey key, boolean discard, String reason) {
@@ -373,7 +656,9 @@ public abstract class NioServer<R extends Request,P extends Response>
 
     /**
      * Accepts a connection request from a remote client.
-     * Registers with the selector to read data.
+     * Registers with the selector to read data. If the protocol 
+     * {@link Protocol#newChannelHandler(NioServer, SocketChannel) handles}
+     * the connection, the handler is attached and opened.
      * @param key
      * @throws IOException
      */
@@ -382,7 +667,11 @@ public abstract class NioServer<R extends Request,P extends Response>
         SocketChannel channel = serverSocketChannel.accept();
         channel.configureBlocking(false);
         _logger.info("accepted connection from " + new ChannelInfo(channel));
-        channel.register(_selector, SelectionKey.OP_READ);
+        ChannelHandler handler = _protocol.newChannelHandler(this, channel);
+        channel.register(_selector, SelectionKey.OP_READ, handler);
+        if (handler != null) {
+            handler.open(getWriteQueue(channel));
+        }
     }
 
     /**
@@ -490,7 +779,20 @@ public abstract class NioServer<R extends Request,P extends Response>
             try {
                 // this call will block until remote client completes a request
                 _request.receive(_channel);
+                ByteBuffer pipelined = _request.takePipelined();
+                if (pipelined != null) _pipelined.put(_channel, pipelined);
                 _router.processRequest(_request);
+            } catch (IOException ex) {
+                if (ex instanceof ProtocolException) {
+                    processResponse(_protocol.newErrorResponse(_request, ex));
+                } else { 
+                    // the connection is broken, no response can be sent
+                    _logger.debug("closing " + _channel + ": " + ex);
+                    try {
+                        _channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
             } catch (Exception ex) {
                 P response = _protocol.newErrorResponse(_request, ex);
                 processResponse(response);
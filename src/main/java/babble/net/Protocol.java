@@ -1,5 +1,7 @@
 package babble.net;
 
+import java.nio.channels.SocketChannel;
+
 import babble.net.http.HttpRequest;
 import babble.net.json.JSONRequest;
 
@@ -69,5 +71,48 @@ public interface Protocol<R extends Request, P extends Response> {
      */
     P newErrorResponse(R request, Exception ex);
 
+    /**
+     * Creates a handler for a connection accepted by a server. A protocol
+     * that multiplexes requests on a connection reads the connection 
+     * through a handler from the start, instead of one request at a time.
+     * <br>
+     * By default, returns null i.e. requests are received one at a time.
+     * 
+     * @param server the server that accepted the connection
+     * @param channel the accepted connection
+     * @return a handler, or null
+     */
+    default ChannelHandler newChannelHandler(NioServer<R,P> server, SocketChannel channel) {
+        return null;
+    }
+    
+    /**
+     * Gets the correlator of responses to requests, if a client of this
+     * protocol can have many requests outstanding on a connection.
+     * <br>
+     * By default, returns null i.e. a client sends a request on a
+     * connection only after the response to the previous request has been
+     * received.
+     */
+    default Correlator<R> getCorrelator() {
+        return null;
+    }
+
+    /**
+     * Affirms if the given request and its response can be
+     * {@link NioServer#setRecycling(boolean) reused} for the next request
+     * on the same connection once the response has been sent.
+     * A response can be reused only if it writes nothing after it has been
+     * sent, and both objects can be fully reset.
+     * <br>
+     * By default, returns false.
+     * 
+     * @param request a request whose response has been sent
+     * @param response the response sent
+     */
+    default boolean isRecyclable(R request, P response) {
+        return false;
+    }
+
 
 }
@@ -30,6 +30,8 @@ import babble.net.exception.ProtocolException;
  */
 @SuppressWarnings("serial")
 public abstract class Request extends NetworkBuffer implements Serializable {
+    private transient WriteQueue _writeQueue;
+    private transient Response _recycledResponse;
     
     public Request()  {
    }
@@ -49,6 +51,66 @@ public abstract class Request extends NetworkBuffer implements Serializable {
         return false;
     }
 
+    /**
+     * Affirms if this request has the same effect on the server whether
+     * it is sent once or many times. A client sends an idempotent request
+     * again if the connection is closed before the request is answered,
+     * and may pipeline it behind other idempotent requests.
+     * <br>
+     * By default, returns false.
+     */
+    public boolean isIdempotent() {
+        return false;
+    }
+
+    /**
+     * Gets the queue to write the response of this request. A response
+     * can be streamed through the queue while the request is being 
+     * processed.
+     * 
+     * @return null if this request has not been received by a server
+     */
+    public WriteQueue getWriteQueue() {
+        return _writeQueue;
+    }
+    
+    /**
+     * Sets the queue to write the response of this request. A server sets
+     * the queue of the connection, and a protocol that multiplexes a 
+     * connection sets the queue of a stream.
+     */
+    protected void setWriteQueue(WriteQueue queue) {
+        _writeQueue = queue;
+    }
+    
+    /**
+     * Resets this request so that the next request on the same connection
+     * can be received into it. 
+     */
+    @Override
+    protected void recycle() {
+        super.recycle();
+        _writeQueue = null;
+    }
+    
+    void setRecycledResponse(Response response) {
+        _recycledResponse = response;
+    }
+    
+    /**
+     * Takes the response that had been sent for the previous request 
+     * received into this request, once it has been 
+     * {@link NioServer#setRecycling(boolean) recycled}. 
+     * A protocol may reuse the response instead of creating a new one.
+     * 
+     * @return null if there is no recycled response, or it has been taken
+     */
+    protected Response takeRecycledResponse() {
+        Response response = _recycledResponse;
+        _recycledResponse = null;
+        return response;
+    }
+
      
     
     /**
@@ -58,6 +120,20 @@ public abstract class Request extends NetworkBuffer implements Serializable {
      */
     protected abstract void send(ByteChannel channel) throws IOException;
     
+    /**
+     * Continues to send this request, of which {@link #send(ByteChannel)}
+     * may have written a part, as a non-blocking channel would take no
+     * more bytes. 
+     * <br>
+     * By default, a request is sent whole, and nothing remains. 
+     * 
+     * @return true if this request has been sent whole
+     * @throws IOException if can not be sent over the channel 
+     */
+    protected boolean sendRemaining(ByteChannel channel) throws IOException {
+        return true;
+    }
+    
     /**
      * Receive this request from a given channel.
      * 
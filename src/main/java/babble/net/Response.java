@@ -55,6 +55,7 @@ import java.nio.file.Path;
 @SuppressWarnings("serial")
 public abstract class Response extends NetworkBuffer implements Serializable {
     private final Request _request;
+    private transient ChannelHandler _upgrade;
     
     /**
      * Creates an response for a given request.
@@ -74,6 +75,35 @@ public abstract class Response extends NetworkBuffer implements Serializable {
         return _request;
     }
     
+    /**
+     * Gets the handler the connection switches to after this response 
+     * has been sent.
+     * 
+     * @return null if the connection continues with the same protocol
+     */
+    public ChannelHandler getUpgrade() {
+        return _upgrade;
+    }
+    
+    /**
+     * Sets the handler the connection switches to after this response 
+     * has been sent.
+     */
+    public void setUpgrade(ChannelHandler handler) {
+        _upgrade = handler;
+    }
+    
+    /**
+     * Resets this response so that it can be reused for the next request
+     * on the same connection. The response remains bound to the same
+     * request object, which is reused as well.
+     */
+    @Override
+    protected void recycle() {
+        super.recycle();
+        _upgrade = null;
+    }
+    
     /**
      * Sends the data over a channel. The protocol will set
      * {@link #setChannel(SocketChannel) channel}, invoke one or more
@@ -86,12 +116,42 @@ public abstract class Response extends NetworkBuffer implements Serializable {
     protected abstract void send(ByteChannel channel) throws IOException;
     
     /**
-     * Receives data over a given channel.
+     * Affirms if this response has been written completely once it has
+     * been {@link #send(ByteChannel) sent}. A response whose body is 
+     * written after it has been sent is complete only when the body ends.
+     * A server reads no further request on the connection till then.
+     * <br>
+     * By default, returns true.
+     */
+    public boolean isComplete() {
+        return true;
+    }
+    
+    /**
+     * Affirms if the connection on which this response has been 
+     * {@link #receive(ByteChannel, ResponseCallback) received} can be reused
+     * for another request. 
+     * <br>
+     * By default, returns false.
+     */
+    protected boolean isKeepAlive() {
+        return false;
+    }
+    
+    /**
+     * Receives data over a given channel. A client calls this method 
+     * whenever the channel has bytes to read, so a response is received
+     * in as many calls as the network delivers it in parts, and must not
+     * block on a non-blocking channel.
+     * 
      * @param channel
      * @param cb if not null, then invokes the callback function as new 
-     * data arrives or exception is raised
-     * @throws IOException
+     * data arrives
+     * @return true if the response has been received completely
+     * @throws IOException if the data can not be read or is not a valid 
+     * response
      */
-    protected abstract void receive(ByteChannel channel, ResponseCallback cb);
+    protected abstract boolean receive(ByteChannel channel, ResponseCallback cb)
+        throws IOException;
 
 }
@@ -1,5 +1,7 @@
 package babble.net;
 
+import java.nio.ByteBuffer;
+
 /**
  * A callback function to receive a {@link Response response}.
  * This function is passed to {@link NioClient#sendRequest(Request, ResponseCallback)
@@ -19,6 +21,35 @@ public interface ResponseCallback {
      * @param eos true indicates end of stream
      */
     void onResponse(byte[] bytes, boolean eos);
+
+    /**
+     * Invoked when response is available, with the bytes as received.
+     * The bytes are valid only during the call. A client reuses the
+     * buffer once the call returns.
+     * <br>
+     * By default, copies the bytes to an array to
+     * {@link #onResponse(byte[], boolean) receive}. A callback that consumes
+     * the bytes as they are overrides this method to avoid the copy.
+     *
+     * @param data the bytes of the response. Never null.
+     * @param eos true indicates end of stream
+     */
+    default void onResponse(ByteBuffer data, boolean eos) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        onResponse(bytes, eos);
+    }
+
+    /**
+     * Affirms if this callback is ready to receive more of the response.
+     * A client does not read the response further while the callback is
+     * not ready.
+     * <br>
+     * By default, returns true.
+     */
+    default boolean isReady() {
+        return true;
+    }
     
     /**
      * Invoked when an error occurred to process a request. 
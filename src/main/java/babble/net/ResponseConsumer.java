@@ -0,0 +1,42 @@
+package babble.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A consumer of a response {@link NioClient#stream(Request, ResponseConsumer)
+ * streamed} by a client. The consumer receives the response in the buffer
+ * it is read into, without copy, and only as fast as it
+ * {@link Demand asks} for it.
+ * <br>
+ * A consumer of a large response, e.g. a download, holds no more than a
+ * buffer of the response at a time.
+ *
+ * @author pinaki poddar
+ *
+ */
+public interface ResponseConsumer {
+    /**
+     * Invoked on the thread that streams the request, before the request
+     * is sent. The consumer receives nothing until it requests with the
+     * given demand.
+     *
+     * @param demand the demand of this consumer for the parts of the
+     * response
+     */
+    void onStart(Demand demand);
+
+    /**
+     * Invoked on the i/o thread of the client with a part of the response.
+     *
+     * @param data a read-only slice of the buffer the response is read into.
+     * Valid only during the call.
+     * @param eos true indicates end of stream
+     */
+    void onData(ByteBuffer data, boolean eos);
+
+    /**
+     * Invoked when the request fails.
+     * @param ex an exception raised during request processing.
+     */
+    void onError(Exception ex);
+}
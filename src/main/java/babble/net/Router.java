@@ -4,6 +4,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -97,11 +98,14 @@ public abstract class Router<R extends Request, P extends Response>
             } catch (InterruptedException ex) {
                 break;
             } catch (Exception ex) {  // request processing had failed and
-                ex.printStackTrace(); // raised exception on a different thread
+                                      // raised exception on a different thread
                 synchronized (_runningTaks) { // that exception is thrown when
                     request = _runningTaks.get(promise); // by promise.get()
+                    Exception cause = ex instanceof ExecutionException 
+                            && ex.getCause() instanceof Exception
+                            ? (Exception)ex.getCause() : ex;
                     P errorResponse = _server.getProtocol()
-                            .newErrorResponse(request, ex);
+                            .newErrorResponse(request, cause);
                     _server.processResponse(errorResponse);
                 }
             } finally {
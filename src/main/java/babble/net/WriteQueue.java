@@ -0,0 +1,614 @@
+package babble.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import babble.util.BufferPool;
+import babble.util.DeflaterPool;
+
+/**
+ * A queue of data to be written on a non-blocking network channel.
+ * <br>
+ * A response is {@link Response#send(ByteChannel) sent} to the queue rather
+ * than directly to the network channel. Writing to the queue never blocks:
+ * the bytes are copied to {@link BufferPool pooled} buffers, a large
+ * immutable buffer is {@link #enqueue(ByteBuffer) queued} without a copy,
+ * and a region of a file is {@link #enqueue(Path, long, long) queued} to be
+ * read asynchronously. The server i/o thread {@link #drain() drains} the
+ * queue as the network channel becomes writable.
+ * <br>
+ * A file region is read by an {@link AsynchronousFileChannel} one buffer
+ * at a time. The next buffer is read only after the previous one has been
+ * written to the network channel. Hence no thread blocks on disk, and a
+ * slow client does not cause a file to be read in memory. A file region 
+ * can also be {@link #enqueue(Path, long, long, DeflaterPool, boolean) 
+ * compressed} as it is read, on the thread that completes the read.
+ * <br>
+ * The queue signals its listener when it has data to be written after it
+ * has been drained, or when a file read completes.
+ * <br>
+ * The queue is unbounded, but a writer that produces data faster than the
+ * network channel drains can {@link #awaitWritable(long) wait} for the
+ * queue to drain below a {@link #LOW_WATERMARK watermark}. The listener is
+ * expected to arrange for the queue to be drained on the i/o thread.
+ * <br>
+ * This queue is thread-safe.
+ *
+ * @author pinaki poddar
+ *
+ */
+public class WriteQueue implements ByteChannel {
+    /**
+     * A writer that {@link #awaitWritable(long) awaits} is blocked if this 
+     * many bytes are queued, ...
+     */
+    public static final long HIGH_WATERMARK = 256*1024;
+    /**
+     * ... until the queued bytes are drained to this many bytes.
+     */
+    public static final long LOW_WATERMARK  = 64*1024;
+    
+    private final ByteChannel _channel;
+    private final BufferPool _pool;
+    private final Consumer<WriteQueue> _listener;
+    private final ArrayDeque<Object> _items = new ArrayDeque<Object>();
+    private Chunk _tail;
+    private long _queuedBytes;
+    private boolean _closing;
+    private boolean _closed;
+    private boolean _signalled;
+
+    private static final Logger _logger = LoggerFactory.getLogger("channel");
+
+    /**
+     * Creates a queue for given channel.
+     *
+     * @param channel a channel to write to
+     * @param pool the pool of buffers to copy the bytes
+     * @param listener notified when this queue has data to be written.
+     * Notified at most once until this queue is {@link #drain() drained}
+     * again.
+     */
+    public WriteQueue(ByteChannel channel, BufferPool pool, Consumer<WriteQueue> listener) {
+        if (channel == null)
+            throw new IllegalArgumentException("channel must not be null");
+        _channel  = channel;
+        _pool     = pool;
+        _listener = listener;
+    }
+
+    /**
+     * Gets the network channel of this queue.
+     */
+    public ByteChannel getChannel() {
+        return _channel;
+    }
+
+    /**
+     * Copies the remaining bytes of the given buffer to this queue.
+     * Small writes are coalesced in the same pooled buffer.
+     *
+     * @return number of bytes queued
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int n = src.remaining();
+        boolean signal;
+        synchronized (this) {
+            assertOpen();
+            while (src.hasRemaining()) {
+                if (_tail == null || !_tail.buffer.hasRemaining()) {
+                    _tail = new Chunk(_pool.acquire());
+                    _items.addLast(_tail);
+                }
+                int count = Math.min(src.remaining(), _tail.buffer.remaining());
+                ByteBuffer part = src.duplicate();
+                part.limit(part.position() + count);
+                _tail.buffer.put(part);
+                src.position(src.position() + count);
+            }
+            _queuedBytes += n;
+            signal = needsSignal();
+        }
+        if (signal) signal();
+        return n;
+    }
+
+    /**
+     * Queues the remaining bytes of the given buffer without a copy.
+     * The content of the buffer must not be modified afterwards.
+     *
+     * @param buffer a buffer whose position is not advanced.
+     */
+    public void enqueue(ByteBuffer buffer) throws IOException {
+        if (!buffer.hasRemaining()) return;
+        boolean signal;
+        synchronized (this) {
+            assertOpen();
+            _items.addLast(buffer.duplicate());
+            _tail = null;
+            _queuedBytes += buffer.remaining();
+            signal = needsSignal();
+        }
+        if (signal) signal();
+    }
+
+    /**
+     * Queues a region of the given file. The file is read asynchronously
+     * as the network channel drains.
+     *
+     * @param path a file
+     * @param position offset of the first byte of the region in the file
+     * @param count number of bytes in the region
+     * @throws IOException if the file can not be opened
+     */
+    public void enqueue(Path path, long position, long count) throws IOException {
+        if (count <= 0) return;
+        synchronized (this) {
+            assertOpen();
+        }
+        FileSource source = new FileSource(path, position, position + count, 
+                _pool.acquire());
+        synchronized (this) {
+            if (_closing || _closed) source.close();
+            assertOpen();
+            _items.addLast(source);
+            _tail = null;
+            _queuedBytes += count;
+            source.read();
+        }
+    }
+
+    /**
+     * Queues a region of the given file compressed in HTTP chunks. The file
+     * is read asynchronously as the network channel drains, and each buffer
+     * read is compressed into a chunk on the thread that completes the read.
+     * The last chunk, that ends the body, is not queued.
+     *
+     * @param path a file
+     * @param position offset of the first byte of the region in the file
+     * @param count number of bytes in the region
+     * @param deflaters the pool to acquire a deflater from. The deflater is
+     * released once the region has been compressed.
+     * @param gzip if true, the compressed data is framed in gzip format. 
+     * The deflaters must then produce raw deflate data.
+     * @throws IOException if the file can not be opened
+     */
+    public void enqueue(Path path, long position, long count, 
+            DeflaterPool deflaters, boolean gzip) throws IOException {
+        synchronized (this) {
+            assertOpen();
+        }
+        FileSource source = new DeflatingSource(path, position, 
+                position + Math.max(0, count), deflaters, gzip);
+        synchronized (this) {
+            if (_closing || _closed) source.close();
+            assertOpen();
+            _items.addLast(source);
+            _tail = null;
+            source.read();
+        }
+    }
+
+    /**
+     * Notifies the listener to drain this queue, even if no data has been
+     * queued, e.g. a writer has ended a response whose data has already 
+     * been queued.
+     */
+    public void requestDrain() {
+        boolean signal;
+        synchronized (this) {
+            signal = needsSignal();
+        }
+        if (signal) signal();
+    }
+
+    /**
+     * Gets the number of bytes queued but not yet written.
+     */
+    public synchronized long getQueuedBytes() {
+        return _queuedBytes;
+    }
+
+    /**
+     * Affirms if a writer can write without {@link #awaitWritable(long)
+     * waiting}.
+     */
+    public synchronized boolean isWritable() {
+        return _queuedBytes < HIGH_WATERMARK && !_closed;
+    }
+    
+    /**
+     * Waits till this queue is writable. If {@link #HIGH_WATERMARK} or more
+     * bytes are queued, waits till the queued bytes are drained to 
+     * {@link #LOW_WATERMARK}.
+     * 
+     * @param timeout maximum time to wait in milliseconds 
+     * @return true if this queue is writable. false if the wait timed out.
+     * @throws IOException if this queue is closed or discarded
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public synchronized boolean awaitWritable(long timeout) 
+            throws IOException, InterruptedException {
+        assertOpen();
+        if (_queuedBytes < HIGH_WATERMARK) return true;
+        long deadline = System.currentTimeMillis() + timeout;
+        while (_queuedBytes > LOW_WATERMARK) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            wait(remaining);
+            assertOpen();
+        }
+        return true;
+    }
+    
+    /**
+     * Affirms if all queued data has been written.
+     */
+    public synchronized boolean isEmpty() {
+        return _items.isEmpty();
+    }
+
+    /**
+     * Writes queued data to the network channel as long as the channel
+     * accepts it. Must be called by a single i/o thread.
+     * If this queue has been {@link #close() closed} and all its data is
+     * written, the network channel is closed.
+     *
+     * @return true if the network channel is full and data remains to be
+     * written when the channel becomes writable again. false if this queue
+     * is empty or waits for a file to be read.
+     * @throws IOException if data can not be written
+     */
+    public boolean drain() throws IOException {
+        synchronized (this) {
+            try {
+                return drainItems();
+            } finally {
+                if (_queuedBytes <= LOW_WATERMARK) notifyAll();
+            }
+        }
+    }
+    
+    private boolean drainItems() throws IOException {
+        _signalled = false;
+        Object item;
+        while ((item = _items.peekFirst()) != null) {
+            if (item instanceof FileSource) {
+                FileSource source = (FileSource)item;
+                if (source.failure != null) {
+                    throw new IOException("can not read " + source.path, source.failure);
+                }
+                if (source.reading) {
+                    _signalled = true; // read completion will signal
+                    return false;
+                }
+                if (!writeFully(source.output)) return true;
+                if (source.position < source.end) {
+                    source.read();
+                    continue;
+                }
+                source.close();
+            } else if (item instanceof Chunk) {
+                Chunk chunk = (Chunk)item;
+                ByteBuffer buf = chunk.buffer.duplicate();
+                buf.flip().position(chunk.read);
+                boolean written = writeFully(buf);
+                chunk.read = buf.position();
+                if (!written) return true;
+                if (chunk == _tail) _tail = null;
+                _pool.release(chunk.buffer);
+            } else if (!writeFully((ByteBuffer)item)) {
+                return true;
+            }
+            _items.removeFirst();
+        }
+        if (_items.isEmpty() && _closing && !_closed) {
+            _closed = true;
+            _channel.close();
+        }
+        return false;
+    }
+
+    /**
+     * Writes the given buffer to the network channel.
+     * @return true if the buffer has been written completely
+     */
+    private boolean writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = _channel.write(buf);
+            if (n <= 0) return false;
+            _queuedBytes -= n;
+        }
+        return true;
+    }
+
+    /**
+     * Discards queued data and closes any file being read.
+     * The network channel is not closed.
+     */
+    public synchronized void discard() {
+        for (Object item : _items) {
+            if (item instanceof Chunk) {
+                _pool.release(((Chunk)item).buffer);
+            } else if (item instanceof FileSource) {
+                ((FileSource)item).close();
+            }
+        }
+        _items.clear();
+        _tail = null;
+        _queuedBytes = 0;
+        _closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Reads from the network channel.
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        return _channel.read(dst);
+    }
+
+    /**
+     * Affirms if data can be written to this queue.
+     */
+    @Override
+    public synchronized boolean isOpen() {
+        return !_closing && _channel.isOpen();
+    }
+
+    /**
+     * Closes this queue. The network channel is closed after queued data
+     * has been written.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (_closing) return;
+            _closing = true;
+            _signalled = true;
+            notifyAll();
+        }
+        signal();
+    }
+
+    private void assertOpen() throws IOException {
+        if (_closing || _closed)
+            throw new IOException("write queue of " + _channel + " is closed");
+    }
+
+    /**
+     * Affirms if the listener is to be signalled, and marks it signalled.
+     * Must be called under lock.
+     */
+    private boolean needsSignal() {
+        if (_signalled) return false;
+        _signalled = true;
+        return true;
+    }
+
+    private void signal() {
+        if (_listener != null) _listener.accept(this);
+    }
+
+    public String toString() {
+        return "WriteQueue[" + _channel + " " + getQueuedBytes() + " bytes]";
+    }
+
+    /**
+     * A pooled buffer being filled by writers and read by the drain.
+     */
+    private static class Chunk {
+        final ByteBuffer buffer;
+        int read;
+
+        Chunk(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * A region of a file read asynchronously into a pooled buffer.
+     * The buffer is read again after it has been written.
+     */
+    private class FileSource implements CompletionHandler<Integer, ByteBuffer> {
+        final Path path;
+        final AsynchronousFileChannel file;
+        final ByteBuffer buffer;
+        /** bytes to be written i.e. the buffer read, unless transformed */
+        ByteBuffer output;
+        long position;
+        final long end;
+        boolean reading;
+        Throwable failure;
+
+        FileSource(Path path, long position, long end, ByteBuffer buffer) 
+                throws IOException {
+            this.path     = path;
+            this.file     = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
+            this.buffer   = buffer;
+            this.output   = buffer;
+            this.position = position;
+            this.end      = end;
+            buffer.flip(); // nothing to write until read
+        }
+
+        /**
+         * Transforms the bytes read before they are written. Invoked on the
+         * thread that completes the read, without the lock of the queue.
+         * By default, the bytes read are written as they are.
+         *
+         * @param last whether the bytes read are the last of the region
+         * @return number of bytes to be written that are not yet counted
+         * as queued
+         */
+        int transform(boolean last) {
+            return 0;
+        }
+
+        /**
+         * Releases the resources held once the file is no longer read.
+         */
+        void release() {
+            _pool.release(buffer);
+        }
+
+        /**
+         * Starts reading next buffer. Must be called under lock of the queue.
+         */
+        void read() {
+            reading = true;
+            buffer.clear();
+            buffer.limit((int)Math.min(buffer.capacity(), end - position));
+            file.read(buffer, position, buffer, this);
+        }
+
+        @Override
+        public void completed(Integer n, ByteBuffer buf) {
+            int produced = 0;
+            Throwable error = null;
+            if (n >= 0) {
+                buffer.flip();
+                try {
+                    produced = transform(position + n >= end);
+                } catch (RuntimeException ex) {
+                    error = ex;
+                }
+            }
+            synchronized (WriteQueue.this) {
+                reading = false;
+                if (n < 0) {
+                    failure = new IOException(path + " is shorter than " + end + " bytes");
+                } else {
+                    position += n;
+                    failure = error;
+                    _queuedBytes += produced;
+                }
+                if (_closed) close();
+            }
+            signal();
+        }
+
+        @Override
+        public void failed(Throwable ex, ByteBuffer buf) {
+            synchronized (WriteQueue.this) {
+                reading = false;
+                failure = ex;
+                if (_closed) close();
+            }
+            signal();
+        }
+
+        void close() {
+            try {
+                file.close();
+            } catch (IOException ex) {
+                _logger.warn("error closing " + path + ": " + ex);
+            }
+            if (!reading) {
+                release();
+            }
+        }
+    }
+
+    /**
+     * A region of a file compressed in HTTP chunks as it is read. The file
+     * is read into a heap buffer, because a deflater compresses arrays.
+     */
+    private class DeflatingSource extends FileSource {
+        /** room for the size of a chunk ahead of its data */
+        private static final int PREFIX = 10;
+        final DeflaterPool deflaters;
+        final Deflater deflater;
+        final CRC32 crc;
+        boolean started;
+        long length;
+        byte[] data;
+        int count;
+
+        DeflatingSource(Path path, long position, long end, 
+                DeflaterPool deflaters, boolean gzip) throws IOException {
+            super(path, position, end, ByteBuffer.allocate(_pool.getBufferSize()));
+            this.deflaters = deflaters;
+            this.deflater  = deflaters.acquire();
+            this.crc       = gzip ? new CRC32() : null;
+            this.data      = new byte[PREFIX + buffer.capacity() + 64];
+        }
+
+        /**
+         * Compresses the bytes read into a chunk. A chunk is not written if
+         * the deflater holds back all of its output.
+         */
+        @Override
+        int transform(boolean last) {
+            count = PREFIX;
+            if (crc != null && !started) append(DeflaterPool.GZIP_HEADER);
+            started = true;
+            int n = buffer.remaining();
+            int offset = buffer.arrayOffset() + buffer.position();
+            if (crc != null) crc.update(buffer.array(), offset, n);
+            length += n;
+            deflater.setInput(buffer.array(), offset, n);
+            while (!deflater.needsInput()) deflate();
+            buffer.position(buffer.limit());
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) deflate();
+                if (crc != null) append(DeflaterPool.gzipTrailer(crc, length));
+            }
+            int size = count - PREFIX;
+            if (size == 0) {
+                output = ByteBuffer.allocate(0);
+                return 0;
+            }
+            byte[] header = (Integer.toHexString(size) + "\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(header, 0, data, PREFIX - header.length, header.length);
+            append(NetworkBuffer.CRLF_BYTES);
+            output = ByteBuffer.wrap(data, PREFIX - header.length, 
+                    count - PREFIX + header.length);
+            return output.remaining();
+        }
+
+        private void deflate() {
+            ensureCapacity(1024);
+            count += deflater.deflate(data, count, data.length - count - 2);
+        }
+
+        private void append(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, data, count, bytes.length);
+            count += bytes.length;
+        }
+
+        /**
+         * Ensures room for the given number of bytes, and the line break
+         * that ends a chunk.
+         */
+        private void ensureCapacity(int n) {
+            if (data.length - count - 2 < n) {
+                data = Arrays.copyOf(data, Math.max(2*data.length, count + n + 2));
+            }
+        }
+
+        @Override
+        void release() {
+            deflaters.release(deflater);
+        }
+    }
+}
@@ -4,7 +4,9 @@ import java.io.IOException;
 
 /**
  * Raised when an incoming request is not confirming to a protocol.
- * 
+ * <br>
+ * A bad request is not an exceptional condition for a server, so the stack
+ * trace is captured only if {@link StackTraces#sample() sampled}.
  *  
  * @author pinaki poddar
  *
@@ -38,6 +40,11 @@ public class ProtocolException extends IOException {
         return _errorcode;
     }
     
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return StackTraces.sample() ? super.fillInStackTrace() : this;
+    }
+    
 
 
 }
@@ -2,7 +2,10 @@ package babble.net.exception;
 
 /**
  * Raised when an incoming request can not be routed.
- * 
+ * <br>
+ * A request that matches no route is not an exceptional condition for a
+ * server, so the stack trace is captured only if 
+ * {@link StackTraces#sample() sampled}.
  *  
  * @author pinaki poddar
  *
@@ -40,6 +43,11 @@ public class RoutingException extends RuntimeException {
         return _errorcode;
     }
     
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return StackTraces.sample() ? super.fillInStackTrace() : this;
+    }
+    
 
 
 }
@@ -0,0 +1,61 @@
+package babble.net.exception;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Samples the capture of stack traces on the error path.
+ * <br>
+ * Exceptions such as {@link RoutingException} or {@link ProtocolException}
+ * are raised for every bad request, and filling in a stack trace is
+ * often the costliest part of handling such request. These exceptions
+ * capture a stack trace only if {@link #sample() sampled}, which happens
+ * at most once in an interval across all threads. The interval is set by
+ * system property <code>babble.stacktrace.interval</code> in milliseconds,
+ * 1000 by default, or by {@link #setInterval(long)}. An interval of zero 
+ * captures every stack trace.
+ *
+ * @author pinaki poddar
+ *
+ */
+public final class StackTraces {
+    /** minimum interval in milliseconds between two sampled stack traces */
+    public static final long INTERVAL = Long.getLong("babble.stacktrace.interval", 1000);
+
+    private static volatile long _interval = INTERVAL;
+    private static final AtomicLong _last = new AtomicLong(Long.MIN_VALUE/2);
+
+    private StackTraces() {
+    }
+    
+    /**
+     * Gets the minimum interval in milliseconds between two sampled stack 
+     * traces.
+     */
+    public static long getInterval() {
+        return _interval;
+    }
+    
+    /**
+     * Sets the minimum interval in milliseconds between two sampled stack
+     * traces. The interval begins afresh, so that the next stack trace is
+     * sampled.
+     * 
+     * @param interval zero or negative to capture every stack trace
+     */
+    public static void setInterval(long interval) {
+        _interval = interval;
+        _last.set(Long.MIN_VALUE/2);
+    }
+
+    /**
+     * Affirms if the stack trace of an exception being raised now should
+     * be captured.
+     */
+    public static boolean sample() {
+        long interval = _interval;
+        if (interval <= 0) return true;
+        long now  = System.currentTimeMillis();
+        long last = _last.get();
+        return now - last >= interval && _last.compareAndSet(last, now);
+    }
+}
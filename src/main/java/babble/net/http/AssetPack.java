@@ -0,0 +1,283 @@
+package babble.net.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A read-only bundle of static files, packed in a single file and
+ * memory-mapped.
+ * <br>
+ * A deployment that serves a fixed set of files, such as user interface
+ * assets, {@link #build(Path, Path) builds} a pack from a directory tree
+ * at startup and serves it by {@link DefaultGet#DefaultGet(AssetPack)}.
+ * A lookup is a probe in a hash table stored in the pack, and the content
+ * of a file is a slice of the mapped buffer. Hence serving a file neither
+ * opens a file nor copies its content to heap.
+ *
+ * <p>
+ * <b>Format</b>: all numbers are big-endian.
+ * <pre>
+ * header  : magic(4) version(4) slot count(4) file count(4)
+ * slots   : slot count * (hash(4) name offset(4) name length(4)
+ *           content length(4) content offset(8) gzip offset(8)
+ *           gzip length(4) unused(4) last modified(8))
+ * names   : UTF-8 relative paths separated by '/'
+ * content : content of each file, followed by its gzip variant, if any
+ * </pre>
+ * The number of slots is a power of two, at least twice the number of files.
+ * An empty slot has zero name offset. Collisions are resolved by linear
+ * probing.
+ *
+ * @author pinaki poddar
+ *
+ */
+public class AssetPack {
+    static final int MAGIC       = 0x4250414b; // BPAK
+    static final int VERSION     = 1;
+    static final int HEADER_SIZE = 16;
+    static final int SLOT_SIZE   = 48;
+
+    private final Path _file;
+    private final MappedByteBuffer _buffer;
+    private final int _slotCount;
+    private final int _fileCount;
+    private final AtomicReferenceArray<FileCache.Entry> _entries;
+
+    private static final Logger _logger = LoggerFactory.getLogger(AssetPack.class);
+
+    private AssetPack(Path file, MappedByteBuffer buffer) throws IOException {
+        _file = file;
+        _buffer = buffer;
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+            throw new IOException(file + " is not an asset pack");
+        if (buffer.getInt(4) != VERSION)
+            throw new IOException(file + " is of unsupported version " + buffer.getInt(4));
+        _slotCount = buffer.getInt(8);
+        _fileCount = buffer.getInt(12);
+        if (Integer.bitCount(_slotCount) != 1
+         || HEADER_SIZE + (long)_slotCount*SLOT_SIZE > buffer.limit())
+            throw new IOException(file + " is corrupt");
+        _entries = new AtomicReferenceArray<FileCache.Entry>(_slotCount);
+    }
+
+    /**
+     * Maps the given pack file to memory.
+     *
+     * @param file a pack file {@link #build(Path, Path) built} earlier
+     * @throws IOException if the file can not be mapped or is not a pack
+     */
+    public static AssetPack open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException(file + " is too large to be mapped");
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new AssetPack(file, buffer);
+        }
+    }
+
+    /**
+     * Packs the regular files of the given directory tree into a file.
+     * A file of compressible type is packed with its gzip variant, if that
+     * is smaller.
+     *
+     * @param directory root of the files to be packed. The files are looked
+     * up by their path relative to this directory.
+     * @param file the pack file to be written. Overwritten if exists.
+     * @return the number of files packed
+     * @throws IOException if a file can not be read or the pack file can not
+     * be written or would exceed 2GB
+     */
+    public static int build(Path directory, Path file) throws IOException {
+        List<Path> paths;
+        try (Stream<Path> stream = Files.walk(directory)) {
+            paths = stream.filter(Files::isRegularFile).sorted()
+                    .collect(Collectors.toList());
+        }
+        int slotCount = Integer.highestOneBit(Math.max(2, 2*paths.size()) - 1) << 1;
+        byte[][] names = new byte[paths.size()][];
+        long offset = HEADER_SIZE + (long)slotCount*SLOT_SIZE;
+        for (int i = 0; i < names.length; i++) {
+            names[i] = key(directory.relativize(paths.get(i)));
+            offset += names[i].length;
+        }
+
+        ByteBuffer slots = ByteBuffer.allocate(slotCount*SLOT_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(offset);
+            long nameOffset = HEADER_SIZE + (long)slotCount*SLOT_SIZE;
+            for (int i = 0; i < names.length; i++) {
+                Path path = paths.get(i);
+                ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(path));
+                long contentOffset = channel.position();
+                write(channel, content.duplicate());
+                long gzipOffset = 0;
+                int gzipLength = 0;
+                if (content.remaining() >= ContentCoding.MIN_SIZE
+                 && ContentCoding.isCompressible(DefaultGet.guessMimeType(path))) {
+                    ByteBuffer gzip = ContentCoding.gzip(content.duplicate());
+                    if (gzip.remaining() < content.remaining()) {
+                        gzipOffset = channel.position();
+                        gzipLength = gzip.remaining();
+                        write(channel, gzip);
+                    }
+                }
+                if (channel.position() > Integer.MAX_VALUE)
+                    throw new IOException(file + " would exceed 2GB");
+
+                int hash = hash(names[i], 0, names[i].length);
+                int slot = hash & (slotCount - 1);
+                while (slots.getInt(slot*SLOT_SIZE + 4) != 0) {
+                    slot = (slot + 1) & (slotCount - 1);
+                }
+                slots.position(slot*SLOT_SIZE);
+                slots.putInt(hash)
+                     .putInt((int)nameOffset)
+                     .putInt(names[i].length)
+                     .putInt(content.remaining())
+                     .putLong(contentOffset)
+                     .putLong(gzipOffset)
+                     .putInt(gzipLength)
+                     .putInt(0)
+                     .putLong(Files.getLastModifiedTime(path).toMillis());
+                nameOffset += names[i].length;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(slotCount).putInt(names.length);
+            header.flip();
+            slots.clear();
+            channel.position(0);
+            write(channel, header);
+            write(channel, slots);
+            for (byte[] name : names) {
+                write(channel, ByteBuffer.wrap(name));
+            }
+        }
+        _logger.info("packed " + names.length + " files of " + directory + " in " + file);
+        return names.length;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * Gets the key of a relative path i.e. UTF-8 bytes of the path with
+     * forward slash as separator.
+     */
+    static byte[] key(Path relative) {
+        StringBuilder key = new StringBuilder();
+        for (Path name : relative) {
+            if (key.length() > 0) key.append('/');
+            key.append(name.toString());
+        }
+        return key.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * FNV-1a hash of given bytes.
+     */
+    static int hash(byte[] bytes, int offset, int length) {
+        int hash = 0x811c9dc5;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= (bytes[i] & 0xff);
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    public Path getFile() {
+        return _file;
+    }
+
+    /**
+     * Gets number of files in this pack.
+     */
+    public int size() {
+        return _fileCount;
+    }
+
+    /**
+     * Gets the file of given path.
+     *
+     * @param path a path relative to the packed directory, separated by
+     * forward slash. A leading slash is ignored.
+     * @return null if the pack has no such file. The content of the entry
+     * is a slice of the mapped pack.
+     */
+    public FileCache.Entry get(String path) {
+        if (path == null) return null;
+        if (path.startsWith("/")) path = path.substring(1);
+        byte[] key = path.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key, 0, key.length);
+        int mask = _slotCount - 1;
+        for (int slot = hash & mask, probes = 0; probes < _slotCount;
+                slot = (slot + 1) & mask, probes++) {
+            int base = HEADER_SIZE + slot*SLOT_SIZE;
+            int nameOffset = _buffer.getInt(base + 4);
+            if (nameOffset == 0) return null;
+            if (_buffer.getInt(base) == hash
+             && _buffer.getInt(base + 8) == key.length
+             && matches(nameOffset, key)) {
+                FileCache.Entry entry = _entries.get(slot);
+                if (entry == null) {
+                    entry = newEntry(path, base);
+                    if (!_entries.compareAndSet(slot, null, entry)) {
+                        entry = _entries.get(slot);
+                    }
+                }
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private boolean matches(int offset, byte[] key) {
+        for (int i = 0; i < key.length; i++) {
+            if (_buffer.get(offset + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+    private FileCache.Entry newEntry(String path, int base) {
+        int length = _buffer.getInt(base + 12);
+        long offset = _buffer.getLong(base + 16);
+        long gzipOffset = _buffer.getLong(base + 24);
+        int gzipLength = _buffer.getInt(base + 32);
+        long lastModified = _buffer.getLong(base + 40);
+        FileCache.Entry entry = new FileCache.Entry(Paths.get(path), lastModified,
+                slice(offset, length));
+        if (gzipLength > 0) {
+            entry.setGzip(new FileCache.Entry(entry, entry.getPath(), gzipLength,
+                    slice(gzipOffset, gzipLength)));
+        }
+        return entry;
+    }
+
+    private ByteBuffer slice(long offset, int length) {
+        ByteBuffer slice = _buffer.duplicate();
+        slice.position((int)offset);
+        slice.limit((int)offset + length);
+        return slice.slice().asReadOnlyBuffer();
+    }
+
+    public String toString() {
+        return "AssetPack[" + _file + ", " + _fileCount + " files]";
+    }
+}
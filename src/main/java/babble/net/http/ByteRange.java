@@ -0,0 +1,107 @@
+package babble.net.http;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A range of bytes of a representation, as requested by
+ * a <code>Range</code> header e.g. <code>bytes=0-499,-500</code>.
+ * Both ends of a range are inclusive.
+ *
+ * @author pinaki poddar
+ *
+ */
+final class ByteRange {
+    /**
+     * A request with more ranges than this is served in full, because
+     * many small ranges cost more to serve than the whole content.
+     */
+    static final int MAX_RANGES = 16;
+
+    private static final String UNIT = "bytes=";
+
+    final long first;
+    final long last;
+
+    ByteRange(long first, long last) {
+        this.first = first;
+        this.last  = last;
+    }
+
+    /**
+     * Gets number of bytes in this range.
+     */
+    long length() {
+        return last - first + 1;
+    }
+
+    /**
+     * Gets the value of a <code>Content-Range</code> header for this range.
+     *
+     * @param size size of the complete representation
+     */
+    String toContentRange(long size) {
+        return "bytes " + first + '-' + last + '/' + size;
+    }
+
+    /**
+     * Parses the value of a <code>Range</code> header for a representation
+     * of given size.
+     * A range whose end exceeds the size is truncated, and a range that
+     * starts beyond the size is dropped.
+     *
+     * @param header value of a <code>Range</code> header
+     * @param size size of the representation in bytes
+     * @return null if the header is malformed, not in bytes or has too many
+     * ranges; such header is ignored. Empty list if none of the ranges is
+     * satisfiable.
+     */
+    static List<ByteRange> parse(String header, long size) {
+        if (header == null) return null;
+        header = header.trim();
+        if (!header.regionMatches(true, 0, UNIT, 0, UNIT.length())) return null;
+        List<ByteRange> ranges = new ArrayList<ByteRange>();
+        int start = UNIT.length();
+        int length = header.length();
+        int count = 0;
+        while (start < length) {
+            int end = header.indexOf(',', start);
+            if (end == -1) end = length;
+            String spec = header.substring(start, end).trim();
+            start = end + 1;
+            if (spec.isEmpty()) continue;
+            if (++count > MAX_RANGES) return null;
+            int dash = spec.indexOf('-');
+            if (dash == -1) return null;
+            long first, last;
+            try {
+                if (dash == 0) {
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix <= 0) continue;
+                    first = Math.max(0, size - suffix);
+                    last  = size - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    if (dash == spec.length()-1) {
+                        last = size - 1;
+                    } else {
+                        last = Long.parseLong(spec.substring(dash+1));
+                        if (last < first) return null;
+                        last = Math.min(size - 1, last);
+                    }
+                }
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+            if (first < 0) return null;
+            if (first < size && first <= last) {
+                ranges.add(new ByteRange(first, last));
+            }
+        }
+        return count == 0 ? null : ranges;
+    }
+
+    public String toString() {
+        return first + "-" + last;
+    }
+}
@@ -0,0 +1,98 @@
+package babble.net.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * A <code>206 Partial Content</code> response to a request for multiple
+ * ranges of a {@link FileCache.Entry file}. The body is of
+ * <code>multipart/byteranges</code> type.
+ * <br>
+ * The length of the body is known before it is written, hence the body is
+ * not chunked. Each range is written either from a slice of the cached
+ * content or directly from the file, without copying the file content.
+ *
+ * @author pinaki poddar
+ *
+ */
+@SuppressWarnings("serial")
+public class ByteRangesHttpResponse extends HttpResponse {
+    private final transient FileCache.Entry _entry;
+    private final List<ByteRange> _ranges;
+    private final byte[][] _partHeaders;
+    private final byte[] _closing;
+
+    /**
+     * Creates a response for given ranges of given file.
+     *
+     * @param request the request
+     * @param entry a file that exists
+     * @param ranges satisfiable ranges of the file
+     */
+    ByteRangesHttpResponse(HttpRequest request, FileCache.Entry entry, List<ByteRange> ranges) {
+        super(request);
+        _entry  = entry;
+        _ranges = ranges;
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        _partHeaders = new byte[ranges.size()][];
+        long length = 0;
+        for (int i = 0; i < _partHeaders.length; i++) {
+            ByteRange range = ranges.get(i);
+            _partHeaders[i] = (HttpConstants.CRLF + "--" + boundary + HttpConstants.CRLF
+                    + HttpConstants.HEADER_CONTENT_TYPE + ": " + entry.getMimeType()
+                    + HttpConstants.CRLF
+                    + HttpConstants.HEADER_CONTENT_RANGE + ": "
+                    + range.toContentRange(entry.getSize())
+                    + HttpConstants.CRLF + HttpConstants.CRLF)
+                    .getBytes(StandardCharsets.US_ASCII);
+            length += _partHeaders[i].length + range.length();
+        }
+        _closing = (HttpConstants.CRLF + "--" + boundary + "--" + HttpConstants.CRLF)
+                .getBytes(StandardCharsets.US_ASCII);
+        length += _closing.length;
+
+        setStatus(HttpConstants.STATUS_PARTIAL_CONTENT);
+        addHeader(HttpConstants.HEADER_CONTENT_TYPE,
+                "multipart/byteranges; boundary=" + boundary);
+        addHeader(HttpConstants.HEADER_CONTENT_LENGTH, Long.toString(length));
+        for (HttpHeader header : entry.getValidators()) {
+            putHeader(header);
+        }
+        putHeader(HttpHeader.ACCEPT_RANGES_BYTES);
+    }
+
+    @Override
+    protected void writeBody() throws IOException {
+        ByteBuffer content = _entry.getContent();
+        for (int i = 0; i < _partHeaders.length; i++) {
+            ByteRange range = _ranges.get(i);
+            writeBytes(_partHeaders[i]);
+            if (content != null) {
+                content.limit((int)range.last + 1);
+                content.position((int)range.first);
+                writeBytes(content);
+            } else {
+                writeFile(_entry.getPath(), range.first, range.length());
+            }
+        }
+        writeBytes(_closing);
+    }
+
+    @Override
+    public void appendBody(String body) throws IOException {
+        throw new UnsupportedOperationException("body of " + getClass().getSimpleName()
+                + " is the requested ranges");
+    }
+
+    @Override
+    public void setBody(Path path) throws IOException {
+        throw new UnsupportedOperationException("body of " + getClass().getSimpleName()
+                + " is the requested ranges");
+    }
+
+}
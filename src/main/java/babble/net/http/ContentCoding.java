@@ -0,0 +1,150 @@
+package babble.net.http;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import babble.util.DeflaterPool;
+
+/**
+ * Content codings i.e. compression of a response body, negotiated by
+ * <code>Accept-Encoding</code> header of a request.
+ * <br>
+ * Supports <code>gzip</code> and <code>deflate</code> codings. The
+ * deflaters are {@link DeflaterPool pooled}.
+ *
+ * @author pinaki poddar
+ *
+ */
+final class ContentCoding {
+    static final String GZIP    = "gzip";
+    static final String DEFLATE = "deflate";
+
+    /**
+     * A body smaller than this is not compressed, as compression would
+     * hardly save any byte but cost time.
+     */
+    static final int MIN_SIZE = 1024;
+
+    static final DeflaterPool GZIP_POOL =
+            new DeflaterPool(Deflater.DEFAULT_COMPRESSION, true, 32);
+    static final DeflaterPool DEFLATE_POOL =
+            new DeflaterPool(Deflater.DEFAULT_COMPRESSION, false, 32);
+
+    private ContentCoding() {
+    }
+
+    /**
+     * Gets the pool of deflaters for given coding.
+     */
+    static DeflaterPool pool(String coding) {
+        return GZIP.equals(coding) ? GZIP_POOL : DEFLATE_POOL;
+    }
+
+    /**
+     * Chooses a coding acceptable to the client. <code>gzip</code> is
+     * preferred over <code>deflate</code>.
+     *
+     * @param acceptEncoding value of <code>Accept-Encoding</code> header
+     * @return <code>gzip</code>, <code>deflate</code> or null if neither is
+     * acceptable.
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        if (accepts(acceptEncoding, GZIP)) return GZIP;
+        if (accepts(acceptEncoding, DEFLATE)) return DEFLATE;
+        return null;
+    }
+
+    /**
+     * Affirms if the given coding is acceptable by the given
+     * <code>Accept-Encoding</code> header e.g.
+     * <code>gzip;q=0.8, deflate, *;q=0</code>. A coding explicitly listed
+     * takes precedence over the wildcard <code>*</code>.
+     */
+    static boolean accepts(String acceptEncoding, String coding) {
+        if (acceptEncoding == null) return false;
+        Boolean wildcard = null;
+        int start = 0;
+        int length = acceptEncoding.length();
+        while (start < length) {
+            int end = acceptEncoding.indexOf(',', start);
+            if (end == -1) end = length;
+            String token = acceptEncoding.substring(start, end);
+            start = end + 1;
+            boolean accepted = true;
+            int semicolon = token.indexOf(';');
+            if (semicolon != -1) {
+                accepted = isPositive(token.substring(semicolon+1));
+                token = token.substring(0, semicolon);
+            }
+            token = token.trim();
+            if (token.equalsIgnoreCase(coding)) {
+                return accepted;
+            } else if (token.equals("*")) {
+                wildcard = accepted;
+            }
+        }
+        return wildcard != null && wildcard;
+    }
+
+    private static boolean isPositive(String parameter) {
+        parameter = parameter.trim();
+        if (!parameter.startsWith("q=") && !parameter.startsWith("Q=")) return true;
+        try {
+            return Double.parseDouble(parameter.substring(2).trim()) > 0;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Affirms if content of given MIME type is worth compressing.
+     * Images, audio, video and archives are already compressed.
+     */
+    static boolean isCompressible(String mimeType) {
+        if (mimeType == null) return false;
+        return mimeType.startsWith("text/")
+            || mimeType.startsWith("application/json")
+            || mimeType.startsWith("application/javascript")
+            || mimeType.startsWith("application/xml")
+            || mimeType.startsWith("application/wasm")
+            || mimeType.startsWith("image/svg+xml");
+    }
+
+    /**
+     * Compresses the remaining bytes of given buffer in gzip format.
+     *
+     * @return a read-only direct buffer
+     */
+    static ByteBuffer gzip(ByteBuffer content) {
+        byte[] input = new byte[content.remaining()];
+        content.get(input);
+        CRC32 crc = new CRC32();
+        crc.update(input, 0, input.length);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(input.length/2 + 64);
+        out.write(DeflaterPool.GZIP_HEADER, 0, DeflaterPool.GZIP_HEADER.length);
+        Deflater deflater = GZIP_POOL.acquire();
+        try {
+            byte[] buf = new byte[8*1024];
+            deflater.setInput(input);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                out.write(buf, 0, n);
+            }
+        } finally {
+            GZIP_POOL.release(deflater);
+        }
+        byte[] trailer = DeflaterPool.gzipTrailer(crc, input.length);
+        out.write(trailer, 0, trailer.length);
+
+        byte[] bytes = out.toByteArray();
+        ByteBuffer compressed = ByteBuffer.allocateDirect(bytes.length);
+        compressed.put(bytes);
+        compressed.flip();
+        return compressed.asReadOnlyBuffer();
+    }
+}
@@ -1,55 +1,307 @@
 package babble.net.http;
 
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import babble.net.ExecutionContext;
 
 /**
  * Streams a resource of a given HTTP GET request path as response.
  * Matches all requests.
+ * <br>
+ * The files are served via a {@link FileCache cache}. A file held in 
+ * the cache is served from memory without any file system access. 
+ * A missing file is cached as well and is responded with status 
+ * <code>404</code>.
+ * <br>
+ * A conditional request i.e. with <code>If-None-Match</code> or
+ * <code>If-Modified-Since</code> header is responded with status 
+ * <code>304</code> without a body if the client holds the current version
+ * of the file. The validators are computed once per version of a file.
+ * <br>
+ * A request with a <code>Range</code> header is responded with status 
+ * <code>206</code> and only the requested bytes. Multiple ranges are sent
+ * as <code>multipart/byteranges</code>. A range of a file not held in the 
+ * cache is transferred from the file without a copy.
+ * <br>
+ * A client that accepts <code>gzip</code> coding is served the 
+ * {@link FileCache.Entry#getGzip() gzip variant} of a file, if any.
+ * <br>
+ * Alternatively, the files are served from a memory-mapped 
+ * {@link AssetPack pack} built from a directory.
  * 
  * @author pinaki poddar
  *
  */
 public class DefaultGet extends HttpRoute {
+    private final FileCache _cache;
+    private final AssetPack _pack;
+    
+    private static final Map<String,String> MIME_TYPES = new HashMap<>();
+    static {
+        MIME_TYPES.put("html", "text/html");
+        MIME_TYPES.put("htm",  "text/html");
+        MIME_TYPES.put("css",  "text/css");
+        MIME_TYPES.put("txt",  "text/plain");
+        MIME_TYPES.put("csv",  "text/csv");
+        MIME_TYPES.put("js",   "application/javascript");
+        MIME_TYPES.put("json", "application/json");
+        MIME_TYPES.put("xml",  "application/xml");
+        MIME_TYPES.put("pdf",  "application/pdf");
+        MIME_TYPES.put("zip",  "application/zip");
+        MIME_TYPES.put("gz",   "application/gzip");
+        MIME_TYPES.put("wasm", "application/wasm");
+        MIME_TYPES.put("png",  "image/png");
+        MIME_TYPES.put("jpg",  "image/jpeg");
+        MIME_TYPES.put("jpeg", "image/jpeg");
+        MIME_TYPES.put("gif",  "image/gif");
+        MIME_TYPES.put("svg",  "image/svg+xml");
+        MIME_TYPES.put("ico",  "image/x-icon");
+        MIME_TYPES.put("woff", "font/woff");
+        MIME_TYPES.put("woff2","font/woff2");
+        MIME_TYPES.put("mp4",  "video/mp4");
+        MIME_TYPES.put("mp3",  "audio/mpeg");
+    }
+    
+    private static final String DEFAULT_MIME_TYPE = "text/plain";
+    private static final String UNKNOWN_MIME_TYPE = "application/octet-stream";
+    private static final String INDEX_FILE = "index.html";
 
+    /**
+     * Creates a route that serves files via a cache of default size.
+     */
     public DefaultGet() {
+        this(new FileCache());
+    }
+    
+    /**
+     * Creates a route that serves files via given cache.
+     * 
+     * @param cache a cache. Must not be null.
+     */
+    public DefaultGet(FileCache cache) {
         super("GET", ".*");
+        if (cache == null) 
+            throw new IllegalArgumentException("cache must not be null");
+        _cache = cache;
+        _pack = null;
+    }
+    
+    /**
+     * Creates a route that serves files from given pack only. 
+     * A request for a directory i.e. an empty path or a path that ends 
+     * with a forward slash is served <code>index.html</code> of the 
+     * directory.
+     * 
+     * @param pack a pack. Must not be null.
+     */
+    public DefaultGet(AssetPack pack) {
+        super("GET", ".*");
+        if (pack == null) 
+            throw new IllegalArgumentException("pack must not be null");
+        _cache = null;
+        _pack = pack;
+    }
+    
+    /**
+     * Gets the cache of files.
+     * @return null if this route serves from an {@link #getPack() pack}
+     */
+    public FileCache getCache() {
+        return _cache;
+    }
+    
+    /**
+     * Gets the pack of files.
+     * @return null if this route serves from file system
+     */
+    public AssetPack getPack() {
+        return _pack;
     }
 
     @Override
     public HttpResponse execute(ExecutionContext ctx, HttpRequest request) throws Exception {
         
-        HttpResponse response = new SinglePartHttpResponse(request);
+        SinglePartHttpResponse response = SinglePartHttpResponse.newInstance(request);
         
-        Path path = Paths.get(request.getPath());
-        response.addHeader(HttpConstants.HEADER_CONTENT_TYPE, 
-                guessMimeType(path));
-
-        if (path.toFile().exists() && !path.toFile().isDirectory()) {
-            response.setBody(path);
-        } else if (path.toFile().isDirectory()) {
-            response.setStatus(403, request.getPath() + " is a directory");
-            throw new IllegalArgumentException(request.getPath() + " is a directory");
+        // the cache has already compressed the file, if worth it
+        response.setCompressible(false);
+        FileCache.Entry entry = lookup(request.getPath());
+        if (entry != null && entry.exists() && !entry.isDirectory()) {
+            entry = selectVariant(request, entry);
+        }
+        if (entry == null || !entry.exists()) {
+            response.setStatus(HttpConstants.STATUS_NOT_FOUND);
+            response.addHeader(HttpConstants.HEADER_CONTENT_TYPE, DEFAULT_MIME_TYPE);
+            response.appendBody(request.getPath() + " not found");
+        } else if (entry.isDirectory()) {
+            response.setStatus(HttpConstants.STATUS_FORBIDDEN);
+            response.addHeader(HttpConstants.HEADER_CONTENT_TYPE, DEFAULT_MIME_TYPE);
+            response.appendBody(request.getPath() + " is a directory");
+        } else if (isNotModified(request, entry)) {
+            response.setStatus(HttpConstants.STATUS_NOT_MODIFIED);
+            for (HttpHeader header : entry.getValidators()) {
+                response.putHeader(header);
+            }
         } else {
-            response.setStatus(404, request.getPath() + " not found");
-            throw new FileNotFoundException(request.getPath() + " not found");
+            List<ByteRange> ranges = null;
+            HttpHeader range = request.getHeader(HttpConstants.HEADER_RANGE);
+            if (range != null && isRangeApplicable(request, entry)) {
+                ranges = ByteRange.parse(range.getValue(), entry.getSize());
+            }
+            if (ranges == null) {
+                for (HttpHeader header : entry.getHeaders()) {
+                    response.putHeader(header);
+                }
+                setBody(response, entry, 0, entry.getSize());
+            } else if (ranges.isEmpty()) {
+                response.setStatus(HttpConstants.STATUS_RANGE_NOT_SATISFIABLE);
+                response.addHeader(HttpConstants.HEADER_CONTENT_RANGE, 
+                        "bytes */" + entry.getSize());
+                response.addHeader(HttpConstants.HEADER_CONTENT_LENGTH, "0");
+            } else if (ranges.size() == 1) {
+                ByteRange single = ranges.get(0);
+                response.setStatus(HttpConstants.STATUS_PARTIAL_CONTENT);
+                response.addHeader(HttpConstants.HEADER_CONTENT_TYPE, entry.getMimeType());
+                response.addHeader(HttpConstants.HEADER_CONTENT_RANGE, 
+                        single.toContentRange(entry.getSize()));
+                response.addHeader(HttpConstants.HEADER_CONTENT_LENGTH, 
+                        Long.toString(single.length()));
+                for (HttpHeader header : entry.getValidators()) {
+                    response.putHeader(header);
+                }
+                setBody(response, entry, single.first, single.length());
+            } else {
+                return new ByteRangesHttpResponse(request, entry, ranges);
+            }
         }
         return response;
     }
     
+    /**
+     * Looks up a file of given path either in the pack or in the cache.
+     * @return null if the pack has no such file
+     */
+    FileCache.Entry lookup(String path) throws IOException {
+        if (_pack == null) {
+            return _cache.get(Paths.get(path));
+        }
+        if (path.isEmpty() || path.endsWith("/")) {
+            path = path + INDEX_FILE;
+        }
+        return _pack.get(path);
+    }
+    
+    /**
+     * Selects the gzip variant of the given file if the client accepts gzip
+     * coding. A range request is served from the file itself, because
+     * a range applies to the uncompressed content.
+     */
+    static FileCache.Entry selectVariant(HttpRequest request, FileCache.Entry entry) {
+        if (entry.getGzip() == null 
+         || request.getHeader(HttpConstants.HEADER_RANGE) != null) {
+            return entry;
+        }
+        HttpHeader acceptEncoding = request.getHeader(HttpConstants.HEADER_ACCEPT_ENCODING);
+        if (acceptEncoding != null 
+         && ContentCoding.accepts(acceptEncoding.getValue(), ContentCoding.GZIP)) {
+            return entry.getGzip();
+        }
+        return entry;
+    }
     
+    /**
+     * Sets given region of the file as body of the response. The region is 
+     * sliced from the cached content, if any. Otherwise it is transferred 
+     * from the file.
+     */
+    void setBody(SinglePartHttpResponse response, FileCache.Entry entry, 
+            long position, long count) {
+        ByteBuffer content = entry.getContent();
+        if (content != null) {
+            content.position((int)position);
+            content.limit((int)(position + count));
+            response.setBody(content);
+        } else {
+            response.setBody(entry.getPath(), position, count);
+        }
+    }
+    
+    /**
+     * Affirms if the <code>Range</code> header of given request applies to
+     * the current version of the file. A range applies unless the request 
+     * has an <code>If-Range</code> header that does not match the file. 
+     * An entity tag in <code>If-Range</code> header is compared by strong 
+     * comparison, and a date must be exactly the modification time of the
+     * file.
+     */
+    static boolean isRangeApplicable(HttpRequest request, FileCache.Entry entry) {
+        HttpHeader ifRange = request.getHeader(HttpConstants.HEADER_IF_RANGE);
+        if (ifRange == null || ifRange.getValue() == null) return true;
+        String value = ifRange.getValue().trim();
+        if (value.startsWith("W/")) return false;
+        if (value.startsWith("\"")) return value.equals(entry.getETag());
+        long date = HttpDate.parse(value);
+        return date >= 0 && date/1000 == entry.getLastModified()/1000;
+    }
+    
+    /**
+     * Affirms if the client holds the current version of the given file.
+     * <br>
+     * The entity tags in <code>If-None-Match</code> header are compared 
+     * to the entity tag of the file by weak comparison. If the request has
+     * no such header, the date in <code>If-Modified-Since</code> header is
+     * compared to the modification time of the file at the resolution of 
+     * a second.
+     */
+    static boolean isNotModified(HttpRequest request, FileCache.Entry entry) {
+        HttpHeader ifNoneMatch = request.getHeader(HttpConstants.HEADER_IF_NONE_MATCH);
+        if (ifNoneMatch != null && ifNoneMatch.getValue() != null) {
+            return matchesETag(ifNoneMatch.getValue(), entry.getETag());
+        }
+        HttpHeader ifModifiedSince = request.getHeader(HttpConstants.HEADER_IF_MODIFIED_SINCE);
+        if (ifModifiedSince != null) {
+            long since = HttpDate.parse(ifModifiedSince.getValue());
+            return since >= 0 && entry.getLastModified()/1000 <= since/1000;
+        }
+        return false;
+    }
+    
+    /**
+     * Affirms if any of the comma-separated entity tags matches the given 
+     * tag. A weak tag i.e. prefixed by <code>W/</code> matches its strong 
+     * counterpart. A <code>*</code> matches any tag.
+     */
+    static boolean matchesETag(String tags, String etag) {
+        if (etag == null) return false;
+        int start = 0;
+        int length = tags.length();
+        while (start < length) {
+            int end = tags.indexOf(',', start);
+            if (end == -1) end = length;
+            String tag = tags.substring(start, end).trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(etag)) return true;
+            start = end + 1;
+        }
+        return false;
+    }
+
+    /**
+     * Guesses MIME type of given path from the extension of its file name.
+     */
     static String guessMimeType(Path path) {
-        String mimeType = null;//Files.probeContentType(path);
-        if (mimeType == null) {
-            String fileName = path.toFile().getName();
-            int idx = fileName.lastIndexOf('.');
-            if (idx == -1) return "plain/text";
-            String ext = fileName.substring(idx+1);
-            if ("xml".equalsIgnoreCase(ext)) return "application/xml";
-        }
-        return "plain/text";
+        Path fileName = path.getFileName();
+        if (fileName == null) return DEFAULT_MIME_TYPE;
+        String name = fileName.toString();
+        int idx = name.lastIndexOf('.');
+        if (idx == -1) return DEFAULT_MIME_TYPE;
+        String mimeType = MIME_TYPES.get(name.substring(idx+1).toLowerCase());
+        return mimeType == null ? UNKNOWN_MIME_TYPE : mimeType;
     }
 }
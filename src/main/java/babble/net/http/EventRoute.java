@@ -0,0 +1,56 @@
+package babble.net.http;
+
+import babble.net.ExecutionContext;
+
+/**
+ * A route that subscribes a request to a {@link EventTopic topic} of
+ * <em>Server-Sent Events</em>.
+ * <br>
+ * The response to a <code>GET</code> request is a
+ * <code>text/event-stream</code> whose status line and headers are sent
+ * immediately, and the connection is held open. Thereafter each event
+ * {@link EventTopic#publish(String, String) published} to the topic is
+ * pushed to the client as a chunk, without the client polling for it.
+ *
+ * <pre>
+ *   EventTopic prices = new EventTopic("prices");
+ *   server.addRoute(new EventRoute("prices", prices));
+ *   ...
+ *   prices.publish("quote", "{\"symbol\":\"XYZ\", \"price\":42}");
+ * </pre>
+ *
+ * @author pinaki poddar
+ *
+ */
+public class EventRoute extends HttpRoute {
+    public static final String CONTENT_TYPE = "text/event-stream";
+
+    private final EventTopic _topic;
+
+    /**
+     * Creates a route to subscribe to the given topic.
+     *
+     * @param pattern regular expression for the request path
+     * @param topic the topic to subscribe to
+     */
+    public EventRoute(String pattern, EventTopic topic) {
+        super("GET", pattern);
+        if (topic == null)
+            throw new IllegalArgumentException("topic must not be null");
+        _topic = topic;
+    }
+
+    public EventTopic getTopic() {
+        return _topic;
+    }
+
+    @Override
+    public HttpResponse execute(ExecutionContext ctx, HttpRequest request)
+            throws Exception {
+        StreamingHttpResponse response = new StreamingHttpResponse(request);
+        response.addHeader(HttpConstants.HEADER_CONTENT_TYPE, CONTENT_TYPE);
+        response.addHeader(HttpConstants.HEADER_CACHE_CONTROL, "no-cache");
+        _topic.subscribe(response);
+        return response;
+    }
+}
@@ -0,0 +1,225 @@
+package babble.net.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import babble.net.WriteQueue;
+
+/**
+ * A topic of <em>Server-Sent Events</em>. The {@link EventRoute
+ * subscribers} of a topic receive every event {@link #publish(String,
+ * String) published} to the topic as a <code>text/event-stream</code>
+ * on a connection held open.
+ * <br>
+ * An event is encoded once as a chunk, and the same read-only buffer is
+ * queued to the {@link WriteQueue queue} of every subscriber's connection.
+ * Hence publishing to many subscribers neither encodes nor copies the
+ * event for each subscriber, and never blocks.
+ * <br>
+ * A subscriber that does not read as fast as events are published is
+ * dropped, i.e. its connection is closed, once more than
+ * {@link #getMaxQueuedBytes() a limit} of bytes are queued for it.
+ * <br>
+ * A <em>heartbeat</em>, i.e. an empty comment, is sent to all subscribers
+ * when no event has been published for {@link #HEARTBEAT_INTERVAL}, so
+ * that idle connections are not closed by intermediaries and closed
+ * connections are detected. The {@link HttpServer server} sends the
+ * heartbeats from its i/o thread.
+ * <br>
+ * This topic is thread-safe.
+ *
+ * @author pinaki poddar
+ *
+ */
+public class EventTopic {
+    public static final long HEARTBEAT_INTERVAL = 15*1000;
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 1024*1024;
+
+    private static final ByteBuffer HEARTBEAT = chunk(":\n\n");
+
+    private final String _name;
+    private final long _maxQueuedBytes;
+    private final CopyOnWriteArrayList<Subscriber> _subscribers =
+            new CopyOnWriteArrayList<Subscriber>();
+    private volatile long _lastActivity = System.currentTimeMillis();
+
+    private static final Logger _logger = LoggerFactory.getLogger(EventTopic.class);
+
+    public EventTopic(String name) {
+        this(name, DEFAULT_MAX_QUEUED_BYTES);
+    }
+
+    /**
+     * Creates a topic.
+     *
+     * @param name name of the topic
+     * @param maxQueuedBytes a subscriber is dropped if more than these many
+     * bytes are queued for it
+     */
+    public EventTopic(String name, long maxQueuedBytes) {
+        _name = name;
+        _maxQueuedBytes = maxQueuedBytes;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public long getMaxQueuedBytes() {
+        return _maxQueuedBytes;
+    }
+
+    /**
+     * Gets the number of subscribers.
+     */
+    public int size() {
+        return _subscribers.size();
+    }
+
+    /**
+     * Subscribes the given response to this topic. The status line and
+     * headers of the response are sent.
+     *
+     * @param response a response to a request received by a server
+     * @throws IOException if the response can not be sent
+     */
+    public void subscribe(StreamingHttpResponse response) throws IOException {
+        WriteQueue queue = response.getRequest().getWriteQueue();
+        if (queue == null)
+            throw new IllegalStateException(response + " can not subscribe to "
+                    + this + " because request is not received by a server");
+        response.commit();
+        _subscribers.add(new Subscriber(response, queue));
+    }
+
+    /**
+     * Publishes an event of default type.
+     *
+     * @param data data of the event. Can span multiple lines.
+     * @return number of subscribers the event has been sent to
+     */
+    public int publish(String data) {
+        return publish(null, data);
+    }
+
+    /**
+     * Publishes an event to all subscribers.
+     *
+     * @param event type of the event. If null, the event is of default type.
+     * @param data data of the event. Can span multiple lines.
+     * @return number of subscribers the event has been sent to
+     */
+    public int publish(String event, String data) {
+        return send(chunk(encode(event, data)));
+    }
+
+    /**
+     * Sends a heartbeat to all subscribers if no event has been published
+     * since {@link #HEARTBEAT_INTERVAL}.
+     *
+     * @param now current time in milliseconds
+     */
+    public void heartbeat(long now) {
+        if (now - _lastActivity < HEARTBEAT_INTERVAL) return;
+        send(HEARTBEAT);
+    }
+
+    private int send(ByteBuffer frame) {
+        _lastActivity = System.currentTimeMillis();
+        int n = 0;
+        for (Subscriber subscriber : _subscribers) {
+            if (subscriber.offer(frame)) {
+                n++;
+            } else {
+                _subscribers.remove(subscriber);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Encodes an event in <code>text/event-stream</code> format.
+     */
+    static String encode(String event, String data) {
+        StringBuilder buf = new StringBuilder();
+        if (event != null) {
+            buf.append("event: ").append(event).append('\n');
+        }
+        int start = 0;
+        String s = data == null ? "" : data;
+        while (true) {
+            int end = s.indexOf('\n', start);
+            String line = end == -1 ? s.substring(start) : s.substring(start, end);
+            if (line.endsWith("\r")) line = line.substring(0, line.length()-1);
+            buf.append("data: ").append(line).append('\n');
+            if (end == -1) break;
+            start = end + 1;
+        }
+        return buf.append('\n').toString();
+    }
+
+    /**
+     * Encodes the given frame as a chunk in a read-only buffer.
+     */
+    static ByteBuffer chunk(String frame) {
+        byte[] bytes = frame.getBytes(StandardCharsets.UTF_8);
+        byte[] length = (Integer.toHexString(bytes.length) + HttpConstants.CRLF)
+                .getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer chunk = ByteBuffer.allocateDirect(length.length + bytes.length + 2);
+        chunk.put(length).put(bytes).put((byte)'\r').put((byte)'\n');
+        chunk.flip();
+        return chunk.asReadOnlyBuffer();
+    }
+
+    public String toString() {
+        return "EventTopic[" + _name + ", " + _subscribers.size() + " subscribers]";
+    }
+
+    private class Subscriber {
+        final StreamingHttpResponse response;
+        final WriteQueue queue;
+
+        Subscriber(StreamingHttpResponse response, WriteQueue queue) {
+            this.response = response;
+            this.queue    = queue;
+        }
+
+        /**
+         * Queues the given frame unless the connection has been closed or
+         * is too slow. Never blocks.
+         *
+         * @return false if this subscriber is to be dropped
+         */
+        boolean offer(ByteBuffer frame) {
+            if (!queue.isOpen()) return false;
+            if (queue.getQueuedBytes() > _maxQueuedBytes) {
+                _logger.warn("dropping slow subscriber " + response.getRequest()
+                        + " of " + EventTopic.this + " with "
+                        + queue.getQueuedBytes() + " bytes queued");
+                drop();
+                return false;
+            }
+            try {
+                queue.enqueue(frame);
+                return true;
+            } catch (IOException ex) {
+                drop();
+                return false;
+            }
+        }
+
+        void drop() {
+            queue.discard();
+            try {
+                queue.getChannel().close();
+            } catch (IOException ex) {
+                _logger.warn("error closing " + queue.getChannel() + ": " + ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,538 @@
+package babble.net.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import babble.util.FrequencySketch;
+
+/**
+ * A bounded in-memory cache of files served by {@link DefaultGet}.
+ * <br>
+ * An {@link Entry entry} holds the content of a small file, the headers
+ * to serve it (content type, length, range support and validators i.e.
+ * entity tag and modification time) encoded once, and file attributes. The content is
+ * held in a read-only buffer and every response gets a
+ * {@link Entry#getContent() duplicate} of the shared buffer, so serving
+ * a hit neither reads the file nor copies its content.
+ * <br>
+ * A file that does not exist or is a directory is cached as a
+ * <em>negative</em> entry, so that repeated requests to a missing file
+ * does not touch the file system either.
+ * <br>
+ * A file larger than {@link #getMaxFileSize() maximum file size} is not
+ * held in memory, but its attributes and headers are cached.
+ *
+ * <p>
+ * <b>Eviction</b>: The total size of cached content is bounded. The
+ * entries are evicted in least-recently-used order. But a new entry is
+ * admitted only if it is accessed more frequently than the entries it would
+ * evict (<em>TinyLFU</em> admission). The access frequency is estimated by
+ * a {@link FrequencySketch sketch}. Hence a scan of many files accessed
+ * once does not flush out the frequently accessed files.
+ *
+ * <p>
+ * <b>Compression</b>: A file of compressible type has a gzip variant, which
+ * is either a precompressed sibling file i.e. <code>name.gz</code>, or the
+ * content held in memory compressed once when the file is loaded. Hence a
+ * file is not compressed for every response.
+ *
+ * <p>
+ * <b>Change detection</b>: An entry is validated against the file system
+ * if it has not been validated for a {@link #getRevalidateMillis() period}.
+ * If the modification time or size of the file has changed, the entry is
+ * reloaded along with its gzip variant. A change to a precompressed sibling
+ * alone is not detected.
+ *
+ * <p>
+ * This cache is thread-safe.
+ *
+ * @author pinaki poddar
+ *
+ */
+public class FileCache {
+    public static final long DEFAULT_MAX_BYTES        = 64*1024*1024;
+    public static final int  DEFAULT_MAX_FILE_SIZE     = 1024*1024;
+    public static final long DEFAULT_REVALIDATE_MILLIS = 1000;
+
+    /**
+     * Approximate memory used by an entry beyond its content.
+     */
+    static final int ENTRY_OVERHEAD = 256;
+
+    private final long _maxBytes;
+    private final int _maxFileSize;
+    private final long _revalidateMillis;
+    private final LinkedHashMap<Path, Entry> _entries =
+            new LinkedHashMap<Path, Entry>(64, 0.75f, true);
+    private final FrequencySketch _sketch;
+    private long _weight;
+
+    private static final Logger _logger = LoggerFactory.getLogger(FileCache.class);
+
+    /**
+     * Creates a cache with default limits.
+     */
+    public FileCache() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_MAX_FILE_SIZE, DEFAULT_REVALIDATE_MILLIS);
+    }
+
+    /**
+     * Creates a cache with given limits.
+     *
+     * @param maxBytes maximum number of bytes held by this cache
+     * @param maxFileSize a file larger than this size is not held in memory
+     * @param revalidateMillis an entry is validated against the file
+     * system if it has not been validated for this period.
+     * Zero implies that an entry is validated on every access.
+     */
+    public FileCache(long maxBytes, int maxFileSize, long revalidateMillis) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("invalid cache size " + maxBytes);
+        if (maxFileSize < 0 || maxFileSize > maxBytes)
+            throw new IllegalArgumentException("invalid file size " + maxFileSize);
+        _maxBytes = maxBytes;
+        _maxFileSize = maxFileSize;
+        _revalidateMillis = revalidateMillis;
+        _sketch = new FrequencySketch((int)Math.min(Integer.MAX_VALUE,
+                Math.max(1024, maxBytes/(8*1024))));
+    }
+
+    public long getMaxBytes() {
+        return _maxBytes;
+    }
+
+    public int getMaxFileSize() {
+        return _maxFileSize;
+    }
+
+    public long getRevalidateMillis() {
+        return _revalidateMillis;
+    }
+
+    /**
+     * Gets the number of bytes currently held by this cache.
+     */
+    public synchronized long getWeight() {
+        return _weight;
+    }
+
+    /**
+     * Gets the number of entries in this cache.
+     */
+    public synchronized int size() {
+        return _entries.size();
+    }
+
+    /**
+     * Gets an entry for the given path. The entry is loaded if it is
+     * not cached or has been changed since it had been cached.
+     *
+     * @param path a file path. Must not be null.
+     * @return an entry. Never null. The entry may not {@link Entry#exists()
+     * exist}.
+     * @throws IOException if the file can not be read
+     */
+    public Entry get(Path path) throws IOException {
+        _sketch.increment(path);
+        Entry entry;
+        synchronized (this) {
+            entry = _entries.get(path);
+        }
+        long now = System.currentTimeMillis();
+        if (entry != null) {
+            if (now - entry._validatedAt < _revalidateMillis) {
+                return entry;
+            }
+            BasicFileAttributes attrs = readAttributes(path);
+            if (entry.isCurrent(attrs)) {
+                entry._validatedAt = now;
+                return entry;
+            }
+            _logger.debug("reloading changed " + path);
+        }
+        Entry loaded = load(path, now);
+        install(loaded);
+        return loaded;
+    }
+
+    /**
+     * Removes the entry of given path.
+     */
+    public synchronized void invalidate(Path path) {
+        Entry entry = _entries.remove(path);
+        if (entry != null) _weight -= entry._weight;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear() {
+        _entries.clear();
+        _weight = 0;
+    }
+
+    Entry load(Path path, long now) throws IOException {
+        BasicFileAttributes attrs = readAttributes(path);
+        ByteBuffer content = null;
+        if (attrs != null && attrs.isRegularFile()
+         && attrs.size() <= _maxFileSize) {
+            content = read(path, (int)attrs.size());
+        }
+        Entry entry = new Entry(path, attrs, content, now);
+        if (entry._exists && !entry._directory 
+         && ContentCoding.isCompressible(entry._mimeType)) {
+            entry.setGzip(loadGzip(entry));
+        }
+        return entry;
+    }
+
+    /**
+     * Loads the gzip variant of the given file. A precompressed sibling
+     * file i.e. <code>name.gz</code>, that is not older than the file, is
+     * preferred. Otherwise the content held in memory is compressed once.
+     * 
+     * @return null if the file has no gzip variant
+     */
+    Entry loadGzip(Entry identity) throws IOException {
+        Path sibling = identity._path.resolveSibling(
+                identity._path.getFileName() + ".gz");
+        BasicFileAttributes attrs = readAttributes(sibling);
+        if (attrs != null && attrs.isRegularFile()
+         && attrs.lastModifiedTime().toMillis() >= identity._lastModified) {
+            ByteBuffer content = attrs.size() <= _maxFileSize
+                    ? read(sibling, (int)attrs.size()) : null;
+            return new Entry(identity, sibling, attrs.size(), content);
+        }
+        if (identity._content != null && identity._size >= ContentCoding.MIN_SIZE) {
+            ByteBuffer content = ContentCoding.gzip(identity.getContent());
+            if (content.remaining() < identity._size) {
+                return new Entry(identity, identity._path, content.remaining(), content);
+            }
+        }
+        return null;
+    }
+
+    static BasicFileAttributes readAttributes(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads content of given file in a direct buffer. A direct buffer can be
+     * written to a socket without an intermediate copy.
+     */
+    static ByteBuffer read(Path path, int size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocateDirect(size);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (buf.hasRemaining() && channel.read(buf) >= 0);
+        }
+        buf.flip();
+        return buf.asReadOnlyBuffer();
+    }
+
+    /**
+     * Installs the given entry if it is admitted.
+     */
+    synchronized void install(Entry entry) {
+        Entry old = _entries.remove(entry._path);
+        if (old != null) {
+            _weight -= old._weight;
+        } else if (!admit(entry)) {
+            _logger.debug("not admitted " + entry._path);
+            return;
+        }
+        _entries.put(entry._path, entry);
+        _weight += entry._weight;
+        // a reloaded entry may have grown
+        Iterator<Entry> lru = _entries.values().iterator();
+        while (_weight > _maxBytes && lru.hasNext()) {
+            Entry victim = lru.next();
+            lru.remove();
+            _weight -= victim._weight;
+        }
+    }
+
+    /**
+     * Affirms if the given candidate can be admitted. Evicts the least
+     * recently used entries to make room for the candidate, but only if
+     * none of the victims is accessed more frequently than the candidate.
+     */
+    private boolean admit(Entry candidate) {
+        if (candidate._weight > _maxBytes) return false;
+        long excess = _weight + candidate._weight - _maxBytes;
+        if (excess <= 0) return true;
+
+        int frequency = _sketch.frequency(candidate._path);
+        List<Entry> victims = new ArrayList<Entry>();
+        Iterator<Entry> lru = _entries.values().iterator();
+        while (excess > 0 && lru.hasNext()) {
+            Entry victim = lru.next();
+            if (_sketch.frequency(victim._path) > frequency) {
+                return false;
+            }
+            victims.add(victim);
+            excess -= victim._weight;
+        }
+        for (Entry victim : victims) {
+            _entries.remove(victim._path);
+            _weight -= victim._weight;
+        }
+        return true;
+    }
+
+    /**
+     * An immutable cached file.
+     * <br>
+     * A file of compressible type may have a {@link #getGzip() gzip variant}
+     * which is an entry itself.
+     *
+     */
+    public static class Entry {
+        final Path _path;
+        final boolean _exists;
+        final boolean _directory;
+        final long _lastModified;
+        final long _size;
+        final ByteBuffer _content;
+        final String _mimeType;
+        final String _encoding;
+        final String _etag;
+        final HttpHeader[] _headers;
+        final HttpHeader[] _validators;
+        int _weight;
+        Entry _gzip;
+        volatile long _validatedAt;
+
+        Entry(Path path, BasicFileAttributes attrs, ByteBuffer content, long now) {
+            _path = path;
+            _exists = attrs != null;
+            _directory = attrs != null && attrs.isDirectory();
+            _lastModified = attrs == null ? 0 : attrs.lastModifiedTime().toMillis();
+            // the file may have changed since its attributes were read
+            _size = content != null ? content.remaining() 
+                  : attrs == null ? 0 : attrs.size();
+            _content = content;
+            _encoding = null;
+            _validatedAt = now;
+            if (_exists && !_directory) {
+                _mimeType = path.getFileName() == null 
+                        ? null : DefaultGet.guessMimeType(path);
+                _etag = '"' + Long.toHexString(_size) + '-'
+                      + Long.toHexString(_lastModified) + '"';
+                _validators = validators();
+                _headers = headers(HttpHeader.ACCEPT_RANGES_BYTES);
+            } else {
+                _mimeType = null;
+                _etag = null;
+                _headers = new HttpHeader[0];
+                _validators = _headers;
+            }
+            _weight = ENTRY_OVERHEAD + (content == null ? 0 : content.capacity());
+        }
+
+        /**
+         * Creates an entry of a file whose content is held in memory
+         * elsewhere e.g. in an {@link AssetPack asset pack}.
+         */
+        Entry(Path path, long lastModified, ByteBuffer content) {
+            _path = path;
+            _exists = true;
+            _directory = false;
+            _lastModified = lastModified;
+            _size = content.remaining();
+            _content = content;
+            _encoding = null;
+            _validatedAt = Long.MAX_VALUE;
+            _mimeType = DefaultGet.guessMimeType(path);
+            _etag = '"' + Long.toHexString(_size) + '-'
+                  + Long.toHexString(_lastModified) + '"';
+            _validators = validators();
+            _headers = headers(HttpHeader.ACCEPT_RANGES_BYTES);
+            _weight = ENTRY_OVERHEAD;
+        }
+
+        /**
+         * Creates a gzip variant of the given file.
+         *
+         * @param identity the uncompressed file
+         * @param path the file with compressed content
+         * @param size size of compressed content, if not held in memory
+         * @param content compressed content. null if not held in memory.
+         */
+        Entry(Entry identity, Path path, long size, ByteBuffer content) {
+            _path = path;
+            _exists = true;
+            _directory = false;
+            _lastModified = identity._lastModified;
+            _size = content != null ? content.remaining() : size;
+            _content = content;
+            _mimeType = identity._mimeType;
+            _encoding = ContentCoding.GZIP;
+            _validatedAt = identity._validatedAt;
+            _etag = identity._etag.substring(0, identity._etag.length()-1)
+                  + "-gzip\"";
+            _validators = validators();
+            _headers = headers(HttpHeader.CONTENT_ENCODING_GZIP);
+            _weight = content == null ? 0 : content.capacity();
+        }
+
+        private HttpHeader[] validators() {
+            return new HttpHeader[]{
+                HttpHeader.encoded(HttpConstants.HEADER_ETAG, _etag),
+                HttpHeader.encoded(HttpConstants.HEADER_LAST_MODIFIED,
+                        HttpDate.format(_lastModified))};
+        }
+
+        private HttpHeader[] headers(HttpHeader extra) {
+            List<HttpHeader> headers = new ArrayList<HttpHeader>();
+            if (_mimeType != null) {
+                headers.add(HttpHeader.encoded(
+                        HttpConstants.HEADER_CONTENT_TYPE, _mimeType));
+            }
+            headers.add(HttpHeader.encoded(
+                    HttpConstants.HEADER_CONTENT_LENGTH,
+                    Long.toString(_size)));
+            headers.add(extra);
+            if (ContentCoding.isCompressible(_mimeType)) {
+                headers.add(HttpHeader.VARY_ACCEPT_ENCODING);
+            }
+            for (HttpHeader validator : _validators) {
+                headers.add(validator);
+            }
+            return headers.toArray(new HttpHeader[headers.size()]);
+        }
+
+        void setGzip(Entry gzip) {
+            _gzip = gzip;
+            if (gzip != null) _weight += gzip._weight;
+        }
+
+        /**
+         * Affirms if the given attributes match the attributes of this entry.
+         */
+        boolean isCurrent(BasicFileAttributes attrs) {
+            if (attrs == null) return !_exists;
+            return _exists
+                && _directory == attrs.isDirectory()
+                && _size == attrs.size()
+                && _lastModified == attrs.lastModifiedTime().toMillis();
+        }
+
+        public Path getPath() {
+            return _path;
+        }
+
+        /**
+         * Affirms if the file exists.
+         */
+        public boolean exists() {
+            return _exists;
+        }
+
+        public boolean isDirectory() {
+            return _directory;
+        }
+
+        /**
+         * Gets modification time of the file in milliseconds.
+         */
+        public long getLastModified() {
+            return _lastModified;
+        }
+
+        /**
+         * Gets size of the file in bytes.
+         */
+        public long getSize() {
+            return _size;
+        }
+
+        public String getMimeType() {
+            return _mimeType;
+        }
+
+        /**
+         * Gets the strong entity tag of this version of the file.
+         * The tag of a gzip variant differs from the tag of the file.
+         */
+        public String getETag() {
+            return _etag;
+        }
+
+        /**
+         * Gets the content coding of this entry.
+         *
+         * @return <code>gzip</code> for a gzip variant. null otherwise.
+         */
+        public String getEncoding() {
+            return _encoding;
+        }
+
+        /**
+         * Gets the gzip variant of this file.
+         *
+         * @return null if the file has no precompressed sibling, or is 
+         * not of compressible type, or is too large to be compressed in 
+         * memory.
+         */
+        public Entry getGzip() {
+            return _gzip;
+        }
+
+        /**
+         * Affirms if the content of the file is held in memory.
+         */
+        public boolean hasContent() {
+            return _content != null;
+        }
+
+        /**
+         * Gets the content of the file.
+         *
+         * @return a read-only duplicate of the cached content. Each caller
+         * gets its own position and limit, but the content is shared.
+         * null if the content is not held in memory.
+         */
+        public ByteBuffer getContent() {
+            return _content == null ? null : _content.duplicate();
+        }
+
+        /**
+         * Gets the pre-encoded headers to serve the file.
+         * The returned array must not be modified.
+         */
+        HttpHeader[] getHeaders() {
+            return _headers;
+        }
+
+        /**
+         * Gets the pre-encoded validator headers i.e. <code>ETag</code>
+         * and <code>Last-Modified</code>. These headers are sent with a
+         * <code>304 Not Modified</code> response.
+         * The returned array must not be modified.
+         */
+        HttpHeader[] getValidators() {
+            return _validators;
+        }
+
+        public String toString() {
+            return _path + (_exists ? "" : " (missing)");
+        }
+    }
+}
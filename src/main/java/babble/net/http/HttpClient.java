@@ -4,7 +4,13 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
+import babble.net.EventLoopGroup;
 import babble.net.NioClient;
 import babble.net.ResponseCallback;
 import babble.util.SimpleURI;
@@ -20,6 +26,8 @@ import babble.util.SimpleURI;
  *
  */
 public class HttpClient extends NioClient<HttpRequest,HttpResponse> implements ResponseCallback {
+    /** time in seconds to wait for a response */
+    private static final int RESPONSE_TIMEOUT = 10;
     
     public static void main(String[] args) throws Exception {
         if (args.length != 1) {
@@ -33,18 +41,27 @@ public class HttpClient extends NioClient<HttpRequest,HttpResponse> implements R
         }
         SimpleURI uri = new SimpleURI(args[0]);
         HttpClient client = new HttpClient(uri.getHost(), uri.getPort());
-        client.readAndSend(System.in);
-        
-        
-        Thread.sleep(10*1000);
-        
+        List<CompletableFuture<Void>> responses = client.readAndSend(System.in);
+        CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[responses.size()]))
+            .handle((result, ex) -> null)
+            .join();
+        client.close();
     }
     
     
 
     public HttpClient(String host, int port) throws IOException {
         super(host, port, false);
-       
+        setProtocol(new HttpProtocol());
+    }
+    
+    /**
+     * Creates a client that runs on a thread of the given group, which 
+     * may be shared by many clients.
+     */
+    public HttpClient(String host, int port, EventLoopGroup group) throws IOException {
+        super(InetAddress.getByName(host), port, group, 1, TimeUnit.SECONDS);
+        setProtocol(new HttpProtocol());
     }
     
     @Override
@@ -58,7 +75,14 @@ public class HttpClient extends NioClient<HttpRequest,HttpResponse> implements R
         ex.printStackTrace();
     }
     
-    void readAndSend(InputStream in) throws IOException {
+    /**
+     * Sends a request for each line of the given input.
+     * 
+     * @return the futures of the responses, which are printed as they
+     * arrive
+     */
+    List<CompletableFuture<Void>> readAndSend(InputStream in) throws IOException {
+        List<CompletableFuture<Void>> responses = new ArrayList<CompletableFuture<Void>>();
         BufferedReader reader = new BufferedReader(new InputStreamReader(in));
         String line = null;
         while ((line = reader.readLine()) != null) {
@@ -68,7 +92,8 @@ public class HttpClient extends NioClient<HttpRequest,HttpResponse> implements R
             
             HttpRequest request = new HttpRequest(line);
             getLogger().info("send-> " + request);
-            sendRequest(request, this);
+            responses.add(call(request, this, RESPONSE_TIMEOUT, TimeUnit.SECONDS));
         }
+        return responses;
     }
 }
@@ -27,10 +27,41 @@ public class HttpConstants {
     public static final String HEADER_CONTENT_TYPE      = "Content-Type";
     public static final String HEADER_CONTENT_LENGTH    = "Content-Length";
     public static final String HEADER_TRANSFER_ENCODING = "Transfer-Encoding";
+    public static final String HEADER_DATE              = "Date";
+    public static final String HEADER_ETAG              = "ETag";
+    public static final String HEADER_LAST_MODIFIED     = "Last-Modified";
+    public static final String HEADER_IF_NONE_MATCH     = "If-None-Match";
+    public static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+    public static final String HEADER_RANGE             = "Range";
+    public static final String HEADER_IF_RANGE          = "If-Range";
+    public static final String HEADER_ACCEPT_RANGES     = "Accept-Ranges";
+    public static final String HEADER_CONTENT_RANGE     = "Content-Range";
+    public static final String HEADER_ACCEPT_ENCODING   = "Accept-Encoding";
+    public static final String HEADER_CONTENT_ENCODING  = "Content-Encoding";
+    public static final String HEADER_VARY              = "Vary";
+    public static final String HEADER_CACHE_CONTROL     = "Cache-Control";
+    public static final String HEADER_UPGRADE           = "Upgrade";
+    public static final String HEADER_SEC_WEBSOCKET_KEY     = "Sec-WebSocket-Key";
+    public static final String HEADER_SEC_WEBSOCKET_VERSION = "Sec-WebSocket-Version";
+    public static final String HEADER_SEC_WEBSOCKET_ACCEPT  = "Sec-WebSocket-Accept";
+    public static final String HEADER_ACCEPT            = "Accept";
+    public static final String HEADER_USER_AGENT        = "User-Agent";
+    public static final String HEADER_COOKIE            = "Cookie";
+    public static final String HEADER_SET_COOKIE        = "Set-Cookie";
+    public static final String HEADER_AUTHORIZATION     = "Authorization";
     
+    public static final int STATUS_SWITCHING_PROTOCOLS = 101;
     public static final int STATUS_OK          = 200;
+    public static final int STATUS_PARTIAL_CONTENT = 206;
+    public static final int STATUS_NOT_MODIFIED = 304;
     public static final int STATUS_MISDIRECTED = 421;
     public static final int STATUS_BAD_REQUEST = 400;
+    public static final int STATUS_FORBIDDEN   = 403;
+    public static final int STATUS_NOT_FOUND   = 404;
+    public static final int STATUS_PAYLOAD_TOO_LARGE = 413;
+    public static final int STATUS_RANGE_NOT_SATISFIABLE = 416;
+    public static final int STATUS_UPGRADE_REQUIRED = 426;
+    public static final int STATUS_INTERNAL_SERVER_ERROR = 500;
     
     public static final List<String> ALLOWED_METHODS = 
             Arrays.asList("GET", "POST","PUT", "DELETE", "HEAD", "OPTION");
@@ -0,0 +1,101 @@
+package babble.net.http;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * Date in the format mandated by HTTP specification e.g.
+ * <code>Sun, 06 Nov 1994 08:49:37 GMT</code>.
+ * <br>
+ * Every response carries a <code>Date</code> header, but the value changes
+ * only once a second. Hence the header is encoded once and
+ * {@link #refresh(long) refreshed} by the server i/o thread once per second.
+ * A response simply writes the {@link #headerBytes() pre-encoded} bytes.
+ *
+ * @author pinaki poddar
+ *
+ */
+final class HttpDate {
+    static final DateTimeFormatter FORMAT = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+            .withZone(ZoneOffset.UTC);
+
+    /**
+     * If the cached header is older than this, no i/o thread is refreshing
+     * it and it is refreshed on demand.
+     */
+    private static final long STALE_MILLIS = 2000;
+
+    private static volatile Cached _cached;
+
+    private HttpDate() {
+    }
+
+    /**
+     * Refreshes the cached date header, if the given time is in a different
+     * second than the cached one.
+     *
+     * @param now current time in milliseconds.
+     */
+    static void refresh(long now) {
+        Cached cached = _cached;
+        if (cached != null && cached._second == now/1000) return;
+        _cached = new Cached(now);
+    }
+
+    /**
+     * Gets the <code>Date</code> header line terminated by CRLF.
+     * The returned array must not be modified.
+     */
+    static byte[] headerBytes() {
+        Cached cached = _cached;
+        if (cached == null) {
+            refresh(System.currentTimeMillis());
+        } else {
+            long now = System.currentTimeMillis();
+            if (now - cached._time > STALE_MILLIS) refresh(now);
+        }
+        return _cached._header;
+    }
+
+    /**
+     * Formats the given time.
+     * @param millis time in milliseconds since epoch
+     */
+    static String format(long millis) {
+        return FORMAT.format(Instant.ofEpochMilli(millis));
+    }
+
+    /**
+     * Parses the given date.
+     *
+     * @param date a date in the format mandated by HTTP specification.
+     * @return time in milliseconds since epoch. -1 if the given date is
+     * null or can not be parsed.
+     */
+    static long parse(String date) {
+        if (date == null) return -1;
+        try {
+            return FORMAT.parse(date.trim(), Instant::from).toEpochMilli();
+        } catch (DateTimeParseException ex) {
+            return -1;
+        }
+    }
+
+    private static class Cached {
+        final long _time;
+        final long _second;
+        final byte[] _header;
+
+        Cached(long now) {
+            _time   = now;
+            _second = now/1000;
+            _header = (HttpConstants.HEADER_DATE + ": " + format(now)
+                    + HttpConstants.CRLF).getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+}
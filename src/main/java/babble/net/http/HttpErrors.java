@@ -0,0 +1,61 @@
+package babble.net.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Canned responses for errors of routing or protocol.
+ * <br>
+ * The headers and the body of an error response of every standard error
+ * status are encoded once. An error response shares these immutable
+ * bytes, hence an error costs about the same as a successful response.
+ * The body of an error response is the status line e.g.
+ * <code>404 Not Found</code>, and does not reveal the cause of the error.
+ *
+ * @author pinaki poddar
+ *
+ */
+final class HttpErrors {
+    private static final int MAX_STATUS = 600;
+    private static final HttpHeader CONTENT_TYPE_TEXT = HttpHeader.encoded(
+            HttpConstants.HEADER_CONTENT_TYPE, "text/plain; charset=utf-8");
+    private static final HttpHeader[] CONTENT_LENGTHS = new HttpHeader[MAX_STATUS];
+    private static final ByteBuffer[] BODIES = new ByteBuffer[MAX_STATUS];
+
+    static {
+        for (int status = 400; status < MAX_STATUS; status++) {
+            String reason = HttpStatus.reason(status);
+            if (reason == null) continue;
+            byte[] body = (status + HttpConstants.SP + reason + HttpConstants.CRLF)
+                    .getBytes(StandardCharsets.US_ASCII);
+            BODIES[status] = ByteBuffer.wrap(body).asReadOnlyBuffer();
+            CONTENT_LENGTHS[status] = HttpHeader.encoded(
+                    HttpConstants.HEADER_CONTENT_LENGTH, "" + body.length);
+        }
+    }
+
+    private HttpErrors() {
+    }
+
+    /**
+     * Creates a response of the given error status for the given request.
+     * The response is {@link SinglePartHttpResponse#newInstance(HttpRequest)
+     * reused} if the request had been recycled.
+     *
+     * @param request the request in error. Must not be null.
+     * @param status a standard error status. An unknown status is sent
+     * as <code>500 Internal Server Error</code>.
+     */
+    static SinglePartHttpResponse newResponse(HttpRequest request, int status) {
+        if (status < 400 || status >= MAX_STATUS || BODIES[status] == null) {
+            status = HttpConstants.STATUS_INTERNAL_SERVER_ERROR;
+        }
+        SinglePartHttpResponse response = SinglePartHttpResponse.newInstance(request);
+        response.setStatus(status);
+        response.putHeader(CONTENT_TYPE_TEXT);
+        response.putHeader(CONTENT_LENGTHS[status]);
+        response.setCompressible(false);
+        response.setBody(BODIES[status].duplicate());
+        return response;
+    }
+}
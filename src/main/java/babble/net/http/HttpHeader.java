@@ -1,15 +1,57 @@
 package babble.net.http;
 
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
 class HttpHeader {
     String name;
     String value;
-    
+    private byte[] _line;
+
+    /**
+     * Names of common headers, encoded with the separator
+     * i.e. <code>name: </code>.
+     */
+    private static final Map<String, byte[]> ENCODED_NAMES = new HashMap<>();
+    static {
+        for (String name : new String[]{
+                HttpConstants.HEADER_HOST,
+                HttpConstants.HEADER_CONNECTION,
+                HttpConstants.HEADER_CONTENT_TYPE,
+                HttpConstants.HEADER_CONTENT_LENGTH,
+                HttpConstants.HEADER_TRANSFER_ENCODING,
+                HttpConstants.HEADER_DATE,
+                HttpConstants.HEADER_ETAG,
+                HttpConstants.HEADER_LAST_MODIFIED,
+                HttpConstants.HEADER_CONTENT_RANGE,
+                HttpConstants.HEADER_CONTENT_ENCODING}) {
+            ENCODED_NAMES.put(name, (name + ": ")
+                    .getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    static final HttpHeader TRANSFER_ENCODING_CHUNKED = encoded(
+            HttpConstants.HEADER_TRANSFER_ENCODING, "chunked");
+    static final HttpHeader CONNECTION_KEEP_ALIVE = encoded(
+            HttpConstants.HEADER_CONNECTION, "keep-alive");
+    static final HttpHeader CONNECTION_CLOSE = encoded(
+            HttpConstants.HEADER_CONNECTION, "close");
+    static final HttpHeader ACCEPT_RANGES_BYTES = encoded(
+            HttpConstants.HEADER_ACCEPT_RANGES, "bytes");
+    static final HttpHeader VARY_ACCEPT_ENCODING = encoded(
+            HttpConstants.HEADER_VARY, HttpConstants.HEADER_ACCEPT_ENCODING);
+    static final HttpHeader CONTENT_ENCODING_GZIP = encoded(
+            HttpConstants.HEADER_CONTENT_ENCODING, ContentCoding.GZIP);
+    static final HttpHeader CONTENT_ENCODING_DEFLATE = encoded(
+            HttpConstants.HEADER_CONTENT_ENCODING, ContentCoding.DEFLATE);
+
     public HttpHeader(String name, String value) {
         this.name  = name;
         this.value = value;
-        
+
     }
-    
+
     public HttpHeader(String line) {
         if (line == null) return;
         int idx = line.indexOf(':');
@@ -17,8 +59,19 @@ class HttpHeader {
         name = line.substring(0,idx).trim();
         value = line.substring(idx+1).trim();
     }
-    
-    
+
+    /**
+     * Creates an immutable header whose complete line is encoded once.
+     * Such header is meant to be shared by many responses.
+     */
+    static HttpHeader encoded(String name, String value) {
+        HttpHeader header = new HttpHeader(name, value);
+        header._line = (name + ": " + value + HttpConstants.CRLF)
+                .getBytes(StandardCharsets.US_ASCII);
+        return header;
+    }
+
+
     public String getName() {
         return name == null ? "" : name;
     }
@@ -26,10 +79,30 @@ class HttpHeader {
     public String getValue() {
         return value;
     }
-    
+
+    /**
+     * Gets the pre-encoded bytes of the complete header line including
+     * the terminating CRLF.
+     *
+     * @return null if this header is not a constant
+     */
+    byte[] getEncodedLine() {
+        return _line;
+    }
+
+    /**
+     * Gets the pre-encoded bytes of the name of this header followed by
+     * the separator.
+     *
+     * @return null if this header is not a commonly used header
+     */
+    byte[] getEncodedName() {
+        return ENCODED_NAMES.get(getName());
+    }
+
     public String toString() {
         return getName() + ':' + getValue();
     }
 
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,319 @@
+package babble.net.http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A compact table of the headers of a request or a response.
+ * <br>
+ * Header names are matched without regard to case, and a name may appear
+ * more than once. The names of well-known headers are interned as small
+ * integer ids, so a well-known header is found by comparing ids.
+ * <br>
+ * Headers {@link #parse(byte[], int, int) parsed} from the bytes of a
+ * request are held as offsets into those bytes. A header is decoded to
+ * strings only when it is asked for, because a route typically reads only a
+ * few of the headers a client sends.
+ * <br>
+ * A table is not thread-safe.
+ *
+ * @author pinaki poddar
+ *
+ */
+final class HttpHeaders {
+    static final int UNKNOWN = -1;
+
+    /** canonical names of well-known headers, indexed by their ids */
+    private static final String[] KNOWN = {
+        HttpConstants.HEADER_HOST,
+        HttpConstants.HEADER_CONNECTION,
+        HttpConstants.HEADER_CONTENT_TYPE,
+        HttpConstants.HEADER_CONTENT_LENGTH,
+        HttpConstants.HEADER_TRANSFER_ENCODING,
+        HttpConstants.HEADER_DATE,
+        HttpConstants.HEADER_ETAG,
+        HttpConstants.HEADER_LAST_MODIFIED,
+        HttpConstants.HEADER_IF_NONE_MATCH,
+        HttpConstants.HEADER_IF_MODIFIED_SINCE,
+        HttpConstants.HEADER_RANGE,
+        HttpConstants.HEADER_IF_RANGE,
+        HttpConstants.HEADER_ACCEPT_RANGES,
+        HttpConstants.HEADER_CONTENT_RANGE,
+        HttpConstants.HEADER_ACCEPT_ENCODING,
+        HttpConstants.HEADER_CONTENT_ENCODING,
+        HttpConstants.HEADER_VARY,
+        HttpConstants.HEADER_CACHE_CONTROL,
+        HttpConstants.HEADER_UPGRADE,
+        HttpConstants.HEADER_SEC_WEBSOCKET_KEY,
+        HttpConstants.HEADER_SEC_WEBSOCKET_VERSION,
+        HttpConstants.HEADER_SEC_WEBSOCKET_ACCEPT,
+        HttpConstants.HEADER_ACCEPT,
+        HttpConstants.HEADER_USER_AGENT,
+        HttpConstants.HEADER_COOKIE,
+        HttpConstants.HEADER_SET_COOKIE,
+        HttpConstants.HEADER_AUTHORIZATION,
+    };
+
+    /** ids by canonical and by lower case names */
+    private static final Map<String, Integer> IDS = new HashMap<String, Integer>();
+    /** ids of well-known names by length of the name */
+    private static final int[][] IDS_BY_LENGTH;
+
+    static {
+        int maxLength = 0;
+        for (int id = 0; id < KNOWN.length; id++) {
+            IDS.put(KNOWN[id], id);
+            IDS.put(KNOWN[id].toLowerCase(Locale.ENGLISH), id);
+            maxLength = Math.max(maxLength, KNOWN[id].length());
+        }
+        IDS_BY_LENGTH = new int[maxLength+1][0];
+        for (int id = 0; id < KNOWN.length; id++) {
+            int[] ids = IDS_BY_LENGTH[KNOWN[id].length()];
+            ids = Arrays.copyOf(ids, ids.length + 1);
+            ids[ids.length-1] = id;
+            IDS_BY_LENGTH[KNOWN[id].length()] = ids;
+        }
+    }
+
+    private byte[] _bytes;
+    private int _size;
+    private int[] _ids = new int[8];
+    /** start and end of name and value of each byte-backed header */
+    private int[] _offsets = new int[32];
+    /** decoded or added headers. null for a header not yet decoded */
+    private HttpHeader[] _headers = new HttpHeader[8];
+
+    /**
+     * Gets the id of a well-known header.
+     *
+     * @param name a header name in any case
+     * @return {@link #UNKNOWN} if the header is not well-known
+     */
+    static int idOf(String name) {
+        Integer id = IDS.get(name);
+        if (id == null && name.length() < IDS_BY_LENGTH.length) {
+            id = IDS.get(name.toLowerCase(Locale.ENGLISH));
+        }
+        return id == null ? UNKNOWN : id;
+    }
+
+    /**
+     * Gets the id of a well-known header whose name is the given region
+     * of bytes.
+     */
+    static int idOf(byte[] bytes, int start, int end) {
+        int length = end - start;
+        if (length >= IDS_BY_LENGTH.length) return UNKNOWN;
+        for (int id : IDS_BY_LENGTH[length]) {
+            if (equalsIgnoreCase(KNOWN[id], bytes, start, end)) return id;
+        }
+        return UNKNOWN;
+    }
+
+    private static boolean equalsIgnoreCase(String s, byte[] bytes, int start, int end) {
+        if (s.length() != end - start) return false;
+        for (int i = 0; i < s.length(); i++) {
+            int a = s.charAt(i);
+            int b = bytes[start + i] & 0xFF;
+            if (a != b && (a | 0x20) != (b | 0x20)) return false;
+            if (a != b && ((a | 0x20) < 'a' || (a | 0x20) > 'z')) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the header lines in the given region of bytes. Parsing stops
+     * at an empty line. A line without a colon is ignored.
+     * The bytes are held by this table and must not be modified.
+     *
+     * @param bytes the bytes of a request
+     * @param start index of the first header line
+     * @param end index after the last byte that can be parsed
+     */
+    void parse(byte[] bytes, int start, int end) {
+        _bytes = bytes;
+        int i = start;
+        while (i < end) {
+            int eol = i;
+            while (eol < end && bytes[eol] != '\n') eol++;
+            int lineEnd = eol > i && bytes[eol-1] == '\r' ? eol - 1 : eol;
+            if (lineEnd == i) break; // empty line ends the headers
+            int colon = i;
+            while (colon < lineEnd && bytes[colon] != ':') colon++;
+            if (colon < lineEnd) {
+                int nameStart = skipSpace(bytes, i, colon);
+                int nameEnd = trimSpace(bytes, nameStart, colon);
+                int valueStart = skipSpace(bytes, colon + 1, lineEnd);
+                int valueEnd = trimSpace(bytes, valueStart, lineEnd);
+                int n = append(idOf(bytes, nameStart, nameEnd), null);
+                _offsets[4*n]   = nameStart;
+                _offsets[4*n+1] = nameEnd;
+                _offsets[4*n+2] = valueStart;
+                _offsets[4*n+3] = valueEnd;
+            }
+            i = eol + 1;
+        }
+    }
+
+    private static int skipSpace(byte[] bytes, int start, int end) {
+        while (start < end && (bytes[start] == ' ' || bytes[start] == '\t')) start++;
+        return start;
+    }
+
+    private static int trimSpace(byte[] bytes, int start, int end) {
+        while (end > start && (bytes[end-1] == ' ' || bytes[end-1] == '\t')) end--;
+        return end;
+    }
+
+    /**
+     * Adds a header. Headers of the same name are kept.
+     */
+    void add(HttpHeader header) {
+        append(idOf(header.getName()), header);
+    }
+
+    /**
+     * Adds a header after removing the headers of the same name.
+     */
+    void set(HttpHeader header) {
+        remove(header.getName());
+        add(header);
+    }
+
+    private int append(int id, HttpHeader header) {
+        if (_size == _ids.length) {
+            _ids = Arrays.copyOf(_ids, 2*_size);
+            _offsets = Arrays.copyOf(_offsets, 8*_size);
+            _headers = Arrays.copyOf(_headers, 2*_size);
+        }
+        _ids[_size] = id;
+        _headers[_size] = header;
+        return _size++;
+    }
+
+    /**
+     * Removes all headers and releases the bytes they were parsed from.
+     */
+    void clear() {
+        Arrays.fill(_headers, 0, _size, null);
+        _size = 0;
+        _bytes = null;
+    }
+
+    /**
+     * Gets the number of headers.
+     */
+    int size() {
+        return _size;
+    }
+
+    /**
+     * Gets the header at the given index in the order they were added.
+     * The header is decoded if necessary.
+     */
+    HttpHeader get(int index) {
+        HttpHeader header = _headers[index];
+        if (header == null) {
+            int id = _ids[index];
+            String name = id == UNKNOWN ? decode(_offsets[4*index], _offsets[4*index+1])
+                        : KNOWN[id];
+            header = new HttpHeader(name, decode(_offsets[4*index+2], _offsets[4*index+3]));
+            _headers[index] = header;
+        }
+        return header;
+    }
+
+    private String decode(int start, int end) {
+        return new String(_bytes, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Gets the first header of the given name.
+     *
+     * @param name a header name in any case
+     * @return null if no such header
+     */
+    HttpHeader get(String name) {
+        int i = indexOf(name, idOf(name), 0);
+        return i < 0 ? null : get(i);
+    }
+
+    /**
+     * Gets all headers of the given name in the order they were added.
+     *
+     * @return an empty list if no such header
+     */
+    List<HttpHeader> getAll(String name) {
+        int id = idOf(name);
+        int i = indexOf(name, id, 0);
+        if (i < 0) return Collections.emptyList();
+        List<HttpHeader> headers = new ArrayList<HttpHeader>(2);
+        for (; i >= 0; i = indexOf(name, id, i + 1)) {
+            headers.add(get(i));
+        }
+        return headers;
+    }
+
+    /**
+     * Affirms if a header of the given name exists.
+     */
+    boolean contains(String name) {
+        return indexOf(name, idOf(name), 0) >= 0;
+    }
+
+    /**
+     * Removes all headers of the given name.
+     *
+     * @return true if any header has been removed
+     */
+    boolean remove(String name) {
+        int id = idOf(name);
+        int j = 0;
+        for (int i = 0; i < _size; i++) {
+            if (matches(i, id, name)) continue;
+            if (i != j) {
+                _ids[j] = _ids[i];
+                _headers[j] = _headers[i];
+                System.arraycopy(_offsets, 4*i, _offsets, 4*j, 4);
+            }
+            j++;
+        }
+        boolean removed = j < _size;
+        Arrays.fill(_headers, j, _size, null);
+        _size = j;
+        return removed;
+    }
+
+    private int indexOf(String name, int id, int from) {
+        for (int i = from; i < _size; i++) {
+            if (matches(i, id, name)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Affirms if the header at given index has the given name. A well-known
+     * name is matched by its id, otherwise the name is compared without
+     * decoding the header.
+     */
+    private boolean matches(int index, int id, String name) {
+        if (id != UNKNOWN || _ids[index] != UNKNOWN) return _ids[index] == id;
+        HttpHeader header = _headers[index];
+        return header != null ? header.getName().equalsIgnoreCase(name)
+             : equalsIgnoreCase(name, _bytes, _offsets[4*index], _offsets[4*index+1]);
+    }
+
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < _size; i++) {
+            buf.append(get(i)).append(HttpConstants.CRLF);
+        }
+        return buf.toString();
+    }
+}
@@ -1,14 +1,17 @@
 package babble.net.http;
 
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import babble.net.NioServer;
 import babble.net.Protocol;
 import babble.net.Router;
+import babble.net.exception.ProtocolException;
+import babble.net.exception.RoutingException;
+import babble.net.exception.StackTraces;
 
 public class HttpProtocol implements Protocol<HttpRequest, HttpResponse>{
+    private static final Logger _logger = LoggerFactory.getLogger(HttpProtocol.class);
 
     @Override
     public String getName() {
@@ -26,27 +29,52 @@ public class HttpProtocol implements Protocol<HttpRequest, HttpResponse>{
 
     @Override
     public HttpResponse newResponse(HttpRequest request) {
-        return new SinglePartHttpResponse(request);
+        return SinglePartHttpResponse.newInstance(request);
     }
     
+    /**
+     * Affirms if the request is a plain HTTP request and the response is
+     * a single part response that does not switch protocol. Other kinds
+     * of response may write after they have been sent.
+     */
+    @Override
+    public boolean isRecyclable(HttpRequest request, HttpResponse response) {
+        return request.getClass() == HttpRequest.class
+            && response.getClass() == SinglePartHttpResponse.class
+            && response.getUpgrade() == null;
+    }
+    
+    /**
+     * Creates a {@link HttpErrors canned} error response. 
+     * A request that matches no route is answered with 
+     * <code>404 Not Found</code>, and a request that violates the protocol 
+     * with <code>400 Bad Request</code>, unless the exception carries 
+     * an error status. Any other exception is answered with 
+     * <code>500 Internal Server Error</code>, and is logged with its 
+     * stack trace if {@link StackTraces#sample() sampled}.
+     * The cause of the error is never sent to the client.
+     */
     @Override
     public HttpResponse newErrorResponse(HttpRequest request, Exception ex) {
-        HttpResponse response = new SinglePartHttpResponse(request);
-        response.addHeader("Content-Type", "text/plain");
-        StringWriter stackTrace = new StringWriter();
-        
-        ex.printStackTrace(new PrintWriter(stackTrace));
-        try {
-            response.appendBody(ex.getClass().getName()+
-                    ":"+ ex.getMessage()+ "\r\n");
-            response.appendBody("Server side stack trace:\r\n");
-            response.appendBody(stackTrace.toString());
-        } catch (IOException ex2) {
-            
+        int status;
+        if (ex instanceof RoutingException) {
+            status = errorStatus(((RoutingException)ex).getErrorCode(), 
+                    HttpConstants.STATUS_NOT_FOUND);
+        } else if (ex instanceof ProtocolException) {
+            status = errorStatus(((ProtocolException)ex).getErrorCode(), 
+                    HttpConstants.STATUS_BAD_REQUEST);
+        } else {
+            status = HttpConstants.STATUS_INTERNAL_SERVER_ERROR;
+            if (StackTraces.sample()) {
+                _logger.warn("error processing " + request, ex);
+            } else {
+                _logger.warn("error processing " + request + ": " + ex);
+            }
         }
-        return response;
+        return HttpErrors.newResponse(request, status);
+    }
+    
+    private static int errorStatus(int code, int defaultStatus) {
+        return code >= 400 && code < 600 ? code : defaultStatus;
     }
-
-
-
 }
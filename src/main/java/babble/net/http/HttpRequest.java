@@ -1,26 +1,32 @@
 package babble.net.http;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.StringReader;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.nio.channels.Channel;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import babble.net.ChunkedDecoder;
 import babble.net.Request;
+import babble.net.Response;
 import babble.net.Route;
 import babble.net.exception.ProtocolException;
+import babble.util.BufferPool;
 import babble.util.ChannelInfo;
 
 
@@ -37,16 +43,31 @@ import babble.util.ChannelInfo;
 @SuppressWarnings("serial")
 public class HttpRequest extends Request {
     String _method;
-    String _path;
+    /** request target as received, e.g. /a%20b?x=1 */
+    String _target;
+    /** decoded path, computed on first access */
+    private String _path;
     private int _versionMajor, _versionMinor;
-    URI _uri;
+    /** computed on first access */
+    private URI _uri;
+    private Channel _uriChannel;
+    private boolean _uriLocal;
     
     private static String REQUESTLINE_REGEX = 
      "(?<method>\\S+)\\ (?<path>\\S+)\\ HTTP/(?<major>\\d+)\\.(?<minor>\\d+)";
     private Pattern _requestLinePattern = Pattern.compile(REQUESTLINE_REGEX);
     
-    Map<String,String> _params = new HashMap<String,String>();
-    Map<String, HttpHeader> _headers = new HashMap<String, HttpHeader>();
+    /** parameters added explicitly. Created on first addition */
+    private Map<String,String> _params;
+    final HttpHeaders _headers = new HttpHeaders();
+    /** buffer the request is received into, kept when recycled */
+    private ByteBuffer _readBuffer;
+    private ByteBuffer _body;
+    
+    /** maximum size of request line and headers in bytes */
+    public static final int MAX_HEADER_SIZE = 64*1024;
+    /** maximum size of request body in bytes */
+    public static final int MAX_BODY_SIZE = 8*1024*1024;
     
     
     private static final Logger _logger = LoggerFactory.getLogger(HttpRequest.class);
@@ -65,7 +86,7 @@ public class HttpRequest extends Request {
     
     public HttpRequest(String requestLine) throws ProtocolException {
         super();
-        parse(requestLine.getBytes());
+        parse(requestLine.getBytes(StandardCharsets.UTF_8));
     }
 
     
@@ -85,20 +106,117 @@ public class HttpRequest extends Request {
         setURI(channel, true);
     }
     
+    /**
+     * Adds a parameter. An added parameter hides the parameter of the same
+     * name in the query string.
+     */
     public void addParameter(String key, String value) {
+        if (_params == null) _params = new HashMap<String,String>();
         _params.put(key, value);
     }
 
     /**
-     * Parses parameters of this request from given data as per HTTP
-     * request syntax.
+     * Gets the query string of the request target as received i.e.
+     * without decoding.
      * 
-     * HTTP Request syntax
-     * <pre>
-     * </pre>
+     * @return null if the request target has no query
+     */
+    public String getQueryString() {
+        int q = _target.indexOf('?');
+        return q < 0 ? null : _target.substring(q + 1, queryEnd(q));
+    }
+    
+    private int queryEnd(int q) {
+        int hash = _target.indexOf('#', q);
+        return hash < 0 ? _target.length() : hash;
+    }
+    
+    /**
+     * Gets the value of a parameter. A parameter is either
+     * {@link #addParameter(String, String) added} or appears in the query
+     * string of the request target. The query string is scanned on every
+     * call rather than parsed into a map, and only the value found is
+     * decoded.
      * 
+     * @param name decoded name of a parameter
+     * @return the decoded value of the first parameter of the given name.
+     * An empty string if the parameter has no value, and null if the
+     * parameter is absent.
      */
+    public String getParameter(String name) {
+        assertLive();
+        if (_params != null && _params.containsKey(name)) return _params.get(name);
+        int q = _target.indexOf('?');
+        if (q < 0) return null;
+        int end = queryEnd(q);
+        int i = indexOfParameter(name, q + 1, end);
+        return i < 0 ? null : parameterValue(i, end);
+    }
     
+    /**
+     * Gets the values of all parameters of the given name in the order
+     * they appear in the query string, after the value of a parameter
+     * {@link #addParameter(String, String) added} explicitly.
+     * 
+     * @return an empty list if the parameter is absent
+     */
+    public List<String> getParameterValues(String name) {
+        List<String> values = new ArrayList<String>(2);
+        if (_params != null && _params.containsKey(name)) values.add(_params.get(name));
+        int q = _target.indexOf('?');
+        if (q < 0) return values;
+        int end = queryEnd(q);
+        for (int i = indexOfParameter(name, q + 1, end); i >= 0; 
+                 i = indexOfParameter(name, endOfParameter(i, end) + 1, end)) {
+            values.add(parameterValue(i, end));
+        }
+        return values;
+    }
+    
+    /**
+     * Gets the index of the first parameter of given name in the given
+     * region of the query string.
+     */
+    private int indexOfParameter(String name, int from, int end) {
+        for (int i = from; i < end; ) {
+            int amp = endOfParameter(i, end);
+            int eq = _target.indexOf('=', i);
+            if (eq < 0 || eq > amp) eq = amp;
+            if (PercentDecoder.matches(_target, i, eq, name, true)) return i;
+            i = amp + 1;
+        }
+        return -1;
+    }
+    
+    private int endOfParameter(int start, int end) {
+        int amp = _target.indexOf('&', start);
+        return amp < 0 || amp > end ? end : amp;
+    }
+    
+    private String parameterValue(int start, int end) {
+        int amp = endOfParameter(start, end);
+        int eq = _target.indexOf('=', start);
+        return eq < 0 || eq > amp ? "" : PercentDecoder.decode(_target, eq + 1, amp, true);
+    }
+    
+    /**
+     * Gets the decoded names of all parameters without repetition.
+     */
+    public Set<String> getParameterNames() {
+        Set<String> names = new LinkedHashSet<String>();
+        if (_params != null) names.addAll(_params.keySet());
+        int q = _target.indexOf('?');
+        if (q < 0) return names;
+        int end = queryEnd(q);
+        for (int i = q + 1; i < end; ) {
+            int amp = endOfParameter(i, end);
+            int eq = _target.indexOf('=', i);
+            if (eq < 0 || eq > amp) eq = amp;
+            if (eq > i) names.add(PercentDecoder.decode(_target, i, eq, true));
+            i = amp + 1;
+        }
+        return names;
+    }
     
     /**
      * Parses given array of bytes as per HTTP request format.
@@ -106,7 +224,33 @@ public class HttpRequest extends Request {
      * @throws ProtocolException
      */
     protected void parse(byte[] data ) throws ProtocolException {
-        parse(new String(data));
+        parse(data, 0, data.length);
+    }
+    
+    /**
+     * Parses the given region of bytes as per HTTP request format.
+     * The request line is decoded, but the headers are held as offsets 
+     * into the given bytes and decoded only when asked for.
+     * Hence the bytes must not be modified afterwards.
+     * 
+     * @param data bytes of a request
+     * @param offset index of the first byte of the request line
+     * @param length number of bytes that can be parsed. Parsing stops at
+     * the empty line that ends the headers.
+     * @throws ProtocolException if the request line is invalid
+     */
+    protected void parse(byte[] data, int offset, int length) throws ProtocolException {
+        int end = offset + length;
+        int eol = offset;
+        while (eol < end && data[eol] != '\n') eol++;
+        int lineEnd = eol > offset && data[eol-1] == '\r' ? eol - 1 : eol;
+        String requestLine = new String(data, offset, lineEnd - offset, 
+                StandardCharsets.ISO_8859_1);
+        _logger.debug("request line [" + requestLine + ']');
+        parseRequestLine(requestLine);
+        if (eol < end) {
+            _headers.parse(data, eol + 1, end);
+        }
     }
     
     /**
@@ -115,35 +259,7 @@ public class HttpRequest extends Request {
      * @throws ProtocolException if parsing fails
      */
     protected void parse(String content) throws ProtocolException {
-        _logger.debug("parsing request data \r\n" + content);
-        
-       BufferedReader reader = new BufferedReader(new StringReader(content));
-       String requestLine = null;
-       try {
-           requestLine = reader.readLine();
-           _logger.debug("request line [" + requestLine + ']');
-       } catch (IOException ex) {
-           _logger.warn("i/o error reading request :" + ex);
-           throw new ProtocolException("error reading request line", ex);
-       }
-       
-       parseRequestLine(requestLine);
-           
-       // read headers. Ignore empty line. Stop at CRLF
-       String line = null;
-       try {
-           while ((line = reader.readLine()) != null) {
-               if (line.equals(HttpConstants.CRLF)) break;
-               if (line.trim().length() == 0) break;
-               HttpHeader header = new HttpHeader(line);
-               _headers.put(header.getName(), header);
-           }
-       } catch (IOException ex) {
-           throw new ProtocolException(ex);
-       }
-       
-       // read body
-       
+        parse(content.getBytes(StandardCharsets.ISO_8859_1));
     }
     
     void parseRequestLine(String line) throws ProtocolException {
@@ -171,21 +287,74 @@ public class HttpRequest extends Request {
     }
     
     /**
-     * Adds a header.
+     * Adds a header. A request may carry many headers of the same name.
      * 
      * @param name name of the header field e.g. Content-Length. Must not be
      * null.
      * @param value value of the header e.g. 2034 as a string. Can be null.
      */
     public void addHeader(String name, String value) {
-        HttpHeader header = new HttpHeader(name, value);
-        _headers.put(header.getName(), header);
+        _headers.add(new HttpHeader(name, value));
     }
     
+    /**
+     * Gets the first header of the given name.
+     * 
+     * @param name name of the header in any case
+     * @return null if the header is absent
+     */
     public HttpHeader getHeader(String name) {
+        assertLive();
         return _headers.get(name);
     }
     
+    /**
+     * Gets the value of the first header of the given name.
+     * 
+     * @param name name of the header in any case
+     * @return null if the header is absent
+     */
+    public String getHeaderValue(String name) {
+        HttpHeader header = getHeader(name);
+        return header == null ? null : header.getValue();
+    }
+    
+    /**
+     * Gets the values of all headers of the given name in the order they
+     * appear in the request.
+     * 
+     * @param name name of the header in any case
+     * @return an empty list if the header is absent
+     */
+    public List<String> getHeaderValues(String name) {
+        List<HttpHeader> headers = _headers.getAll(name);
+        List<String> values = new ArrayList<String>(headers.size());
+        for (HttpHeader header : headers) {
+            values.add(header.getValue());
+        }
+        return values;
+    }
+    
+    /**
+     * Affirms if this request asks to switch the connection to the given
+     * protocol i.e. the <code>Connection</code> header has an 
+     * <code>upgrade</code> token and the <code>Upgrade</code> header names
+     * the protocol.
+     * 
+     * @param protocol name of a protocol e.g. <code>websocket</code>
+     */
+    public boolean isUpgrade(String protocol) {
+        String upgrade = getHeaderValue(HttpConstants.HEADER_UPGRADE);
+        String connection = getHeaderValue(HttpConstants.HEADER_CONNECTION);
+        if (upgrade == null || connection == null
+         || !protocol.equalsIgnoreCase(upgrade.trim())) 
+            return false;
+        for (String token : connection.split(",")) {
+            if ("upgrade".equalsIgnoreCase(token.trim())) return true;
+        }
+        return false;
+    }
+    
     /**
      * Sets HTTP method.
      * 
@@ -210,16 +379,45 @@ public class HttpRequest extends Request {
      * @return HTTP method name e.g. GET PUT etc. Never null.
      */
     public String getMethod() {
+        assertLive();
         return _method;
     }
+
+    /**
+     * Affirms if the method is idempotent as per HTTP, i.e. GET, HEAD,
+     * OPTIONS, TRACE, PUT or DELETE.
+     */
+    @Override
+    public boolean isIdempotent() {
+        String method = getMethod();
+        if (method == null) return false;
+        switch (method) {
+        case "GET": case "HEAD": case "OPTIONS": case "TRACE":
+        case "PUT": case "DELETE":
+            return true;
+        default:
+            return false;
+        }
+    }
     
     /**
-     * Gets path of this request without any leading forward slash '/'
+     * Gets path of this request without any leading forward slash '/'.
+     * The path is the request target up to the query string, and is 
+     * percent-decoded on first access.
+     * 
      * @return path of this request. Can be empty or null.
      * null implies that path has not been defined.
      */
     public String getPath() {
-        return _path.startsWith("/") ? _path.substring(1) : _path;
+        assertLive();
+        if (_path == null && _target != null) {
+            int start = _target.startsWith("/") ? 1 : 0;
+            int end = _target.indexOf('?');
+            if (end < 0) end = _target.indexOf('#');
+            if (end < 0) end = _target.length();
+            _path = PercentDecoder.decode(_target, start, end, false);
+        }
+        return _path;
     }
     
     /**
@@ -236,77 +434,287 @@ public class HttpRequest extends Request {
     /**
      * Writes this request to i/o channel.
      * HTTP request follows a particular format:
-     * method SP path SP version CRLF
+     * method SP path SP version CRLF, followed by each header and CRLF,
+     * an empty line and the body, if any. 
+     * A <code>Content-Length</code> header is added for a body, unless 
+     * one has been set.
      * 
      */
     @Override
     public void send(ByteChannel channel) throws IOException {
         setChannel(channel);
-        writeString(getMethod(), " " , getPath(), " ", getVersionString());
+        writeAscii(getMethod());
+        writeAscii(HttpConstants.SP);
+        writeAscii(_target);
+        writeAscii(HttpConstants.SP);
+        writeAscii(getVersionString());
+        writeCRLF();
+        for (int i = 0; i < _headers.size(); i++) {
+            HttpHeader header = _headers.get(i);
+            writeAscii(header.getName());
+            writeAscii(": ");
+            if (header.getValue() != null) writeAscii(header.getValue());
+            writeCRLF();
+        }
+        ByteBuffer body = _body == null ? null : _body.duplicate();
+        if (body != null && !_headers.contains(HttpConstants.HEADER_CONTENT_LENGTH)) {
+            writeAscii(HttpConstants.HEADER_CONTENT_LENGTH + ": " + body.remaining());
+            writeCRLF();
+        }
+        writeCRLF();
+        if (body != null) writeBytes(body);
         flush();
     }
     
     
     /**
-     * Sets the path. The path is saved as it is received. a path string
-     * can begin with a forward slash. However, 
-     * {@link #getPath() getPath()} will return a path without a forward slash.
+     * Resets this request, but keeps the buffer it had been received into. 
+     */
+    @Override
+    protected void recycle() {
+        super.recycle();
+        _method = null;
+        _target = null;
+        _path = null;
+        _versionMajor = _versionMinor = 0;
+        _uri = null;
+        _uriChannel = null;
+        _params = null;
+        _body = null;
+        _headers.clear();
+    }
+    
+    /**
+     * Takes the response that had been recycled with this request, if it
+     * can be reused as a single part response.
+     */
+    @Override
+    protected SinglePartHttpResponse takeRecycledResponse() {
+        Response response = super.takeRecycledResponse();
+        return response instanceof SinglePartHttpResponse 
+             ? (SinglePartHttpResponse)response : null;
+    }
+    
+    /**
+     * Sets the request target. The target is saved as it is received. 
+     * A target can begin with a forward slash and can have a query string.
+     * However, {@link #getPath() getPath()} will return a decoded path 
+     * without a forward slash or query string.
      *  
      * @param path
      */
     protected void setPath(String path) throws ProtocolException {
         if (path == null) throw new ProtocolException("Path must not be null");
-        _path = path;
-        
+        _target = path;
+        _path = null;
+        _uri = null;
     }
+    
     public String toString() {
-        return _uri == null ? "null" : _uri.toString();
+        return _method + HttpConstants.SP + _target;
     }
     
+    /**
+     * Sets the channel whose address is the authority of the 
+     * {@link #getURI() URI} of this request. The address is not looked up
+     * until the URI is asked for.
+     * 
+     * @param channel a network channel
+     * @param local use local address of the channel
+     */
     protected void setURI(Channel channel, boolean local) {
-        ChannelInfo addr = new ChannelInfo(channel, local);
-        try {
-            _uri = new URI(HttpConstants.PROTOCOL_NAME, null,
-                    addr.getHost(), addr.getPort(), "/" + getPath(), 
-                    null, null);
-        } catch (URISyntaxException ex) {
-             
-        }
+        _uriChannel = channel;
+        _uriLocal   = local;
+        _uri = null;
     }
     
+    /**
+     * Gets the URI of this request. The URI is built on first access.
+     * The URI is relative if the address of the channel is not known.
+     * 
+     * @return null if the request target is not a valid URI
+     */
     public URI getURI() {
+        if (_uri == null) {
+            ChannelInfo addr = new ChannelInfo(_uriChannel, _uriLocal);
+            String target = _target.startsWith("/") ? _target : "/" + _target;
+            String authority = addr.getPort() == 0 ? "" 
+                    : HttpConstants.PROTOCOL_NAME + "://" + addr.getHost() + ':' + addr.getPort();
+            try {
+                _uri = new URI(authority + target);
+            } catch (URISyntaxException ex) {
+                try {
+                    _uri = new URI(HttpConstants.PROTOCOL_NAME, null,
+                        addr.getHost(), addr.getPort(), "/" + getPath(), 
+                        null, null);
+                } catch (URISyntaxException ex2) {
+                }
+            }
+        }
         return _uri;
     }
 
+    /**
+     * Gets the body of this request.
+     * 
+     * @return a read-only buffer of the body. null if the request has no
+     * body.
+     */
+    public ByteBuffer getBody() {
+        assertLive();
+        return _body == null ? null : _body.asReadOnlyBuffer();
+    }
+    
+    /**
+     * Sets the body of this request. A client sets the body to be sent,
+     * and a protocol that does not {@link #receive(ByteChannel) receive} 
+     * a request from its channel sets the body it has received otherwise.
+     * 
+     * @param body the remaining bytes are the body. null for no body.
+     */
+    public void setBody(ByteBuffer body) {
+        _body = body;
+    }
+    
+    /**
+     * Receives the request line, the headers and the body, if any. 
+     * The body is read as per <code>Content-Length</code> header, or
+     * decoded from chunked transfer coding through a pooled buffer.
+     * <br>
+     * The request begins with the bytes {@link #setPipelined(ByteBuffer)
+     * pipelined} with the previous request, if any. The bytes read after 
+     * the request are kept as pipelined for the next request. 
+     */
     @Override
     protected void receive(ByteChannel channel) throws IOException {
         setChannel(channel);
-
-        ByteBuffer readBuffer = ByteBuffer.allocate(1024);
-        ByteBuffer buf = ByteBuffer.allocate(1024);
-        boolean end = false;
+        ByteBuffer pipelined = takePipelined();
+        int size = pipelined == null ? 0 : pipelined.remaining();
+        if (_readBuffer == null || _readBuffer.capacity() < size) {
+            _readBuffer = ByteBuffer.allocate(Math.max(1024, size));
+        }
+        ByteBuffer buf = _readBuffer;
+        buf.clear();
+        if (pipelined != null) buf.put(pipelined);
         _logger.debug("receiving request from channel " + channel + " ...");
-        while (!end) {
-            buf.clear();
+        int headerEnd;
+        int scanned = 0;
+        while ((headerEnd = endOfHeaders(buf.array(), scanned, buf.position())) < 0) {
+            scanned = Math.max(0, buf.position() - 3);
+            if (!buf.hasRemaining()) {
+                if (buf.capacity() >= MAX_HEADER_SIZE) 
+                    throw new ProtocolException("headers exceed " + MAX_HEADER_SIZE + " bytes");
+                buf.flip();
+                buf = _readBuffer = ByteBuffer.allocate(2*buf.capacity()).put(buf);
+            }
             int n = channel.read(buf);
             if (n < 0) throw new IOException("channel has been closed by remote");
-            if (n == 0) continue;
-            if (n >= 4) {
-                byte[] endMarker = new byte[4];
-                buf.position(buf.position()-4);
-                buf.get(endMarker);
-                _logger.debug("last 4-byte " + Arrays.toString(endMarker));
-                end = endMarker[0] == (byte)'\r'
-                        && endMarker[1] == (byte)'\n'
-                        && endMarker[2] == (byte)'\r'
-                        && endMarker[3] == (byte)'\n';
-            }
-            buf.flip();
-            readBuffer.put(buf);
         }
-        _logger.debug("received " + readBuffer.position() + " bytes request");
-        parse(readBuffer.array());
+        _logger.debug("received " + headerEnd + " bytes request");
+        parse(buf.array(), 0, headerEnd);
         setURI(channel, true);
+        
+        ByteBuffer excess = ByteBuffer.wrap(buf.array(), headerEnd, buf.position() - headerEnd);
+        String encoding = getHeaderValue(HttpConstants.HEADER_TRANSFER_ENCODING);
+        if (encoding != null && encoding.toLowerCase(Locale.ENGLISH).contains("chunked")) {
+            receiveChunkedBody(channel, excess);
+        } else {
+            String length = getHeaderValue(HttpConstants.HEADER_CONTENT_LENGTH);
+            if (length != null) receiveBody(channel, excess, parseContentLength(length));
+            keepPipelined(excess);
+        }
+    }
+
+    /**
+     * Keeps a copy of the given bytes read after this request, as the 
+     * buffer they are in is reused.
+     */
+    private void keepPipelined(ByteBuffer rest) {
+        if (!rest.hasRemaining()) return;
+        ByteBuffer copy = ByteBuffer.allocate(rest.remaining());
+        copy.put(rest).flip();
+        setPipelined(copy);
+    }
+    
+    /**
+     * Finds the empty line that ends the headers.
+     * @return index after the empty line, or -1 if not found
+     */
+    private static int endOfHeaders(byte[] bytes, int from, int to) {
+        for (int i = from; i + 3 < to; i++) {
+            if (bytes[i] == '\r' && bytes[i+1] == '\n' 
+             && bytes[i+2] == '\r' && bytes[i+3] == '\n') return i + 4;
+        }
+        return -1;
+    }
+    
+    private static long parseContentLength(String value) throws ProtocolException {
+        try {
+            long length = Long.parseLong(value.trim());
+            if (length >= 0) return length;
+        } catch (NumberFormatException ex) {
+        }
+        throw new ProtocolException("invalid " + HttpConstants.HEADER_CONTENT_LENGTH 
+                + " " + value);
+    }
+    
+    private void receiveBody(ByteChannel channel, ByteBuffer excess, long length) 
+            throws IOException {
+        if (length > MAX_BODY_SIZE) 
+            throw new ProtocolException("body of " + length + " bytes is too large")
+                .setErrorCode(HttpConstants.STATUS_PAYLOAD_TOO_LARGE);
+        _body = ByteBuffer.allocate((int)length);
+        int n = (int)Math.min(length, excess.remaining());
+        ByteBuffer data = excess.duplicate();
+        data.limit(data.position() + n);
+        _body.put(data);
+        excess.position(excess.position() + n);
+        while (_body.hasRemaining()) {
+            if (channel.read(_body) < 0) 
+                throw new IOException("channel has been closed by remote");
+        }
+        _body.flip();
+    }
+    
+    private void receiveChunkedBody(ByteChannel channel, ByteBuffer excess) 
+            throws IOException {
+        ChunkedDecoder decoder = new ChunkedDecoder();
+        ByteBuffer pooled = BufferPool.SHARED.acquire();
+        _body = ByteBuffer.allocate(Math.max(256, excess.remaining()));
+        try {
+            // decode what has been read with the headers before reading more
+            for (ByteBuffer data = decoder.decode(excess); data != null; 
+                    data = decoder.decode(excess)) {
+                appendBody(data);
+            }
+            pooled.flip();
+            if (decoder.isComplete()) {
+                keepPipelined(excess);
+            } else {
+                for (ByteBuffer data = decoder.read(channel, pooled); data != null; 
+                        data = decoder.read(channel, pooled)) {
+                    appendBody(data);
+                }
+                keepPipelined(pooled);
+            }
+        } finally {
+            BufferPool.SHARED.release(pooled);
+        }
+        _body.flip();
+    }
+    
+    private void appendBody(ByteBuffer data) throws ProtocolException {
+        if (_body.remaining() < data.remaining()) {
+            long required = (long)_body.position() + data.remaining();
+            if (required > MAX_BODY_SIZE) 
+                throw new ProtocolException("body exceeds " + MAX_BODY_SIZE + " bytes")
+                    .setErrorCode(HttpConstants.STATUS_PAYLOAD_TOO_LARGE);
+            int capacity = (int)Math.min(MAX_BODY_SIZE, 
+                    Math.max(required, 2L*_body.capacity()));
+            _body.flip();
+            _body = ByteBuffer.allocate(capacity).put(_body);
+        }
+        _body.put(data);
     }
     
 }
@@ -1,21 +1,22 @@
 package babble.net.http;
 
-import static babble.net.http.HttpConstants.CRLF;
 import static babble.net.http.HttpConstants.HEADER_CONNECTION;
-import static babble.net.http.HttpConstants.HEADER_TRANSFER_ENCODING;
+import static babble.net.http.HttpConstants.HEADER_CONTENT_LENGTH;
+import static babble.net.http.HttpConstants.HEADER_DATE;
 import static babble.net.http.HttpConstants.PROTOCOL_VRESION_STRING;
 import static babble.net.http.HttpConstants.SP;
 
 import java.io.IOException;
 import java.nio.channels.ByteChannel;
+import java.nio.charset.Charset;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Locale;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import babble.net.Response;
+import babble.net.ResponseCallback;
 
 /**
  * A response according to HTTP specification.
@@ -28,7 +29,8 @@ public abstract class HttpResponse extends Response {
     int status = HttpConstants.STATUS_OK;
     String message = "OK";
     
-    Map<String,HttpHeader> _headers = new HashMap<String, HttpHeader>();
+    final HttpHeaders _headers = new HttpHeaders();
+    private transient HttpResponseParser _parser;
 
     protected static final Logger _logger = LoggerFactory.getLogger(HttpResponse.class);
 
@@ -44,16 +46,39 @@ public abstract class HttpResponse extends Response {
     public HttpRequest getRequest() {
         return (HttpRequest)super.getRequest();
     }
+    
+    @Override
+    protected void recycle() {
+        super.recycle();
+        status  = HttpConstants.STATUS_OK;
+        message = "OK";
+        _headers.clear();
+        if (_parser != null) _parser.release();
+        _parser = null;
+    }
 
     /**
      * Adds an header, a key-value pair, to the response.
+     * A header of the same name, in any case, is replaced.
      * 
      * @param name
      * @param value
      */
     public void addHeader(String name, String value) {
-        HttpHeader header = new HttpHeader(name, value);
-        _headers.put(header.getName(), header);
+        assertLive();
+        _headers.set(new HttpHeader(name, value));
+    }
+
+    /**
+     * Appends an header to the response. Headers of the same name are kept,
+     * e.g. to set many cookies.
+     * 
+     * @param name
+     * @param value
+     */
+    public void appendHeader(String name, String value) {
+        assertLive();
+        _headers.add(new HttpHeader(name, value));
     }
 
 
@@ -78,54 +103,121 @@ public abstract class HttpResponse extends Response {
         return this;
     }
 
+    /**
+     * Gets the status of this response.
+     */
+    public int getStatus() {
+        return status;
+    }
+    
+    /**
+     * Gets the value of the header of the given name, in any case.
+     * 
+     * @return null if this response has no such header
+     */
+    public String getHeader(String name) {
+        return getHeaderValue(name);
+    }
     
-    Object getHeaderValue(String name) {
+    String getHeaderValue(String name) {
         HttpHeader header = _headers.get(name);
         return header == null ? null : header.getValue();
     }
     
     
+    /**
+     * Gets the charset a text body is encoded in, as named by the 
+     * <code>charset</code> parameter of <code>Content-Type</code> header.
+     * 
+     * @return the default charset of the platform if the content type 
+     * names no charset, or names one that is not supported
+     */
+    public Charset getCharset() {
+        String contentType = getHeaderValue(HttpConstants.HEADER_CONTENT_TYPE);
+        if (contentType != null) {
+            for (String param : contentType.split(";")) {
+                int eq = param.indexOf('=');
+                if (eq > 0 && "charset".equals(param.substring(0, eq).trim()
+                        .toLowerCase(Locale.ENGLISH))) {
+                    String name = param.substring(eq + 1).trim().replace("\"", "");
+                    try {
+                        if (Charset.isSupported(name)) return Charset.forName(name);
+                    } catch (IllegalArgumentException ex) {
+                        // an illegal name is not supported
+                    }
+                }
+            }
+        }
+        return Charset.defaultCharset();
+    }
+    
+    /**
+     * Affirms if the body of this response is sent in chunks.
+     * The body is sent in chunks unless length of the content is known
+     * and set as a header.
+     */
+    public boolean isChunked() {
+        return !_headers.contains(HEADER_CONTENT_LENGTH);
+    }
+
+    /**
+     * Affirms if this response may carry a body. A response of status
+     * <code>1xx</code>, <code>204 No Content</code> or 
+     * <code>304 Not Modified</code> has no body, not even an empty chunk.
+     */
+    public boolean hasBody() {
+        return status >= 200 
+            && status != 204 
+            && status != HttpConstants.STATUS_NOT_MODIFIED;
+    }
+
     /**
      * Adds a connection header.
      * If request had a header, its value is copied. Otherwise, connection
-     * is 'persistent'
+     * is persistent i.e. 'keep-alive'
      */
     void addConnectionHeader() {
         HttpHeader requestHeader = getRequest().getHeader(HEADER_CONNECTION);
-        if (requestHeader == null) {
-            addHeader(HEADER_CONNECTION, "persistent");
+        if (requestHeader == null || requestHeader.getValue() == null) {
+            putHeader(HttpHeader.CONNECTION_KEEP_ALIVE);
+        } else if ("close".equalsIgnoreCase(requestHeader.getValue())) {
+            putHeader(HttpHeader.CONNECTION_CLOSE);
+        } else if ("keep-alive".equalsIgnoreCase(requestHeader.getValue())) {
+            putHeader(HttpHeader.CONNECTION_KEEP_ALIVE);
         } else {
             addHeader(HEADER_CONNECTION, requestHeader.getValue());
         }
-        
-        
     }
-    
+
+    void putHeader(HttpHeader header) {
+        _headers.set(header);
+    }
+
     @Override
     public void send(ByteChannel channel) throws IOException {
-        _logger.debug("writing response to channel " + channel);
+        if (_logger.isDebugEnabled())
+            _logger.debug("writing response to channel " + channel);
         setChannel(channel);
-        
+
         addConnectionHeader();
-        addHeader(HEADER_TRANSFER_ENCODING, "chunked");
-        
-        writeString(PROTOCOL_VRESION_STRING, SP, 
-                ""+status, SP, message, CRLF);
-        
-        // write each header separated by CRLF
-        for (Map.Entry<String, HttpHeader> e : _headers.entrySet()) {
-            writeString(e.getValue().toString());
-            writeCRLF();
-            _logger.debug("Header:" + e.getValue().toString());
+        boolean hasBody = hasBody();
+        if (hasBody && isChunked()) {
+            putHeader(HttpHeader.TRANSFER_ENCODING_CHUNKED);
         }
+
+        writeStatusLine();
+        writeHeaders();
         // separate header and body section by a CRLF
-        writeCRLF(); 
-        
-        writeBody();
-        
+        writeCRLF();
+
+        if (hasBody) {
+            writeBody();
+        }
+
         flush();
-        
-        _logger.debug("finished writing response to channel "  + channel);
+
+        if (_logger.isDebugEnabled())
+            _logger.debug("finished writing response to channel "  + channel);
 
         if ("close".equals(getHeaderValue(HEADER_CONNECTION))) {
             _logger.debug("closing channel");
@@ -134,7 +226,56 @@ public abstract class HttpResponse extends Response {
             _logger.debug("not closing channel");
         }
     }
-    
+
+    /**
+     * Writes the status line. The status line of a standard status is
+     * pre-encoded.
+     */
+    void writeStatusLine() throws IOException {
+        byte[] statusLine = HttpStatus.statusLine(status, message);
+        if (statusLine != null) {
+            writeBytes(statusLine);
+        } else {
+            writeAscii(PROTOCOL_VRESION_STRING);
+            writeAscii(SP);
+            writeAscii(Integer.toString(status));
+            writeAscii(SP);
+            writeAscii(message);
+            writeCRLF();
+        }
+    }
+
+    /**
+     * Writes each header separated by CRLF.
+     * Headers are written directly to the buffer. The names of common
+     * headers and some complete header lines are pre-encoded.
+     * A <code>Date</code> header is added unless one has been set.
+     */
+    void writeHeaders() throws IOException {
+        for (int i = 0; i < _headers.size(); i++) {
+            HttpHeader header = _headers.get(i);
+            byte[] line = header.getEncodedLine();
+            if (line != null) {
+                writeBytes(line);
+                continue;
+            }
+            byte[] name = header.getEncodedName();
+            if (name != null) {
+                writeBytes(name);
+            } else {
+                writeAscii(header.getName());
+                writeAscii(": ");
+            }
+            writeAscii(header.getValue());
+            writeCRLF();
+            if (_logger.isDebugEnabled())
+                _logger.debug("Header:" + header);
+        }
+        if (!_headers.contains(HEADER_DATE)) {
+            writeBytes(HttpDate.headerBytes());
+        }
+    }
+
     
     /**
      * Appends the given string to body of this response.
@@ -151,5 +292,35 @@ public abstract class HttpResponse extends Response {
     public abstract void setBody(Path path) throws IOException;
 
     protected abstract void writeBody() throws IOException;
+    
+    /**
+     * Affirms if the connection can carry another request after this 
+     * response has been received, as per its version and 
+     * <code>Connection</code> header. A response whose body ends when 
+     * the connection is closed can not.
+     */
+    @Override
+    protected boolean isKeepAlive() {
+        return _parser != null && _parser.isKeepAlive();
+    }
+    
+    /**
+     * Receives this response on a client, as far as the given channel 
+     * has bytes. The status and the headers are set on this response, 
+     * and the body is handed to the callback as it arrives.
+     * The bytes read after this response are kept as 
+     * {@link #setPipelined(java.nio.ByteBuffer) pipelined} for the next
+     * response.
+     * 
+     * @see HttpResponseParser
+     */
+    @Override
+    protected boolean receive(ByteChannel channel, ResponseCallback cb) 
+            throws IOException {
+        if (_parser == null) _parser = new HttpResponseParser(this, takePipelined());
+        if (!_parser.receive(channel, cb)) return false;
+        setPipelined(_parser.takePipelined());
+        return true;
+    }
 
 }
@@ -0,0 +1,302 @@
+package babble.net.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import babble.net.ChunkedDecoder;
+import babble.net.ResponseCallback;
+import babble.net.exception.ProtocolException;
+import babble.util.BufferPool;
+
+/**
+ * Parses a response received by a client from a non-blocking channel.
+ * <br>
+ * The parser consumes whatever bytes a channel has, and remembers where
+ * in the response it has stopped, so it runs on the i/o thread of a
+ * client across any number of partial reads. The status line and the
+ * headers are set on the response. The body is read as per
+ * <code>Content-Length</code>, decoded from chunked transfer coding, or
+ * read until the channel is closed. Each part of the body is handed to
+ * the callback as it arrives, hence the body is never buffered as a whole.
+ * A part is a slice of the buffer, hence it is not copied unless the
+ * callback copies it. The parser stops, with the rest of the bytes left in
+ * the buffer, while the callback is not {@link ResponseCallback#isReady()
+ * ready}.
+ * <br>
+ * The bytes are read into a pooled buffer that is held only while
+ * a response is being received. The status line and the headers must
+ * fit in that buffer. The bytes read after the response, i.e. the start
+ * of the next response to a pipelined request, are kept for the next 
+ * response.
+ *
+ * @author pinaki poddar
+ *
+ */
+final class HttpResponseParser {
+    private static final int HEAD = 0, LENGTH = 1, CHUNKED = 2, UNTIL_CLOSE = 3, DONE = 4;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    private final HttpResponse _response;
+    private ByteBuffer _buffer;
+    private int _state = HEAD;
+    private int _scanned;
+    private long _remaining;
+    private ChunkedDecoder _decoder;
+    private boolean _keepAlive;
+    private ByteBuffer _pipelined;
+
+    /**
+     * @param response the response to parse into
+     * @param pipelined the bytes of the response read with the previous
+     * response. Can be null.
+     */
+    HttpResponseParser(HttpResponse response, ByteBuffer pipelined) {
+        _response = response;
+        _pipelined = pipelined;
+    }
+
+    /**
+     * Reads the bytes available in the given channel and parses them.
+     *
+     * @param channel a channel, usually non-blocking
+     * @param cb if not null, receives the body as it arrives
+     * @return true if the response is complete. false if the channel has
+     * no more bytes for now, or the callback is not ready for more.
+     * @throws ProtocolException if the bytes are not a valid response
+     * @throws IOException if the channel is closed before the response
+     * is complete. An {@link EOFException} if the channel is closed before
+     * any byte of the response, e.g. a server closes an idle connection
+     * as a request is sent on it.
+     */
+    boolean receive(ReadableByteChannel channel, ResponseCallback cb) throws IOException {
+        if (_state == DONE) return true;
+        if (_buffer == null) {
+            _buffer = BufferPool.SHARED.acquire();
+            if (_pipelined != null) _buffer.put(_pipelined);
+            _pipelined = null;
+            _buffer.flip();
+        }
+        try {
+            while (true) {
+                if (cb != null && !cb.isReady()) return false;
+                int remaining = _buffer.remaining();
+                if (parse(cb)) {
+                    if (_buffer.hasRemaining()) {
+                        _pipelined = ByteBuffer.allocate(_buffer.remaining());
+                        _pipelined.put(_buffer).flip();
+                    }
+                    release();
+                    return true;
+                }
+                // parse again as long as the bytes in the buffer are consumed
+                if (_buffer.remaining() < remaining) continue;
+                _buffer.compact();
+                int n = channel.read(_buffer);
+                _buffer.flip();
+                if (n < 0) {
+                    if (_state == HEAD && !_buffer.hasRemaining())
+                        throw new EOFException("channel has been closed by remote"
+                            + " before the response");
+                    if (_state != UNTIL_CLOSE)
+                        throw new IOException("channel has been closed by remote"
+                            + " before the response is complete");
+                    deliver(cb, EMPTY, true);
+                    release();
+                    return true;
+                }
+                if (n == 0) return false;
+            }
+        } catch (IOException | RuntimeException ex) {
+            release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Releases the buffer, if any.
+     */
+    void release() {
+        if (_buffer != null) {
+            BufferPool.SHARED.release(_buffer);
+            _buffer = null;
+        }
+        _state = DONE;
+    }
+
+    /**
+     * Parses the bytes remaining in the buffer, up to one part of the body.
+     * @return true if the response is complete
+     */
+    private boolean parse(ResponseCallback cb) throws IOException {
+        if (_state == HEAD && !parseHead()) return false;
+        switch (_state) {
+        case LENGTH:
+            if (!_buffer.hasRemaining()) return false;
+            int n = (int)Math.min(_remaining, _buffer.remaining());
+            ByteBuffer data = _buffer.slice();
+            data.limit(n);
+            _buffer.position(_buffer.position() + n);
+            _remaining -= n;
+            deliver(cb, data, _remaining == 0);
+            return _remaining == 0;
+        case CHUNKED:
+            ByteBuffer chunk = _decoder.decode(_buffer);
+            if (chunk != null) {
+                // the last chunk is delivered as end of stream, if the
+                // end of the body has arrived as well
+                _decoder.skip(_buffer);
+                deliver(cb, chunk, _decoder.isComplete());
+            } else if (_decoder.isComplete()) {
+                deliver(cb, EMPTY, true);
+            }
+            return _decoder.isComplete();
+        case UNTIL_CLOSE:
+            if (_buffer.hasRemaining()) {
+                ByteBuffer rest = _buffer.slice();
+                _buffer.position(_buffer.limit());
+                deliver(cb, rest, false);
+            }
+            return false;
+        default:
+            deliver(cb, EMPTY, true);
+            return true;
+        }
+    }
+
+    /**
+     * Parses the status line and the headers, once the empty line that
+     * ends them has arrived. A provisional response of <code>1xx</code>
+     * status is skipped.
+     *
+     * @return false if the headers are yet to arrive
+     */
+    private boolean parseHead() throws ProtocolException {
+        while (true) {
+            int start = _buffer.position();
+            int end = endOfHead(_buffer, start + _scanned);
+            if (end < 0) {
+                if (_buffer.remaining() == _buffer.capacity())
+                    throw new ProtocolException("status line and headers exceed "
+                            + _buffer.capacity() + " bytes");
+                _scanned = Math.max(0, _buffer.remaining() - 3);
+                return false;
+            }
+            _scanned = 0;
+            // headers are decoded lazily from the bytes, so they are copied
+            byte[] head = new byte[end - start];
+            _buffer.get(head);
+            int eol = 0;
+            while (head[eol] != '\n') eol++;
+            parseStatusLine(new String(head, 0, eol > 0 && head[eol-1] == '\r' ? eol - 1 : eol,
+                    StandardCharsets.ISO_8859_1));
+            _response._headers.clear();
+            _response._headers.parse(head, eol + 1, head.length);
+            int status = _response.status;
+            if (status >= 100 && status < 200
+             && status != HttpConstants.STATUS_SWITCHING_PROTOCOLS) {
+                continue;
+            }
+            _state = bodyState();
+            _keepAlive = _state != UNTIL_CLOSE && isPersistent(head);
+            return true;
+        }
+    }
+
+    /**
+     * Takes the bytes read after the response has been complete.
+     *
+     * @return null if no byte has been read after the response
+     */
+    ByteBuffer takePipelined() {
+        ByteBuffer bytes = _state == DONE ? _pipelined : null;
+        if (bytes != null) _pipelined = null;
+        return bytes;
+    }
+
+    /**
+     * Affirms if the connection can carry another request after the 
+     * response has been received. 
+     */
+    boolean isKeepAlive() {
+        return _keepAlive;
+    }
+    
+    /**
+     * Affirms if the connection persists as per the version of the status
+     * line and <code>Connection</code> header. A HTTP/1.1 connection 
+     * persists unless closed, and a HTTP/1.0 connection only if kept alive.
+     */
+    private boolean isPersistent(byte[] head) {
+        String connection = _response.getHeaderValue(HttpConstants.HEADER_CONNECTION);
+        if (connection != null) {
+            connection = connection.toLowerCase(Locale.ENGLISH);
+            if (connection.contains("close")) return false;
+            if (connection.contains("keep-alive")) return true;
+        }
+        // HTTP/1.0 or earlier
+        return !(head.length > 7 && head[5] == '1' && head[6] == '.' && head[7] == '0');
+    }
+    
+    /**
+     * Decides how the body is to be read.
+     */
+    private int bodyState() throws ProtocolException {
+        if (!_response.hasBody() || "HEAD".equals(_response.getRequest().getMethod())) {
+            return DONE;
+        }
+        String encoding = _response.getHeaderValue(HttpConstants.HEADER_TRANSFER_ENCODING);
+        if (encoding != null && encoding.toLowerCase(Locale.ENGLISH).contains("chunked")) {
+            _decoder = new ChunkedDecoder();
+            return CHUNKED;
+        }
+        String length = _response.getHeaderValue(HttpConstants.HEADER_CONTENT_LENGTH);
+        if (length == null) return UNTIL_CLOSE;
+        try {
+            _remaining = Long.parseLong(length.trim());
+        } catch (NumberFormatException ex) {
+            _remaining = -1;
+        }
+        if (_remaining < 0)
+            throw new ProtocolException("invalid " + HttpConstants.HEADER_CONTENT_LENGTH
+                + " " + length);
+        return _remaining == 0 ? DONE : LENGTH;
+    }
+
+    /**
+     * Parses a status line such as <code>HTTP/1.1 404 Not Found</code>.
+     * The reason phrase may be empty.
+     */
+    private void parseStatusLine(String line) throws ProtocolException {
+        int sp = line.indexOf(' ');
+        if (!line.startsWith("HTTP/") || sp < 0 || line.length() < sp + 4)
+            throw new ProtocolException("invalid status line [" + line + "]");
+        int status = 0;
+        for (int i = sp + 1; i < sp + 4; i++) {
+            int digit = Character.digit(line.charAt(i), 10);
+            if (digit < 0) throw new ProtocolException("invalid status line [" + line + "]");
+            status = 10*status + digit;
+        }
+        String reason = line.length() > sp + 5 ? line.substring(sp + 5) : "";
+        _response.setStatus(status, reason);
+    }
+
+    /**
+     * Finds the empty line that ends the headers.
+     * @return position after the empty line, or -1 if not found
+     */
+    private static int endOfHead(ByteBuffer buf, int from) {
+        for (int i = from; i + 3 < buf.limit(); i++) {
+            if (buf.get(i) == '\r' && buf.get(i+1) == '\n'
+             && buf.get(i+2) == '\r' && buf.get(i+3) == '\n') return i + 4;
+        }
+        return -1;
+    }
+
+    private static void deliver(ResponseCallback cb, ByteBuffer data, boolean eos) {
+        if (cb != null) cb.onResponse(data, eos);
+    }
+}
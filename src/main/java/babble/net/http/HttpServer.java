@@ -1,8 +1,16 @@
 package babble.net.http;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import babble.net.NioServer;
+import babble.net.Route;
 
 public class HttpServer extends NioServer<HttpRequest,HttpResponse> {
+    private final CopyOnWriteArrayList<EventTopic> _topics = 
+            new CopyOnWriteArrayList<EventTopic>();
     
     /**
      * Runs a HTTP server that has no registered operation,
@@ -11,30 +19,71 @@ public class HttpServer extends NioServer<HttpRequest,HttpResponse> {
      * @throws Exception
      */
     public static void main(String[] args) throws Exception {
-        if (args.length != 1) {
+        if (args.length != 1 && args.length != 2) {
             System.err.println("***Missing argument");
             System.err.println(HttpServer.class.getSimpleName() 
                     + " - runs a HTTP server on this host");
-            System.err.println("Usage: " + HttpServer.class.getName() + " port");
+            System.err.println("Usage: " + HttpServer.class.getName() + " port [directory]");
             System.err.println("where");
             System.err.println("\tport listen port of HTTP server");
+            System.err.println("\tdirectory if given, files of the directory are packed"
+                    + " at startup and served from memory");
             System.exit(1);
         }
         
         int port = Integer.parseInt(args[0]);
 
         HttpServer server = new HttpServer("HttpServer", port);
-        server.addRoute(new DefaultGet());
+        if (args.length == 2) {
+            Path pack = Files.createTempFile("babble", ".pack");
+            pack.toFile().deleteOnExit();
+            AssetPack.build(Paths.get(args[1]), pack);
+            server.addRoute(new DefaultGet(AssetPack.open(pack)));
+        } else {
+            server.addRoute(new DefaultGet());
+        }
         
         server.start();
     }
     
     public HttpServer(String serverName, int port) {
-        super(serverName, port, new HttpProtocol());
+        this(serverName, port, new HttpProtocol());
+    }
+    
+    /**
+     * Creates a server of given flavor of HTTP, e.g. a cleartext HTTP/2
+     * protocol.
+     */
+    public HttpServer(String serverName, int port, HttpProtocol protocol) {
+        super(serverName, port, protocol);
     }
     
     public HttpServer(int port) {
         this("HttpServer", port);
     }
 
+    /**
+     * Adds given route. The topic of an {@link EventRoute event route}
+     * receives heartbeats from this server.
+     */
+    @Override
+    public void addRoute(Route<HttpRequest,HttpResponse> route) {
+        super.addRoute(route);
+        if (route instanceof EventRoute) {
+            _topics.addIfAbsent(((EventRoute)route).getTopic());
+        }
+    }
+
+    /**
+     * Refreshes the pre-encoded <code>Date</code> header every second,
+     * and sends heartbeats to the subscribers of event topics.
+     */
+    @Override
+    protected void tick(long now) {
+        HttpDate.refresh(now);
+        for (EventTopic topic : _topics) {
+            topic.heartbeat(now);
+        }
+    }
+
 }
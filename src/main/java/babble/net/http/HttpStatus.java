@@ -0,0 +1,93 @@
+package babble.net.http;
+
+import static babble.net.http.HttpConstants.CRLF;
+import static babble.net.http.HttpConstants.PROTOCOL_VRESION_STRING;
+import static babble.net.http.HttpConstants.SP;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Standard HTTP status codes with their reason phrase.
+ * <br>
+ * The status line of a response e.g. <code>HTTP/1.1 200 OK CRLF</code>
+ * is encoded once for every standard status code. A response writes these
+ * pre-encoded bytes instead of building the status line for every response.
+ *
+ * @author pinaki poddar
+ *
+ */
+final class HttpStatus {
+    private static final int MAX_STATUS = 600;
+    private static final String[] REASONS = new String[MAX_STATUS];
+    private static final byte[][] STATUS_LINES = new byte[MAX_STATUS][];
+
+    static {
+        define(100, "Continue");
+        define(101, "Switching Protocols");
+        define(200, "OK");
+        define(201, "Created");
+        define(202, "Accepted");
+        define(204, "No Content");
+        define(206, "Partial Content");
+        define(301, "Moved Permanently");
+        define(302, "Found");
+        define(304, "Not Modified");
+        define(400, "Bad Request");
+        define(401, "Unauthorized");
+        define(403, "Forbidden");
+        define(404, "Not Found");
+        define(405, "Method Not Allowed");
+        define(408, "Request Timeout");
+        define(411, "Length Required");
+        define(412, "Precondition Failed");
+        define(413, "Payload Too Large");
+        define(414, "URI Too Long");
+        define(416, "Range Not Satisfiable");
+        define(421, "Misdirected Request");
+        define(426, "Upgrade Required");
+        define(500, "Internal Server Error");
+        define(501, "Not Implemented");
+        define(503, "Service Unavailable");
+        define(505, "HTTP Version Not Supported");
+    }
+
+    private HttpStatus() {
+    }
+
+    private static void define(int status, String reason) {
+        REASONS[status] = reason;
+        STATUS_LINES[status] = (PROTOCOL_VRESION_STRING + SP + status
+                + SP + reason + CRLF).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Gets the standard reason phrase of the given status.
+     *
+     * @param status a HTTP status code
+     * @return null if the status is not a standard status
+     */
+    static String reason(int status) {
+        return (status < 0 || status >= MAX_STATUS) ? null : REASONS[status];
+    }
+
+    /**
+     * Gets pre-encoded status line for given status and message.
+     *
+     * @param status a HTTP status code
+     * @param message a message. If null or empty, the standard reason
+     * phrase is assumed.
+     *
+     * @return the bytes of the status line terminated with CRLF.
+     * null if the status is not a standard status or the message is
+     * not the standard reason phrase.
+     */
+    static byte[] statusLine(int status, String message) {
+        String reason = reason(status);
+        if (reason == null) return null;
+        if (message == null || message.isEmpty()
+         || reason.equalsIgnoreCase(message)) {
+            return STATUS_LINES[status];
+        }
+        return null;
+    }
+}
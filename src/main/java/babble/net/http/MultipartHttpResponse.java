@@ -3,16 +3,13 @@ package babble.net.http;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.channels.ByteChannel;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.LinkedList;
 
-import babble.net.ResponseCallback;
 
 @SuppressWarnings("serial")
 public class MultipartHttpResponse extends HttpResponse {
-    LinkedList<Object> _parts;
+    final LinkedList<Object> _parts = new LinkedList<Object>();
 
     public MultipartHttpResponse(HttpRequest request) {
         super(request);
@@ -22,14 +19,19 @@ public class MultipartHttpResponse extends HttpResponse {
     /**
      * Adds content to a part of a multi-part response.
      * @param index 0-based index of the part where content is to be added.
-     * A part will be created if it does not exist
-     * @param content the content to be set or appended to the part
+     * A part will be created if it does not exist. Missing parts before
+     * the index are created empty, so parts may be added in any order.
+     * @param content the content to be set or appended to the part. 
+     * A file is kept as a path, and is read as the part is written, 
+     * asynchronously if the response is written to a 
+     * {@link babble.net.WriteQueue}. 
      */
-    public void addPart(int index, Object content) throws IOException {
+    public synchronized void addPart(int index, Object content) throws IOException {
+        while (_parts.size() <= index) _parts.add(null);
         Object part = _parts.get(index);
         if (part == null) {
             assertContentAllowedInParts(content);
-            _parts.add(index, convertToAllowedContentType(content));
+            _parts.set(index, convertToAllowedContentType(content));
         } else {
             appendContentToPart(content, part);
         }
@@ -51,9 +53,7 @@ public class MultipartHttpResponse extends HttpResponse {
     
     Object convertToAllowedContentType(Object content) throws IOException {
         if (InputStream.class.isInstance(content)) return content;
-        if (Path.class.isInstance(content)) {
-            return Files.newInputStream((Path)content);
-        }
+        if (Path.class.isInstance(content)) return content;
         if (StringBuilder.class.isInstance(content)) {
             return content;
         }
@@ -70,7 +70,7 @@ public class MultipartHttpResponse extends HttpResponse {
     }
     
     void appendContentToPart(Object content, Object part) throws IOException {
-        if (InputStream.class.isInstance(part)) {
+        if (InputStream.class.isInstance(part) || Path.class.isInstance(part)) {
             throw new IllegalArgumentException("Can not add content to stream part");
         } else {
             StringBuilder existing = (StringBuilder)part;
@@ -97,8 +97,12 @@ public class MultipartHttpResponse extends HttpResponse {
         _logger.debug("writing body "+ _parts.size() + " parts");
         for (int i = 0; i < _parts.size(); i++) {
             Object part = _parts.get(i);
-            if (part instanceof StringBuilder) {
+            if (part == null) {
+                continue;
+            } else if (part instanceof StringBuilder) {
                 writeStringInChunks(part.toString());
+            } else if (part instanceof Path) {
+                writeStream((Path)part);
             } else if (part instanceof InputStream) {
                 writeStream((InputStream)part);
             } else {
@@ -109,11 +113,6 @@ public class MultipartHttpResponse extends HttpResponse {
         writeChunk(new byte[0]);
     }
 
-    @Override
-    protected void receive(ByteChannel channel, ResponseCallback cb) {
-        // TODO Auto-generated method stub
-        
-    }
 
 
     @Override
@@ -128,8 +127,13 @@ public class MultipartHttpResponse extends HttpResponse {
     }
     
     
-    public void addFailedPart(int index, Exception ex) {
-        _parts.get(index);
+    /**
+     * Marks the part at the given index as failed. A failed part is left
+     * empty, and is not written.
+     */
+    public synchronized void addFailedPart(int index, Exception ex) {
+        _logger.warn("part " + index + " failed: " + ex);
+        while (_parts.size() <= index) _parts.add(null);
     }
 
 }
@@ -0,0 +1,72 @@
+package babble.net.http;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes percent-encoded regions of a request target.
+ * <br>
+ * A request target is decoded from the network as ISO-8859-1, so each
+ * character of the target stands for a single byte. A decoded region is
+ * read as UTF-8 bytes. A region that has no escape sequence and only ASCII
+ * characters, which is the common case, is returned without copying the
+ * characters. An invalid escape sequence is kept as it is.
+ *
+ * @author pinaki poddar
+ *
+ */
+final class PercentDecoder {
+    private PercentDecoder() {
+    }
+
+    /**
+     * Decodes the given region of a string.
+     *
+     * @param s a percent-encoded string
+     * @param start index of the first character of the region
+     * @param end index after the last character of the region
+     * @param plusAsSpace decode <code>+</code> as a space as in a query string
+     * @return the decoded region
+     */
+    static String decode(String s, int start, int end, boolean plusAsSpace) {
+        if (isPlain(s, start, end, plusAsSpace)) {
+            return s.substring(start, end);
+        }
+        byte[] bytes = new byte[end - start];
+        int n = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '%' && i + 2 < end) {
+                int hi = Character.digit(s.charAt(i+1), 16);
+                int lo = Character.digit(s.charAt(i+2), 16);
+                if (hi >= 0 && lo >= 0) {
+                    bytes[n++] = (byte)((hi << 4) | lo);
+                    i += 2;
+                    continue;
+                }
+            }
+            bytes[n++] = c == '+' && plusAsSpace ? (byte)' ' : (byte)c;
+        }
+        return new String(bytes, 0, n, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Affirms if the given region decodes to the given string.
+     * A region without escape sequence is compared without decoding.
+     */
+    static boolean matches(String s, int start, int end, String decoded,
+            boolean plusAsSpace) {
+        if (isPlain(s, start, end, plusAsSpace)) {
+            return end - start == decoded.length()
+                && s.regionMatches(start, decoded, 0, decoded.length());
+        }
+        return decode(s, start, end, plusAsSpace).equals(decoded);
+    }
+
+    private static boolean isPlain(String s, int start, int end, boolean plusAsSpace) {
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '%' || c >= 0x80 || (c == '+' && plusAsSpace)) return false;
+        }
+        return true;
+    }
+}
@@ -1,33 +1,57 @@
 package babble.net.http;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.zip.Deflater;
 
-import babble.net.ResponseCallback;
+import babble.util.DeflaterPool;
 
 @SuppressWarnings("serial")
 public class SinglePartHttpResponse extends HttpResponse {
     private Object _body;
+    private long _length = -1;
+    private boolean _compressible = true;
+    private String _encoding;
     
     public SinglePartHttpResponse(HttpRequest request) {
         super(request);
     }
-
     
-
+    /**
+     * Creates a response for the given request, or reuses the response 
+     * that has been {@link babble.net.NioServer#setRecycling(boolean) 
+     * recycled} with the request.
+     * 
+     * @param request a request. must not be null.
+     */
+    public static SinglePartHttpResponse newInstance(HttpRequest request) {
+        SinglePartHttpResponse response = request == null ? null 
+                : request.takeRecycledResponse();
+        return response != null ? response : new SinglePartHttpResponse(request);
+    }
+    
     @Override
-    protected void receive(ByteChannel channel, ResponseCallback cb) {
-        // TODO Auto-generated method stub
-        
+    protected void recycle() {
+        super.recycle();
+        _body = null;
+        _length = -1;
+        _compressible = true;
+        _encoding = null;
     }
 
+    
+
+
 
 
     @Override
     public void appendBody(String body) throws IOException {
+        assertLive();
         if (_body == null) {
             _body = new StringBuilder(body);
         } else if (_body instanceof StringBuilder){
@@ -40,20 +64,197 @@ public class SinglePartHttpResponse extends HttpResponse {
 
 
 
+    /**
+     * Sets the given file as body of this response. The file is 
+     * transferred to the channel without copying it to a buffer.
+     */
     @Override
     public void setBody(Path path) throws IOException {
-        _body = Files.newInputStream(path);
+        _length = Files.size(path);
+        _body = new FileRegion(path, 0, _length);
+    }
+
+    /**
+     * Sets the given buffer as body of this response.
+     * The remaining bytes of the buffer are written without a copy, 
+     * so the buffer must not be modified until the response is sent.
+     * A buffer shared by many responses must be {@link ByteBuffer#duplicate()
+     * duplicated} for each response.
+     * 
+     * @param buffer a buffer
+     */
+    public void setBody(ByteBuffer buffer) {
+        _body = buffer;
     }
 
 
 
+    /**
+     * Sets a region of the given file as body of this response.
+     * The region is transferred from the file to the channel without 
+     * copying it to a buffer. 
+     * 
+     * @param path a file
+     * @param position offset of the first byte of the region in the file
+     * @param count number of bytes in the region
+     */
+    public void setBody(Path path, long position, long count) {
+        _length = -1;
+        _body = new FileRegion(path, position, count);
+    }
+
+    /**
+     * Sets whether the body of this response may be compressed. 
+     * By default, a body of compressible content type and of at least 
+     * {@link ContentCoding#MIN_SIZE minimum size} is compressed if the 
+     * request accepts <code>gzip</code> or <code>deflate</code> coding.
+     * A compressed body is sent in chunks.
+     */
+    public void setCompressible(boolean compressible) {
+        _compressible = compressible;
+    }
+    
+    @Override
+    public void send(ByteChannel channel) throws IOException {
+        _encoding = negotiateEncoding();
+        if (_encoding != null) {
+            _headers.remove(HttpConstants.HEADER_CONTENT_LENGTH);
+            putHeader(ContentCoding.GZIP.equals(_encoding) 
+                    ? HttpHeader.CONTENT_ENCODING_GZIP 
+                    : HttpHeader.CONTENT_ENCODING_DEFLATE);
+            putHeader(HttpHeader.VARY_ACCEPT_ENCODING);
+        }
+        super.send(channel);
+    }
+    
+    /**
+     * Chooses a content coding for the body.
+     * @return null if the body is not to be compressed
+     */
+    String negotiateEncoding() {
+        if (!_compressible || !hasBody() 
+          || _headers.contains(HttpConstants.HEADER_CONTENT_ENCODING)) {
+            return null;
+        }
+        Object contentType = getHeaderValue(HttpConstants.HEADER_CONTENT_TYPE);
+        if (contentType == null 
+         || !ContentCoding.isCompressible(contentType.toString())) {
+            return null;
+        }
+        long length = -1;
+        if (_body instanceof StringBuilder) {
+            length = ((StringBuilder)_body).length();
+        } else if (_body instanceof ByteBuffer) {
+            length = ((ByteBuffer)_body).remaining();
+        } else if (_body instanceof FileRegion 
+                && ((FileRegion)_body).count == _length) {
+            length = _length;
+        }
+        if (length < ContentCoding.MIN_SIZE) return null;
+        HttpHeader acceptEncoding = getRequest().getHeader(HttpConstants.HEADER_ACCEPT_ENCODING);
+        return acceptEncoding == null ? null 
+                : ContentCoding.negotiate(acceptEncoding.getValue());
+    }
+
     @Override
     protected void writeBody() throws IOException {
+        if (_encoding != null) {
+            writeCompressedBody();
+            return;
+        }
+        boolean chunked = isChunked();
         if (_body instanceof StringBuilder) {
-            writeStringInChunks(_body.toString());
-        } else if (_body instanceof InputStream) {
-            writeStream((InputStream)_body);
+            if (chunked) {
+                writeStringInChunks(getCharset(), _body.toString());
+            } else {
+                writeString(getCharset(), _body.toString());
+            }
+        } else if (_body instanceof ByteBuffer 
+                && ((ByteBuffer)_body).hasRemaining()) {
+            if (chunked) {
+                writeChunk((ByteBuffer)_body);
+            } else {
+                writeBytes((ByteBuffer)_body);
+            }
+        } else if (_body instanceof FileRegion) {
+            FileRegion region = (FileRegion)_body;
+            if (chunked && region.count > 0) {
+                writeAscii(Long.toHexString(region.count));
+                writeCRLF();
+            }
+            writeFile(region.path, region.position, region.count);
+            if (chunked && region.count > 0) {
+                writeCRLF();
+            }
+        }
+        if (chunked) {
+            writeChunk(new byte[0]);
         }
     }
 
+    /**
+     * Writes the body compressed in chunks with a pooled deflater.
+     * A buffer body is read from a duplicate, so that a buffer shared by 
+     * many responses is neither copied nor moved.
+     */
+    void writeCompressedBody() throws IOException {
+        InputStream in;
+        if (_body instanceof StringBuilder) {
+            in = new ByteArrayInputStream(_body.toString().getBytes(getCharset()));
+        } else if (_body instanceof ByteBuffer) {
+            in = newInputStream(((ByteBuffer)_body).duplicate());
+        } else {
+            // the file is read as it is compressed, off the i/o thread
+            FileRegion region = (FileRegion)_body;
+            writeDeflatedFile(region.path, region.position, region.count,
+                    ContentCoding.pool(_encoding), ContentCoding.GZIP.equals(_encoding));
+            writeChunk(new byte[0]);
+            return;
+        }
+        DeflaterPool pool = ContentCoding.pool(_encoding);
+        Deflater deflater = pool.acquire();
+        try {
+            writeDeflatedChunks(in, deflater, ContentCoding.GZIP.equals(_encoding));
+        } finally {
+            pool.release(deflater);
+            in.close();
+        }
+        writeChunk(new byte[0]);
+    }
+
+    /**
+     * Gets a stream of the remaining bytes of the given buffer, which is 
+     * read in place.
+     */
+    private static InputStream newInputStream(ByteBuffer buf) {
+        return new InputStream() {
+            @Override
+            public int read() {
+                return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) {
+                if (!buf.hasRemaining()) return -1;
+                int n = Math.min(length, buf.remaining());
+                buf.get(bytes, offset, n);
+                return n;
+            }
+        };
+    }
+
+    /**
+     * A region of a file.
+     */
+    private static class FileRegion {
+        final Path path;
+        final long position;
+        final long count;
+        
+        FileRegion(Path path, long position, long count) {
+            this.path = path;
+            this.position = position;
+            this.count = count;
+        }
+    }
 }
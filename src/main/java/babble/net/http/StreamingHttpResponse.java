@@ -0,0 +1,275 @@
+package babble.net.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import babble.net.ResponseCallback;
+import babble.net.WriteQueue;
+
+/**
+ * A response whose body is written incrementally by a route while it
+ * executes.
+ * <br>
+ * The first {@link #write(ByteBuffer) write} sends the status line and
+ * headers, and each write sends a chunk to the {@link WriteQueue queue}
+ * of the connection immediately. Hence the client receives the first bytes
+ * before the route has computed the complete response, and the response is
+ * never held in memory as a whole. The route must {@link #end() end} the
+ * response after the last write.
+ * <br>
+ * A write waits if the client does not read as fast as the route writes,
+ * i.e. the queue of the connection is {@link WriteQueue#isWritable() full},
+ * till the queue drains. A route that must not block can check
+ * {@link #isWritable()} before writing.
+ * <br>
+ * A route may also return the response before ending it, and continue
+ * writing from another thread. The server reads no further request on the
+ * connection until the response has ended.
+ * <br>
+ * The methods of this response are thread-safe. A write waits for the
+ * queue to drain without holding the lock of this response, because the
+ * i/o thread that drains the queue also {@link #send(ByteChannel) sends}
+ * this response.
+ *
+ * <pre>
+ *   StreamingHttpResponse response = new StreamingHttpResponse(request);
+ *   response.addHeader("Content-Type", "text/csv");
+ *   for (Row row : rows) {
+ *       response.write(row.toString());
+ *   }
+ *   response.end();
+ *   return response;
+ * </pre>
+ *
+ * @author pinaki poddar
+ *
+ */
+@SuppressWarnings("serial")
+public class StreamingHttpResponse extends HttpResponse {
+    public static final long DEFAULT_WRITE_TIMEOUT = 30*1000;
+
+    private long _writeTimeout = DEFAULT_WRITE_TIMEOUT;
+    private boolean _started;
+    private boolean _ended;
+
+    /**
+     * Creates a response for given request.
+     *
+     * @param request a request received by a server, hence has a
+     * {@link HttpRequest#getWriteQueue() queue} to write to.
+     */
+    public StreamingHttpResponse(HttpRequest request) {
+        super(request);
+    }
+
+    /**
+     * Sets maximum time in milliseconds a write waits for the queue of
+     * the connection to drain.
+     */
+    public void setWriteTimeout(long timeout) {
+        _writeTimeout = timeout;
+    }
+
+    /**
+     * Affirms if a write would not wait.
+     */
+    public boolean isWritable() {
+        WriteQueue queue = getRequest().getWriteQueue();
+        return queue == null || queue.isWritable();
+    }
+
+    /**
+     * Affirms if the status line and headers have been sent. Headers can
+     * not be added after the response has started.
+     */
+    public synchronized boolean isStarted() {
+        return _started;
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        if (isStarted())
+            throw new IllegalStateException("can not add header " + name
+                    + " after response has started");
+        super.addHeader(name, value);
+    }
+
+    /**
+     * Sends the status line and headers now, without any body.
+     * No action is taken if the response has already started.
+     */
+    public synchronized void commit() throws IOException {
+        start(null);
+    }
+
+    /**
+     * Writes the remaining bytes of given buffer as a chunk.
+     * Waits if the connection is not writable.
+     *
+     * @throws IOException if the chunk can not be written, or the
+     * connection does not drain in {@link #setWriteTimeout(long) time}
+     */
+    public StreamingHttpResponse write(ByteBuffer bytes) throws IOException {
+        if (!bytes.hasRemaining()) {
+            synchronized (this) {
+                assertNotEnded();
+            }
+            return this;
+        }
+        awaitWritable(begin());
+        synchronized (this) {
+            assertNotEnded();
+            writeChunk(bytes);
+            flush();
+        }
+        return this;
+    }
+
+    /**
+     * Writes the given bytes as a chunk.
+     */
+    public StreamingHttpResponse write(byte[] bytes) throws IOException {
+        return write(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Writes the given string in UTF-8 as a chunk.
+     */
+    public StreamingHttpResponse write(String s) throws IOException {
+        return write(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Ends this response. Sends the last chunk.
+     * No action is taken if this response has already ended.
+     */
+    public synchronized void end() throws IOException {
+        if (_ended) return;
+        start(null);
+        _ended = true;
+        if (hasBody()) {
+            writeChunk(new byte[0]);
+        }
+        flush();
+        if ("close".equals(getHeaderValue(HttpConstants.HEADER_CONNECTION))) {
+            getChannel().close();
+        } else if (getChannel() instanceof WriteQueue) {
+            // the server resumes reading the connection once drained
+            ((WriteQueue)getChannel()).requestDrain();
+        }
+    }
+
+    /**
+     * Affirms if this response has ended.
+     */
+    @Override
+    public synchronized boolean isComplete() {
+        return _ended;
+    }
+
+    /**
+     * Appends the given string as a chunk.
+     */
+    @Override
+    public void appendBody(String body) throws IOException {
+        write(body);
+    }
+
+    /**
+     * Writes content of the given file as a chunk. The file is read
+     * asynchronously as the connection drains.
+     */
+    @Override
+    public void setBody(Path path) throws IOException {
+        awaitWritable(begin());
+        synchronized (this) {
+            assertNotEnded();
+            writeStream(path);
+            flush();
+        }
+    }
+
+    /**
+     * Sends the status line and headers, unless already sent.
+     * The route writes the body.
+     */
+    @Override
+    public synchronized void send(ByteChannel channel) throws IOException {
+        start(channel);
+    }
+
+    /**
+     * Sends the status line and headers once.
+     *
+     * @param channel the channel to write. If null, the queue of the
+     * connection.
+     */
+    private void start(ByteChannel channel) throws IOException {
+        if (_started) return;
+        if (channel == null) channel = getRequest().getWriteQueue();
+        if (channel == null)
+            throw new IllegalStateException(this + " can not be streamed because"
+                    + " request is not received by a server");
+        setChannel(channel);
+        _started = true;
+        addConnectionHeader();
+        _headers.remove(HttpConstants.HEADER_CONTENT_LENGTH);
+        if (hasBody()) {
+            putHeader(HttpHeader.TRANSFER_ENCODING_CHUNKED);
+        }
+        writeStatusLine();
+        writeHeaders();
+        writeCRLF();
+        flush();
+    }
+
+    /**
+     * Starts this response, unless already started, for a write.
+     *
+     * @return the channel to write
+     */
+    private synchronized ByteChannel begin() throws IOException {
+        assertNotEnded();
+        start(null);
+        return getChannel();
+    }
+
+    /**
+     * Waits for the given channel to drain, if it is a queue. Must not be
+     * called while holding the lock of this response.
+     */
+    private void awaitWritable(ByteChannel channel) throws IOException {
+        if (!(channel instanceof WriteQueue)) return;
+        try {
+            if (!((WriteQueue)channel).awaitWritable(_writeTimeout)) {
+                throw new IOException(channel + " did not drain in "
+                        + _writeTimeout + " ms");
+            }
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("interrupted while waiting for "
+                    + channel + " to drain");
+        }
+    }
+
+    private void assertNotEnded() {
+        if (_ended)
+            throw new IllegalStateException("can not write after response has ended");
+    }
+
+    /**
+     * The body has been written by the route.
+     */
+    @Override
+    protected void writeBody() throws IOException {
+    }
+
+    @Override
+    protected boolean receive(ByteChannel channel, ResponseCallback cb) {
+        throw new UnsupportedOperationException(getClass().getSimpleName()
+                + " is written by a server, and is never received");
+    }
+}
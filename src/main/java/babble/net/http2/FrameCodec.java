@@ -0,0 +1,207 @@
+package babble.net.http2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import babble.net.exception.ProtocolException;
+
+/**
+ * Encodes and decodes HTTP/2 frames as per
+ * <a href="https://tools.ietf.org/html/rfc7540#section-4">RFC 7540</a>.
+ * <br>
+ * The decoder is non-blocking and resumable: it {@link #decode(ByteBuffer)
+ * consumes} whatever bytes have been read, and a frame split across reads
+ * is resumed when more bytes arrive. A frame that is complete in the input
+ * buffer is passed to the {@link Handler handler} as a slice of the input
+ * buffer without a copy.
+ * <br>
+ * A decoder is not thread-safe.
+ *
+ * @author pinaki poddar
+ *
+ */
+final class FrameCodec {
+    static final int HEADER_LENGTH = 9;
+    static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    static final int MAX_FRAME_SIZE_LIMIT = (1 << 24) - 1;
+    static final int DEFAULT_WINDOW_SIZE = 65535;
+    static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+    static final int DATA          = 0x0;
+    static final int HEADERS       = 0x1;
+    static final int PRIORITY      = 0x2;
+    static final int RST_STREAM    = 0x3;
+    static final int SETTINGS      = 0x4;
+    static final int PUSH_PROMISE  = 0x5;
+    static final int PING          = 0x6;
+    static final int GOAWAY        = 0x7;
+    static final int WINDOW_UPDATE = 0x8;
+    static final int CONTINUATION  = 0x9;
+
+    static final int FLAG_END_STREAM  = 0x1;
+    static final int FLAG_ACK         = 0x1;
+    static final int FLAG_END_HEADERS = 0x4;
+    static final int FLAG_PADDED      = 0x8;
+    static final int FLAG_PRIORITY    = 0x20;
+
+    static final int SETTINGS_HEADER_TABLE_SIZE      = 0x1;
+    static final int SETTINGS_ENABLE_PUSH            = 0x2;
+    static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE    = 0x4;
+    static final int SETTINGS_MAX_FRAME_SIZE         = 0x5;
+    static final int SETTINGS_MAX_HEADER_LIST_SIZE   = 0x6;
+
+    static final int NO_ERROR            = 0x0;
+    static final int PROTOCOL_ERROR      = 0x1;
+    static final int INTERNAL_ERROR      = 0x2;
+    static final int FLOW_CONTROL_ERROR  = 0x3;
+    static final int STREAM_CLOSED       = 0x5;
+    static final int FRAME_SIZE_ERROR    = 0x6;
+    static final int REFUSED_STREAM      = 0x7;
+    static final int CANCEL              = 0x8;
+    static final int COMPRESSION_ERROR   = 0x9;
+
+    /**
+     * Receives the decoded frames.
+     */
+    interface Handler {
+        /**
+         * Receives a frame.
+         *
+         * @param payload the payload. Valid only during the call.
+         */
+        void frame(int type, int flags, int streamId, ByteBuffer payload)
+                throws IOException;
+    }
+
+    private final Handler _handler;
+    private final int _maxFrameSize;
+    private final ByteBuffer _header = ByteBuffer.allocate(HEADER_LENGTH);
+    private int _type;
+    private int _flags;
+    private int _streamId;
+    private ByteBuffer _payload;
+
+    /**
+     * Creates a codec.
+     *
+     * @param handler receives the decoded frames
+     * @param maxFrameSize maximum payload length of a frame received
+     */
+    FrameCodec(Handler handler, int maxFrameSize) {
+        _handler = handler;
+        _maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Decodes the remaining bytes of the given buffer. All bytes are
+     * consumed. The handler is invoked for every complete frame.
+     *
+     * @throws ProtocolException if a frame is too large. The error code is
+     * a HTTP/2 error code.
+     */
+    void decode(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            if (_payload != null) {
+                int n = Math.min(in.remaining(), _payload.remaining());
+                ByteBuffer part = in.duplicate();
+                part.limit(part.position() + n);
+                _payload.put(part);
+                in.position(in.position() + n);
+                if (_payload.hasRemaining()) return;
+                _payload.flip();
+                ByteBuffer payload = _payload;
+                _payload = null;
+                _handler.frame(_type, _flags, _streamId, payload);
+                continue;
+            }
+            while (_header.hasRemaining() && in.hasRemaining()) {
+                _header.put(in.get());
+            }
+            if (_header.hasRemaining()) return;
+            _header.flip();
+            int length = ((_header.get() & 0xFF) << 16) | ((_header.get() & 0xFF) << 8)
+                       | (_header.get() & 0xFF);
+            _type = _header.get() & 0xFF;
+            _flags = _header.get() & 0xFF;
+            _streamId = _header.getInt() & 0x7FFFFFFF;
+            _header.clear();
+            if (length > _maxFrameSize)
+                throw error(FRAME_SIZE_ERROR, "frame of " + length
+                        + " bytes exceeds " + _maxFrameSize + " bytes");
+            if (in.remaining() >= length) {
+                ByteBuffer payload = in.duplicate();
+                payload.limit(payload.position() + length);
+                in.position(in.position() + length);
+                _handler.frame(_type, _flags, _streamId, payload.slice());
+            } else {
+                _payload = ByteBuffer.allocate(length);
+            }
+        }
+    }
+
+    static ProtocolException error(int code, String message) {
+        return new ProtocolException(message).setErrorCode(code);
+    }
+
+    /**
+     * Writes a frame header.
+     */
+    static void writeHeader(ByteBuffer dst, int length, int type, int flags, int streamId) {
+        dst.put((byte)(length >>> 16)).put((byte)(length >>> 8)).put((byte)length);
+        dst.put((byte)type).put((byte)flags).putInt(streamId & 0x7FFFFFFF);
+    }
+
+    /**
+     * Encodes a frame in a buffer.
+     *
+     * @param payload the payload. Its position is not advanced.
+     * @return a buffer ready to be read
+     */
+    static ByteBuffer encode(int type, int flags, int streamId, ByteBuffer payload) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + payload.remaining());
+        writeHeader(frame, payload.remaining(), type, flags, streamId);
+        frame.put(payload.duplicate());
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Removes the padding, if any, of a DATA or HEADERS frame.
+     *
+     * @return the payload without padding
+     */
+    static ByteBuffer unpad(int flags, ByteBuffer payload) throws ProtocolException {
+        if ((flags & FLAG_PADDED) == 0) return payload;
+        if (!payload.hasRemaining()) throw error(PROTOCOL_ERROR, "missing pad length");
+        int pad = payload.get() & 0xFF;
+        if (pad > payload.remaining()) throw error(PROTOCOL_ERROR, "invalid padding");
+        payload.limit(payload.limit() - pad);
+        return payload;
+    }
+
+    /**
+     * Encodes a SETTINGS payload.
+     *
+     * @param settings identifiers and values in alternate order
+     */
+    static ByteBuffer settings(int... settings) {
+        ByteBuffer payload = ByteBuffer.allocate(settings.length/2*6);
+        for (int i = 0; i < settings.length; i += 2) {
+            payload.putShort((short)settings[i]).putInt(settings[i+1]);
+        }
+        payload.flip();
+        return payload;
+    }
+
+    /**
+     * Encodes a WINDOW_UPDATE frame.
+     */
+    static ByteBuffer windowUpdate(int streamId, int increment) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + 4);
+        writeHeader(frame, 4, WINDOW_UPDATE, 0, streamId);
+        frame.putInt(increment);
+        frame.flip();
+        return frame;
+    }
+}
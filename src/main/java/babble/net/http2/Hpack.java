@@ -0,0 +1,330 @@
+package babble.net.http2;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import babble.net.exception.ProtocolException;
+
+/**
+ * Header compression for HTTP/2 as per
+ * <a href="https://tools.ietf.org/html/rfc7541">RFC 7541</a>: the static
+ * table, the dynamic table, and the coding of integers and strings shared
+ * by the {@link HpackEncoder encoder} and the {@link HpackDecoder decoder}.
+ * <br>
+ * Header names and values are octets, and are mapped one to one to the
+ * characters of a string in ISO-8859-1.
+ *
+ * @author pinaki poddar
+ *
+ */
+final class Hpack {
+    static final int DEFAULT_TABLE_SIZE = 4096;
+    static final int ENTRY_OVERHEAD = 32;
+
+    static final String[][] STATIC_TABLE = {
+        {":authority", ""},
+        {":method", "GET"},
+        {":method", "POST"},
+        {":path", "/"},
+        {":path", "/index.html"},
+        {":scheme", "http"},
+        {":scheme", "https"},
+        {":status", "200"},
+        {":status", "204"},
+        {":status", "206"},
+        {":status", "304"},
+        {":status", "400"},
+        {":status", "404"},
+        {":status", "500"},
+        {"accept-charset", ""},
+        {"accept-encoding", "gzip, deflate"},
+        {"accept-language", ""},
+        {"accept-ranges", ""},
+        {"accept", ""},
+        {"access-control-allow-origin", ""},
+        {"age", ""},
+        {"allow", ""},
+        {"authorization", ""},
+        {"cache-control", ""},
+        {"content-disposition", ""},
+        {"content-encoding", ""},
+        {"content-language", ""},
+        {"content-length", ""},
+        {"content-location", ""},
+        {"content-range", ""},
+        {"content-type", ""},
+        {"cookie", ""},
+        {"date", ""},
+        {"etag", ""},
+        {"expect", ""},
+        {"expires", ""},
+        {"from", ""},
+        {"host", ""},
+        {"if-match", ""},
+        {"if-modified-since", ""},
+        {"if-none-match", ""},
+        {"if-range", ""},
+        {"if-unmodified-since", ""},
+        {"last-modified", ""},
+        {"link", ""},
+        {"location", ""},
+        {"max-forwards", ""},
+        {"proxy-authenticate", ""},
+        {"proxy-authorization", ""},
+        {"range", ""},
+        {"referer", ""},
+        {"refresh", ""},
+        {"retry-after", ""},
+        {"server", ""},
+        {"set-cookie", ""},
+        {"strict-transport-security", ""},
+        {"transfer-encoding", ""},
+        {"user-agent", ""},
+        {"vary", ""},
+        {"via", ""},
+        {"www-authenticate", ""},
+    };
+
+    /** index of the first static entry of a name */
+    static final Map<String, Integer> STATIC_NAMES = new HashMap<String, Integer>();
+    /** index of a static entry with a value */
+    static final Map<String, Integer> STATIC_ENTRIES = new HashMap<String, Integer>();
+
+    static {
+        for (int i = STATIC_TABLE.length; i > 0; i--) {
+            String[] entry = STATIC_TABLE[i-1];
+            STATIC_NAMES.put(entry[0], i);
+            if (!entry[1].isEmpty()) STATIC_ENTRIES.put(key(entry[0], entry[1]), i);
+        }
+    }
+
+    private Hpack() {
+    }
+
+    static String key(String name, String value) {
+        return name + '\0' + value;
+    }
+
+    /**
+     * Writes an integer with a prefix of given bits in the first byte.
+     *
+     * @param flags the bits of the first byte above the prefix
+     */
+    static void writeInt(ByteBuffer dst, int prefixBits, int flags, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            dst.put((byte)(flags | value));
+            return;
+        }
+        dst.put((byte)(flags | max));
+        value -= max;
+        while (value >= 0x80) {
+            dst.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte)value);
+    }
+
+    /**
+     * Reads an integer with a prefix of given bits in the first byte.
+     *
+     * @param first the first byte
+     */
+    static int readInt(ByteBuffer src, int prefixBits, int first) throws ProtocolException {
+        int max = (1 << prefixBits) - 1;
+        int value = first & max;
+        if (value < max) return value;
+        for (int shift = 0; shift <= 28; shift += 7) {
+            if (!src.hasRemaining()) throw new ProtocolException("truncated integer");
+            int b = src.get() & 0xFF;
+            if (shift == 28 && (b & 0x78) != 0) break;
+            value += (b & 0x7F) << shift;
+            if (value < 0) break;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new ProtocolException("integer overflow");
+    }
+
+    /**
+     * Writes a string literal, Huffman-encoded if that is shorter.
+     */
+    static void writeString(ByteBuffer dst, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.ISO_8859_1);
+        int huffman = Huffman.encodedLength(bytes);
+        if (huffman < bytes.length) {
+            writeInt(dst, 7, 0x80, huffman);
+            Huffman.encode(bytes, dst);
+        } else {
+            writeInt(dst, 7, 0, bytes.length);
+            dst.put(bytes);
+        }
+    }
+
+    /**
+     * Gets the maximum number of bytes a string literal is encoded to.
+     */
+    static int maxLength(String s) {
+        return s.length() + 6;
+    }
+
+    static String readString(ByteBuffer src) throws ProtocolException {
+        if (!src.hasRemaining()) throw new ProtocolException("truncated string");
+        int first = src.get() & 0xFF;
+        int length = readInt(src, 7, first);
+        if (length > src.remaining()) throw new ProtocolException("truncated string");
+        byte[] bytes;
+        if ((first & 0x80) != 0) {
+            bytes = Huffman.decode(src, length);
+        } else {
+            bytes = new byte[length];
+            src.get(bytes);
+        }
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * The dynamic table. The entries are held in a circular array, and the
+     * oldest entries are evicted to keep the size of the table within its
+     * maximum size.
+     * <br>
+     * An entry is also found by its name and value. The lookup maps an
+     * entry to its insertion number, which gives its index as long as it
+     * has not been evicted.
+     */
+    static final class Table {
+        private String[] _names = new String[16];
+        private String[] _values = new String[16];
+        private int _head;     // slot of the oldest entry
+        private int _count;
+        private int _size;
+        private int _maxSize;
+        private long _inserted;
+        private final boolean _lookup;
+        private final Map<String, Long> _entries;
+        private final Map<String, Long> _nameEntries;
+
+        /**
+         * Creates a table.
+         *
+         * @param maxSize the maximum size in bytes
+         * @param lookup whether entries are looked up by name and value
+         */
+        Table(int maxSize, boolean lookup) {
+            _maxSize = maxSize;
+            _lookup = lookup;
+            _entries = lookup ? new HashMap<String, Long>() : null;
+            _nameEntries = lookup ? new HashMap<String, Long>() : null;
+        }
+
+        int size() {
+            return _size;
+        }
+
+        int getMaxSize() {
+            return _maxSize;
+        }
+
+        void setMaxSize(int maxSize) {
+            _maxSize = maxSize;
+            evict(0);
+        }
+
+        /**
+         * Gets an entry by its index in the combined address space, where
+         * index 1 is the first static entry.
+         *
+         * @return an array of name and value
+         */
+        String[] get(int index) throws ProtocolException {
+            if (index <= 0)
+                throw new ProtocolException("invalid index " + index);
+            if (index <= STATIC_TABLE.length) return STATIC_TABLE[index-1];
+            int i = index - STATIC_TABLE.length - 1;
+            if (i >= _count)
+                throw new ProtocolException("invalid index " + index);
+            int slot = (_head + _count - 1 - i) & (_names.length - 1);
+            return new String[]{_names[slot], _values[slot]};
+        }
+
+        /**
+         * Adds an entry, evicting the oldest entries as necessary.
+         */
+        void add(String name, String value) {
+            int entrySize = ENTRY_OVERHEAD + name.length() + value.length();
+            if (entrySize > _maxSize) {
+                evict(_maxSize);
+                return;
+            }
+            evict(entrySize);
+            if (_count == _names.length) grow();
+            int slot = (_head + _count) & (_names.length - 1);
+            _names[slot] = name;
+            _values[slot] = value;
+            _count++;
+            _size += entrySize;
+            _inserted++;
+            if (_lookup) {
+                _entries.put(key(name, value), _inserted);
+                _nameEntries.put(name, _inserted);
+            }
+        }
+
+        /**
+         * Gets the index of an entry of given name and value.
+         *
+         * @return 0 if no such entry
+         */
+        int indexOf(String name, String value) {
+            return index(_entries.get(key(name, value)));
+        }
+
+        /**
+         * Gets the index of an entry of given name.
+         *
+         * @return 0 if no such entry
+         */
+        int indexOfName(String name) {
+            return index(_nameEntries.get(name));
+        }
+
+        private int index(Long insertion) {
+            if (insertion == null || insertion <= _inserted - _count) return 0;
+            return STATIC_TABLE.length + (int)(_inserted - insertion) + 1;
+        }
+
+        /**
+         * Evicts oldest entries till an entry of given size fits.
+         */
+        private void evict(int entrySize) {
+            while (_count > 0 && _size + entrySize > _maxSize) {
+                String name = _names[_head];
+                String value = _values[_head];
+                long insertion = _inserted - _count + 1;
+                if (_lookup) {
+                    _entries.remove(key(name, value), insertion);
+                    _nameEntries.remove(name, insertion);
+                }
+                _size -= ENTRY_OVERHEAD + name.length() + value.length();
+                _names[_head] = null;
+                _values[_head] = null;
+                _head = (_head + 1) & (_names.length - 1);
+                _count--;
+            }
+        }
+
+        private void grow() {
+            String[] names = new String[_names.length*2];
+            String[] values = new String[_names.length*2];
+            for (int i = 0; i < _count; i++) {
+                int slot = (_head + i) & (_names.length - 1);
+                names[i] = _names[slot];
+                values[i] = _values[slot];
+            }
+            _names = names;
+            _values = values;
+            _head = 0;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package babble.net.http2;
+
+import java.nio.ByteBuffer;
+import java.util.function.BiConsumer;
+
+import babble.net.exception.ProtocolException;
+
+/**
+ * Decodes header blocks of a connection. The decoder holds the dynamic
+ * table of the connection, hence every header block received on the
+ * connection must be decoded in the order it is received.
+ * <br>
+ * A decoder is not thread-safe.
+ *
+ * @author pinaki poddar
+ *
+ */
+final class HpackDecoder {
+    private final Hpack.Table _table;
+    private final int _maxTableSize;
+
+    /**
+     * Creates a decoder.
+     *
+     * @param maxTableSize the maximum size of dynamic table announced to
+     * the encoder
+     */
+    HpackDecoder(int maxTableSize) {
+        _maxTableSize = maxTableSize;
+        _table = new Hpack.Table(maxTableSize, false);
+    }
+
+    /**
+     * Decodes a complete header block.
+     *
+     * @param block the header block. Its bytes are consumed.
+     * @param headers receives name and value of each header in order
+     * @throws ProtocolException if the block can not be decoded. The
+     * connection can not be used afterwards.
+     */
+    void decode(ByteBuffer block, BiConsumer<String, String> headers)
+            throws ProtocolException {
+        boolean start = true;
+        while (block.hasRemaining()) {
+            int first = block.get() & 0xFF;
+            if ((first & 0x80) != 0) {          // indexed
+                String[] entry = _table.get(Hpack.readInt(block, 7, first));
+                headers.accept(entry[0], entry[1]);
+            } else if ((first & 0x40) != 0) {   // literal with incremental indexing
+                String[] entry = literal(block, 6, first);
+                _table.add(entry[0], entry[1]);
+                headers.accept(entry[0], entry[1]);
+            } else if ((first & 0x20) != 0) {   // dynamic table size update
+                if (!start)
+                    throw new ProtocolException("table size update after a header");
+                int size = Hpack.readInt(block, 5, first);
+                if (size > _maxTableSize)
+                    throw new ProtocolException("table size " + size
+                            + " exceeds " + _maxTableSize);
+                _table.setMaxSize(size);
+                continue;
+            } else {                            // literal without indexing
+                String[] entry = literal(block, 4, first);
+                headers.accept(entry[0], entry[1]);
+            }
+            start = false;
+        }
+    }
+
+    private String[] literal(ByteBuffer block, int prefixBits, int first)
+            throws ProtocolException {
+        int index = Hpack.readInt(block, prefixBits, first);
+        String name = index == 0 ? Hpack.readString(block) : _table.get(index)[0];
+        return new String[]{name, Hpack.readString(block)};
+    }
+}
@@ -0,0 +1,97 @@
+package babble.net.http2;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes header blocks of a connection. The encoder holds the dynamic
+ * table of the connection, hence header blocks must be sent in the order
+ * they are encoded.
+ * <br>
+ * A header that matches an entry of the static or dynamic table is encoded
+ * as an index. Otherwise the header is encoded as a literal and added to
+ * the dynamic table, except headers whose values seldom repeat or are
+ * sensitive.
+ * <br>
+ * An encoder is not thread-safe.
+ *
+ * @author pinaki poddar
+ *
+ */
+final class HpackEncoder {
+    private final Hpack.Table _table;
+    private int _pendingSizeUpdate = -1;
+
+    HpackEncoder() {
+        _table = new Hpack.Table(Hpack.DEFAULT_TABLE_SIZE, true);
+    }
+
+    /**
+     * Sets the maximum size of the dynamic table as announced by the
+     * decoder. The change is signalled at the start of next header block.
+     */
+    void setMaxTableSize(int size) {
+        int max = Math.min(size, Hpack.DEFAULT_TABLE_SIZE);
+        if (max == _table.getMaxSize() && _pendingSizeUpdate < 0) return;
+        _table.setMaxSize(max);
+        _pendingSizeUpdate = max;
+    }
+
+    /**
+     * Encodes a header block.
+     *
+     * @param headers names and values of the headers in alternate order.
+     * Names must be in lower case.
+     * @return a buffer ready to be read
+     */
+    ByteBuffer encode(String... headers) {
+        int capacity = 8;
+        for (String s : headers) capacity += Hpack.maxLength(s);
+        ByteBuffer block = ByteBuffer.allocate(capacity);
+        if (_pendingSizeUpdate >= 0) {
+            Hpack.writeInt(block, 5, 0x20, _pendingSizeUpdate);
+            _pendingSizeUpdate = -1;
+        }
+        for (int i = 0; i < headers.length; i += 2) {
+            encode(block, headers[i], headers[i+1]);
+        }
+        block.flip();
+        return block;
+    }
+
+    private void encode(ByteBuffer block, String name, String value) {
+        Integer index = Hpack.STATIC_ENTRIES.get(Hpack.key(name, value));
+        int i = index != null ? index : _table.indexOf(name, value);
+        if (i > 0) {
+            Hpack.writeInt(block, 7, 0x80, i);
+            return;
+        }
+        Integer nameIndex = Hpack.STATIC_NAMES.get(name);
+        int n = nameIndex != null ? nameIndex : _table.indexOfName(name);
+        if (isIndexable(name)) {
+            Hpack.writeInt(block, 6, 0x40, n);
+            _table.add(name, value);
+        } else {
+            Hpack.writeInt(block, 4, isSensitive(name) ? 0x10 : 0, n);
+        }
+        if (n == 0) Hpack.writeString(block, name);
+        Hpack.writeString(block, value);
+    }
+
+    private static boolean isIndexable(String name) {
+        switch (name) {
+        case ":path":
+        case "content-length":
+        case "content-range":
+        case "etag":
+        case "last-modified":
+            return false;
+        default:
+            return !isSensitive(name);
+        }
+    }
+
+    private static boolean isSensitive(String name) {
+        return "authorization".equals(name) || "cookie".equals(name)
+            || "set-cookie".equals(name);
+    }
+}
@@ -0,0 +1,449 @@
+package babble.net.http2;
+
+import static babble.net.http2.FrameCodec.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import babble.net.exception.ProtocolException;
+
+/**
+ * A client of cleartext HTTP/2 with prior knowledge. Many requests are
+ * {@link #send(String, String, String...) sent} concurrently on the same
+ * connection, each on its own stream, and each response completes a
+ * {@link CompletableFuture future}.
+ * <br>
+ * The client reads the connection in a dedicated thread. Data received is
+ * acknowledged at once, hence the server is never blocked by the windows
+ * of this client. The body of a request is sent as far as the windows of
+ * the server allow, and the sender waits for the server to open them.
+ * <br>
+ * This client is thread-safe.
+ *
+ * @author pinaki poddar
+ *
+ */
+public class Http2Client implements Closeable {
+    private final SocketChannel _channel;
+    private final String _authority;
+    private final FrameCodec _codec = new FrameCodec(this::frame, DEFAULT_MAX_FRAME_SIZE);
+    private final HpackDecoder _decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE);
+    private final HpackEncoder _encoder = new HpackEncoder();
+    private final Map<Integer, Exchange> _exchanges = new ConcurrentHashMap<Integer, Exchange>();
+    private final ByteBuffer _frameHeader = ByteBuffer.allocate(HEADER_LENGTH);
+    private int _nextStreamId = 1;
+    private int _maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private int _sendWindow = DEFAULT_WINDOW_SIZE;
+    private int _initialWindow = DEFAULT_WINDOW_SIZE;
+    private volatile boolean _closed;
+
+    private int _headerStream;
+    private int _headerFlags;
+    private ByteBuffer _headerBlock;
+
+    /**
+     * Sends the given paths to a server and prints the responses.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("***Missing argument");
+            System.err.println("Usage: " + Http2Client.class.getName() + " host port path...");
+            System.err.println("where");
+            System.err.println("\thost, port address of a cleartext HTTP/2 server");
+            System.err.println("\tpath one or more paths requested concurrently");
+            System.exit(1);
+        }
+        try (Http2Client client = new Http2Client(args[0], Integer.parseInt(args[1]))) {
+            List<CompletableFuture<Response>> responses = new ArrayList<CompletableFuture<Response>>();
+            for (int i = 2; i < args.length; i++) {
+                responses.add(client.send("GET", args[i]));
+            }
+            for (int i = 2; i < args.length; i++) {
+                Response response = responses.get(i-2).get();
+                System.out.println(args[i] + " " + response.getStatus() + " "
+                        + response.getBody().length + " bytes " + response.getHeaders());
+            }
+        }
+    }
+
+    /**
+     * Connects to a server and sends the connection preface.
+     */
+    public Http2Client(String host, int port) throws IOException {
+        _channel = SocketChannel.open(new InetSocketAddress(host, port));
+        _authority = host + ":" + port;
+        synchronized (this) {
+            write(ByteBuffer.wrap(Http2Connection.PREFACE));
+            writeFrame(SETTINGS, 0, 0, settings(SETTINGS_ENABLE_PUSH, 0));
+        }
+        Thread reader = new Thread(this::readLoop, "h2c-client-" + _authority);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sends a request without a body on a new stream.
+     *
+     * @param method a HTTP method
+     * @param path a path starting with forward slash
+     * @param headers names and values of additional headers in alternate
+     * order
+     * @return the future response
+     */
+    public CompletableFuture<Response> send(String method, String path, String... headers)
+            throws IOException {
+        return send(method, path, null, headers);
+    }
+
+    /**
+     * Sends a request with a body on a new stream. Waits if the server does
+     * not read the body as fast as it is sent.
+     *
+     * @param method a HTTP method
+     * @param path a path starting with forward slash
+     * @param body the body. null or empty for no body.
+     * @param headers names and values of additional headers in alternate
+     * order
+     * @return the future response
+     */
+    public CompletableFuture<Response> send(String method, String path, byte[] body,
+            String... headers) throws IOException {
+        boolean hasBody = body != null && body.length > 0;
+        String[] block = new String[8 + headers.length];
+        block[0] = ":method";    block[1] = method;
+        block[2] = ":scheme";    block[3] = "http";
+        block[4] = ":authority"; block[5] = _authority;
+        block[6] = ":path";      block[7] = path;
+        for (int i = 0; i < headers.length; i++) {
+            block[8+i] = i % 2 == 0 ? headers[i].toLowerCase(Locale.ENGLISH) : headers[i];
+        }
+        Exchange exchange = new Exchange();
+        synchronized (this) {
+            if (_closed) throw new IOException(this + " is closed");
+            int streamId = _nextStreamId;
+            _nextStreamId += 2;
+            exchange.window = _initialWindow;
+            _exchanges.put(streamId, exchange);
+            ByteBuffer encoded = _encoder.encode(block);
+            int type = HEADERS;
+            do {
+                int n = Math.min(encoded.remaining(), _maxFrameSize);
+                ByteBuffer fragment = encoded.duplicate();
+                fragment.limit(fragment.position() + n);
+                encoded.position(encoded.position() + n);
+                int flags = (type == HEADERS && !hasBody ? FLAG_END_STREAM : 0)
+                          | (encoded.hasRemaining() ? 0 : FLAG_END_HEADERS);
+                writeFrame(type, flags, streamId, fragment);
+                type = CONTINUATION;
+            } while (encoded.hasRemaining());
+            if (hasBody) writeBody(streamId, exchange, ByteBuffer.wrap(body));
+        }
+        return exchange.future;
+    }
+
+    /**
+     * Writes a body in DATA frames limited by the windows of the server.
+     * Waits, without the lock of this client, for the windows to open. 
+     * Stops if the exchange has completed or failed meanwhile.
+     */
+    private void writeBody(int streamId, Exchange exchange, ByteBuffer body) 
+            throws IOException {
+        while (body.hasRemaining()) {
+            int n = Math.min(body.remaining(),
+                    Math.min(_maxFrameSize, Math.min(_sendWindow, exchange.window)));
+            if (n <= 0) {
+                if (_closed || _exchanges.get(streamId) != exchange) return;
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException("interrupted while sending body on stream "
+                            + streamId);
+                }
+                continue;
+            }
+            ByteBuffer data = body.duplicate();
+            data.limit(data.position() + n);
+            body.position(body.position() + n);
+            writeFrame(DATA, body.hasRemaining() ? 0 : FLAG_END_STREAM, streamId, data);
+            _sendWindow -= n;
+            exchange.window -= n;
+        }
+    }
+
+    /**
+     * Gets the given path and waits for the response.
+     */
+    public Response get(String path) throws IOException {
+        try {
+            return send("GET", path).get();
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            throw cause instanceof IOException ? (IOException)cause : new IOException(cause);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (!_channel.isOpen()) return;
+            _closed = true;
+            try {
+                ByteBuffer payload = ByteBuffer.allocate(8).putInt(0).putInt(NO_ERROR);
+                payload.flip();
+                writeFrame(GOAWAY, 0, 0, payload);
+            } catch (IOException ex) {
+                // the server has closed the connection
+            } finally {
+                _channel.close();
+            }
+        }
+        failAll(new IOException(this + " is closed"));
+    }
+
+    private void readLoop() {
+        ByteBuffer buf = ByteBuffer.allocate(64*1024);
+        try {
+            while (_channel.read(buf) >= 0) {
+                buf.flip();
+                _codec.decode(buf);
+                buf.clear();
+            }
+            failAll(new IOException("connection closed by server"));
+        } catch (IOException ex) {
+            failAll(ex);
+        }
+    }
+
+    private void failAll(IOException ex) {
+        _closed = true;
+        synchronized (this) {
+            notifyAll();
+        }
+        for (Integer streamId : new ArrayList<Integer>(_exchanges.keySet())) {
+            Exchange exchange = _exchanges.remove(streamId);
+            if (exchange != null) exchange.future.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Receives a decoded frame on the reader thread.
+     */
+    private void frame(int type, int flags, int streamId, ByteBuffer payload)
+            throws IOException {
+        if (_headerBlock != null && type != CONTINUATION)
+            throw error(PROTOCOL_ERROR, "expected CONTINUATION on stream " + _headerStream);
+        switch (type) {
+        case DATA:
+            int length = payload.remaining();
+            ByteBuffer data = unpad(flags, payload);
+            Exchange exchange = _exchanges.get(streamId);
+            if (exchange != null) {
+                exchange.body.write(data.array(), data.arrayOffset() + data.position(),
+                        data.remaining());
+            }
+            if (length > 0) {
+                synchronized (this) {
+                    write(windowUpdate(0, length));
+                    if ((flags & FLAG_END_STREAM) == 0) write(windowUpdate(streamId, length));
+                }
+            }
+            if ((flags & FLAG_END_STREAM) != 0) complete(streamId);
+            break;
+        case HEADERS:
+            ByteBuffer block = unpad(flags, payload);
+            if ((flags & FLAG_PRIORITY) != 0) block.position(block.position() + 5);
+            _headerStream = streamId;
+            _headerFlags = flags;
+            _headerBlock = ByteBuffer.allocate(block.remaining());
+            appendHeaderBlock(block);
+            if ((flags & FLAG_END_HEADERS) != 0) endHeaders();
+            break;
+        case CONTINUATION:
+            if (_headerBlock == null || streamId != _headerStream)
+                throw error(PROTOCOL_ERROR, "unexpected CONTINUATION on stream " + streamId);
+            appendHeaderBlock(payload);
+            if ((flags & FLAG_END_HEADERS) != 0) endHeaders();
+            break;
+        case RST_STREAM:
+            fail(streamId, error(payload.getInt(), "stream " + streamId + " reset"));
+            break;
+        case SETTINGS:
+            if ((flags & FLAG_ACK) != 0) break;
+            synchronized (this) {
+                while (payload.remaining() >= 6) {
+                    int id = payload.getShort() & 0xFFFF;
+                    int value = payload.getInt();
+                    if (id == SETTINGS_MAX_FRAME_SIZE) _maxFrameSize = value;
+                    if (id == SETTINGS_HEADER_TABLE_SIZE) _encoder.setMaxTableSize(value);
+                    if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+                        for (Exchange open : _exchanges.values()) {
+                            open.window += value - _initialWindow;
+                        }
+                        _initialWindow = value;
+                    }
+                }
+                notifyAll();
+                writeFrame(SETTINGS, FLAG_ACK, 0, ByteBuffer.allocate(0));
+            }
+            break;
+        case PING:
+            if ((flags & FLAG_ACK) == 0) {
+                synchronized (this) {
+                    writeFrame(PING, FLAG_ACK, 0, payload);
+                }
+            }
+            break;
+        case GOAWAY:
+            int lastStreamId = payload.getInt() & 0x7FFFFFFF;
+            int code = payload.getInt();
+            _closed = true;
+            for (Integer id : new ArrayList<Integer>(_exchanges.keySet())) {
+                if (id > lastStreamId) fail(id, error(code, "connection closed by server"));
+            }
+            break;
+        case WINDOW_UPDATE:
+            int increment = payload.getInt() & 0x7FFFFFFF;
+            synchronized (this) {
+                if (streamId == 0) {
+                    _sendWindow += increment;
+                } else {
+                    Exchange target = _exchanges.get(streamId);
+                    if (target != null) target.window += increment;
+                }
+                notifyAll();
+            }
+            break;
+        default:
+            // unknown frame types are ignored
+        }
+    }
+
+    private void appendHeaderBlock(ByteBuffer fragment) {
+        if (_headerBlock.remaining() < fragment.remaining()) {
+            ByteBuffer block = ByteBuffer.allocate(_headerBlock.position() + fragment.remaining());
+            _headerBlock.flip();
+            _headerBlock = block.put(_headerBlock);
+        }
+        _headerBlock.put(fragment);
+    }
+
+    private void endHeaders() throws IOException {
+        ByteBuffer block = _headerBlock;
+        _headerBlock = null;
+        block.flip();
+        Exchange exchange = _exchanges.get(_headerStream);
+        _decoder.decode(block, (name, value) -> {
+            if (exchange == null) return;
+            if (":status".equals(name)) {
+                exchange.status = Integer.parseInt(value);
+            } else {
+                exchange.headers.put(name, value);
+            }
+        });
+        if ((_headerFlags & FLAG_END_STREAM) != 0) complete(_headerStream);
+    }
+
+    private void complete(int streamId) {
+        Exchange exchange = _exchanges.remove(streamId);
+        if (exchange == null) return;
+        exchange.future.complete(new Response(exchange.status,
+                Collections.unmodifiableMap(exchange.headers), exchange.body.toByteArray()));
+    }
+
+    private void fail(int streamId, ProtocolException ex) {
+        Exchange exchange = _exchanges.remove(streamId);
+        if (exchange != null) exchange.future.completeExceptionally(ex);
+        synchronized (this) {
+            notifyAll(); // a sender of its body stops
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, ByteBuffer payload)
+            throws IOException {
+        _frameHeader.clear();
+        writeHeader(_frameHeader, payload.remaining(), type, flags, streamId);
+        _frameHeader.flip();
+        write(_frameHeader);
+        write(payload.duplicate());
+    }
+
+    private void write(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            _channel.write(buf);
+        }
+    }
+
+    public String toString() {
+        return "Http2Client[" + _authority + "]";
+    }
+
+    private static class Exchange {
+        final CompletableFuture<Response> future = new CompletableFuture<Response>();
+        final Map<String, String> headers = new LinkedHashMap<String, String>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int status;
+        /** the window of the server to send the body */
+        int window;
+    }
+
+    /**
+     * A response received by the client.
+     */
+    public static class Response {
+        private final int _status;
+        private final Map<String, String> _headers;
+        private final byte[] _body;
+
+        Response(int status, Map<String, String> headers, byte[] body) {
+            _status = status;
+            _headers = headers;
+            _body = body;
+        }
+
+        public int getStatus() {
+            return _status;
+        }
+
+        /**
+         * Gets the value of a header.
+         *
+         * @param name name of the header in any case
+         * @return null if the header is absent
+         */
+        public String getHeader(String name) {
+            return _headers.get(name.toLowerCase(Locale.ENGLISH));
+        }
+
+        /**
+         * Gets the headers by their names in lower case.
+         */
+        public Map<String, String> getHeaders() {
+            return _headers;
+        }
+
+        public byte[] getBody() {
+            return _body;
+        }
+
+        public String getBodyAsString() {
+            return new String(_body, StandardCharsets.UTF_8);
+        }
+    }
+}
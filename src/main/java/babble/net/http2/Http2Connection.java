@@ -0,0 +1,928 @@
+package babble.net.http2;
+
+import static babble.net.http2.FrameCodec.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import babble.net.ChannelHandler;
+import babble.net.ChunkedDecoder;
+import babble.net.Response;
+import babble.net.WriteQueue;
+import babble.net.exception.ProtocolException;
+import babble.net.http.HttpConstants;
+import babble.net.http.HttpRequest;
+import babble.net.http.HttpResponse;
+import babble.util.BufferPool;
+
+/**
+ * A cleartext HTTP/2 connection with prior knowledge, i.e. the client
+ * starts with the HTTP/2 connection preface without an upgrade from
+ * HTTP/1.1, as per
+ * <a href="https://tools.ietf.org/html/rfc7540">RFC 7540</a>.
+ * <br>
+ * The server i/o thread reads the connection into a {@link BufferPool pooled}
+ * buffer and decodes the frames. The header block of each stream is decoded
+ * to a {@link Http2Request request}. The body of a request is received in
+ * DATA frames, up to {@link HttpRequest#MAX_BODY_SIZE} bytes, and the request
+ * is dispatched to the router once its stream ends. The requests of many
+ * streams are routed concurrently. A stream whose body is too large is reset.
+ * <br>
+ * A route sees an ordinary {@link HttpResponse HTTP response}. The response
+ * is {@link #send(Response) sent} on the thread that completed the route to
+ * a {@link WriteQueue queue} of its stream, which is also the
+ * {@link HttpRequest#getWriteQueue() queue} of its request. Hence a
+ * {@link babble.net.http.StreamingHttpResponse streaming response} or an
+ * event stream writes to the queue of its stream while the route executes.
+ * The response is rendered as in HTTP/1.1, and translated as the queue of
+ * the stream drains: the status line and headers are parsed to a header
+ * block, and the body, without its chunked coding, is copied in DATA frames
+ * to the queue of the connection. A file in the body is read asynchronously
+ * by the queue of the stream.
+ * <br>
+ * The DATA frames of a stream are limited by the flow-control windows of
+ * the stream and of the connection. The rest of the body waits in the queue
+ * of the stream till the client opens the windows, so a streaming response
+ * waits for a slow client as it would on a HTTP/1.1 connection. A stream
+ * whose response can not be sent is reset.
+ * <br>
+ * Data received is acknowledged at once, so the client is never blocked
+ * by the windows of this connection.
+ * <br>
+ * Frames are decoded and encoded under the lock of this connection, but
+ * requests are dispatched, and the queue of a stream is drained, outside
+ * the lock. The queue of a stream is drained by one thread at a time: the
+ * thread that writes the response, or the i/o thread once the windows open.
+ *
+ * @author pinaki poddar
+ *
+ */
+public class Http2Connection implements ChannelHandler {
+    public static final int MAX_CONCURRENT_STREAMS = 100;
+    static final int MAX_HEADER_BLOCK = 64*1024;
+
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel _channel;
+    private final Consumer<HttpRequest> _dispatcher;
+    private final FrameCodec _codec = new FrameCodec(this::frame, DEFAULT_MAX_FRAME_SIZE);
+    private final HpackDecoder _decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE);
+    private final HpackEncoder _encoder = new HpackEncoder();
+    private final BufferPool _pool = BufferPool.SHARED;
+    private final ByteBuffer _frameHeader = ByteBuffer.allocate(HEADER_LENGTH);
+    private final Map<Integer, Stream> _streams = new LinkedHashMap<Integer, Stream>();
+    private final List<HttpRequest> _ready = new ArrayList<HttpRequest>();
+    private final List<Stream> _signalled = new ArrayList<Stream>();
+    private WriteQueue _queue;
+    private volatile boolean _closed;
+    private boolean _goingAway;
+    private int _prefaceRead;
+    private int _lastStreamId;
+    private int _sendWindow = DEFAULT_WINDOW_SIZE;
+    private int _initialWindow = DEFAULT_WINDOW_SIZE;
+    private int _maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+    private int _headerStream;
+    private int _headerFlags;
+    private ByteBuffer _headerBlock;
+
+    private static final Logger _logger = LoggerFactory.getLogger(Http2Connection.class);
+
+    /**
+     * Creates a connection.
+     *
+     * @param channel the network channel of the connection
+     * @param dispatcher receives each request to be routed. Invoked on the
+     * i/o thread, hence must not block.
+     */
+    public Http2Connection(SocketChannel channel, Consumer<HttpRequest> dispatcher) {
+        _channel = channel;
+        _dispatcher = dispatcher;
+    }
+
+    /**
+     * Sends the settings of this server.
+     */
+    @Override
+    public void open(WriteQueue queue) {
+        synchronized (this) {
+            _queue = queue;
+            try {
+                writeFrame(SETTINGS, 0, 0,
+                    settings(SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS));
+            } catch (IOException ex) {
+                fail(INTERNAL_ERROR, ex);
+            }
+        }
+    }
+
+    /**
+     * Reads the available data into a pooled buffer and decodes the
+     * frames. The buffer is released after the data has been decoded.
+     */
+    @Override
+    public boolean read(ByteChannel channel) throws IOException {
+        ByteBuffer buf = _pool.acquire();
+        try {
+            int n;
+            while (!_closed && (n = channel.read(buf)) != 0) {
+                if (n < 0) return false;
+                buf.flip();
+                synchronized (this) {
+                    if (_prefaceRead < PREFACE.length) readPreface(buf);
+                    _codec.decode(buf);
+                }
+                buf.clear();
+                dispatch();
+            }
+            return true;
+        } catch (ProtocolException ex) {
+            fail(ex.getErrorCode() == NO_ERROR ? PROTOCOL_ERROR : ex.getErrorCode(), ex);
+            dispatch();
+            return true;
+        } finally {
+            _pool.release(buf);
+        }
+    }
+
+    @Override
+    public void closed() {
+        synchronized (this) {
+            _closed = true;
+            discardStreams();
+        }
+        dispatch();
+    }
+
+    /**
+     * Sends the given response to the queue of the stream of its request.
+     * The response is dropped if the stream has been reset. The stream is
+     * reset if the response can not be sent.
+     *
+     * @param response a response to a {@link Http2Request request} received
+     * on this connection
+     */
+    @Override
+    public void send(Response response) throws IOException {
+        if (!(response instanceof HttpResponse)
+         || !(response.getRequest() instanceof Http2Request))
+            throw new IllegalArgumentException(response + " is not a response"
+                    + " to a HTTP/2 request");
+        Http2Request request = (Http2Request)response.getRequest();
+        Stream stream;
+        synchronized (this) {
+            stream = _streams.get(request.getStreamId());
+        }
+        if (stream == null || stream.reset) return;
+        try {
+            ((HttpResponse)response).send(stream.queue);
+        } catch (IOException | RuntimeException ex) {
+            abort(stream);
+            throw ex;
+        }
+    }
+
+    /**
+     * Dispatches the requests that are ready, and drains the queues of the
+     * streams that have been signalled, outside the lock of this connection.
+     */
+    private void dispatch() {
+        List<HttpRequest> ready;
+        List<Stream> signalled;
+        synchronized (this) {
+            if (_ready.isEmpty() && _signalled.isEmpty()) return;
+            ready = new ArrayList<HttpRequest>(_ready);
+            signalled = new ArrayList<Stream>(_signalled);
+            _ready.clear();
+            _signalled.clear();
+        }
+        for (Stream stream : signalled) {
+            drain(stream);
+        }
+        for (HttpRequest request : ready) {
+            _dispatcher.accept(request);
+        }
+    }
+
+    /**
+     * Drains the queue of the given stream, or discards it if the stream
+     * has been reset. Must be called without the lock of this connection,
+     * because the queue is drained under its own lock, and the frames are
+     * written under the lock of this connection.
+     */
+    private void drain(Stream stream) {
+        synchronized (stream) {
+            if (stream.reset) {
+                stream.queue.discard();
+                return;
+            }
+            try {
+                stream.queue.drain();
+            } catch (IOException ex) {
+                if (!stream.reset)
+                    _logger.warn("can not send response on " + stream + ": " + ex);
+                abort(stream);
+            }
+        }
+    }
+
+    /**
+     * Resets the given stream, unless it has ended, and discards its queue.
+     * Must be called without the lock of this connection.
+     */
+    private void abort(Stream stream) {
+        synchronized (this) {
+            if (!_closed && _streams.get(stream.id) == stream) {
+                try {
+                    reset(stream.id, INTERNAL_ERROR);
+                } catch (IOException ex) {
+                    _logger.warn("can not reset " + stream + ": " + ex);
+                }
+            }
+        }
+        stream.queue.discard();
+    }
+
+    private void readPreface(ByteBuffer buf) throws ProtocolException {
+        while (_prefaceRead < PREFACE.length && buf.hasRemaining()) {
+            if (buf.get() != PREFACE[_prefaceRead++])
+                throw error(PROTOCOL_ERROR, "invalid connection preface");
+        }
+    }
+
+    /**
+     * Receives a decoded frame. Invoked with the lock of this connection.
+     */
+    private void frame(int type, int flags, int streamId, ByteBuffer payload)
+            throws IOException {
+        if (_closed) return;
+        if (_headerBlock != null && type != CONTINUATION)
+            throw error(PROTOCOL_ERROR, "expected CONTINUATION on stream " + _headerStream);
+        switch (type) {
+        case DATA:
+            receiveData(flags, streamId, payload);
+            break;
+        case HEADERS:
+            receiveHeaders(flags, streamId, payload);
+            break;
+        case CONTINUATION:
+            if (_headerBlock == null || streamId != _headerStream)
+                throw error(PROTOCOL_ERROR, "unexpected CONTINUATION on stream " + streamId);
+            appendHeaderBlock(payload);
+            if ((flags & FLAG_END_HEADERS) != 0) {
+                ByteBuffer block = _headerBlock;
+                _headerBlock = null;
+                block.flip();
+                endHeaders(_headerStream, _headerFlags, block);
+            }
+            break;
+        case PRIORITY:
+            if (streamId == 0) throw error(PROTOCOL_ERROR, "PRIORITY on stream 0");
+            if (payload.remaining() != 5) throw error(FRAME_SIZE_ERROR, "invalid PRIORITY");
+            break;
+        case RST_STREAM:
+            if (streamId == 0 || streamId > _lastStreamId)
+                throw error(PROTOCOL_ERROR, "RST_STREAM on idle stream " + streamId);
+            if (payload.remaining() != 4) throw error(FRAME_SIZE_ERROR, "invalid RST_STREAM");
+            discard(streamId);
+            closeIfGoingAway();
+            break;
+        case SETTINGS:
+            receiveSettings(flags, streamId, payload);
+            break;
+        case PUSH_PROMISE:
+            throw error(PROTOCOL_ERROR, "client can not push");
+        case PING:
+            if (streamId != 0) throw error(PROTOCOL_ERROR, "PING on stream " + streamId);
+            if (payload.remaining() != 8) throw error(FRAME_SIZE_ERROR, "invalid PING");
+            if ((flags & FLAG_ACK) == 0) writeFrame(PING, FLAG_ACK, 0, payload);
+            break;
+        case GOAWAY:
+            _goingAway = true;
+            closeIfGoingAway();
+            break;
+        case WINDOW_UPDATE:
+            receiveWindowUpdate(streamId, payload);
+            break;
+        default:
+            // unknown frame types are ignored
+        }
+    }
+
+    /**
+     * Receives the body of a request. The request is made ready to be
+     * dispatched at the end of its stream. DATA on a stream whose request
+     * has been dispatched, or that has been reset, is dropped.
+     */
+    private void receiveData(int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (streamId == 0 || streamId > _lastStreamId)
+            throw error(PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+        int length = payload.remaining();
+        ByteBuffer data = unpad(flags, payload);
+        boolean end = (flags & FLAG_END_STREAM) != 0;
+        if (length > 0) _queue.write(windowUpdate(0, length));
+        Stream stream = _streams.get(streamId);
+        if (stream == null) return;
+        if (stream.request == null) {
+            reset(streamId, STREAM_CLOSED);
+        } else if (!stream.receive(data)) {
+            _logger.warn("body on stream " + streamId + " of " + this + " exceeds "
+                    + HttpRequest.MAX_BODY_SIZE + " bytes");
+            reset(streamId, CANCEL);
+        } else if (end) {
+            endRequest(stream);
+        } else if (length > 0) {
+            _queue.write(windowUpdate(streamId, length));
+        }
+    }
+
+    private void receiveHeaders(int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (streamId == 0 || (streamId & 1) == 0)
+            throw error(PROTOCOL_ERROR, "HEADERS on invalid stream " + streamId);
+        ByteBuffer block = unpad(flags, payload);
+        if ((flags & FLAG_PRIORITY) != 0) {
+            if (block.remaining() < 5) throw error(PROTOCOL_ERROR, "invalid priority");
+            block.position(block.position() + 5);
+        }
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            // a complete header block is decoded without a copy
+            endHeaders(streamId, flags, block);
+            return;
+        }
+        _headerStream = streamId;
+        _headerFlags = flags;
+        _headerBlock = ByteBuffer.allocate(Math.max(block.remaining(), 1024));
+        appendHeaderBlock(block);
+    }
+
+    private void appendHeaderBlock(ByteBuffer fragment) throws ProtocolException {
+        if (_headerBlock.remaining() < fragment.remaining()) {
+            int length = _headerBlock.position() + fragment.remaining();
+            if (length > MAX_HEADER_BLOCK)
+                throw error(PROTOCOL_ERROR, "header block exceeds " + MAX_HEADER_BLOCK + " bytes");
+            ByteBuffer block = ByteBuffer.allocate(Math.min(MAX_HEADER_BLOCK,
+                    Math.max(length, 2*_headerBlock.capacity())));
+            _headerBlock.flip();
+            _headerBlock = block.put(_headerBlock);
+        }
+        _headerBlock.put(fragment);
+    }
+
+    /**
+     * Decodes a complete header block. A new stream is opened for a request.
+     * The request is made ready to be dispatched if the stream ends with
+     * the headers, otherwise once its body has been received. Trailers of
+     * an open stream end its body, and are ignored.
+     */
+    private void endHeaders(int streamId, int flags, ByteBuffer block) throws IOException {
+        List<String> headers = new ArrayList<String>();
+        try {
+            _decoder.decode(block, (name, value) -> {
+                headers.add(name);
+                headers.add(value);
+            });
+        } catch (ProtocolException ex) {
+            throw error(COMPRESSION_ERROR, ex.getMessage());
+        }
+        if (streamId <= _lastStreamId) {
+            Stream stream = _streams.get(streamId);
+            if (stream == null)
+                throw error(STREAM_CLOSED, "HEADERS on closed stream " + streamId);
+            if ((flags & FLAG_END_STREAM) != 0 && stream.request != null) endRequest(stream);
+            return;
+        }
+        _lastStreamId = streamId;
+        if (_goingAway) return;
+        if (_streams.size() >= MAX_CONCURRENT_STREAMS) {
+            reset(streamId, REFUSED_STREAM);
+            return;
+        }
+        Stream stream = new Stream(streamId, _initialWindow);
+        try {
+            stream.request = newRequest(stream, headers);
+        } catch (ProtocolException ex) {
+            _logger.warn("malformed request on stream " + streamId + " of " + this + ": " + ex);
+            reset(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        _streams.put(streamId, stream);
+        if ((flags & FLAG_END_STREAM) != 0) endRequest(stream);
+    }
+
+    /**
+     * Makes the request of the given stream ready to be dispatched with
+     * the body received.
+     */
+    private void endRequest(Stream stream) {
+        Http2Request request = stream.request;
+        if (stream.body != null) {
+            stream.body.flip();
+            request.setBody(stream.body);
+        }
+        stream.request = null;
+        stream.body = null;
+        stream.headRequest = "HEAD".equals(request.getMethod());
+        _ready.add(request);
+    }
+
+    /**
+     * Creates a request from the decoded headers. The pseudo-headers give
+     * method and path, and <code>:authority</code> becomes the
+     * <code>Host</code> header. The crumbs of a <code>cookie</code> header
+     * are joined in one header.
+     *
+     * @param stream the stream of the request
+     * @param headers names and values in alternate order
+     */
+    private Http2Request newRequest(Stream stream, List<String> headers)
+            throws ProtocolException {
+        String method = null, path = null, authority = null, cookie = null;
+        int i = 0;
+        for (; i < headers.size() && headers.get(i).startsWith(":"); i += 2) {
+            String value = headers.get(i+1);
+            switch (headers.get(i)) {
+            case ":method":    method = value;    break;
+            case ":path":      path = value;      break;
+            case ":authority": authority = value; break;
+            case ":scheme":                       break;
+            default:
+                throw new ProtocolException("unknown pseudo-header " + headers.get(i));
+            }
+        }
+        if (method == null || path == null)
+            throw new ProtocolException("missing :method or :path");
+        Http2Request request = new Http2Request(stream.id, method, path, _channel,
+                stream.queue);
+        boolean host = false;
+        for (; i < headers.size(); i += 2) {
+            String name = headers.get(i);
+            if (name.startsWith(":"))
+                throw new ProtocolException("pseudo-header " + name + " after headers");
+            if ("cookie".equals(name)) {
+                cookie = cookie == null ? headers.get(i+1) : cookie + "; " + headers.get(i+1);
+            } else {
+                host |= "host".equals(name);
+                request.addHeader(name, headers.get(i+1));
+            }
+        }
+        if (authority != null && !host) {
+            request.addHeader(HttpConstants.HEADER_HOST, authority);
+        }
+        if (cookie != null) {
+            request.addHeader(HttpConstants.HEADER_COOKIE, cookie);
+        }
+        return request;
+    }
+
+    private void receiveSettings(int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (streamId != 0) throw error(PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+        if ((flags & FLAG_ACK) != 0) {
+            if (payload.hasRemaining()) throw error(FRAME_SIZE_ERROR, "invalid SETTINGS ACK");
+            return;
+        }
+        if (payload.remaining() % 6 != 0) throw error(FRAME_SIZE_ERROR, "invalid SETTINGS");
+        boolean opened = false;
+        while (payload.hasRemaining()) {
+            int id = payload.getShort() & 0xFFFF;
+            int value = payload.getInt();
+            switch (id) {
+            case SETTINGS_HEADER_TABLE_SIZE:
+                _encoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+                break;
+            case SETTINGS_ENABLE_PUSH:
+                if (value != 0 && value != 1) throw error(PROTOCOL_ERROR, "invalid ENABLE_PUSH");
+                break;
+            case SETTINGS_INITIAL_WINDOW_SIZE:
+                if (value < 0) throw error(FLOW_CONTROL_ERROR, "invalid INITIAL_WINDOW_SIZE");
+                int delta = value - _initialWindow;
+                for (Stream stream : _streams.values()) {
+                    if ((long)stream.window + delta > MAX_WINDOW_SIZE)
+                        throw error(FLOW_CONTROL_ERROR, "window of stream " + stream.id
+                                + " overflows");
+                    stream.window += delta;
+                }
+                _initialWindow = value;
+                opened |= delta > 0;
+                break;
+            case SETTINGS_MAX_FRAME_SIZE:
+                if (value < DEFAULT_MAX_FRAME_SIZE || value > MAX_FRAME_SIZE_LIMIT)
+                    throw error(PROTOCOL_ERROR, "invalid MAX_FRAME_SIZE " + value);
+                _maxFrameSize = value;
+                break;
+            default:
+                // other settings do not constrain a server
+            }
+        }
+        writeFrame(SETTINGS, FLAG_ACK, 0, EMPTY);
+        if (opened) signalBlocked();
+    }
+
+    private void receiveWindowUpdate(int streamId, ByteBuffer payload) throws IOException {
+        if (payload.remaining() != 4) throw error(FRAME_SIZE_ERROR, "invalid WINDOW_UPDATE");
+        int increment = payload.getInt() & 0x7FFFFFFF;
+        if (streamId == 0) {
+            if (increment == 0) throw error(PROTOCOL_ERROR, "zero window increment");
+            if ((long)_sendWindow + increment > MAX_WINDOW_SIZE)
+                throw error(FLOW_CONTROL_ERROR, "window of connection overflows");
+            _sendWindow += increment;
+            signalBlocked();
+            return;
+        }
+        if (streamId > _lastStreamId)
+            throw error(PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream " + streamId);
+        Stream stream = _streams.get(streamId);
+        if (stream == null) return;
+        if (increment == 0) {
+            reset(streamId, PROTOCOL_ERROR);
+        } else if ((long)stream.window + increment > MAX_WINDOW_SIZE) {
+            reset(streamId, FLOW_CONTROL_ERROR);
+        } else {
+            stream.window += increment;
+            signal(stream);
+        }
+    }
+
+    /**
+     * Writes a header block in a HEADERS frame followed by as many
+     * CONTINUATION frames as the maximum frame size requires.
+     */
+    private void writeHeaders(int streamId, ByteBuffer block, boolean endStream)
+            throws IOException {
+        int type = HEADERS;
+        do {
+            int n = Math.min(block.remaining(), _maxFrameSize);
+            ByteBuffer fragment = block.duplicate();
+            fragment.limit(fragment.position() + n);
+            block.position(block.position() + n);
+            int flags = (type == HEADERS && endStream ? FLAG_END_STREAM : 0)
+                      | (block.hasRemaining() ? 0 : FLAG_END_HEADERS);
+            writeFrame(type, flags, streamId, fragment);
+            type = CONTINUATION;
+        } while (block.hasRemaining());
+    }
+
+    /**
+     * Signals the streams that wait for the windows to open, to be drained
+     * outside the lock of this connection.
+     */
+    private void signalBlocked() {
+        for (Stream stream : _streams.values()) {
+            signal(stream);
+        }
+    }
+
+    private void signal(Stream stream) {
+        if (stream.blocked) {
+            stream.blocked = false;
+            _signalled.add(stream);
+        }
+    }
+
+    private void complete(Stream stream) throws IOException {
+        stream.ended = true;
+        _streams.remove(stream.id);
+        closeIfGoingAway();
+    }
+
+    private void closeIfGoingAway() throws IOException {
+        if (_goingAway && _streams.isEmpty()) {
+            _closed = true;
+            _queue.close();
+        }
+    }
+
+    private void reset(int streamId, int code) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(4).putInt(code);
+        payload.flip();
+        writeFrame(RST_STREAM, 0, streamId, payload);
+        discard(streamId);
+    }
+
+    /**
+     * Removes a stream that has been reset. Its queue is discarded outside
+     * the lock of this connection.
+     */
+    private void discard(int streamId) {
+        Stream stream = _streams.remove(streamId);
+        if (stream != null) {
+            stream.reset = true;
+            _signalled.add(stream);
+        }
+    }
+
+    /**
+     * Removes all streams as this connection closes. Their queues are
+     * discarded outside the lock of this connection.
+     */
+    private void discardStreams() {
+        for (Stream stream : _streams.values()) {
+            stream.reset = true;
+            _signalled.add(stream);
+        }
+        _streams.clear();
+        _ready.clear();
+    }
+
+    /**
+     * Writes a frame. The header is encoded in a buffer reused for every
+     * frame, and the payload is copied to the pooled buffers of the queue.
+     */
+    private void writeFrame(int type, int flags, int streamId, ByteBuffer payload)
+            throws IOException {
+        _frameHeader.clear();
+        writeHeader(_frameHeader, payload.remaining(), type, flags, streamId);
+        _frameHeader.flip();
+        _queue.write(_frameHeader);
+        _queue.write(payload.duplicate());
+    }
+
+    /**
+     * Closes this connection after a connection error. A GOAWAY frame is
+     * sent, and the network channel is closed after queued frames have
+     * been written.
+     */
+    private void fail(int code, Exception ex) {
+        _logger.warn("closing " + this + " with " + code + ": " + ex);
+        synchronized (this) {
+            if (_closed) return;
+            _closed = true;
+            discardStreams();
+            try {
+                ByteBuffer payload = ByteBuffer.allocate(8).putInt(_lastStreamId).putInt(code);
+                payload.flip();
+                writeFrame(GOAWAY, 0, 0, payload);
+                _queue.close();
+            } catch (IOException e) {
+                _logger.warn("error closing " + this + ": " + e);
+            }
+        }
+    }
+
+    public String toString() {
+        return "Http2Connection[" + _channel + "]";
+    }
+
+    /**
+     * A stream whose response has not been sent completely. The stream is
+     * the channel of its queue: the response rendered as in HTTP/1.1 is
+     * written to the stream as the queue drains, and is translated to
+     * frames under the lock of this connection.
+     */
+    private class Stream implements ByteChannel {
+        final int id;
+        final WriteQueue queue;
+        int window;
+        /** the request till its body has been received */
+        Http2Request request;
+        ByteBuffer body;
+        boolean headRequest;
+        /** the status line and headers of the response till they are sent */
+        ByteBuffer head = ByteBuffer.allocate(1024);
+        /** decodes the body of the response, if chunked */
+        ChunkedDecoder chunks;
+        /** bytes of the body to be sent, or -1 if not known */
+        long remaining = -1;
+        /** waits for the windows to open */
+        boolean blocked;
+        boolean ended;
+        volatile boolean reset;
+
+        Stream(int id, int window) {
+            this.id = id;
+            this.window = window;
+            this.queue = new WriteQueue(this, _pool, q -> drain(this));
+        }
+
+        /**
+         * Appends the given data to the body of the request.
+         *
+         * @return false if the body would exceed the maximum size
+         */
+        boolean receive(ByteBuffer data) {
+            if (!data.hasRemaining()) return true;
+            if (body == null) {
+                body = ByteBuffer.allocate(Math.max(data.remaining(), 1024));
+            } else if (body.remaining() < data.remaining()) {
+                long length = (long)body.position() + data.remaining();
+                if (length > HttpRequest.MAX_BODY_SIZE) return false;
+                ByteBuffer grown = ByteBuffer.allocate((int)Math.min(HttpRequest.MAX_BODY_SIZE,
+                        Math.max(length, 2L*body.capacity())));
+                body.flip();
+                body = grown.put(body);
+            }
+            body.put(data);
+            return true;
+        }
+
+        /**
+         * Translates the given bytes of the response to frames. The bytes
+         * after the end of the response are dropped, e.g. the body of a
+         * response to a <code>HEAD</code> request.
+         *
+         * @return number of bytes consumed. Less than the remaining bytes if
+         * the windows are closed.
+         * @throws IOException if the stream has been reset, or the response
+         * is malformed
+         */
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            synchronized (Http2Connection.this) {
+                if (reset || _closed) throw new IOException(this + " has been reset");
+                int start = src.position();
+                if (ended) {
+                    src.position(src.limit());
+                } else {
+                    if (head != null) receiveHead(src);
+                    if (head == null) writeBody(src);
+                }
+                return src.position() - start;
+            }
+        }
+
+        /**
+         * Receives the status line and headers up to the empty line that
+         * ends them, and sends them as a header block.
+         */
+        private void receiveHead(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                if (!head.hasRemaining()) {
+                    if (head.capacity() >= MAX_HEADER_BLOCK)
+                        throw new ProtocolException("headers of response exceed "
+                                + MAX_HEADER_BLOCK + " bytes");
+                    head.flip();
+                    head = ByteBuffer.allocate(2*head.capacity()).put(head);
+                }
+                byte b = src.get();
+                head.put(b);
+                int n = head.position();
+                if (b == '\n' && n >= 4 && head.get(n-2) == '\r'
+                 && head.get(n-3) == '\n' && head.get(n-4) == '\r') {
+                    String lines = new String(head.array(), 0, n-4, StandardCharsets.ISO_8859_1);
+                    head = null;
+                    sendHead(lines.split("\r\n"));
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Sends the status and the headers, except the headers specific to
+         * a HTTP/1.1 connection, in lower case. The stream ends with the
+         * headers if the response has no body.
+         */
+        private void sendHead(String[] lines) throws IOException {
+            String[] statusLine = lines[0].split(" ", 3);
+            if (statusLine.length < 2) throw new ProtocolException("invalid status line " + lines[0]);
+            int status;
+            try {
+                status = Integer.parseInt(statusLine[1]);
+            } catch (NumberFormatException ex) {
+                throw new ProtocolException("invalid status line " + lines[0]);
+            }
+            List<String> headers = new ArrayList<String>();
+            headers.add(":status");
+            headers.add(statusLine[1]);
+            boolean chunked = false;
+            long length = -1;
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) continue;
+                String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+                String value = lines[i].substring(colon + 1).trim();
+                switch (name) {
+                case "transfer-encoding":
+                    chunked = value.toLowerCase(Locale.ENGLISH).contains("chunked");
+                    continue;
+                case "connection":
+                case "keep-alive":
+                case "proxy-connection":
+                case "upgrade":
+                    continue;
+                case "content-length":
+                    try {
+                        length = Long.parseLong(value);
+                    } catch (NumberFormatException ex) {
+                        throw new ProtocolException("invalid content-length " + value);
+                    }
+                    break;
+                default:
+                    break;
+                }
+                headers.add(name);
+                headers.add(value);
+            }
+            boolean bodiless = headRequest || status < 200 || status == 204 || status == 304
+                    || (!chunked && length == 0);
+            ByteBuffer block = _encoder.encode(headers.toArray(new String[headers.size()]));
+            writeHeaders(id, block, bodiless);
+            if (bodiless) {
+                complete(this);
+            } else if (chunked) {
+                chunks = new ChunkedDecoder();
+            } else {
+                remaining = length;
+            }
+        }
+
+        /**
+         * Sends the body in DATA frames as far as the windows allow.
+         * A chunked body is decoded from a view of the given buffer
+         * limited to the windows, so that the data decoded is always sent.
+         */
+        private void writeBody(ByteBuffer src) throws IOException {
+            while (!ended && src.hasRemaining()) {
+                if (chunks != null) {
+                    chunks.skip(src);
+                    if (chunks.isComplete()) {
+                        writeData(EMPTY, true);
+                        break;
+                    }
+                    if (!src.hasRemaining()) break;
+                }
+                int n = Math.min(src.remaining(), Math.min(_sendWindow, window));
+                if (remaining >= 0) n = (int)Math.min(n, remaining);
+                if (n <= 0) {
+                    blocked = true;
+                    break;
+                }
+                ByteBuffer view = src.duplicate();
+                view.limit(view.position() + n);
+                ByteBuffer data = chunks == null ? view.slice() : chunks.decode(view);
+                src.position(chunks == null ? view.limit() : view.position());
+                boolean last;
+                if (chunks != null) {
+                    chunks.skip(src);
+                    last = chunks.isComplete();
+                } else {
+                    if (remaining > 0) remaining -= n;
+                    last = remaining == 0;
+                }
+                writeData(data, last);
+            }
+            if (ended) src.position(src.limit());
+        }
+
+        /**
+         * Writes the given data in as many DATA frames as the maximum frame
+         * size requires. The data is copied to the queue of the connection.
+         */
+        private void writeData(ByteBuffer data, boolean last) throws IOException {
+            do {
+                int n = Math.min(data.remaining(), _maxFrameSize);
+                ByteBuffer frame = data.duplicate();
+                frame.limit(frame.position() + n);
+                data.position(data.position() + n);
+                boolean end = last && !data.hasRemaining();
+                writeFrame(DATA, end ? FLAG_END_STREAM : 0, id, frame);
+                _sendWindow -= n;
+                window -= n;
+            } while (data.hasRemaining());
+            if (last) complete(this);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            return -1;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !reset && !_closed;
+        }
+
+        /**
+         * Ends the stream once its queue has been closed and drained. A body
+         * of unknown length ends with the stream. The stream is reset if
+         * the response is incomplete.
+         */
+        @Override
+        public void close() throws IOException {
+            synchronized (Http2Connection.this) {
+                if (ended || reset || _closed) return;
+                if (head == null && chunks == null && remaining < 0) {
+                    writeData(EMPTY, true);
+                } else {
+                    reset(id, INTERNAL_ERROR);
+                }
+            }
+        }
+
+        public String toString() {
+            return "stream " + id + " of " + Http2Connection.this;
+        }
+    }
+}
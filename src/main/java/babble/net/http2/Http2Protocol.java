@@ -0,0 +1,47 @@
+package babble.net.http2;
+
+import java.nio.channels.SocketChannel;
+
+import babble.net.ChannelHandler;
+import babble.net.NioServer;
+import babble.net.http.DefaultGet;
+import babble.net.http.HttpProtocol;
+import babble.net.http.HttpRequest;
+import babble.net.http.HttpResponse;
+import babble.net.http.HttpServer;
+
+/**
+ * Cleartext HTTP/2 with prior knowledge. Every connection accepted by a 
+ * server is an {@link Http2Connection HTTP/2 connection}. The requests of
+ * a connection are routed and responded as in {@link HttpProtocol HTTP/1.1},
+ * so the same routes serve both protocols.
+ * 
+ * @author pinaki poddar
+ *
+ */
+public class Http2Protocol extends HttpProtocol {
+    
+    /**
+     * Runs a cleartext HTTP/2 server that serves files of the current
+     * directory.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("***Missing argument");
+            System.err.println("Usage: " + Http2Protocol.class.getName() + " port");
+            System.err.println("where");
+            System.err.println("\tport listen port of cleartext HTTP/2 server");
+            System.exit(1);
+        }
+        HttpServer server = new HttpServer("Http2Server", Integer.parseInt(args[0]), 
+                new Http2Protocol());
+        server.addRoute(new DefaultGet());
+        server.start();
+    }
+
+    @Override
+    public ChannelHandler newChannelHandler(NioServer<HttpRequest, HttpResponse> server, 
+            SocketChannel channel) {
+        return new Http2Connection(channel, server::dispatch);
+    }
+}
@@ -0,0 +1,54 @@
+package babble.net.http2;
+
+import java.nio.channels.ByteChannel;
+
+import babble.net.WriteQueue;
+import babble.net.exception.ProtocolException;
+import babble.net.http.HttpRequest;
+
+/**
+ * A HTTP request received on a stream of a {@link Http2Connection HTTP/2
+ * connection}. The request is built from the decoded header block of the
+ * stream rather than parsed from the channel, and its body from the DATA
+ * frames of the stream. The request is routed like any other
+ * {@link HttpRequest HTTP request}, and its response is written to the
+ * {@link #getWriteQueue() queue} of the stream.
+ *
+ * @author pinaki poddar
+ *
+ */
+@SuppressWarnings("serial")
+public class Http2Request extends HttpRequest {
+    private final int _streamId;
+
+    /**
+     * Creates a request.
+     *
+     * @param streamId the stream the request has been received on
+     * @param method value of <code>:method</code> pseudo-header
+     * @param path value of <code>:path</code> pseudo-header
+     * @param channel the network channel of the connection
+     * @param queue the queue of the stream to write the response
+     * @throws ProtocolException if the method is not allowed
+     */
+    public Http2Request(int streamId, String method, String path, ByteChannel channel,
+            WriteQueue queue) throws ProtocolException {
+        super(method, path);
+        _streamId = streamId;
+        setChannel(channel);
+        setWriteQueue(queue);
+        setURI(channel, true);
+    }
+
+    /**
+     * Gets the identifier of the stream this request has been received on.
+     */
+    public int getStreamId() {
+        return _streamId;
+    }
+
+    @Override
+    public String getVersionString() {
+        return "HTTP/2.0";
+    }
+}
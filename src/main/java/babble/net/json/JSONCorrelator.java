@@ -0,0 +1,55 @@
+package babble.net.json;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import babble.net.Correlator;
+import babble.net.exception.ProtocolException;
+
+/**
+ * Correlates JSON-RPC responses with requests by the <code>id</code>
+ * property of the messages.
+ * <br>
+ * Each message is a JSON object on a line of its own, so a response is
+ * split off at the line feed without parsing. The identifier of a request
+ * is compared as a string, as the server echoes it in the response.
+ *
+ * @author pinaki poddar
+ *
+ */
+final class JSONCorrelator implements Correlator<JSONRequest> {
+    @Override
+    public Object getId(JSONRequest request) {
+        return request.getId();
+    }
+
+    @Override
+    public ByteBuffer nextResponse(ByteBuffer buffer) {
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                ByteBuffer response = buffer.slice();
+                response.limit(i - buffer.position());
+                buffer.position(i + 1);
+                return response;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Object getRequestId(ByteBuffer response) throws ProtocolException {
+        byte[] bytes = new byte[response.remaining()];
+        response.duplicate().get(bytes);
+        try {
+            Object id = new JSONObject(new String(bytes, StandardCharsets.UTF_8))
+                    .opt(JSONRPC.PROPERTY_ID);
+            return id == null || id == JSONObject.NULL ? null : id.toString();
+        } catch (JSONException ex) {
+            throw new ProtocolException(ex)
+                .setErrorCode(JSONRPC.ERROR_CODE_PARSE_ERROR);
+        }
+    }
+}
@@ -4,8 +4,12 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.json.JSONObject;
 
@@ -24,6 +28,8 @@ import babble.util.SimpleURI;
  *
  */
 public class JSONRPCClient extends NioClient<JSONRequest,JSONResponse> implements ResponseCallback {
+    /** time in seconds to wait for a response */
+    private static final int RESPONSE_TIMEOUT = 10;
     
     public static void main(String[] args) throws Exception {
         if (args.length != 1) {
@@ -37,45 +43,34 @@ public class JSONRPCClient extends NioClient<JSONRequest,JSONResponse> implement
         }
         SimpleURI uri = new SimpleURI(args[0]);
         JSONRPCClient client = new JSONRPCClient(uri.getHost(), uri.getPort());
-        client.readAndSend(System.in);
-        
-        
-        Thread.sleep(10*1000);
-        
+        List<CompletableFuture<Void>> responses = client.readAndSend(System.in);
+        CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[responses.size()]))
+            .handle((result, ex) -> null)
+            .join();
+        client.close();
     }
     
     
 
     public JSONRPCClient(String host, int port) throws IOException {
         super(host, port, false);
-       
+        setProtocol(new JSONRPCProtocol());
     }
     
-    private List<byte[]> _accumulatedResponse = new ArrayList<byte[]>();
     @Override
     public void onResponse(byte[] bytes, boolean eos) {
-        if (_accumulatedResponse.isEmpty()) {
-            getLogger().info("--- server response --- ");
-        
-        }
-        if (eos) {
-            int nTotalBytes = 0;
-            for (byte[] chunk : _accumulatedResponse) {
-                nTotalBytes += chunk.length;
-            }
-            byte[] allBytes = new byte[nTotalBytes];
-            int pos = 0;
-            for (byte[] chunk : _accumulatedResponse) {
-                System.arraycopy(chunk, 0, allBytes, pos, chunk.length);
-                pos += chunk.length;
-            }
-            
-            JSONObject response = new JSONObject(new String(allBytes));
-            JSONResponse.printOutput(System.out, response);
-        } else {
-            _accumulatedResponse.add(bytes);
-        }
+        onResponse(ByteBuffer.wrap(bytes), eos);
+    }
 
+    /**
+     * Prints a response. A response is correlated with its request, hence
+     * it is received whole, and is decoded from the buffer it is read into.
+     */
+    @Override
+    public void onResponse(ByteBuffer data, boolean eos) {
+        getLogger().info("--- server response --- ");
+        JSONObject response = new JSONObject(StandardCharsets.UTF_8.decode(data).toString());
+        JSONResponse.printOutput(System.out, response);
     }
 
     @Override
@@ -83,7 +78,14 @@ public class JSONRPCClient extends NioClient<JSONRequest,JSONResponse> implement
         ex.printStackTrace();
     }
     
-    void readAndSend(InputStream in) throws IOException {
+    /**
+     * Sends a request for each line of the given input.
+     * 
+     * @return the futures of the responses, which are printed as they
+     * arrive
+     */
+    List<CompletableFuture<Void>> readAndSend(InputStream in) throws IOException {
+        List<CompletableFuture<Void>> responses = new ArrayList<CompletableFuture<Void>>();
         BufferedReader reader = new BufferedReader(new InputStreamReader(in));
         String line = null;
         int iLine = 0;
@@ -96,8 +98,9 @@ public class JSONRPCClient extends NioClient<JSONRequest,JSONResponse> implement
             JSONRequest request = new JSONRequest(line);
             request.putProperty(JSONRPC.PROPERTY_ID, iLine);
             getLogger().info("->" + request);
-            sendRequest(request, this);
+            responses.add(call(request, this, RESPONSE_TIMEOUT, TimeUnit.SECONDS));
         }
+        return responses;
     }
 
 
@@ -1,10 +1,14 @@
 package babble.net.json;
 
+import babble.net.Correlator;
 import babble.net.NioServer;
 import babble.net.Protocol;
 import babble.net.Router;
+import babble.net.exception.ProtocolException;
+import babble.net.exception.RoutingException;
 
 class JSONRPCProtocol implements Protocol<JSONRequest, JSONResponse>{
+    private static final JSONCorrelator CORRELATOR = new JSONCorrelator();
 
     @Override
     public String getName() {
@@ -24,7 +28,12 @@ class JSONRPCProtocol implements Protocol<JSONRequest, JSONResponse>{
     @Override
     public JSONResponse newErrorResponse(JSONRequest request, final Exception ex) {
         JSONResponse response = new JSONResponse(request);
-        int status = 0;
+        int status = JSONRPC.ERROR_CODE_INTERNAL_ERROR;
+        if (ex instanceof RoutingException) {
+            status = ((RoutingException)ex).getErrorCode();
+        } else if (ex instanceof ProtocolException) {
+            status = JSONRPC.ERROR_CODE_INVALID_REQUEST;
+        }
         response.fail(status, ex);
         return response;
      }
@@ -34,5 +43,14 @@ class JSONRPCProtocol implements Protocol<JSONRequest, JSONResponse>{
         return new JSONRPCRouter(server);
     }
 
+    /**
+     * Responses carry the identifier of their request, hence a client
+     * can have many requests outstanding on a connection.
+     */
+    @Override
+    public Correlator<JSONRequest> getCorrelator() {
+        return CORRELATOR;
+    }
+
 
 }
@@ -10,6 +10,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -32,6 +33,8 @@ import babble.net.exception.ProtocolException;
 @SuppressWarnings("serial")
 public class JSONRequest extends Request {
     private JSONObject _json;    
+    /** bytes that the channel did not take when this request was sent */
+    private transient ByteBuffer _unsent;
     
     private static Logger _logger = LoggerFactory.getLogger("JSONRPC-Request");
     
@@ -109,9 +112,28 @@ public class JSONRequest extends Request {
         
     }
 
+    /**
+     * Writes this request as a line of JSON. A message ends at the line
+     * feed, so that the messages can be told apart on a connection.
+     * <br>
+     * Writes as many bytes as the channel takes. The rest is written
+     * by {@link #sendRemaining(ByteChannel)}.
+     */
     @Override
     protected void send(ByteChannel channel) throws IOException {
-        channel.write(ByteBuffer.wrap(_json.toString().getBytes()));
+        _unsent = ByteBuffer.wrap((_json.toString() + '\n')
+                .getBytes(StandardCharsets.UTF_8));
+        sendRemaining(channel);
+    }
+    
+    @Override
+    protected boolean sendRemaining(ByteChannel channel) throws IOException {
+        if (_unsent != null) {
+            channel.write(_unsent);
+            if (_unsent.hasRemaining()) return false;
+            _unsent = null;
+        }
+        return true;
     }
 
     public String getMethod() {
@@ -11,6 +11,7 @@ import static babble.net.json.JSONRPC.PROPERTY_RESULT;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.channels.ByteChannel;
+import java.nio.charset.StandardCharsets;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -47,7 +48,8 @@ public class JSONResponse extends Response {
         
         error.put(ERROR_CODE, status);
         error.put(ERROR_MESSAGE, ex.getMessage());
-        error.put(ERROR_DATA, ex.getStackTrace());
+        // the stack trace is neither captured for every error nor sent
+        error.put(ERROR_DATA, ex.getClass().getName());
     }
     
     public void result(Object result) {
@@ -62,10 +64,14 @@ public class JSONResponse extends Response {
         return _json.toString();
     }
     
+    /**
+     * Writes this response as a line of JSON, as a request is written.
+     */
     @Override
     public void send(ByteChannel channel) throws IOException {
         setChannel(channel);
-        writeString(_json.toString());
+        writeString(StandardCharsets.UTF_8, _json.toString(), "\n");
+        flush();
     }
     
     public static void printOutput(PrintStream out, JSONObject json) {
@@ -85,7 +91,7 @@ public class JSONResponse extends Response {
     }
 
     @Override
-    public void receive(ByteChannel channel, ResponseCallback cb) {
+    public boolean receive(ByteChannel channel, ResponseCallback cb) {
         throw new AbstractMethodError();
     }
     
@@ -0,0 +1,263 @@
+package babble.net.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import babble.net.exception.ProtocolException;
+
+/**
+ * Encodes and decodes WebSocket frames as per
+ * <a href="https://tools.ietf.org/html/rfc6455#section-5">RFC 6455</a>.
+ * <br>
+ * The decoder is non-blocking and resumable: it {@link #decode(ByteBuffer)
+ * consumes} whatever bytes have been read from the network, and a frame
+ * split across reads is resumed when more bytes arrive. A frame that is
+ * complete in the input buffer is unmasked in place and passed to the
+ * {@link Handler handler} as a slice of the input buffer without a copy.
+ * Only a frame split across reads is accumulated in a buffer of its
+ * length.
+ * <br>
+ * The mask is applied eight bytes at a time.
+ * <br>
+ * A decoder is not thread-safe. It is used by the i/o thread of a
+ * connection.
+ *
+ * @author pinaki poddar
+ *
+ */
+class FrameCodec {
+    static final int OPCODE_CONTINUATION = 0x0;
+    static final int OPCODE_TEXT         = 0x1;
+    static final int OPCODE_BINARY       = 0x2;
+    static final int OPCODE_CLOSE        = 0x8;
+    static final int OPCODE_PING         = 0x9;
+    static final int OPCODE_PONG         = 0xA;
+
+    static final int MAX_CONTROL_PAYLOAD = 125;
+    static final int MAX_HEADER_LENGTH   = 14;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * Receives the decoded frames.
+     */
+    interface Handler {
+        /**
+         * Receives a frame.
+         *
+         * @param fin whether this is the final fragment of a message
+         * @param opcode the opcode of the frame
+         * @param payload unmasked payload. Valid only during the call.
+         */
+        void frame(boolean fin, int opcode, ByteBuffer payload) throws IOException;
+    }
+
+    private final Handler _handler;
+    private final boolean _masked;
+    private final int _maxFrameSize;
+
+    private final byte[] _header = new byte[MAX_HEADER_LENGTH];
+    private int _headerLength;
+    private boolean _fin;
+    private int _opcode;
+    private int _mask;
+    private ByteBuffer _payload;
+
+    /**
+     * Creates a codec.
+     *
+     * @param handler receives the decoded frames
+     * @param masked whether frames received must be masked i.e. the
+     * codec is used by a server
+     * @param maxFrameSize maximum payload length of a frame received
+     */
+    FrameCodec(Handler handler, boolean masked, int maxFrameSize) {
+        _handler = handler;
+        _masked = masked;
+        _maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Decodes the remaining bytes of the given buffer. All bytes are
+     * consumed. The handler is invoked for every complete frame.
+     *
+     * @throws ProtocolException if a frame does not conform to the protocol
+     * or is too large. The error code is a WebSocket close code.
+     */
+    void decode(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            if (_payload != null) {
+                int n = Math.min(in.remaining(), _payload.remaining());
+                ByteBuffer part = in.duplicate();
+                part.limit(part.position() + n);
+                _payload.put(part);
+                in.position(in.position() + n);
+                if (_payload.hasRemaining()) return;
+                _payload.flip();
+                ByteBuffer payload = _payload;
+                _payload = null;
+                deliver(payload, 0, payload.limit());
+                continue;
+            }
+            if (!readHeader(in)) return;
+            int length = parseHeader();
+            _headerLength = 0;
+            if (length == 0) {
+                _handler.frame(_fin, _opcode, EMPTY);
+            } else if (in.remaining() >= length) {
+                int start = in.position();
+                in.position(start + length);
+                deliver(in, start, start + length);
+            } else {
+                _payload = ByteBuffer.allocate(length);
+            }
+        }
+    }
+
+    /**
+     * Unmasks the given region of the buffer in place and delivers it as
+     * a slice.
+     */
+    private void deliver(ByteBuffer buf, int start, int end) throws IOException {
+        if (_masked) mask(buf, start, end, _mask);
+        ByteBuffer payload = buf.duplicate();
+        payload.limit(end).position(start);
+        _handler.frame(_fin, _opcode, payload.slice());
+    }
+
+    /**
+     * Copies header bytes from the given buffer.
+     *
+     * @return true if the header is complete
+     */
+    private boolean readHeader(ByteBuffer in) {
+        while (in.hasRemaining()) {
+            _header[_headerLength++] = in.get();
+            if (_headerLength >= 2 && _headerLength == headerLength()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gets length of the header from its first two bytes.
+     */
+    private int headerLength() {
+        int len = _header[1] & 0x7F;
+        return 2 + (len == 126 ? 2 : len == 127 ? 8 : 0)
+                 + ((_header[1] & 0x80) != 0 ? 4 : 0);
+    }
+
+    /**
+     * Parses a complete header.
+     *
+     * @return the payload length
+     */
+    private int parseHeader() throws ProtocolException {
+        int b0 = _header[0] & 0xFF;
+        int b1 = _header[1] & 0xFF;
+        _fin = (b0 & 0x80) != 0;
+        _opcode = b0 & 0x0F;
+        if ((b0 & 0x70) != 0)
+            throw error(WebSocket.CLOSE_PROTOCOL_ERROR, "reserved bits are set");
+        if (((b1 & 0x80) != 0) != _masked)
+            throw error(WebSocket.CLOSE_PROTOCOL_ERROR, _masked ? "frame is not masked"
+                    : "frame is masked");
+        long length = b1 & 0x7F;
+        int i = 2;
+        if (length == 126) {
+            length = ((_header[2] & 0xFF) << 8) | (_header[3] & 0xFF);
+            i = 4;
+        } else if (length == 127) {
+            length = 0;
+            for (; i < 10; i++) length = (length << 8) | (_header[i] & 0xFF);
+            if (length < 0)
+                throw error(WebSocket.CLOSE_PROTOCOL_ERROR, "invalid length");
+        }
+        if (_masked) {
+            _mask = ((_header[i] & 0xFF) << 24) | ((_header[i+1] & 0xFF) << 16)
+                  | ((_header[i+2] & 0xFF) << 8) | (_header[i+3] & 0xFF);
+        }
+        switch (_opcode) {
+        case OPCODE_CONTINUATION:
+        case OPCODE_TEXT:
+        case OPCODE_BINARY:
+            break;
+        case OPCODE_CLOSE:
+        case OPCODE_PING:
+        case OPCODE_PONG:
+            if (!_fin || length > MAX_CONTROL_PAYLOAD)
+                throw error(WebSocket.CLOSE_PROTOCOL_ERROR, "invalid control frame");
+            break;
+        default:
+            throw error(WebSocket.CLOSE_PROTOCOL_ERROR, "unknown opcode " + _opcode);
+        }
+        if (length > _maxFrameSize)
+            throw error(WebSocket.CLOSE_TOO_BIG, "frame of " + length
+                    + " bytes exceeds " + _maxFrameSize + " bytes");
+        return (int)length;
+    }
+
+    static boolean isControl(int opcode) {
+        return (opcode & 0x8) != 0;
+    }
+
+    static ProtocolException error(int code, String message) {
+        return new ProtocolException(message).setErrorCode(code);
+    }
+
+    /**
+     * Encodes an unmasked frame in a buffer.
+     *
+     * @param opcode the opcode of the frame
+     * @param payload the payload. Its position is not advanced.
+     * @return a buffer ready to be read
+     */
+    static ByteBuffer encode(int opcode, ByteBuffer payload) {
+        ByteBuffer frame = ByteBuffer.allocate(MAX_HEADER_LENGTH + payload.remaining());
+        writeHeader(frame, true, opcode, payload.remaining());
+        frame.put(payload.duplicate());
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Writes the header of an unmasked frame.
+     *
+     * @param dst the buffer to write with at least {@link #MAX_HEADER_LENGTH}
+     * bytes remaining
+     */
+    static void writeHeader(ByteBuffer dst, boolean fin, int opcode, long length) {
+        dst.put((byte)((fin ? 0x80 : 0) | opcode));
+        if (length <= 125) {
+            dst.put((byte)length);
+        } else if (length <= 0xFFFF) {
+            dst.put((byte)126).putShort((short)length);
+        } else {
+            dst.put((byte)127).putLong(length);
+        }
+    }
+
+    /**
+     * Applies the given mask in place to the given region of a buffer.
+     * The first byte of the region is masked with the first byte of the
+     * mask. Applying the mask twice restores the original bytes.
+     * <br>
+     * The bytes are masked eight at a time by a mask of a long, and the
+     * remaining bytes one at a time.
+     *
+     * @param buf a buffer in big-endian byte order
+     * @param start index of the first byte to mask
+     * @param end index after the last byte to mask
+     * @param mask the masking key in big-endian order
+     */
+    static void mask(ByteBuffer buf, int start, int end, int mask) {
+        long mask64 = ((long)mask << 32) | (mask & 0xFFFFFFFFL);
+        int i = start;
+        for (; i + 8 <= end; i += 8) {
+            buf.putLong(i, buf.getLong(i) ^ mask64);
+        }
+        for (; i < end; i++) {
+            buf.put(i, (byte)(buf.get(i) ^ (mask >>> (24 - 8*((i - start) & 3)))));
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package babble.net.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import babble.net.ChannelHandler;
+import babble.net.WriteQueue;
+import babble.net.exception.ProtocolException;
+import babble.net.http.HttpRequest;
+import babble.util.BufferPool;
+
+/**
+ * A WebSocket connection accepted by a {@link WebSocketRoute route}.
+ * <br>
+ * The connection has switched from HTTP to WebSocket frames. The server
+ * i/o thread reads the connection into a {@link BufferPool pooled} buffer,
+ * decodes the frames, and notifies the route of each message. Pings are
+ * answered, and the close handshake is completed by this connection.
+ * <br>
+ * Messages are {@link #send(String) sent} from any thread. A frame is
+ * copied to the {@link WriteQueue queue} of the connection and never
+ * blocks. The same message can be sent to many connections by
+ * {@link #encode(String) encoding} it once and {@link #sendFrame(ByteBuffer)
+ * sending} the encoded frame to each.
+ *
+ * @author pinaki poddar
+ *
+ */
+public class WebSocket implements ChannelHandler {
+    public static final int CLOSE_NORMAL           = 1000;
+    public static final int CLOSE_GOING_AWAY       = 1001;
+    public static final int CLOSE_PROTOCOL_ERROR   = 1002;
+    public static final int CLOSE_UNSUPPORTED_DATA = 1003;
+    public static final int CLOSE_NO_STATUS        = 1005;
+    public static final int CLOSE_ABNORMAL         = 1006;
+    public static final int CLOSE_INVALID_DATA     = 1007;
+    public static final int CLOSE_TOO_BIG          = 1009;
+    public static final int CLOSE_INTERNAL_ERROR   = 1011;
+
+    private static final int OPEN    = 0;
+    private static final int CLOSING = 1;
+    private static final int CLOSED  = 2;
+
+    private final WebSocketRoute _route;
+    private final HttpRequest _request;
+    private final int _maxMessageSize;
+    private final FrameCodec _codec;
+    private final BufferPool _pool = BufferPool.SHARED;
+    private final ByteBuffer _header = ByteBuffer.allocate(FrameCodec.MAX_HEADER_LENGTH);
+    private final CharsetDecoder _utf8 = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT);
+    private WriteQueue _queue;
+    private volatile int _state = OPEN;
+
+    private int _messageOpcode = -1;
+    private ByteBuffer _message;
+
+    private static final Logger _logger = LoggerFactory.getLogger(WebSocket.class);
+
+    WebSocket(WebSocketRoute route, HttpRequest request, int maxMessageSize) {
+        _route = route;
+        _request = request;
+        _maxMessageSize = maxMessageSize;
+        _codec = new FrameCodec(this::frame, true, maxMessageSize);
+    }
+
+    /**
+     * Gets the request that opened this connection.
+     */
+    public HttpRequest getRequest() {
+        return _request;
+    }
+
+    /**
+     * Affirms if messages can be sent.
+     */
+    public boolean isOpen() {
+        return _state == OPEN;
+    }
+
+    /**
+     * Sends a text message.
+     */
+    public void send(String message) throws IOException {
+        send(FrameCodec.OPCODE_TEXT,
+             ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Sends the remaining bytes of the given buffer as a binary message.
+     * The position of the buffer is not advanced.
+     */
+    public void send(ByteBuffer message) throws IOException {
+        send(FrameCodec.OPCODE_BINARY, message);
+    }
+
+    /**
+     * Sends a ping.
+     *
+     * @param data at most 125 bytes
+     */
+    public void ping(ByteBuffer data) throws IOException {
+        if (data.remaining() > FrameCodec.MAX_CONTROL_PAYLOAD)
+            throw new IllegalArgumentException("ping data exceeds "
+                    + FrameCodec.MAX_CONTROL_PAYLOAD + " bytes");
+        send(FrameCodec.OPCODE_PING, data);
+    }
+
+    /**
+     * Encodes a text message as a frame that can be
+     * {@link #sendFrame(ByteBuffer) sent} to many connections.
+     *
+     * @return a read-only buffer
+     */
+    public static ByteBuffer encode(String message) {
+        return FrameCodec.encode(FrameCodec.OPCODE_TEXT,
+                ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)))
+                .asReadOnlyBuffer();
+    }
+
+    /**
+     * Sends a frame {@link #encode(String) encoded} earlier. The frame is
+     * queued without a copy.
+     */
+    public synchronized void sendFrame(ByteBuffer frame) throws IOException {
+        assertOpen();
+        _queue.enqueue(frame);
+    }
+
+    /**
+     * Starts the close handshake. The connection is closed when the
+     * remote endpoint acknowledges.
+     * No action is taken if the connection is not open.
+     *
+     * @param code a close code
+     * @param reason a reason. Truncated to fit in a control frame.
+     */
+    public synchronized void close(int code, String reason) throws IOException {
+        if (_state != OPEN || _queue == null) return;
+        _state = CLOSING;
+        writeFrame(FrameCodec.OPCODE_CLOSE, closePayload(code, reason));
+    }
+
+    private synchronized void send(int opcode, ByteBuffer payload) throws IOException {
+        assertOpen();
+        writeFrame(opcode, payload);
+    }
+
+    /**
+     * Writes a frame. The header is encoded in a buffer reused for every
+     * frame, and the payload is copied to the pooled buffers of the queue.
+     */
+    private synchronized void writeFrame(int opcode, ByteBuffer payload) throws IOException {
+        _header.clear();
+        FrameCodec.writeHeader(_header, true, opcode, payload.remaining());
+        _header.flip();
+        _queue.write(_header);
+        _queue.write(payload.duplicate());
+    }
+
+    private void assertOpen() throws IOException {
+        if (_queue == null)
+            throw new IllegalStateException(this + " has not been opened");
+        if (_state != OPEN)
+            throw new IOException(this + " is closed");
+    }
+
+    @Override
+    public void open(WriteQueue queue) {
+        synchronized (this) {
+            _queue = queue;
+        }
+        try {
+            _route.onOpen(this);
+        } catch (Exception ex) {
+            fail(CLOSE_INTERNAL_ERROR, ex);
+        }
+    }
+
+    /**
+     * Reads the available data into a pooled buffer and decodes the
+     * frames. The buffer is released after the data has been decoded.
+     */
+    @Override
+    public boolean read(ByteChannel channel) throws IOException {
+        ByteBuffer buf = _pool.acquire();
+        try {
+            int n;
+            while (_state != CLOSED && (n = channel.read(buf)) != 0) {
+                if (n < 0) return false;
+                buf.flip();
+                _codec.decode(buf);
+                buf.clear();
+            }
+            return true;
+        } catch (ProtocolException ex) {
+            fail(ex.getErrorCode(), ex);
+            return true;
+        } finally {
+            _pool.release(buf);
+        }
+    }
+
+    @Override
+    public void closed() {
+        if (_state == CLOSED) return;
+        _state = CLOSED;
+        _route.onClose(this, CLOSE_ABNORMAL, "");
+    }
+
+    /**
+     * Receives a decoded frame.
+     */
+    private void frame(boolean fin, int opcode, ByteBuffer payload) throws IOException {
+        if (_state == CLOSED) return;
+        switch (opcode) {
+        case FrameCodec.OPCODE_PING:
+            synchronized (this) {
+                if (_state == OPEN) writeFrame(FrameCodec.OPCODE_PONG, payload);
+            }
+            return;
+        case FrameCodec.OPCODE_PONG:
+            return;
+        case FrameCodec.OPCODE_CLOSE:
+            receiveClose(payload);
+            return;
+        case FrameCodec.OPCODE_CONTINUATION:
+            if (_messageOpcode < 0)
+                throw FrameCodec.error(CLOSE_PROTOCOL_ERROR, "unexpected continuation");
+            break;
+        default:
+            if (_messageOpcode >= 0)
+                throw FrameCodec.error(CLOSE_PROTOCOL_ERROR, "expected continuation");
+            _messageOpcode = opcode;
+        }
+        if (fin && _message == null) {
+            // unfragmented message is delivered without a copy
+            deliver(_messageOpcode, payload);
+        } else {
+            append(payload);
+            if (fin) {
+                _message.flip();
+                deliver(_messageOpcode, _message);
+                _message = null;
+            }
+        }
+        if (fin) _messageOpcode = -1;
+    }
+
+    /**
+     * Appends a fragment to the message being assembled.
+     */
+    private void append(ByteBuffer fragment) throws ProtocolException {
+        int length = (_message == null ? 0 : _message.position()) + fragment.remaining();
+        if (length > _maxMessageSize)
+            throw FrameCodec.error(CLOSE_TOO_BIG, "message exceeds "
+                    + _maxMessageSize + " bytes");
+        if (_message == null || _message.remaining() < fragment.remaining()) {
+            int capacity = _message == null ? fragment.remaining()
+                    : Math.min(_maxMessageSize, Math.max(length, 2*_message.capacity()));
+            ByteBuffer message = ByteBuffer.allocate(capacity);
+            if (_message != null) {
+                _message.flip();
+                message.put(_message);
+            }
+            _message = message;
+        }
+        _message.put(fragment);
+    }
+
+    private void deliver(int opcode, ByteBuffer message) throws ProtocolException {
+        try {
+            if (opcode == FrameCodec.OPCODE_TEXT) {
+                CharBuffer text;
+                try {
+                    text = _utf8.decode(message);
+                } catch (CharacterCodingException ex) {
+                    throw FrameCodec.error(CLOSE_INVALID_DATA, "invalid UTF-8 text");
+                }
+                _route.onMessage(this, text.toString());
+            } else {
+                _route.onMessage(this, message);
+            }
+        } catch (ProtocolException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            fail(CLOSE_INTERNAL_ERROR, ex);
+        }
+    }
+
+    /**
+     * Completes the close handshake. The close frame is echoed unless this
+     * connection had started the handshake, and the network channel is
+     * closed after queued frames have been written.
+     */
+    private void receiveClose(ByteBuffer payload) throws IOException {
+        int code = CLOSE_NO_STATUS;
+        String reason = "";
+        if (payload.remaining() == 1)
+            throw FrameCodec.error(CLOSE_PROTOCOL_ERROR, "invalid close frame");
+        if (payload.remaining() >= 2) {
+            code = payload.getShort(payload.position()) & 0xFFFF;
+            ByteBuffer text = payload.duplicate();
+            text.position(text.position() + 2);
+            try {
+                reason = _utf8.decode(text).toString();
+            } catch (CharacterCodingException ex) {
+                throw FrameCodec.error(CLOSE_INVALID_DATA, "invalid UTF-8 reason");
+            }
+        }
+        synchronized (this) {
+            if (_state == OPEN) {
+                writeFrame(FrameCodec.OPCODE_CLOSE, payload);
+            }
+            _state = CLOSED;
+            _queue.close();
+        }
+        _route.onClose(this, code, reason);
+    }
+
+    /**
+     * Closes this connection after an error.
+     */
+    private void fail(int code, Exception ex) {
+        _logger.warn("closing " + this + " with " + code + ": " + ex);
+        synchronized (this) {
+            if (_state == CLOSED) return;
+            try {
+                if (_state == OPEN) {
+                    writeFrame(FrameCodec.OPCODE_CLOSE, closePayload(code, ex.getMessage()));
+                }
+                _queue.close();
+            } catch (IOException e) {
+                _logger.warn("error closing " + this + ": " + e);
+            }
+            _state = CLOSED;
+        }
+        _route.onClose(this, code, String.valueOf(ex.getMessage()));
+    }
+
+    /**
+     * Encodes the payload of a close frame.
+     */
+    static ByteBuffer closePayload(int code, String reason) {
+        byte[] text = reason == null ? new byte[0] : reason.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(text.length, FrameCodec.MAX_CONTROL_PAYLOAD - 2);
+        ByteBuffer payload = ByteBuffer.allocate(2 + length);
+        payload.putShort((short)code).put(text, 0, length);
+        payload.flip();
+        return payload;
+    }
+
+    public String toString() {
+        return "WebSocket[" + _request.getPath() + "]";
+    }
+}
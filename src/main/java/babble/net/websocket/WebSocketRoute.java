@@ -0,0 +1,146 @@
+package babble.net.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import babble.net.ExecutionContext;
+import babble.net.http.HttpConstants;
+import babble.net.http.HttpRequest;
+import babble.net.http.HttpResponse;
+import babble.net.http.HttpRoute;
+import babble.net.http.SinglePartHttpResponse;
+
+/**
+ * A route that accepts WebSocket connections as per
+ * <a href="https://tools.ietf.org/html/rfc6455">RFC 6455</a>.
+ * <br>
+ * The route responds to a <code>GET</code> request to {@link 
+ * HttpRequest#isUpgrade(String) upgrade} to <code>websocket</code> with
+ * <code>101 Switching Protocols</code>. Thereafter the connection is no
+ * longer read as HTTP requests, but as WebSocket frames by a 
+ * {@link WebSocket} that notifies this route of every message. 
+ * <br>
+ * The callbacks are invoked on the i/o thread of the server, hence they
+ * must not block. A route that processes a message for long should do so
+ * in its own thread and {@link WebSocket#send(String) send} the reply from
+ * there.
+ *
+ * <pre>
+ *   server.addRoute(new WebSocketRoute("echo") {
+ *       public void onMessage(WebSocket socket, String message) throws Exception {
+ *           socket.send(message);
+ *       }
+ *   });
+ * </pre>
+ * 
+ * @author pinaki poddar
+ *
+ */
+public abstract class WebSocketRoute extends HttpRoute {
+    public static final String PROTOCOL = "websocket";
+    public static final String VERSION  = "13";
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 1024*1024;
+    
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    
+    private int _maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+    
+    /**
+     * Creates a route for WebSocket connections at given path.
+     * 
+     * @param pattern regular expression for the request path
+     */
+    protected WebSocketRoute(String pattern) {
+        super("GET", pattern);
+    }
+    
+    public int getMaxMessageSize() {
+        return _maxMessageSize;
+    }
+    
+    /**
+     * Sets the maximum size in bytes of a message received. A connection
+     * that receives a larger message is closed.
+     */
+    public void setMaxMessageSize(int size) {
+        if (size <= 0)
+            throw new IllegalArgumentException("invalid message size " + size);
+        _maxMessageSize = size;
+    }
+    
+    /**
+     * Completes the opening handshake. 
+     * A request that does not ask to upgrade is responded with 
+     * <code>426 Upgrade Required</code>, and a request without a key or of
+     * an unsupported version with <code>400 Bad Request</code>.
+     */
+    @Override
+    public HttpResponse execute(ExecutionContext ctx, HttpRequest request) 
+            throws Exception {
+        SinglePartHttpResponse response = new SinglePartHttpResponse(request);
+        String key = value(request.getHeaderValue(HttpConstants.HEADER_SEC_WEBSOCKET_KEY));
+        String version = value(request.getHeaderValue(HttpConstants.HEADER_SEC_WEBSOCKET_VERSION));
+        if (!request.isUpgrade(PROTOCOL)) {
+            response.setStatus(HttpConstants.STATUS_UPGRADE_REQUIRED);
+            response.addHeader(HttpConstants.HEADER_UPGRADE, PROTOCOL);
+            response.addHeader(HttpConstants.HEADER_SEC_WEBSOCKET_VERSION, VERSION);
+        } else if (key == null || !VERSION.equals(version)) {
+            response.setStatus(HttpConstants.STATUS_BAD_REQUEST);
+            response.addHeader(HttpConstants.HEADER_SEC_WEBSOCKET_VERSION, VERSION);
+        } else {
+            response.setStatus(HttpConstants.STATUS_SWITCHING_PROTOCOLS);
+            response.addHeader(HttpConstants.HEADER_UPGRADE, PROTOCOL);
+            response.addHeader(HttpConstants.HEADER_SEC_WEBSOCKET_ACCEPT, accept(key));
+            response.setUpgrade(new WebSocket(this, request, _maxMessageSize));
+        }
+        return response;
+    }
+    
+    /**
+     * Computes the value of <code>Sec-WebSocket-Accept</code> for the given 
+     * key.
+     */
+    static String accept(String key) throws Exception {
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        byte[] digest = sha1.digest((key + GUID).getBytes(StandardCharsets.US_ASCII));
+        return Base64.getEncoder().encodeToString(digest);
+    }
+    
+    private static String value(String header) {
+        return header == null ? null : header.trim();
+    }
+    
+    /**
+     * Invoked when a connection has been opened. 
+     * By default, does nothing.
+     */
+    public void onOpen(WebSocket socket) throws Exception {
+    }
+    
+    /**
+     * Invoked when a text message is received.
+     */
+    public abstract void onMessage(WebSocket socket, String message) throws Exception;
+
+    /**
+     * Invoked when a binary message is received.
+     * By default, closes the connection as binary messages are not supported.
+     * 
+     * @param message the message. Valid only during the call.
+     */
+    public void onMessage(WebSocket socket, ByteBuffer message) throws Exception {
+        socket.close(WebSocket.CLOSE_UNSUPPORTED_DATA, "binary message is not supported");
+    }
+    
+    /**
+     * Invoked once when a connection is closed.
+     * By default, does nothing.
+     * 
+     * @param code the close code received, or {@link WebSocket#CLOSE_ABNORMAL}
+     * if the connection has been closed without a close frame
+     */
+    public void onClose(WebSocket socket, int code, String reason) {
+    }
+}
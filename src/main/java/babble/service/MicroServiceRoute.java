@@ -1,5 +1,6 @@
 package babble.service;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.util.HashMap;
@@ -14,6 +15,7 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import babble.net.EventLoopGroup;
 import babble.net.ExecutionContext;
 import babble.net.ResponseCallback;
 import babble.net.http.HttpClient;
@@ -24,6 +26,7 @@ import babble.net.http.MultipartHttpResponse;
 
 public class MicroServiceRoute extends HttpRoute implements ResponseCallback {
     Map<HttpClient,RequestRewriteRule> _clients;
+    EventLoopGroup _group;
     ExecutorService _threadPool;
     
     /**
@@ -37,12 +40,14 @@ public class MicroServiceRoute extends HttpRoute implements ResponseCallback {
         
         NodeList services = config.getElementsByTagName("service");
         _clients = new HashMap<HttpClient, RequestRewriteRule>();
+        // the clients to all services share the same few i/o threads
+        _group = new EventLoopGroup("microservice");
         for (int i = 0; i < services.getLength(); i++) {
             Node node = services.item(i);
             if (! Element.class.isInstance(node)) continue;
             Element serviceNode = Element.class.cast(node);
             URI uri = new URI(serviceNode.getAttribute("uri"));
-            HttpClient client = new HttpClient(uri.getHost(), uri.getPort());
+            HttpClient client = new HttpClient(uri.getHost(), uri.getPort(), _group);
             RequestRewriteRule rule = null;
             _clients.put(client,rule);
         }
@@ -57,21 +62,24 @@ public class MicroServiceRoute extends HttpRoute implements ResponseCallback {
         MultipartHttpResponse response = new MultipartHttpResponse(request);
         int partIndex = 0;
         for (Map.Entry<HttpClient,RequestRewriteRule> e : _clients.entrySet()) {
-            partIndex++;
+            // the body of a service arrives in parts, and is added as one part
             ResponseCallback cb = new ResponseCallback() {
                 int index;
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
                 private ResponseCallback init(int idx) {
                     index = idx;
                     return this;
                 }
                 @Override
                 public void onResponse(byte[] bytes, boolean eos) {
-                    if (eos) latch.countDown();
+                    body.write(bytes, 0, bytes.length);
+                    if (!eos) return;
                     try {
-                        response.addPart(index, new String(bytes));
+                        response.addPart(index, new String(body.toByteArray()));
                     } catch (IOException ex) {
-                        onError(ex);
+                        response.addFailedPart(index, ex);
                     }
+                    latch.countDown();
                 }
                 
                 @Override
@@ -79,7 +87,7 @@ public class MicroServiceRoute extends HttpRoute implements ResponseCallback {
                     latch.countDown();
                     response.addFailedPart(index, ex);
                 }
-            }.init(partIndex);
+            }.init(partIndex++);
             HttpRequest childRequest = e.getValue().rewrite(request);
             Callable<Void> clientRequest = new Callable<Void>() {
                 @Override
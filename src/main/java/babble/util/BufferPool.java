@@ -0,0 +1,89 @@
+package babble.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of direct byte buffers of the same size.
+ * <br>
+ * A direct buffer is written to a socket without an intermediate copy, but
+ * is expensive to allocate and is released only by garbage collection.
+ * Hence a buffer is {@link #acquire() acquired} from the pool and
+ * {@link #release(ByteBuffer) released} back, after use, to be reused.
+ * <br>
+ * This pool is thread-safe.
+ *
+ * @author pinaki poddar
+ *
+ */
+public class BufferPool {
+    public static final int DEFAULT_BUFFER_SIZE = 16*1024;
+    public static final int DEFAULT_CAPACITY    = 1024;
+
+    /**
+     * A pool shared by network channels.
+     */
+    public static final BufferPool SHARED =
+            new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_CAPACITY);
+
+    private final int _bufferSize;
+    private final int _capacity;
+    private final ArrayDeque<ByteBuffer> _idle;
+
+    /**
+     * Creates a pool.
+     *
+     * @param bufferSize size of each buffer in bytes
+     * @param capacity maximum number of idle buffers held by this pool
+     */
+    public BufferPool(int bufferSize, int capacity) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("invalid buffer size " + bufferSize);
+        if (capacity < 0)
+            throw new IllegalArgumentException("invalid capacity " + capacity);
+        _bufferSize = bufferSize;
+        _capacity   = capacity;
+        _idle       = new ArrayDeque<ByteBuffer>();
+    }
+
+    public int getBufferSize() {
+        return _bufferSize;
+    }
+
+    /**
+     * Acquires a cleared buffer. An idle buffer is reused, if available.
+     * Otherwise a new buffer is allocated.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = _idle.pollFirst();
+        }
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(_bufferSize);
+    }
+
+    /**
+     * Releases the given buffer to this pool. The buffer must not be used
+     * by the caller after release.
+     *
+     * @param buffer a buffer acquired from this pool. If null or not of
+     * the size of this pool, no action is taken.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != _bufferSize
+         || !buffer.isDirect() || buffer.isReadOnly()) return;
+        buffer.clear();
+        synchronized (this) {
+            if (_idle.size() < _capacity) {
+                _idle.addFirst(buffer);
+            }
+        }
+    }
+
+    /**
+     * Gets number of idle buffers.
+     */
+    public synchronized int size() {
+        return _idle.size();
+    }
+}
@@ -0,0 +1,105 @@
+package babble.util;
+
+import java.util.ArrayDeque;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A pool of {@link Deflater deflaters} of the same compression level and
+ * format.
+ * <br>
+ * A deflater holds sizable native memory, which is released only when the
+ * deflater is {@link Deflater#end() ended} or garbage collected. Creating
+ * a deflater for every response churns native memory. Hence a deflater is
+ * {@link #acquire() acquired} from the pool and {@link #release(Deflater)
+ * released} back, after use, to be reset and reused.
+ * <br>
+ * This pool is thread-safe.
+ *
+ * @author pinaki poddar
+ *
+ */
+public class DeflaterPool {
+    /**
+     * Header of a gzip stream without optional fields.
+     */
+    public static final byte[] GZIP_HEADER = {
+        0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff};
+
+    private final int _level;
+    private final boolean _nowrap;
+    private final int _capacity;
+    private final ArrayDeque<Deflater> _idle;
+
+    /**
+     * Creates a pool.
+     *
+     * @param level compression level
+     * @param nowrap if true, deflaters produce raw deflate data, as used
+     * in gzip format. Otherwise, the data is wrapped in zlib format.
+     * @param capacity maximum number of idle deflaters held by this pool
+     */
+    public DeflaterPool(int level, boolean nowrap, int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("invalid capacity " + capacity);
+        _level    = level;
+        _nowrap   = nowrap;
+        _capacity = capacity;
+        _idle     = new ArrayDeque<Deflater>(capacity);
+    }
+
+    /**
+     * Acquires a deflater. An idle deflater is reused, if available.
+     * Otherwise a new deflater is created.
+     */
+    public Deflater acquire() {
+        Deflater deflater;
+        synchronized (this) {
+            deflater = _idle.pollFirst();
+        }
+        return deflater != null ? deflater : new Deflater(_level, _nowrap);
+    }
+
+    /**
+     * Releases the given deflater to this pool. The deflater is reset
+     * and must not be used by the caller after release. If the pool is
+     * full, the deflater is ended.
+     *
+     * @param deflater a deflater acquired from this pool. If null, no
+     * action is taken.
+     */
+    public void release(Deflater deflater) {
+        if (deflater == null) return;
+        deflater.reset();
+        synchronized (this) {
+            if (_idle.size() < _capacity) {
+                _idle.addFirst(deflater);
+                return;
+            }
+        }
+        deflater.end();
+    }
+
+    /**
+     * Gets number of idle deflaters.
+     */
+    public synchronized int size() {
+        return _idle.size();
+    }
+
+    /**
+     * Gets the trailer of a gzip stream.
+     *
+     * @param crc checksum of the uncompressed data
+     * @param length number of bytes of the uncompressed data
+     */
+    public static byte[] gzipTrailer(CRC32 crc, long length) {
+        long value = crc.getValue();
+        byte[] trailer = new byte[8];
+        for (int i = 0; i < 4; i++) {
+            trailer[i]   = (byte)(value  >>> (8*i));
+            trailer[i+4] = (byte)(length >>> (8*i));
+        }
+        return trailer;
+    }
+}
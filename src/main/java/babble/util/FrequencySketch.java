@@ -0,0 +1,113 @@
+package babble.util;
+
+/**
+ * A compact, approximate estimate of how often a key has been seen.
+ * <br>
+ * The sketch is a <em>count-min</em> sketch of 4-bit counters: a key
+ * is hashed to four counters and its frequency is the minimum of those
+ * counters. The counters are periodically halved so that the estimate
+ * reflects recent popularity rather than popularity since inception.
+ * <br>
+ * A cache uses the sketch as a <em>TinyLFU</em> admission filter: a new
+ * entry that would cause an eviction is admitted only if it has been seen
+ * more often than the entry it would evict. Hence a burst of one-off
+ * requests can not flush the frequently used entries out of the cache.
+ * <br>
+ * This sketch is thread-safe.
+ *
+ * @author pinaki poddar
+ *
+ */
+public class FrequencySketch {
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+        0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] _table;
+    private final int _mask;
+    private final int _sampleSize;
+    private int _additions;
+
+    /**
+     * Creates a sketch for given number of distinct keys.
+     *
+     * @param capacity expected number of distinct keys. Must be positive.
+     */
+    public FrequencySketch(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("invalid capacity " + capacity);
+        int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+        _table = new long[size];
+        _mask  = size - 1;
+        _sampleSize = 10 * size;
+    }
+
+    /**
+     * Records an occurrence of the given key.
+     *
+     * @param key a key. Must not be null.
+     */
+    public synchronized void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++_additions == _sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Gets approximate number of occurrences of the given key.
+     *
+     * @param key a key. Must not be null.
+     * @return a value between 0 and 15
+     */
+    public synchronized int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int offset = (start + i) << 2;
+            int count = (int) ((_table[index] >>> offset) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    private boolean incrementAt(int i, int j) {
+        int offset = j << 2;
+        long mask = (0xfL << offset);
+        if ((_table[i] & mask) != mask) {
+            _table[i] += (1L << offset);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halves every counter so that older occurrences age out.
+     */
+    private void reset() {
+        for (int i = 0; i < _table.length; i++) {
+            _table[i] = (_table[i] >>> 1) & RESET_MASK;
+        }
+        _additions = (_additions >>> 1);
+    }
+
+    private int indexOf(int item, int i) {
+        long hash = (item + SEEDS[i]) * SEEDS[i];
+        hash += (hash >>> 32);
+        return ((int) hash) & _mask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
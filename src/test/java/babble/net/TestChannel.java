@@ -102,6 +102,20 @@ public class TestChannel implements ByteChannel {
     public void position(int n) {
         _position = n;
     }
+
+    /**
+     * gets the bytes till current position as a string.
+     */
+    public String getContent() {
+        return new String(_data, 0, _position);
+    }
+    
+    /**
+     * gets the bytes till current position.
+     */
+    public byte[] getBytes() {
+        return Arrays.copyOf(_data, _position);
+    }
     
     public String toString() {
         return "pos=" + _position + " cap=" + _data.length + " " + 
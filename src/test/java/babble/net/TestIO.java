@@ -1,25 +1,80 @@
 package babble.net;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
+import org.json.JSONObject;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import babble.net.exception.ProtocolException;
+import babble.net.exception.RoutingException;
+import babble.net.exception.StackTraces;
+import babble.net.http.AssetPack;
+import babble.net.http.DefaultGet;
+import babble.net.http.EventRoute;
+import babble.net.http.EventTopic;
+import babble.net.http.FileCache;
+import babble.net.http.HttpClient;
+import babble.net.http.HttpProtocol;
 import babble.net.http.HttpRequest;
 import babble.net.http.HttpResponse;
+import babble.net.http.HttpRoute;
+import babble.net.http.HttpServer;
+import babble.net.http.MultipartHttpResponse;
 import babble.net.http.SinglePartHttpResponse;
+import babble.net.http.StreamingHttpResponse;
+import babble.net.http2.Http2Client;
+import babble.net.http2.Http2Protocol;
+import babble.net.json.JSONRPCClient;
+import babble.net.json.JSONRequest;
+import babble.net.websocket.WebSocket;
+import babble.net.websocket.WebSocketRoute;
 import babble.service.ServiceMaker;
+import babble.util.BufferPool;
 
 public class TestIO {
 
@@ -64,12 +119,62 @@ public class TestIO {
         assertEquals("",  buf.limit(), cBuf.limit());
     }
     
+    @Test
+    public void testWriteStringEncodesAcrossBufferBoundary() throws IOException {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 3*NetworkBuffer.MAX_BUFFER_SIZE) {
+            text.append("Content-Type: text/plain caf\u00e9 \u20ac \ud83d\ude00 ");
+        }
+        text.append("lone \ud800 surrogate");
+        String[] values = {"ascii only\r\n", text.toString(), null, "\u00fcber"};
+        for (Charset encoding : new Charset[]{
+                StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1, StandardCharsets.UTF_16}) {
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            for (String value : values) {
+                if (value != null) expected.write(value.getBytes(encoding));
+            }
+            NetworkBuffer buf = new NetworkBuffer();
+            TestChannel channel = new TestChannel(expected.size());
+            buf.setChannel(channel);
+            buf.writeString(encoding, values);
+            buf.flush();
+            Assert.assertArrayEquals(encoding.name(), expected.toByteArray(), channel.getBytes());
+            
+            buf = new NetworkBuffer();
+            channel = new TestChannel(2*expected.size());
+            buf.setChannel(channel);
+            buf.writeStringInChunks(encoding, text.toString());
+            buf.writeChunk(new byte[0]);
+            buf.flush();
+            Assert.assertArrayEquals(encoding.name(), text.toString().getBytes(encoding), 
+                    dechunk(channel.getBytes(), 0, NetworkBuffer.CHUNK_BUFFER_SIZE));
+        }
+    }
+    
+    /**
+     * Gets the data of the chunks that begin at the given offset, up to 
+     * the last chunk, and asserts the size of each chunk.
+     */
+    private static byte[] dechunk(byte[] bytes, int offset, int maxChunk) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int i = offset;
+        while (true) {
+            int eol = indexOf(bytes, i, "\r\n".getBytes());
+            int length = Integer.parseInt(new String(bytes, i, eol-i), 16);
+            if (length == 0) break;
+            assertTrue(length + " > " + maxChunk, length <= maxChunk);
+            data.write(bytes, eol + 2, length);
+            i = eol + 2 + length + 2;
+        }
+        return data.toByteArray();
+    }
+    
     @Test
     public void testChunk() throws IOException {
         String chunk = "this is a chunk";
         int L = chunk.getBytes().length;
         NetworkBuffer buf = new NetworkBuffer();
-        TestChannel channel = new TestChannel(24);
+        TestChannel channel = new TestChannel(32);
         buf.setChannel(channel);
         buf.writeChunk(chunk.getBytes());
         buf.flush();
@@ -79,15 +184,159 @@ public class TestIO {
             + " is not greater than chunk size " + L,
                 channel.position() > L);
         
-        TestChannel reversed = channel.reverse();
+        buf.writeChunk(new byte[0]);
+        buf.flush();
+        channel.position(0);
         
-        //System.err.println("Channel after reverse " + reversed);
+        ChunkedDecoder decoder = new ChunkedDecoder();
+        ByteBuffer input = ByteBuffer.allocate(8);
+        input.flip();
+        ByteBuffer data = decoder.read(channel, input);
+        StringBuilder chunk2 = new StringBuilder();
+        while (data != null) {
+            chunk2.append(StandardCharsets.US_ASCII.decode(data));
+            data = decoder.read(channel, input);
+        }
+        assertTrue(decoder.isComplete());
+        assertEquals(chunk, chunk2.toString());
+    }
+    
+    @Test
+    public void testChunkedDecoderResumesAcrossPartialReads() throws IOException {
+        Random random = new Random(41);
+        for (int round = 0; round < 200; round++) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            ByteArrayOutputStream coded = new ByteArrayOutputStream();
+            int chunks = random.nextInt(5);
+            for (int i = 0; i < chunks; i++) {
+                byte[] data = new byte[1 + random.nextInt(300)];
+                random.nextBytes(data);
+                body.write(data);
+                String size = Integer.toHexString(data.length);
+                coded.write((random.nextBoolean() ? size : size.toUpperCase() + ";ext=1")
+                        .getBytes(StandardCharsets.US_ASCII));
+                coded.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+                coded.write(data);
+                coded.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+            }
+            coded.write((random.nextBoolean() ? "0\r\n\r\n" : "0\r\nX-Trailer: 1\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            coded.write("next".getBytes(StandardCharsets.US_ASCII));
+            byte[] bytes = coded.toByteArray();
+            
+            // feed the coded bytes in pieces of random size
+            ChunkedDecoder decoder = new ChunkedDecoder();
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            ByteBuffer src = null;
+            for (int i = 0; i < bytes.length && !decoder.isComplete(); ) {
+                int n = Math.min(bytes.length - i, 1 + random.nextInt(round % 2 == 0 ? 3 : 64));
+                src = ByteBuffer.wrap(bytes, i, n);
+                i += n;
+                for (ByteBuffer data = decoder.decode(src); data != null; data = decoder.decode(src)) {
+                    while (data.hasRemaining()) decoded.write(data.get());
+                }
+            }
+            assertTrue(decoder.isComplete());
+            Assert.assertArrayEquals(body.toByteArray(), decoded.toByteArray());
+            // the bytes after the body are not consumed
+            assertEquals("next".substring(0, src.remaining()), 
+                    StandardCharsets.US_ASCII.decode(src).toString());
+            
+            // corrupted coding fails with a protocol error only
+            bytes[random.nextInt(bytes.length)] = (byte)random.nextInt(256);
+            decoder.reset();
+            try {
+                ByteBuffer corrupted = ByteBuffer.wrap(bytes);
+                while (decoder.decode(corrupted) != null);
+            } catch (ProtocolException expected) {
+            }
+        }
+    }
+    
+    @Test
+    public void testHttpRequestReceivesChunkedBodyInPartialReads() throws IOException {
+        String request = "POST /upload HTTP/1.1\r\nHost: localhost\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\n"
+                + "5\r\nHello\r\n7;x=y\r\n, world\r\n0\r\n\r\n";
+        TestChannel channel = new TestChannel(request) {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                // at most 3 bytes at a time
+                ByteBuffer limited = dst.duplicate();
+                limited.limit(Math.min(dst.limit(), dst.position() + 3));
+                int n = super.read(limited);
+                dst.position(limited.position());
+                return n == 0 && position() == request.length() ? -1 : n;
+            }
+        };
+        HttpRequest r = new HttpRequest("GET", "/");
+        ((Request)r).receive(channel);
+        assertEquals("POST", r.getMethod());
+        assertEquals("Hello, world", StandardCharsets.US_ASCII.decode(r.getBody()).toString());
         
-        byte[] s = buf.readChunk(reversed);
-        String chunk2 = new String(s);
+        HttpRequest sized = new HttpRequest("GET", "/");
+        ((Request)sized).receive(new TestChannel("PUT /a HTTP/1.1\r\nContent-Length: 4\r\n\r\nbody"));
+        assertEquals("body", StandardCharsets.US_ASCII.decode(sized.getBody()).toString());
+        assertNull(new HttpRequest("GET", "/").getBody());
+    }
+    
+    @Test
+    public void testHttpResponseIsReceivedInPartialReads() throws IOException {
+        String[] responses = {
+            "HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5\r\nHello\r\n7;x=y\r\n, world\r\n0\r\nX-Trailer: 1\r\n\r\n",
+            "HTTP/1.1 404 Not Found\r\ncontent-length: 12\r\n\r\nHello, world",
+            "HTTP/1.0 200 OK\r\nContent-Type: text/plain\r\n\r\nHello, world",
+            "HTTP/1.1 204 No Content\r\n\r\n"};
+        int[] status = {200, 404, 200, 204};
+        for (int i = 0; i < responses.length; i++) {
+            String response = responses[i];
+            TestChannel channel = new TestChannel(response) {
+                boolean _starved;
+                @Override
+                public int read(ByteBuffer dst) throws IOException {
+                    // nothing and at most 3 bytes by turns, as a non-blocking channel
+                    if (_starved = !_starved) return 0;
+                    ByteBuffer limited = dst.duplicate();
+                    limited.limit(Math.min(dst.limit(), dst.position() + 3));
+                    int n = super.read(limited);
+                    dst.position(limited.position());
+                    return n == 0 && position() == response.length() ? -1 : n;
+                }
+            };
+            StringBuilder body = new StringBuilder();
+            boolean[] ended = new boolean[1];
+            ResponseCallback cb = new ResponseCallback() {
+                @Override
+                public void onResponse(byte[] bytes, boolean eos) {
+                    assertFalse(ended[0]);
+                    body.append(new String(bytes, StandardCharsets.US_ASCII));
+                    ended[0] = eos;
+                }
+                @Override
+                public void onError(Exception ex) {
+                    fail(ex.toString());
+                }
+            };
+            HttpResponse r = new SinglePartHttpResponse(new HttpRequest("GET", "/"));
+            int reads = 0;
+            while (!((Response)r).receive(channel, cb)) reads++;
+            assertTrue(reads > 1);
+            assertTrue(ended[0]);
+            assertEquals(status[i], r.getStatus());
+            assertEquals(status[i] == 204 ? "" : "Hello, world", body.toString());
+        }
         
-       
-        assertEquals(chunk, chunk2);
+        HttpResponse head = new SinglePartHttpResponse(new HttpRequest("HEAD", "/"));
+        assertTrue(((Response)head).receive(new TestChannel(
+                "HTTP/1.1 200 OK\r\nContent-Length: 12\r\n\r\n"), null));
+        assertEquals("12", head.getHeader("CONTENT-LENGTH"));
+        try {
+            ((Response)new SinglePartHttpResponse(new HttpRequest("GET", "/")))
+                .receive(new TestChannel("HTTP/1.1 OK\r\n\r\n"), null);
+            fail("expected invalid status line");
+        } catch (ProtocolException expected) {
+        }
     }
     
     @Test
@@ -98,6 +347,48 @@ public class TestIO {
         assertEquals("HTTP/1.1",  r.getVersionString());
     }
     
+    @Test
+    public void testHttpRequestHeadersAreCaseInsensitiveAndRepeatable() throws IOException {
+        HttpRequest r = new HttpRequest("GET /a HTTP/1.1\r\n"
+                + "connection: Upgrade\r\n"
+                + "X-Trace:  1 \r\n"
+                + "UPGRADE: websocket\r\n"
+                + "x-trace: 2\r\n"
+                + "\r\n"
+                + "Ignored: after empty line\r\n");
+        assertEquals("Upgrade", r.getHeaderValue("Connection"));
+        assertEquals("Upgrade", r.getHeaderValue("CONNECTION"));
+        assertTrue(r.isUpgrade("websocket"));
+        assertEquals("1", r.getHeaderValue("x-TRACE"));
+        assertEquals(Arrays.asList("1", "2"), r.getHeaderValues("X-Trace"));
+        assertNull(r.getHeaderValue("Ignored"));
+        assertTrue(r.getHeaderValues("Accept").isEmpty());
+        
+        r.addHeader("x-trace", "3");
+        assertEquals(3, r.getHeaderValues("X-Trace").size());
+    }
+    
+    @Test
+    public void testHttpRequestDecodesPathAndQueryOnDemand() throws IOException {
+        HttpRequest r = new HttpRequest("GET", "/a%20dir/caf%C3%A9.txt?q=x+y&empty&n=%3D1&q=2#top");
+        assertEquals("a dir/caf\u00e9.txt", r.getPath());
+        assertEquals("q=x+y&empty&n=%3D1&q=2", r.getQueryString());
+        assertEquals("x y", r.getParameter("q"));
+        assertEquals("=1", r.getParameter("n"));
+        assertEquals("", r.getParameter("empty"));
+        assertNull(r.getParameter("missing"));
+        assertEquals(Arrays.asList("x y", "2"), r.getParameterValues("q"));
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("q", "empty", "n")), 
+                r.getParameterNames());
+        r.addParameter("q", "added");
+        assertEquals("added", r.getParameter("q"));
+        assertEquals("/a%20dir/caf%C3%A9.txt", r.getURI().getRawPath());
+        
+        HttpRequest plain = new HttpRequest("GET", "/plain");
+        assertNull(plain.getQueryString());
+        assertNull(plain.getParameter("q"));
+    }
+    
     @Test
     public void testHttpRequestLineInvalidMethod() throws IOException {
         try {
@@ -141,6 +432,1217 @@ public class TestIO {
     }
     
     
+    @Test
+    public void testErrorResponsesAreCannedAndExceptionsStackless() throws IOException {
+        HttpProtocol protocol = new HttpProtocol();
+        HttpRequest request = new HttpRequest("GET", "/missing");
+        String[] statuses = {"404 Not Found", "400 Bad Request", "500 Internal Server Error"};
+        Exception[] errors = {
+            new RoutingException("no route"),
+            new ProtocolException("bad request"),
+            new IllegalStateException("secret detail")};
+        for (int i = 0; i < errors.length; i++) {
+            TestChannel channel = new TestChannel(1024);
+            protocol.newErrorResponse(request, errors[i]).send(channel);
+            String s = channel.getContent();
+            String body = statuses[i] + "\r\n";
+            assertTrue(s, s.startsWith("HTTP/1.1 " + statuses[i] + "\r\n"));
+            assertTrue(s, s.contains("\r\nContent-Length: " + body.length() + "\r\n"));
+            assertTrue(s, s.endsWith("\r\n\r\n" + body));
+            assertFalse(s, s.contains("secret"));
+        }
+        long interval = StackTraces.getInterval();
+        try {
+            // the first stack trace in an interval is captured, and no other
+            StackTraces.setInterval(TimeUnit.HOURS.toMillis(1));
+            assertTrue(new ProtocolException("first").getStackTrace().length > 0);
+            assertEquals(0, new ProtocolException("second").getStackTrace().length);
+            assertEquals(0, new RoutingException("third").getStackTrace().length);
+            // every stack trace is captured without an interval
+            StackTraces.setInterval(0);
+            assertTrue(new ProtocolException("fourth").getStackTrace().length > 0);
+            assertTrue(new RoutingException("fifth").getStackTrace().length > 0);
+        } finally {
+            StackTraces.setInterval(interval);
+        }
+    }
+    
+    @Test
+    public void testResponseWritesStandardStatusLineAndDate() throws IOException {
+        HttpRequest request = new HttpRequest("GET", "something");
+        HttpResponse response = new SinglePartHttpResponse(request);
+        response.setStatus(404);
+        TestChannel channel = new TestChannel(1024);
+        response.send(channel);
+        
+        String s = channel.getContent();
+        assertTrue(s, s.startsWith("HTTP/1.1 404 Not Found\r\n"));
+        assertTrue(s, s.contains("\r\nDate: "));
+        assertTrue(s, s.contains("\r\nTransfer-Encoding: chunked\r\n"));
+    }
+    
+    @Test
+    public void testDefaultGetServesFileFromCache() throws Exception {
+        FileCache cache = new FileCache();
+        DefaultGet route = new DefaultGet(cache);
+        byte[] content = Files.readAllBytes(Paths.get("pom.xml"));
+        
+        HttpResponse response = route.execute(null, new HttpRequest("GET", "/pom.xml"));
+        TestChannel channel = new TestChannel(2*content.length);
+        response.send(channel);
+        String s = channel.getContent();
+        assertTrue(s, s.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(s, s.contains("Content-Length: " + content.length + "\r\n"));
+        assertTrue(s, s.endsWith("\r\n\r\n" + new String(content)));
+        
+        assertSame(cache.get(Paths.get("pom.xml")), cache.get(Paths.get("pom.xml")));
+        
+        response = route.execute(null, new HttpRequest("GET", "/no-such-file"));
+        channel = new TestChannel(1024);
+        response.send(channel);
+        assertTrue(channel.getContent().startsWith("HTTP/1.1 404 Not Found\r\n"));
+        assertEquals(2, cache.size());
+    }
+    
+    @Test
+    public void testDefaultGetAnswersConditionalRequestWithNotModified() throws Exception {
+        DefaultGet route = new DefaultGet(new FileCache());
+        FileCache.Entry entry = route.getCache().get(Paths.get("pom.xml"));
+        
+        HttpRequest request = new HttpRequest("GET", "/pom.xml");
+        request.addHeader("If-None-Match", "\"x\", W/" + entry.getETag());
+        HttpResponse response = route.execute(null, request);
+        TestChannel channel = new TestChannel(1024);
+        response.send(channel);
+        String s = channel.getContent();
+        assertTrue(s, s.startsWith("HTTP/1.1 304 Not Modified\r\n"));
+        assertTrue(s, s.contains("ETag: " + entry.getETag() + "\r\n"));
+        assertFalse(s, s.contains("Transfer-Encoding"));
+        assertTrue(s, s.endsWith("\r\n\r\n"));
+        
+        request = new HttpRequest("GET", "/pom.xml");
+        request.addHeader("If-Modified-Since", "Thu, 01 Jan 1970 00:00:00 GMT");
+        response = route.execute(null, request);
+        channel = new TestChannel(2*(int)entry.getSize());
+        response.send(channel);
+        assertTrue(channel.getContent().startsWith("HTTP/1.1 200 OK\r\n"));
+        
+        request = new HttpRequest("GET", "/pom.xml");
+        request.addHeader("If-Modified-Since", "Fri, 31 Dec 9999 23:59:59 GMT");
+        response = route.execute(null, request);
+        channel = new TestChannel(1024);
+        response.send(channel);
+        assertTrue(channel.getContent().startsWith("HTTP/1.1 304 Not Modified\r\n"));
+    }
+    
+    @Test
+    public void testDefaultGetServesByteRanges() throws Exception {
+        byte[] content = Files.readAllBytes(Paths.get("pom.xml"));
+        String text = new String(content);
+        // a cache that holds content and a cache that transfers from file
+        for (FileCache cache : new FileCache[]{new FileCache(), 
+                new FileCache(FileCache.DEFAULT_MAX_BYTES, 0, 0)}) {
+            DefaultGet route = new DefaultGet(cache);
+            
+            HttpRequest request = new HttpRequest("GET", "/pom.xml");
+            request.addHeader("Range", "bytes=10-19");
+            TestChannel channel = new TestChannel(1024);
+            route.execute(null, request).send(channel);
+            String s = channel.getContent();
+            assertTrue(s, s.startsWith("HTTP/1.1 206 Partial Content\r\n"));
+            assertTrue(s, s.contains("Content-Range: bytes 10-19/" + content.length + "\r\n"));
+            assertTrue(s, s.contains("Content-Length: 10\r\n"));
+            assertTrue(s, s.endsWith("\r\n\r\n" + text.substring(10, 20)));
+            
+            request = new HttpRequest("GET", "/pom.xml");
+            request.addHeader("Range", "bytes=0-4,-5");
+            channel = new TestChannel(1024);
+            route.execute(null, request).send(channel);
+            s = channel.getContent();
+            assertTrue(s, s.startsWith("HTTP/1.1 206 Partial Content\r\n"));
+            assertTrue(s, s.contains("Content-Type: multipart/byteranges; boundary="));
+            assertTrue(s, s.contains("Content-Range: bytes 0-4/" + content.length 
+                    + "\r\n\r\n" + text.substring(0, 5) + "\r\n--"));
+            assertTrue(s, s.contains(text.substring(content.length-5) + "\r\n--"));
+            int body = s.indexOf("\r\n\r\n") + 4;
+            assertTrue(s, s.contains("Content-Length: " + (s.length() - body) + "\r\n"));
+            
+            request = new HttpRequest("GET", "/pom.xml");
+            request.addHeader("Range", "bytes=" + content.length + "-");
+            channel = new TestChannel(1024);
+            route.execute(null, request).send(channel);
+            s = channel.getContent();
+            assertTrue(s, s.startsWith("HTTP/1.1 416 Range Not Satisfiable\r\n"));
+            assertTrue(s, s.contains("Content-Range: bytes */" + content.length + "\r\n"));
+            
+            request = new HttpRequest("GET", "/pom.xml");
+            request.addHeader("Range", "bytes=10-19");
+            request.addHeader("If-Range", "\"stale\"");
+            channel = new TestChannel(2*content.length);
+            route.execute(null, request).send(channel);
+            s = channel.getContent();
+            assertTrue(s, s.startsWith("HTTP/1.1 200 OK\r\n"));
+            assertTrue(s, s.endsWith("\r\n\r\n" + text));
+        }
+    }
+    
+    @Test
+    public void testDefaultGetServesGzipVariant() throws Exception {
+        byte[] content = Files.readAllBytes(Paths.get("pom.xml"));
+        DefaultGet route = new DefaultGet(new FileCache());
+        
+        HttpRequest request = new HttpRequest("GET", "/pom.xml");
+        request.addHeader("Accept-Encoding", "deflate, gzip;q=0.5");
+        TestChannel channel = new TestChannel(2*content.length);
+        route.execute(null, request).send(channel);
+        byte[] response = channel.getBytes();
+        int body = indexOf(response, "\r\n\r\n".getBytes()) + 4;
+        String headers = new String(response, 0, body);
+        assertTrue(headers, headers.contains("Content-Encoding: gzip\r\n"));
+        assertTrue(headers, headers.contains("Content-Length: " + (response.length - body) + "\r\n"));
+        assertTrue(headers, headers.contains("-gzip\"\r\n"));
+        assertEquals(new String(content), new String(readFully(new GZIPInputStream(
+                new ByteArrayInputStream(response, body, response.length - body)))));
+        
+        request = new HttpRequest("GET", "/pom.xml");
+        request.addHeader("Accept-Encoding", "gzip;q=0");
+        channel = new TestChannel(2*content.length);
+        route.execute(null, request).send(channel);
+        assertFalse(channel.getContent().contains("Content-Encoding"));
+    }
+    
+    @Test
+    public void testResponseBodyIsCompressedInChunks() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) text.append("ligne \u00e9 " + i + "\n");
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        Path file = Files.createTempFile("test", ".txt");
+        Files.write(file, bytes);
+        ByteBuffer shared = ByteBuffer.allocateDirect(bytes.length);
+        shared.put(bytes).flip();
+        shared = shared.asReadOnlyBuffer();
+        try {
+            for (String coding : new String[]{"gzip", "deflate"}) {
+                for (Object body : new Object[]{null, file, shared}) {
+                    assertCompressedInChunks(text.toString(), coding, body);
+                }
+            }
+            // a shared buffer is compressed in place
+            assertEquals(0, shared.position());
+        } finally {
+            Files.delete(file);
+        }
+    }
+    
+    /**
+     * Sends a response of the given text in UTF-8, or of the given buffer,
+     * or of the given file through a queue that compresses the file as it
+     * is read, and asserts that the body is compressed in the given coding.
+     */
+    private void assertCompressedInChunks(String text, String coding, Object body) 
+            throws Exception {
+        HttpRequest request = new HttpRequest("GET", "/text");
+        request.addHeader("Accept-Encoding", coding);
+        SinglePartHttpResponse response = new SinglePartHttpResponse(request);
+        response.addHeader("Content-Type", "text/plain; charset=UTF-8");
+        TestChannel channel = new TestChannel(4*text.length());
+        if (body == null) {
+            response.appendBody(text);
+            response.send(channel);
+        } else if (body instanceof ByteBuffer) {
+            response.setBody((ByteBuffer)body);
+            response.send(channel);
+        } else {
+            response.setBody((Path)body);
+            WriteQueue queue = new WriteQueue(channel, BufferPool.SHARED, null);
+            response.send(queue);
+            drainFully(queue);
+        }
+        byte[] bytes = channel.getBytes();
+        int start = indexOf(bytes, "\r\n\r\n".getBytes()) + 4;
+        String headers = new String(bytes, 0, start);
+        assertTrue(headers, headers.contains("Content-Encoding: " + coding + "\r\n"));
+        assertTrue(headers, headers.contains("Transfer-Encoding: chunked\r\n"));
+        
+        InputStream in = new ByteArrayInputStream(dechunk(bytes, start, Integer.MAX_VALUE));
+        in = coding.equals("gzip") ? new GZIPInputStream(in) : new InflaterInputStream(in);
+        assertEquals(text, new String(readFully(in), StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Drains the given queue till it is empty, as the files queued are read.
+     */
+    private static void drainFully(WriteQueue queue) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!queue.isEmpty() && System.currentTimeMillis() < deadline) {
+            queue.drain();
+            Thread.sleep(1);
+        }
+        assertTrue(queue.isEmpty());
+    }
+    
+    @Test
+    public void testMultipartResponseQueuesFileParts() throws Exception {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 3*NetworkBuffer.MAX_BUFFER_SIZE) {
+            text.append("part \u00e9 ").append(text.length()).append('\n');
+        }
+        byte[] content = Files.readAllBytes(Paths.get("pom.xml"));
+        MultipartHttpResponse response = new MultipartHttpResponse(
+                new HttpRequest("GET", "/parts"));
+        response.addPart(0, text.toString());
+        response.addPart(1, Paths.get("pom.xml"));
+        response.addPart(2, new ByteArrayInputStream(content));
+        try {
+            response.addPart(1, "more");
+            fail("expected a file part not to be appended");
+        } catch (IllegalArgumentException expected) {
+        }
+        TestChannel channel = new TestChannel(4*text.length() + 4*content.length);
+        WriteQueue queue = new WriteQueue(channel, BufferPool.SHARED, null);
+        response.send(queue);
+        drainFully(queue);
+        
+        byte[] bytes = channel.getBytes();
+        int start = indexOf(bytes, "\r\n\r\n".getBytes()) + 4;
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(text.toString().getBytes());
+        expected.write(content);
+        expected.write(content);
+        Assert.assertArrayEquals(expected.toByteArray(), 
+                dechunk(bytes, start, Integer.MAX_VALUE));
+    }
+    
+    @Test
+    public void testDefaultGetServesFromAssetPack() throws Exception {
+        Path directory = Files.createTempDirectory("test");
+        Path file = Files.createTempFile("test", ".pack");
+        StringBuilder html = new StringBuilder("<html>");
+        for (int i = 0; i < 200; i++) html.append("<p>paragraph " + i + "</p>");
+        String content = html.append("</html>").toString();
+        Files.write(directory.resolve("index.html"), content.getBytes());
+        Files.createDirectory(directory.resolve("css"));
+        Files.write(directory.resolve("css/site.css"), "p {}".getBytes());
+        try {
+            assertEquals(2, AssetPack.build(directory, file));
+            AssetPack pack = AssetPack.open(file);
+            assertEquals(2, pack.size());
+            assertSame(pack.get("css/site.css"), pack.get("/css/site.css"));
+            assertNull(pack.get("css/none.css"));
+            
+            DefaultGet route = new DefaultGet(pack);
+            TestChannel channel = new TestChannel(1024);
+            route.execute(null, new HttpRequest("GET", "/css/site.css")).send(channel);
+            String s = channel.getContent();
+            assertTrue(s, s.startsWith("HTTP/1.1 200 OK\r\n"));
+            assertTrue(s, s.contains("Content-Type: text/css\r\n"));
+            assertTrue(s, s.endsWith("\r\n\r\np {}"));
+            
+            HttpRequest request = new HttpRequest("GET", "/");
+            request.addHeader("Accept-Encoding", "gzip");
+            channel = new TestChannel(2*content.length());
+            route.execute(null, request).send(channel);
+            byte[] bytes = channel.getBytes();
+            int body = indexOf(bytes, "\r\n\r\n".getBytes()) + 4;
+            assertTrue(new String(bytes, 0, body).contains("Content-Encoding: gzip\r\n"));
+            assertEquals(content, new String(readFully(new GZIPInputStream(
+                    new ByteArrayInputStream(bytes, body, bytes.length - body)))));
+            
+            channel = new TestChannel(1024);
+            route.execute(null, new HttpRequest("GET", "/css/none.css")).send(channel);
+            assertTrue(channel.getContent().startsWith("HTTP/1.1 404 Not Found\r\n"));
+        } finally {
+            Files.delete(file);
+            Files.delete(directory.resolve("css/site.css"));
+            Files.delete(directory.resolve("css"));
+            Files.delete(directory.resolve("index.html"));
+            Files.delete(directory);
+        }
+    }
+    
+    @Test
+    public void testWriteQueueDrainsFileAsynchronously() throws Exception {
+        byte[] content = Files.readAllBytes(Paths.get("pom.xml"));
+        // a channel that accepts few bytes at a time and is often full
+        TestChannel channel = new TestChannel(2*content.length) {
+            boolean full;
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                full = !full;
+                if (full) return 0;
+                ByteBuffer part = src.duplicate();
+                part.limit(part.position() + Math.min(part.remaining(), 512));
+                int n = super.write(part);
+                src.position(src.position() + n);
+                return n;
+            }
+        };
+        Semaphore signals = new Semaphore(0);
+        WriteQueue queue = new WriteQueue(channel, BufferPool.SHARED, q -> signals.release());
+        
+        DefaultGet route = new DefaultGet(new FileCache(FileCache.DEFAULT_MAX_BYTES, 0, 0));
+        route.execute(null, new HttpRequest("GET", "/pom.xml")).send(queue);
+        while (true) {
+            if (queue.drain()) continue; // channel is full
+            if (queue.isEmpty()) break;
+            // waiting for file to be read
+            assertTrue(signals.tryAcquire(5, TimeUnit.SECONDS));
+        }
+        assertEquals(0, queue.getQueuedBytes());
+        String s = channel.getContent();
+        assertTrue(s, s.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(s, s.endsWith("\r\n\r\n" + new String(content)));
+        
+        queue.close();
+        queue.drain();
+        assertFalse(queue.isOpen());
+    }
+    
+    @Test
+    public void testStreamingResponseIsWrittenWithFlowControl() throws Exception {
+        TestChannel channel = new TestChannel(2*1024*1024);
+        WriteQueue queue = new WriteQueue(channel, BufferPool.SHARED, null);
+        HttpRequest request = new HttpRequest("GET", "/stream");
+        ((Request)request).setWriteQueue(queue);
+        StreamingHttpResponse response = new StreamingHttpResponse(request);
+        response.addHeader("Content-Type", "text/plain");
+        
+        response.write("first");
+        queue.drain();
+        String s = channel.getContent();
+        assertTrue(s, s.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(s, s.contains("Transfer-Encoding: chunked\r\n"));
+        assertTrue(s, s.endsWith("\r\n\r\n5\r\nfirst\r\n"));
+        
+        // a writer faster than the channel waits for the queue to drain
+        byte[] chunk = new byte[16*1024];
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; i < 64; i++) response.write(chunk);
+                response.end();
+            } catch (IOException ex) {
+                failure.set(ex);
+            }
+        });
+        writer.start();
+        long maxQueued = 0;
+        while (writer.isAlive() || !queue.isEmpty()) {
+            maxQueued = Math.max(maxQueued, queue.getQueuedBytes());
+            Thread.sleep(1);
+            queue.drain();
+        }
+        writer.join();
+        assertNull(failure.get());
+        assertTrue("" + maxQueued, 
+                maxQueued < WriteQueue.HIGH_WATERMARK + 2*chunk.length);
+        assertTrue(channel.getContent().endsWith("\r\n0\r\n\r\n"));
+        assertEquals(s.length() + 64*(chunk.length + "4000\r\n\r\n".length()) 
+                + "0\r\n\r\n".length(), channel.position());
+        response.send(queue);
+        assertTrue(queue.isEmpty());
+    }
+    
+    @Test
+    public void testStreamingResponseWrittenAfterRouteReturns() throws Exception {
+        int port = freePort();
+        int total = 16*1024*1024;
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        CountDownLatch returned = new CountDownLatch(1);
+        CountDownLatch ended = new CountDownLatch(1);
+        HttpServer server = new HttpServer("streaming", port);
+        server.addRoute(new HttpRoute("GET", "stream") {
+            @Override
+            public HttpResponse execute(ExecutionContext ctx, HttpRequest request) throws Exception {
+                StreamingHttpResponse response = new StreamingHttpResponse(request);
+                response.setWriteTimeout(5000);
+                Thread writer = new Thread(() -> {
+                    try {
+                        byte[] chunk = new byte[64*1024];
+                        Arrays.fill(chunk, (byte)'x');
+                        for (int n = 0; n < total; n += chunk.length) response.write(chunk);
+                        response.end();
+                    } catch (Exception ex) {
+                        failure.set(ex);
+                    } finally {
+                        ended.countDown();
+                    }
+                });
+                writer.start();
+                // return while the writer waits for the connection to drain
+                long deadline = System.currentTimeMillis() + 5000;
+                while (response.isWritable() && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(1);
+                }
+                returned.countDown();
+                return response;
+            }
+        });
+        server.addRoute(new HttpRoute("GET", "after") {
+            @Override
+            public HttpResponse execute(ExecutionContext ctx, HttpRequest request) throws Exception {
+                SinglePartHttpResponse response = new SinglePartHttpResponse(request);
+                response.appendBody("after");
+                return response;
+            }
+        });
+        server.start();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(4096);
+            socket.setSoTimeout(10000);
+            socket.connect(new InetSocketAddress("127.0.0.1", port));
+            // the second request is pipelined behind the streamed response
+            socket.getOutputStream().write(("GET /stream HTTP/1.1\r\nHost: test\r\n\r\n"
+                    + "GET /after HTTP/1.1\r\nHost: test\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            assertTrue(returned.await(5, TimeUnit.SECONDS));
+            InputStream in = socket.getInputStream();
+            byte[] buf = new byte[64*1024];
+            int n;
+            while ((n = in.read(buf)) != -1) received.write(buf, 0, n);
+        }
+        assertTrue(ended.await(5, TimeUnit.SECONDS));
+        assertNull(failure.get());
+        String s = new String(received.toByteArray(), StandardCharsets.ISO_8859_1);
+        int next = s.indexOf("HTTP/1.1", 1);
+        assertTrue(next > 0);
+        String streamed = s.substring(0, next);
+        assertTrue(streamed.endsWith("\r\n0\r\n\r\n"));
+        assertEquals(total, streamed.chars().filter(c -> c == 'x').count());
+        assertTrue(s.substring(next), s.substring(next).contains("\r\nafter\r\n"));
+    }
+    
+    @Test
+    public void testEventsArePublishedToSubscribers() throws Exception {
+        EventTopic topic = new EventTopic("news", 512);
+        EventRoute route = new EventRoute("news", topic);
+        TestChannel fast = new TestChannel(64*1024);
+        TestChannel slow = new TestChannel(64*1024);
+        WriteQueue fastQueue = new WriteQueue(fast, BufferPool.SHARED, null);
+        WriteQueue slowQueue = new WriteQueue(slow, BufferPool.SHARED, null);
+        for (WriteQueue queue : new WriteQueue[]{fastQueue, slowQueue}) {
+            HttpRequest request = new HttpRequest("GET", "/news");
+            ((Request)request).setWriteQueue(queue);
+            route.execute(null, request).send(queue);
+        }
+        assertEquals(2, topic.size());
+        
+        assertEquals(2, topic.publish("update", "line 1\nline 2"));
+        fastQueue.drain();
+        String s = fast.getContent();
+        assertTrue(s, s.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(s, s.contains("Content-Type: text/event-stream\r\n"));
+        assertTrue(s, s.endsWith("\r\n\r\n"
+                + "29\r\nevent: update\ndata: line 1\ndata: line 2\n\n\r\n"));
+        
+        // the slow subscriber is dropped once too many bytes are queued
+        char[] data = new char[600];
+        Arrays.fill(data, 'x');
+        assertEquals(2, topic.publish(new String(data)));
+        fastQueue.drain();
+        assertEquals(1, topic.publish(new String(data)));
+        assertEquals(1, topic.size());
+        assertEquals(0, slowQueue.getQueuedBytes());
+        assertFalse(slowQueue.isWritable());
+        
+        // heartbeat is sent only when idle
+        fastQueue.drain();
+        int position = fast.position();
+        topic.heartbeat(System.currentTimeMillis());
+        fastQueue.drain();
+        assertEquals(position, fast.position());
+        topic.heartbeat(System.currentTimeMillis() + EventTopic.HEARTBEAT_INTERVAL);
+        fastQueue.drain();
+        assertTrue(fast.getContent().endsWith("\n\n\r\n3\r\n:\n\n\r\n"));
+        
+        // a closed subscriber is dropped
+        fastQueue.close();
+        assertEquals(0, topic.publish("bye"));
+        assertEquals(0, topic.size());
+    }
+    
+    @Test
+    public void testWebSocketUpgradeAndFrames() throws Exception {
+        int[] closeCode = {0};
+        WebSocketRoute route = new WebSocketRoute("echo") {
+            @Override
+            public void onMessage(WebSocket socket, String message) throws Exception {
+                socket.send(message);
+            }
+            @Override
+            public void onClose(WebSocket socket, int code, String reason) {
+                closeCode[0] = code;
+            }
+        };
+        HttpRequest request = new HttpRequest("GET", "/echo");
+        request.addHeader("Upgrade", "websocket");
+        request.addHeader("Connection", "keep-alive, Upgrade");
+        request.addHeader("Sec-WebSocket-Key", "dGhlIHNhbXBsZSBub25jZQ==");
+        request.addHeader("Sec-WebSocket-Version", "13");
+        TestChannel out = new TestChannel(1024*1024);
+        WriteQueue queue = new WriteQueue(out, BufferPool.SHARED, null);
+        HttpResponse response = route.execute(null, request);
+        response.send(queue);
+        WebSocket socket = (WebSocket)response.getUpgrade();
+        socket.open(queue);
+        queue.drain();
+        String s = out.getContent();
+        assertTrue(s, s.startsWith("HTTP/1.1 101 Switching Protocols\r\n"));
+        assertTrue(s, s.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"));
+        int handshake = out.position();
+        
+        byte[] large = new byte[70000];
+        for (int i = 0; i < large.length; i++) large[i] = (byte)('a' + i % 26);
+        ByteArrayOutputStream in = new ByteArrayOutputStream();
+        in.write(frame(0x81, "Hello".getBytes(), 0x37fa213d));
+        in.write(frame(0x01, "Hel".getBytes(), 0x01020304));
+        in.write(frame(0x89, "ping".getBytes(), 0x0a0b0c0d));
+        in.write(frame(0x80, "lo!".getBytes(), 0x7f7f7f7f));
+        in.write(frame(0x81, large, 0x12345678));
+        in.write(frame(0x88, new byte[]{0x03, (byte)0xe8}, 0x11223344));
+        byte[] bytes = in.toByteArray();
+        TestChannel channel = new TestChannel(bytes.length);
+        channel.write(ByteBuffer.wrap(bytes));
+        channel.position(0);
+        assertTrue(socket.read(channel));
+        assertFalse(socket.isOpen());
+        assertEquals(1000, closeCode[0]);
+        queue.drain();
+        
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(frame(0x81, "Hello".getBytes(), null));
+        expected.write(frame(0x8A, "ping".getBytes(), null));
+        expected.write(frame(0x81, "Hello!".getBytes(), null));
+        expected.write(frame(0x81, large, null));
+        expected.write(frame(0x88, new byte[]{0x03, (byte)0xe8}, null));
+        byte[] actual = out.getBytes();
+        Assert.assertArrayEquals(expected.toByteArray(), 
+                Arrays.copyOfRange(actual, handshake, actual.length));
+        assertFalse(queue.isOpen());
+        
+        // a request that does not ask to upgrade
+        HttpResponse plain = route.execute(null, new HttpRequest("GET", "/echo"));
+        assertNull(plain.getUpgrade());
+        TestChannel rejected = new TestChannel(1024);
+        plain.send(rejected);
+        assertTrue(rejected.getContent().startsWith("HTTP/1.1 426 Upgrade Required\r\n"));
+    }
+    
+    @Test
+    public void testServerRecyclesRequestAndResponsePerConnection() throws Exception {
+        int port = freePort();
+        List<Object> seen = new CopyOnWriteArrayList<Object>();
+        HttpServer server = new HttpServer("recycling", port);
+        server.setRecycling(true);
+        server.addRoute(new HttpRoute("GET", "echo") {
+            @Override
+            public HttpResponse execute(ExecutionContext ctx, HttpRequest request) throws Exception {
+                SinglePartHttpResponse response = SinglePartHttpResponse.newInstance(request);
+                seen.add(request);
+                seen.add(response);
+                response.appendBody("n=" + request.getParameter("n"));
+                return response;
+            }
+        });
+        server.start();
+        try (SocketChannel socket = SocketChannel.open(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port))) {
+            for (int n = 1; n <= 2; n++) {
+                socket.write(StandardCharsets.US_ASCII.encode(
+                        "GET /echo?n=" + n + " HTTP/1.1\r\nHost: localhost\r\n\r\n"));
+                StringBuilder response = new StringBuilder();
+                ByteBuffer buf = ByteBuffer.allocate(1024);
+                while (response.indexOf("\r\n0\r\n\r\n") < 0) {
+                    buf.clear();
+                    if (socket.read(buf) < 0) break;
+                    buf.flip();
+                    response.append(StandardCharsets.US_ASCII.decode(buf));
+                }
+                assertTrue(response.toString(), response.toString().startsWith("HTTP/1.1 200 OK\r\n"));
+                assertTrue(response.toString(), response.indexOf("n=" + n) > 0);
+            }
+        }
+        assertEquals(4, seen.size());
+        // the second request is received into the objects of the first one
+        assertSame(seen.get(0), seen.get(2));
+        assertSame(seen.get(1), seen.get(3));
+    }
+    
+    @Test
+    public void testClientPoolsConnectionsPerHost() throws Exception {
+        int port = freePort();
+        Set<Object> clientPorts = ConcurrentHashMap.newKeySet();
+        // holds the first two requests until both are being served at once
+        CountDownLatch concurrent = new CountDownLatch(2);
+        HttpServer server = new HttpServer("pooled", port);
+        server.addRoute(new HttpRoute("GET", "echo") {
+            @Override
+            public HttpResponse execute(ExecutionContext ctx, HttpRequest request) throws Exception {
+                clientPorts.add(((SocketChannel)request.getChannel()).getRemoteAddress());
+                concurrent.countDown();
+                concurrent.await(5, TimeUnit.SECONDS);
+                SinglePartHttpResponse response = new SinglePartHttpResponse(request);
+                response.appendBody("n=" + request.getParameter("n"));
+                return response;
+            }
+        });
+        server.start();
+        HttpClient client = new HttpClient("127.0.0.1", port);
+        try {
+            client.setMaxConnections(2);
+            List<BodyCollector> bodies = new ArrayList<>();
+            for (int n = 0; n < 6; n++) {
+                bodies.add(new BodyCollector());
+                client.sendRequest(new HttpRequest("GET", "/echo?n=" + n), bodies.get(n));
+            }
+            for (int n = 0; n < 6; n++) {
+                assertEquals("n=" + n, bodies.get(n).get());
+            }
+            // concurrent requests share at most two connections, kept alive
+            assertEquals(2, clientPorts.size());
+            assertEquals(2, client.getConnectionCount());
+            
+            client.setIdleTimeout(0, TimeUnit.MILLISECONDS);
+            for (int i = 0; i < 30 && client.getConnectionCount() > 0; i++) {
+                Thread.sleep(100);
+            }
+            assertEquals(0, client.getConnectionCount());
+        } finally {
+            client.close();
+        }
+    }
+    
+    @Test
+    public void testClientPipelinesRequests() throws Exception {
+        int port = freePort();
+        Set<Object> clientPorts = ConcurrentHashMap.newKeySet();
+        HttpServer server = new HttpServer("pipelined", port);
+        server.addRoute(new HttpRoute("GET", "echo") {
+            @Override
+            public HttpResponse execute(ExecutionContext ctx, HttpRequest request) throws Exception {
+                clientPorts.add(((SocketChannel)request.getChannel()).getRemoteAddress());
+                Thread.sleep(20);
+                SinglePartHttpResponse response = new SinglePartHttpResponse(request);
+                response.appendBody("n=" + request.getParameter("n"));
+                return response;
+            }
+        });
+        server.start();
+        HttpClient client = new HttpClient("127.0.0.1", port);
+        try {
+            client.setMaxConnections(1);
+            client.setPipelineDepth(4);
+            List<CompletableFuture<byte[]>> calls = new ArrayList<>();
+            for (int n = 0; n < 8; n++) {
+                calls.add(client.call(new HttpRequest("GET", "/echo?n=" + n), 5, TimeUnit.SECONDS));
+            }
+            CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+            for (int n = 0; n < calls.size(); n++) {
+                assertEquals("n=" + n, new String(calls.get(n).get(), StandardCharsets.US_ASCII));
+            }
+            // responses arrive in order on a single connection
+            assertEquals(1, clientPorts.size());
+            
+            // requests pipelined behind a response that closes the 
+            // connection are sent again
+            HttpRequest closing = new HttpRequest("GET", "/echo?n=0");
+            closing.addHeader("Connection", "close");
+            calls.clear();
+            calls.add(client.call(closing, 5, TimeUnit.SECONDS));
+            for (int n = 1; n < 4; n++) {
+                calls.add(client.call(new HttpRequest("GET", "/echo?n=" + n), 5, TimeUnit.SECONDS));
+            }
+            for (int n = 0; n < calls.size(); n++) {
+                assertEquals("n=" + n, new String(calls.get(n).get(5, TimeUnit.SECONDS), 
+                        StandardCharsets.US_ASCII));
+            }
+            assertEquals(2, clientPorts.size());
+        } finally {
+            client.close();
+        }
+    }
+    
+    @Test
+    public void testClientReconnectsWithBackoff() throws Exception {
+        ServerSocket backend = new ServerSocket(0);
+        int port = backend.getLocalPort();
+        HttpClient client = new HttpClient("127.0.0.1", port);
+        try {
+            client.setReconnectBackoff(50, 200, TimeUnit.MILLISECONDS);
+            answerOnce(backend, "up");
+            assertEquals("up", new String(client.call(new HttpRequest("GET", "/"), 
+                    5, TimeUnit.SECONDS).get(), StandardCharsets.US_ASCII));
+            // the server restarts
+            backend.close();
+            CompletableFuture<byte[]> waiting = client.call(new HttpRequest("GET", "/"), 
+                    5, TimeUnit.SECONDS);
+            try {
+                waiting.get(300, TimeUnit.MILLISECONDS);
+                fail("expected the request to wait for the server");
+            } catch (TimeoutException ex) {
+                // connect attempts back off while the server is down
+            }
+            backend = new ServerSocket();
+            backend.setReuseAddress(true);
+            backend.bind(new InetSocketAddress("127.0.0.1", port));
+            answerOnce(backend, "again");
+            assertEquals("again", new String(waiting.get(5, TimeUnit.SECONDS), 
+                    StandardCharsets.US_ASCII));
+            
+            // past the reconnect window, a request fails fast
+            backend.close();
+            client.setReconnectWindow(0, TimeUnit.MILLISECONDS);
+            CompletableFuture<byte[]> failing = client.call(new HttpRequest("GET", "/"), 
+                    5, TimeUnit.SECONDS);
+            try {
+                failing.get(1, TimeUnit.SECONDS);
+                fail("expected the server to be unreachable");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof IOException);
+            }
+        } finally {
+            client.close();
+            backend.close();
+        }
+    }
+
+    /**
+     * Answers one request on the first connection accepted by the given
+     * socket with the given body, and closes the connection, as the 
+     * response says.
+     */
+    private static void answerOnce(ServerSocket backend, String body) {
+        Thread responder = new Thread(() -> {
+            try (Socket socket = backend.accept()) {
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                String line;
+                while ((line = in.readLine()) != null && !line.isEmpty());
+                socket.getOutputStream().write(("HTTP/1.1 200 OK\r\nConnection: close\r\n"
+                        + "Content-Length: " + body.length() + "\r\n\r\n" + body)
+                        .getBytes(StandardCharsets.US_ASCII));
+                socket.getOutputStream().flush();
+            } catch (Exception ex) {
+            }
+        });
+        responder.setDaemon(true);
+        responder.start();
+    }
+    
+    /**
+     * Gets a port that is free at the moment.
+     */
+    static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+    
+    /**
+     * Collects the body of a response in ASCII.
+     */
+    static class BodyCollector implements ResponseCallback {
+        private final StringBuilder _body = new StringBuilder();
+        private final CompletableFuture<String> _result = new CompletableFuture<>();
+        
+        @Override
+        public void onResponse(byte[] bytes, boolean eos) {
+            _body.append(new String(bytes, StandardCharsets.US_ASCII));
+            if (eos) _result.complete(_body.toString());
+        }
+        
+        @Override
+        public void onError(Exception ex) {
+            _result.completeExceptionally(ex);
+        }
+        
+        /**
+         * Gets the body once the response has been received.
+         */
+        String get() throws Exception {
+            return _result.get(10, TimeUnit.SECONDS);
+        }
+    }
+    
+    @Test
+    public void testClientsShareEventLoopGroup() throws Exception {
+        int port = freePort();
+        HttpServer server = new HttpServer("backend", port);
+        server.addRoute(new HttpRoute("GET", "echo") {
+            @Override
+            public HttpResponse execute(ExecutionContext ctx, HttpRequest request) throws Exception {
+                SinglePartHttpResponse response = new SinglePartHttpResponse(request);
+                response.appendBody("n=" + request.getParameter("n"));
+                return response;
+            }
+        });
+        server.start();
+        EventLoopGroup group = new EventLoopGroup("shared-loop", 1, true);
+        HttpClient[] clients = new HttpClient[3];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new HttpClient("127.0.0.1", port, group);
+        }
+        BodyCollector[] bodies = new BodyCollector[clients.length];
+        for (int i = 0; i < clients.length; i++) {
+            bodies[i] = new BodyCollector();
+            clients[i].sendRequest(new HttpRequest("GET", "/echo?n=" + i), bodies[i]);
+        }
+        for (int i = 0; i < clients.length; i++) {
+            assertEquals("n=" + i, bodies[i].get());
+        }
+        // all clients run on the single thread of the group
+        assertEquals(1, Thread.getAllStackTraces().keySet().stream()
+                .filter(t -> t.getName().startsWith("shared-loop")).count());
+        
+        group.close();
+        for (int i = 0; i < 20 && clients[0].isConnected(); i++) {
+            Thread.sleep(50);
+        }
+        try {
+            clients[0].sendRequest(new HttpRequest("GET", "/echo?n=0"), null);
+            fail("expected closed client");
+        } catch (IOException expected) {
+        }
+    }
+    
+    @Test
+    public void testCallCompletesFutureWithinTimeout() throws Exception {
+        int port = freePort();
+        HttpServer server = new HttpServer("called", port);
+        server.addRoute(new HttpRoute("GET", "echo") {
+            @Override
+            public HttpResponse execute(ExecutionContext ctx, HttpRequest request) throws Exception {
+                if (request.getParameter("delay") != null) {
+                    Thread.sleep(Long.parseLong(request.getParameter("delay")));
+                }
+                SinglePartHttpResponse response = new SinglePartHttpResponse(request);
+                response.appendBody("n=" + request.getParameter("n"));
+                return response;
+            }
+        });
+        server.start();
+        HttpClient client = new HttpClient("127.0.0.1", port);
+        try {
+            CompletableFuture<byte[]> slow = client.call(
+                    new HttpRequest("GET", "/echo?n=0&delay=2000"), 200, TimeUnit.MILLISECONDS);
+            List<CompletableFuture<byte[]>> calls = new ArrayList<>();
+            for (int n = 0; n < 3; n++) {
+                calls.add(client.call(new HttpRequest("GET", "/echo?n=" + n), 5, TimeUnit.SECONDS));
+            }
+            CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+            for (int n = 0; n < calls.size(); n++) {
+                assertEquals("n=" + n, new String(calls.get(n).get(), StandardCharsets.US_ASCII));
+            }
+            // the timer fires well before the tick of the loop
+            long start = System.currentTimeMillis();
+            try {
+                slow.get(5, TimeUnit.SECONDS);
+                fail("expected timeout");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof TimeoutException);
+            }
+            assertTrue(System.currentTimeMillis() - start < 500);
+            
+            BodyCollector body = new BodyCollector();
+            client.call(new HttpRequest("GET", "/echo?n=9"), body, 5, TimeUnit.SECONDS)
+                .get(5, TimeUnit.SECONDS);
+            assertEquals("n=9", body.get());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testStreamedResponseFollowsDemand() throws Exception {
+        int port = freePort();
+        byte[] content = new byte[1024*1024];
+        for (int i = 0; i < content.length; i++) content[i] = (byte)(i % 251);
+        HttpServer server = new HttpServer("download", port);
+        server.addRoute(new HttpRoute("GET", "download") {
+            @Override
+            public HttpResponse execute(ExecutionContext ctx, HttpRequest request) throws Exception {
+                SinglePartHttpResponse response = new SinglePartHttpResponse(request);
+                response.setCompressible(false);
+                response.setBody(ByteBuffer.wrap(content));
+                return response;
+            }
+        });
+        server.start();
+        HttpClient client = new HttpClient("127.0.0.1", port);
+        try {
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            Semaphore parts = new Semaphore(0);
+            boolean[] readOnly = {true};
+            Demand[] demand = new Demand[1];
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            client.stream(new HttpRequest("GET", "/download"), new ResponseConsumer() {
+                @Override
+                public void onStart(Demand d) {
+                    demand[0] = d;
+                    d.request(1);
+                }
+                @Override
+                public void onData(ByteBuffer data, boolean eos) {
+                    readOnly[0] &= data.isReadOnly();
+                    byte[] bytes = new byte[data.remaining()];
+                    data.get(bytes);
+                    received.write(bytes, 0, bytes.length);
+                    parts.release();
+                    if (eos) done.complete(null);
+                }
+                @Override
+                public void onError(Exception ex) {
+                    done.completeExceptionally(ex);
+                }
+            });
+            assertTrue(parts.tryAcquire(1, 5, TimeUnit.SECONDS));
+            // no more is read than demanded
+            assertFalse(parts.tryAcquire(1, 300, TimeUnit.MILLISECONDS));
+            demand[0].request(2);
+            assertTrue(parts.tryAcquire(2, 5, TimeUnit.SECONDS));
+            assertFalse(parts.tryAcquire(1, 300, TimeUnit.MILLISECONDS));
+            assertFalse(done.isDone());
+            
+            demand[0].request(Long.MAX_VALUE);
+            done.get(10, TimeUnit.SECONDS);
+            Assert.assertArrayEquals(content, received.toByteArray());
+            assertTrue(readOnly[0]);
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testJSONResponsesAreCorrelatedById() throws Exception {
+        ServerSocket backend = new ServerSocket(0);
+        backend.setReceiveBufferSize(4096);
+        // answers three requests in reverse order, and never the fourth
+        Thread responder = new Thread(() -> {
+            try (Socket socket = backend.accept()) {
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                List<JSONObject> requests = new ArrayList<>();
+                for (int i = 0; i < 3; i++) {
+                    requests.add(new JSONObject(in.readLine()));
+                }
+                Collections.reverse(requests);
+                for (JSONObject request : requests) {
+                    JSONObject response = new JSONObject();
+                    response.put("id", request.get("id"));
+                    response.put("result", request.getJSONObject("params").get("x"));
+                    socket.getOutputStream().write((response + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                in.readLine();
+                in.readLine();
+            } catch (Exception ex) {
+            }
+        });
+        responder.setDaemon(true);
+        responder.start();
+        JSONRPCClient client = new JSONRPCClient(
+                "127.0.0.1", backend.getLocalPort());
+        try {
+            client.setMaxConnections(1);
+            Object[] results = new Object[4];
+            CountDownLatch latch = new CountDownLatch(3);
+            // the first request is more than the socket takes at once
+            char[] padding = new char[4*1024*1024];
+            Arrays.fill(padding, 'p');
+            for (int i = 1; i < results.length; i++) {
+                int n = i;
+                JSONRequest request = new JSONRequest(
+                        "{\"method\":\"echo\",\"params\":{\"x\":\"x" + i + "\"}}");
+                if (i == 1) request.getBody().getJSONObject("params").put("padding", new String(padding));
+                request.putProperty("id", i);
+                client.sendRequest(request, new ResponseCallback() {
+                    @Override
+                    public void onResponse(byte[] bytes, boolean eos) {
+                        results[n] = new JSONObject(new String(bytes, StandardCharsets.UTF_8))
+                                .get("result");
+                        latch.countDown();
+                    }
+                    @Override
+                    public void onError(Exception ex) {
+                        results[n] = ex;
+                        latch.countDown();
+                    }
+                });
+            }
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            for (int i = 1; i < results.length; i++) {
+                assertEquals("x" + i, results[i]);
+            }
+            // all requests were outstanding at once on one connection
+            assertEquals(1, client.getConnectionCount());
+            
+            client.setRequestTimeout(0, TimeUnit.MILLISECONDS);
+            CompletableFuture<Exception> orphan = new CompletableFuture<>();
+            JSONRequest request = new JSONRequest(
+                    "{\"method\":\"echo\",\"params\":{\"x\":\"x4\"}}");
+            request.putProperty("id", 4);
+            client.sendRequest(request, new ResponseCallback() {
+                @Override
+                public void onResponse(byte[] bytes, boolean eos) {
+                    orphan.complete(null);
+                }
+                @Override
+                public void onError(Exception ex) {
+                    orphan.complete(ex);
+                }
+            });
+            assertTrue(orphan.get(5, TimeUnit.SECONDS) 
+                    instanceof TimeoutException);
+        } finally {
+            client.close();
+            backend.close();
+        }
+    }
+
+    @Test
+    public void testHttp2StreamsAreMultiplexed() throws Exception {
+        int port = freePort();
+        byte[] content = Files.readAllBytes(Paths.get("pom.xml"));
+        // larger than the initial flow-control window of a stream
+        char[] large = new char[200*1024];
+        Arrays.fill(large, 'z');
+        byte[] upload = new byte[300*1024];
+        new Random(7).nextBytes(upload);
+        int streamed = 1024*1024;
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        HttpServer server = new HttpServer("h2c", port, new Http2Protocol());
+        server.addRoute(new HttpRoute("GET", "large") {
+            @Override
+            public HttpResponse execute(ExecutionContext ctx, HttpRequest request) throws Exception {
+                SinglePartHttpResponse response = new SinglePartHttpResponse(request);
+                response.appendBody(new String(large));
+                return response;
+            }
+        });
+        server.addRoute(new HttpRoute("GET", "stream") {
+            @Override
+            public HttpResponse execute(ExecutionContext ctx, HttpRequest request) throws Exception {
+                StreamingHttpResponse response = new StreamingHttpResponse(request);
+                response.setWriteTimeout(5000);
+                Thread writer = new Thread(() -> {
+                    try {
+                        byte[] chunk = new byte[16*1024];
+                        Arrays.fill(chunk, (byte)'x');
+                        for (int n = 0; n < streamed; n += chunk.length) response.write(chunk);
+                        response.end();
+                    } catch (Exception ex) {
+                        failure.set(ex);
+                    }
+                });
+                writer.start();
+                return response;
+            }
+        });
+        server.addRoute(new HttpRoute("POST", "echo") {
+            @Override
+            public HttpResponse execute(ExecutionContext ctx, HttpRequest request) throws Exception {
+                SinglePartHttpResponse response = new SinglePartHttpResponse(request);
+                response.setBody(request.getBody());
+                return response;
+            }
+        });
+        server.addRoute(new HttpRoute("GET", "broken") {
+            @Override
+            public HttpResponse execute(ExecutionContext ctx, HttpRequest request) throws Exception {
+                return new SinglePartHttpResponse(request) {
+                    @Override
+                    protected void writeBody() throws IOException {
+                        throw new IOException("broken body");
+                    }
+                };
+            }
+        });
+        server.addRoute(new DefaultGet(new FileCache()));
+        server.start();
+        try (Http2Client client = new Http2Client("127.0.0.1", port)) {
+            CompletableFuture<Http2Client.Response> pom = client.send("GET", "/pom.xml");
+            CompletableFuture<Http2Client.Response> big = client.send("GET", "/large");
+            CompletableFuture<Http2Client.Response> missing = client.send("GET", "/no-such-file");
+            CompletableFuture<Http2Client.Response> stream = client.send("GET", "/stream");
+            CompletableFuture<Http2Client.Response> echo = client.send("POST", "/echo", upload);
+            CompletableFuture<Http2Client.Response> broken = client.send("GET", "/broken");
+            
+            Http2Client.Response response = pom.get(5, TimeUnit.SECONDS);
+            assertEquals(200, response.getStatus());
+            assertEquals("" + content.length, response.getHeader("Content-Length"));
+            Assert.assertArrayEquals(content, response.getBody());
+            response = big.get(5, TimeUnit.SECONDS);
+            assertEquals(200, response.getStatus());
+            assertNull(response.getHeader("Transfer-Encoding"));
+            assertEquals(new String(large), response.getBodyAsString());
+            assertEquals(404, missing.get(5, TimeUnit.SECONDS).getStatus());
+            // the chunked coding of a streamed body is removed
+            response = stream.get(10, TimeUnit.SECONDS);
+            assertEquals(200, response.getStatus());
+            assertNull(response.getHeader("Transfer-Encoding"));
+            assertEquals(streamed, response.getBody().length);
+            assertEquals(streamed, response.getBodyAsString().chars().filter(c -> c == 'x').count());
+            // the body of a request is received before it is routed
+            response = echo.get(10, TimeUnit.SECONDS);
+            assertEquals(200, response.getStatus());
+            Assert.assertArrayEquals(upload, response.getBody());
+            // a response that can not be sent resets its stream
+            try {
+                broken.get(5, TimeUnit.SECONDS);
+                fail("expected the stream to be reset");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof ProtocolException);
+            }
+            // the dynamic table of the connection is shared by streams
+            assertEquals(200, client.get("/pom.xml").getStatus());
+            assertNull(failure.get());
+        }
+    }
+    
+    /**
+     * Encodes a frame, masked if a mask is given.
+     */
+    static byte[] frame(int b0, byte[] payload, Integer mask) {
+        ByteBuffer buf = ByteBuffer.allocate(14 + payload.length);
+        buf.put((byte)b0);
+        int maskBit = mask == null ? 0 : 0x80;
+        if (payload.length <= 125) {
+            buf.put((byte)(maskBit | payload.length));
+        } else if (payload.length <= 0xFFFF) {
+            buf.put((byte)(maskBit | 126)).putShort((short)payload.length);
+        } else {
+            buf.put((byte)(maskBit | 127)).putLong(payload.length);
+        }
+        if (mask != null) buf.putInt(mask);
+        for (int i = 0; i < payload.length; i++) {
+            buf.put(mask == null ? payload[i] 
+                : (byte)(payload[i] ^ (mask >>> (24 - 8*(i % 4)))));
+        }
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+    
+    static int indexOf(byte[] bytes, byte[] pattern) {
+        return indexOf(bytes, 0, pattern);
+    }
+    
+    static int indexOf(byte[] bytes, int from, byte[] pattern) {
+        outer: for (int i = from; i <= bytes.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (bytes[i+j] != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+    
+    static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int n;
+        while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+        return out.toByteArray();
+    }
+    
     @Test
     public void testWrapService() throws Exception {
         new ServiceMaker().wrap(new HashMap<>());